@@ -0,0 +1,344 @@
+package org.fgilbert.jdx;
+
+/*
+ * Describes how to read and write the properties of a Java class: the
+ * components of a record or the properties of a JavaBean (getters/setters and
+ * public fields). Plans are built once per class via method handles and are
+ * cached in a ClassValue, so they are discarded when the class is unloaded.
+ *
+ * This code targets Java 8, so records are detected reflectively
+ * (Class.isRecord and Class.getRecordComponents) when running on a JVM that
+ * supports them.
+ *
+ * Values are transferred without boxing whenever the column and property
+ * types are both primitive. See `createColumnReader` and `createRowReader`.
+ */
+
+import static org.fgilbert.jdx.Rdata.*;
+
+import java.beans.BeanInfo;
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+final class AccessorPlan {
+
+	private static final ClassValue<AccessorPlan> PLANS = new ClassValue<AccessorPlan>() {
+
+		@Override
+		protected AccessorPlan computeValue(Class<?> cls) {
+			return new AccessorPlan(cls);
+		}
+	};
+
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+	/*
+	 * A property of the class. `getter` has type (Object)type and
+	 * `objectGetter` has type (Object)Object (boxing primitive values).
+	 * `setter` has type (Object, type)void and is null for read-only
+	 * properties and record components.
+	 */
+	static final class Property {
+
+		final String name;
+		final Class<?> type;
+		final MethodHandle getter;
+		final MethodHandle objectGetter;
+		final MethodHandle setter;
+
+		Property(String name, Class<?> type, MethodHandle getter, MethodHandle setter) {
+			this.name = name;
+			this.type = type;
+			this.getter = getter;
+			this.objectGetter = getter.asType(MethodType.methodType(Object.class, Object.class));
+			this.setter = setter;
+		}
+	}
+
+	private final Class<?> cls;
+	private final MethodHandle constructor; // Canonical constructor for records, no-arg constructor for beans, or null.
+	private final boolean isRecord;
+	private final Property[] properties;
+
+	private AccessorPlan(Class<?> cls) {
+		this.cls = cls;
+		Method[] recordComponents = getRecordAccessors(cls);
+		this.isRecord = (recordComponents != null);
+		try {
+			if (this.isRecord) {
+				this.properties = new Property[recordComponents.length];
+				Class<?>[] types = new Class<?>[recordComponents.length];
+				for (int i = 0; i < recordComponents.length; i++) {
+					Method m = recordComponents[i];
+					types[i] = m.getReturnType();
+					this.properties[i] = new Property(m.getName(), types[i], unreflect(m), null);
+				}
+				Constructor<?> c = cls.getDeclaredConstructor(types);
+				c.setAccessible(true);
+				this.constructor = LOOKUP.unreflectConstructor(c);
+			} else {
+				this.properties = getBeanProperties(cls);
+				MethodHandle constructor = null;
+				try {
+					Constructor<?> c = cls.getDeclaredConstructor();
+					if (!Modifier.isAbstract(cls.getModifiers())) {
+						c.setAccessible(true);
+						constructor = LOOKUP.unreflectConstructor(c).asType(MethodType.methodType(Object.class));
+					}
+				} catch (NoSuchMethodException e) {
+				}
+				this.constructor = constructor;
+			}
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			throw new RuntimeException(String.format("The accessors of Java class '%s' cannot be resolved: %s", cls.getName(), e.getMessage()), e);
+		}
+	}
+
+	private static Integer boxInt(int value) {
+		return (value == NA_INT) ? null : value;
+	}
+
+	private static Long boxLong(int value) {
+		return (value == NA_INT) ? null : (long) value;
+	}
+
+	private static Double boxDouble(double value) {
+		return Double.isNaN(value) ? null : value;
+	}
+
+	private static int checkInt(int value, String name) {
+		if (value == NA_INT)
+			throw new RuntimeException(String.format("The column '%s' contains missing values that cannot be assigned to a primitive property.", name));
+		return value;
+	}
+
+	/*
+	 * Binds each row of the columns to a new instance of `cls`. Columns are
+	 * matched to record components or writable bean properties by name (exact
+	 * match first, then case-insensitive). Every column must match a property,
+	 * and every record component must be matched.
+	 */
+	@SuppressWarnings("unchecked")
+	<T> List<T> createObjects(String[] names, Object[] columns) {
+		int rowCount = (columns.length > 0) ? Array.getLength(columns[0]) : 0;
+		List<T> lst = new ArrayList<T>(rowCount);
+		try {
+			if (this.isRecord) {
+				MethodHandle rowReader = createRowReader(names, columns);
+				for (int i = 0; i < rowCount; i++)
+					lst.add((T) (Object) rowReader.invokeExact(i));
+			} else {
+				if (this.constructor == null)
+					throw new RuntimeException(String.format("Java class '%s' does not have a no-argument constructor.", this.cls.getName()));
+				MethodHandle[] binders = new MethodHandle[columns.length];
+				for (int j = 0; j < columns.length; j++) {
+					Property p = findProperty(names[j]);
+					if (p.setter == null)
+						throw new RuntimeException(String.format("The property '%s' of Java class '%s' is read-only.", p.name, this.cls.getName()));
+					binders[j] = MethodHandles.filterArguments(p.setter, 1, createColumnReader(names[j], columns[j], p.type));
+				}
+				for (int i = 0; i < rowCount; i++) {
+					Object o = (Object) this.constructor.invokeExact();
+					for (int j = 0; j < binders.length; j++)
+						binders[j].invokeExact(o, i);
+					lst.add((T) o);
+				}
+			}
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+		return lst;
+	}
+
+	/*
+	 * Returns a method handle of type (int)type that reads the element of
+	 * `column` at the given row and converts it to `type`. Missing values are
+	 * converted to null for reference types. Conversions between primitive
+	 * types are done without boxing.
+	 */
+	private static MethodHandle createColumnReader(String name, Object column, Class<?> type) {
+		Class<?> ct = column.getClass().getComponentType();
+		MethodHandle mh = MethodHandles.arrayElementGetter(column.getClass()).bindTo(column);
+		try {
+			if (type == ct && ct != Integer.TYPE)
+				return mh;
+			if (ct == Integer.TYPE) {
+				if (type == Integer.TYPE || type == Long.TYPE || type == Double.TYPE || type == Float.TYPE) {
+					mh = MethodHandles.filterReturnValue(mh, MethodHandles.insertArguments(LOOKUP.findStatic(AccessorPlan.class, "checkInt", MethodType.methodType(int.class, int.class, String.class)), 1, name));
+					return MethodHandles.explicitCastArguments(mh, MethodType.methodType(type, int.class));
+				}
+				if (type == Long.class)
+					return MethodHandles.filterReturnValue(mh, LOOKUP.findStatic(AccessorPlan.class, "boxLong", MethodType.methodType(Long.class, int.class)));
+				if (type.isAssignableFrom(Integer.class))
+					return MethodHandles.filterReturnValue(mh, LOOKUP.findStatic(AccessorPlan.class, "boxInt", MethodType.methodType(Integer.class, int.class))).asType(MethodType.methodType(type, int.class));
+			} else if (ct == Double.TYPE) {
+				if (type == Float.TYPE)
+					return MethodHandles.explicitCastArguments(mh, MethodType.methodType(type, int.class));
+				if (type.isAssignableFrom(Double.class))
+					return MethodHandles.filterReturnValue(mh, LOOKUP.findStatic(AccessorPlan.class, "boxDouble", MethodType.methodType(Double.class, double.class))).asType(MethodType.methodType(type, int.class));
+			} else if (ct == String.class) {
+				if (type.isEnum())
+					return MethodHandles.filterReturnValue(mh, MethodHandles.insertArguments(LOOKUP.findStatic(AccessorPlan.class, "toEnum", MethodType.methodType(Enum.class, Class.class, String.class)), 0, type)).asType(MethodType.methodType(type, int.class));
+				if (type.isAssignableFrom(String.class))
+					return mh.asType(MethodType.methodType(type, int.class));
+			} else if (ct == Boolean.TYPE || ct == Byte.TYPE) {
+				if (!type.isPrimitive() && type.isAssignableFrom(MethodType.methodType(ct).wrap().returnType()))
+					return mh.asType(MethodType.methodType(type, int.class));
+			}
+		} catch (ReflectiveOperationException e) {
+			throw new RuntimeException(e);
+		}
+		throw new RuntimeException(String.format("The column '%s' of type '%s' cannot be assigned to a property of type '%s'.", name, ct.getName(), type.getName()));
+	}
+
+	/*
+	 * Returns a method handle of type (int)Object that creates a record from
+	 * the given row. The record constructor's arguments are filtered through
+	 * column readers and then collapsed to the single row argument, so
+	 * primitive components are never boxed.
+	 */
+	private MethodHandle createRowReader(String[] names, Object[] columns) {
+		MethodHandle[] readers = new MethodHandle[this.properties.length];
+		for (int j = 0; j < columns.length; j++) {
+			Property p = findProperty(names[j]);
+			int index = indexOfProperty(p);
+			if (readers[index] != null)
+				throw new RuntimeException(String.format("The record component '%s' is matched by more than one column.", p.name));
+			readers[index] = createColumnReader(names[j], columns[j], p.type);
+		}
+		for (int i = 0; i < readers.length; i++) {
+			if (readers[i] == null)
+				throw new RuntimeException(String.format("The record component '%s' of Java class '%s' does not have a matching column.", this.properties[i].name, this.cls.getName()));
+		}
+		MethodHandle mh = MethodHandles.filterArguments(this.constructor, 0, readers);
+		MethodType type = MethodType.methodType(Object.class, int.class);
+		return MethodHandles.permuteArguments(mh.asType(mh.type().changeReturnType(Object.class)), type, new int[readers.length]);
+	}
+
+	Property findProperty(String name) {
+		for (Property p : this.properties) {
+			if (p.name.equals(name))
+				return p;
+		}
+		for (Property p : this.properties) {
+			if (p.name.equalsIgnoreCase(name))
+				return p;
+		}
+		throw new RuntimeException(String.format("Java class '%s' does not have a property matching the column '%s'.", this.cls.getName(), name));
+	}
+
+	static AccessorPlan get(Class<?> cls) {
+		return PLANS.get(cls);
+	}
+
+	/*
+	 * Returns readable bean properties and public instance fields, ordered by
+	 * field declaration (superclass fields first) and then by name.
+	 */
+	private static Property[] getBeanProperties(Class<?> cls) throws ReflectiveOperationException {
+		Map<String, Property> properties = new LinkedHashMap<String, Property>();
+		List<Class<?>> hierarchy = new ArrayList<Class<?>>();
+		for (Class<?> c = cls; c != null && c != Object.class; c = c.getSuperclass())
+			hierarchy.add(0, c);
+		for (Class<?> c : hierarchy) {
+			for (Field f : c.getDeclaredFields()) {
+				if (!Modifier.isStatic(f.getModifiers()) && !f.isSynthetic())
+					properties.put(f.getName(), null);
+			}
+		}
+		BeanInfo info;
+		try {
+			info = Introspector.getBeanInfo(cls, Object.class);
+		} catch (IntrospectionException e) {
+			throw new RuntimeException(e);
+		}
+		for (PropertyDescriptor pd : info.getPropertyDescriptors()) {
+			if (pd.getReadMethod() == null || pd.getPropertyType() == null)
+				continue;
+			MethodHandle setter = (pd.getWriteMethod() == null) ? null : unreflect(pd.getWriteMethod());
+			properties.put(pd.getName(), new Property(pd.getName(), pd.getPropertyType(), unreflect(pd.getReadMethod()), setter));
+		}
+		for (Field f : cls.getFields()) {
+			if (Modifier.isStatic(f.getModifiers()) || properties.get(f.getName()) != null)
+				continue;
+			MethodHandle getter = LOOKUP.unreflectGetter(f).asType(MethodType.methodType(f.getType(), Object.class));
+			MethodHandle setter = Modifier.isFinal(f.getModifiers()) ? null : LOOKUP.unreflectSetter(f).asType(MethodType.methodType(void.class, Object.class, f.getType()));
+			properties.put(f.getName(), new Property(f.getName(), f.getType(), getter, setter));
+		}
+		List<Property> lst = new ArrayList<Property>();
+		for (Property p : properties.values()) {
+			if (p != null)
+				lst.add(p);
+		}
+		return lst.toArray(new Property[lst.size()]);
+	}
+
+	boolean isRecord() {
+		return isRecord;
+	}
+
+	Property[] getProperties() {
+		return properties;
+	}
+
+	/*
+	 * Returns the accessor methods of the record components of `cls`, or null
+	 * if `cls` is not a record or records are not supported by the JVM.
+	 */
+	private static Method[] getRecordAccessors(Class<?> cls) {
+		try {
+			if (!(Boolean) Class.class.getMethod("isRecord").invoke(cls))
+				return null;
+			Object[] components = (Object[]) Class.class.getMethod("getRecordComponents").invoke(cls);
+			Method[] accessors = new Method[components.length];
+			for (int i = 0; i < components.length; i++)
+				accessors[i] = (Method) components[i].getClass().getMethod("getAccessor").invoke(components[i]);
+			return accessors;
+		} catch (NoSuchMethodException e) {
+			return null;
+		} catch (ReflectiveOperationException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private int indexOfProperty(Property p) {
+		for (int i = 0; i < this.properties.length; i++) {
+			if (this.properties[i] == p)
+				return i;
+		}
+		return -1;
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static Enum<?> toEnum(Class<?> type, String value) {
+		return (value == null) ? null : Enum.valueOf((Class) type, value);
+	}
+
+	/*
+	 * Returns a getter of type (Object)returnType or a setter of type
+	 * (Object, parameterType)void.
+	 */
+	private static MethodHandle unreflect(Method m) throws IllegalAccessException {
+		m.setAccessible(true);
+		MethodHandle mh = LOOKUP.unreflect(m);
+		if (m.getParameterCount() == 0)
+			return mh.asType(MethodType.methodType(m.getReturnType(), Object.class));
+		return mh.asType(MethodType.methodType(void.class, Object.class, m.getParameterTypes()[0]));
+	}
+
+}
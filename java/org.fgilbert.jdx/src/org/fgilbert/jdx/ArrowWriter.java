@@ -0,0 +1,720 @@
+package org.fgilbert.jdx;
+
+/*
+ * Writes the data frame value of an initialized JavaToR object in the Arrow
+ * IPC format (streaming or file format, metadata version 5), so that tools
+ * based on Apache Arrow can read results directly. No Arrow library is
+ * required; the flatbuffer metadata is written by FlatBufferBuilder.
+ *
+ * Data frames (convertCollectionToDataFrame, convertMap, etc.) are written
+ * column by column. Matrices (two-dimensional n-d arrays) are written as one
+ * column per matrix column, named V1, V2, ..., as with as.data.frame in R.
+ * Column types are mapped as follows:
+ *
+ * numeric    float64; NA values (R's NA_real_) are null, NaN is preserved.
+ * integer    int32; NA values are null.
+ * logical    bool. Missing values have already been converted to false by
+ *            JavaToR (see hasMissingLogicalValues), except in Table columns,
+ *            where they are null.
+ * raw        uint8.
+ * character  Dictionary-encoded utf8 with int32 indices (or plain utf8, see
+ *            setDictionaryEncoding); null strings are null.
+ * factor     Dictionary-encoded utf8; the dictionary is the factor levels.
+ *
+ * Data frames and matrices spilled to files (see JavaToR.setMemoryBudget and
+ * setArena) are read back and the files are deleted.
+ *
+ * Nulls are recorded in validity bitmaps, which are omitted for columns
+ * without nulls. The values of numeric, integer, and raw columns (including
+ * matrix columns) and dictionary indices are written directly from the
+ * arrays held by JavaToR without intermediate copies.
+ */
+
+import static org.fgilbert.jdx.Rdata.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.fgilbert.jdx.JavaToR.RdataExceptionCode;
+
+public final class ArrowWriter {
+
+	/*
+	 * A column of the data frame. Matrix columns are slices of the flat
+	 * matrix array starting at `offset`.
+	 */
+	private static final class Column {
+		Object data;
+		String[] dictionary;
+		int[] indices;
+		int kind;
+		String name;
+		int offset;
+		boolean ordered;
+	}
+
+	/*
+	 * A body buffer: `count` elements of the array `data` (byte[], int[], or
+	 * double[]) starting at `offset`.
+	 */
+	private static final class BodyBuffer {
+		final int count;
+		final Object data;
+		final long length;
+		final int offset;
+
+		BodyBuffer(Object data, int offset, int count, int elementSize) {
+			this.data = data;
+			this.offset = offset;
+			this.count = count;
+			this.length = (long) count * elementSize;
+		}
+	}
+
+	private static final class CountingOutputStream extends FilterOutputStream {
+		long count;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			this.out.write(b, off, len);
+			this.count += len;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			this.out.write(b);
+			this.count++;
+		}
+	}
+
+	private static final int KIND_BOOL = 1;
+	private static final int KIND_DICTIONARY = 2;
+	private static final int KIND_FLOAT64 = 3;
+	private static final int KIND_INT32 = 4;
+	private static final int KIND_UINT8 = 5;
+	private static final int KIND_UTF8 = 6;
+
+	// Message header and type union values. See Message.fbs and Schema.fbs.
+	private static final int HEADER_SCHEMA = 1;
+	private static final int HEADER_DICTIONARY_BATCH = 2;
+	private static final int HEADER_RECORD_BATCH = 3;
+	private static final int TYPE_INT = 2;
+	private static final int TYPE_FLOATING_POINT = 3;
+	private static final int TYPE_UTF8 = 5;
+	private static final int TYPE_BOOL = 6;
+	private static final int METADATA_VERSION_V5 = 4;
+	private static final int PRECISION_DOUBLE = 2;
+
+	private static final int CHUNK_SIZE = 1 << 16;
+	private static final int CONTINUATION = 0xFFFFFFFF;
+	private static final byte[] MAGIC = "ARROW1".getBytes(StandardCharsets.US_ASCII);
+
+	private int batchSize;
+	private ByteBuffer chunk;
+	private boolean dictionaryEncoding = true;
+	private boolean fileFormat;
+	private boolean missingLogicalValues;
+	private boolean missingRawValues;
+
+	public ArrowWriter() {
+	}
+
+	private static void addValidity(List<BodyBuffer> buffers, byte[] validity, long nullCount) {
+		if (nullCount == 0)
+			buffers.add(new BodyBuffer(null, 0, 0, 1));
+		else
+			buffers.add(new BodyBuffer(validity, 0, validity.length, 1));
+	}
+
+	private static long align8(long n) {
+		return (n + 7) & ~7L;
+	}
+
+	private static int buildEmptyTable(FlatBufferBuilder b) {
+		b.startTable(0);
+		return b.endTable();
+	}
+
+	private static int buildField(FlatBufferBuilder b, Column column, long dictionaryId) {
+		int name = b.createString(column.name);
+		int typeType;
+		int type;
+		switch (column.kind) {
+		case KIND_BOOL:
+			typeType = TYPE_BOOL;
+			type = buildEmptyTable(b);
+			break;
+		case KIND_FLOAT64:
+			typeType = TYPE_FLOATING_POINT;
+			b.startTable(1);
+			b.addFieldShort(0, PRECISION_DOUBLE);
+			type = b.endTable();
+			break;
+		case KIND_INT32:
+			typeType = TYPE_INT;
+			type = buildIntType(b, 32, true);
+			break;
+		case KIND_UINT8:
+			typeType = TYPE_INT;
+			type = buildIntType(b, 8, false);
+			break;
+		default:
+			// Dictionary-encoded fields have the type of the dictionary values.
+			typeType = TYPE_UTF8;
+			type = buildEmptyTable(b);
+			break;
+		}
+		int dictionary = 0;
+		if (column.kind == KIND_DICTIONARY) {
+			int indexType = buildIntType(b, 32, true);
+			b.startTable(4);
+			b.addFieldLong(0, dictionaryId);
+			b.addFieldOffset(1, indexType);
+			b.addFieldBoolean(2, column.ordered);
+			dictionary = b.endTable();
+		}
+		int children = b.createOffsetVector(new int[0]);
+		b.startTable(7);
+		b.addFieldOffset(0, name);
+		b.addFieldBoolean(1, true);
+		b.addFieldByte(2, typeType);
+		b.addFieldOffset(3, type);
+		if (dictionary != 0)
+			b.addFieldOffset(4, dictionary);
+		b.addFieldOffset(5, children);
+		return b.endTable();
+	}
+
+	private static int buildIntType(FlatBufferBuilder b, int bitWidth, boolean signed) {
+		b.startTable(2);
+		b.addFieldInt(0, bitWidth);
+		b.addFieldBoolean(1, signed);
+		return b.endTable();
+	}
+
+	private static byte[] buildMessage(FlatBufferBuilder b, int headerType, int header, long bodyLength) {
+		b.startTable(5);
+		b.addFieldLong(3, bodyLength);
+		b.addFieldOffset(2, header);
+		b.addFieldShort(0, METADATA_VERSION_V5);
+		b.addFieldByte(1, headerType);
+		return b.finish(b.endTable());
+	}
+
+	private static int buildRecordBatch(FlatBufferBuilder b, long length, long[] nodes, List<BodyBuffer> buffers) {
+		long[] layout = new long[buffers.size() * 2];
+		long offset = 0;
+		for (int i = 0; i < buffers.size(); i++) {
+			layout[2 * i] = offset;
+			layout[2 * i + 1] = buffers.get(i).length;
+			offset += align8(buffers.get(i).length);
+		}
+		int nodeVector = b.createStructVector(nodes, 2);
+		int bufferVector = b.createStructVector(layout, 2);
+		b.startTable(5);
+		b.addFieldLong(0, length);
+		b.addFieldOffset(1, nodeVector);
+		b.addFieldOffset(2, bufferVector);
+		return b.endTable();
+	}
+
+	private static int buildSchema(FlatBufferBuilder b, Column[] columns) {
+		int[] fields = new int[columns.length];
+		for (int j = 0; j < columns.length; j++)
+			fields[j] = buildField(b, columns[j], j);
+		int fieldVector = b.createOffsetVector(fields);
+		b.startTable(4);
+		b.addFieldOffset(1, fieldVector);
+		return b.endTable();
+	}
+
+	private void checkExceptionCode(int code, Object value) {
+		int exception = code & 0xFF0000;
+		if (exception == RdataExceptionCode.EXCEPTION.value)
+			throw new RuntimeException(String.valueOf(value));
+		if (exception == RdataExceptionCode.WARNING_MISSING_LOGICAL_VALUES.value)
+			this.missingLogicalValues = true;
+		else if (exception == RdataExceptionCode.WARNING_MISSING_RAW_VALUES.value)
+			this.missingRawValues = true;
+	}
+
+	/*
+	 * Encodes a string column as a dictionary. Indices of null strings are -1.
+	 * Dictionary indices are indexed by row (i.e., `offset` does not apply).
+	 */
+	private static void encodeDictionary(Column column, int rowCount) {
+		String[] a = (String[]) column.data;
+		Map<String, Integer> map = new HashMap<String, Integer>();
+		List<String> dictionary = new ArrayList<String>();
+		int[] indices = new int[rowCount];
+		for (int i = 0; i < rowCount; i++) {
+			String s = a[column.offset + i];
+			if (s == null) {
+				indices[i] = -1;
+				continue;
+			}
+			Integer index = map.get(s);
+			if (index == null) {
+				index = dictionary.size();
+				map.put(s, index);
+				dictionary.add(s);
+			}
+			indices[i] = index;
+		}
+		column.dictionary = dictionary.toArray(new String[dictionary.size()]);
+		column.indices = indices;
+	}
+
+	private static long[] flattenBlocks(List<long[]> blocks) {
+		long[] a = new long[blocks.size() * 3];
+		for (int i = 0; i < blocks.size(); i++)
+			System.arraycopy(blocks.get(i), 0, a, 3 * i, 3);
+		return a;
+	}
+
+	private static long getBodyLength(List<BodyBuffer> buffers) {
+		long length = 0;
+		for (BodyBuffer buffer : buffers)
+			length += align8(buffer.length);
+		return length;
+	}
+
+	/*
+	 * Returns the columns of `value`, which must be a data frame or a matrix.
+	 */
+	private Column[] getColumns(int code, Object value) {
+		checkExceptionCode(code, value);
+		int structure = code & 0xFF00;
+		Object[] a;
+		switch (structure) {
+		case SC_DATA_FRAME:
+			a = (Object[]) value;
+			int[] types = (int[]) a[0];
+			Object[] data = (Object[]) a[1];
+			String[] names = (String[]) a[2];
+			Column[] columns = new Column[types.length];
+			for (int j = 0; j < types.length; j++) {
+				checkExceptionCode(types[j], data[j]);
+				columns[j] = newColumn(names[j], types[j], data[j]);
+			}
+			return columns;
+		case SC_ND_ARRAY:
+			a = (Object[]) value;
+			int[] dimensions = (int[]) a[0];
+			if (dimensions.length != 2)
+				break;
+			columns = new Column[dimensions[1]];
+			for (int j = 0; j < columns.length; j++) {
+				columns[j] = newColumn("V" + (j + 1), SC_VECTOR | (code & 0xFF), a[1]);
+				columns[j].offset = j * dimensions[0];
+			}
+			return columns;
+		default:
+			break;
+		}
+		throw new RuntimeException("Only data frames and matrices can be written in the Arrow IPC format.");
+	}
+
+	private static int getRowCount(int code, Object value, Column column) {
+		if ((code & 0xFF00) == SC_ND_ARRAY)
+			return ((int[]) ((Object[]) value)[0])[0];
+		return (column.indices != null) ? column.indices.length : Array.getLength(column.data);
+	}
+
+	/*
+	 * Returns true if logical NA values were converted to false in the last
+	 * value written. The R package raises a warning.
+	 */
+	public boolean hasMissingLogicalValues() {
+		return missingLogicalValues;
+	}
+
+	public boolean hasMissingRawValues() {
+		return missingRawValues;
+	}
+
+	private Column newColumn(String name, int code, Object data) {
+		Column column = new Column();
+		column.name = name;
+		int type = code & 0xFF;
+		int structure = code & 0xFF00;
+		if (structure == SC_FACTOR) {
+			Object[] factor = (Object[]) data;
+			int[] codes = (int[]) factor[0];
+			column.kind = KIND_DICTIONARY;
+			column.dictionary = (String[]) factor[1];
+			column.ordered = (Boolean) factor[2];
+			column.indices = new int[codes.length];
+			for (int i = 0; i < codes.length; i++)
+				column.indices[i] = (codes[i] == NA_INT) ? -1 : codes[i] - 1;
+			return column;
+		}
+		if (structure == SC_SCALAR) {
+			// Single-row data frames may contain scalars.
+			Object a;
+			switch (type) {
+			case TC_NUMERIC:
+				a = new double[] {((Number) data).doubleValue()};
+				break;
+			case TC_INTEGER:
+				a = new int[] {((Number) data).intValue()};
+				break;
+			case TC_LOGICAL:
+				a = new boolean[] {(Boolean) data};
+				break;
+			case TC_RAW:
+				a = new byte[] {(Byte) data};
+				break;
+			default:
+				a = new String[] {(data == null) ? null : data.toString()};
+				break;
+			}
+			data = a;
+		} else if (structure != SC_VECTOR) {
+			throw new RuntimeException(String.format("The R data code 0x%X is not supported in the Arrow IPC format.", code));
+		}
+		column.data = data;
+		switch (type) {
+		case TC_NUMERIC:
+			column.kind = KIND_FLOAT64;
+			break;
+		case TC_INTEGER:
+			column.kind = KIND_INT32;
+			break;
+		case TC_LOGICAL:
+			column.kind = KIND_BOOL;
+			break;
+		case TC_RAW:
+			column.kind = KIND_UINT8;
+			break;
+		case TC_CHARACTER:
+			column.kind = KIND_UTF8;
+			break;
+		default:
+			throw new RuntimeException(String.format("The R data code 0x%X is not supported in the Arrow IPC format.", code));
+		}
+		return column;
+	}
+
+	/*
+	 * Adds the buffers of `count` rows of `column` starting at `start` to
+	 * `buffers` and returns the null count.
+	 */
+	private static long planColumn(Column column, int start, int count, List<BodyBuffer> buffers) {
+		int p = column.offset + start;
+		byte[] validity = new byte[(count + 7) >> 3];
+		long nullCount = 0;
+		switch (column.kind) {
+		case KIND_BOOL: {
+			byte[] bits = new byte[(count + 7) >> 3];
+			if (column.data instanceof int[]) {
+				// Table columns with NA values are in R's integer encoding.
+				int[] a = (int[]) column.data;
+				for (int i = 0; i < count; i++) {
+					if (a[p + i] == NA_INT) {
+						nullCount++;
+						continue;
+					}
+					validity[i >> 3] |= 1 << (i & 7);
+					if (a[p + i] != 0)
+						bits[i >> 3] |= 1 << (i & 7);
+				}
+				addValidity(buffers, validity, nullCount);
+			} else {
+				boolean[] a = (boolean[]) column.data;
+				for (int i = 0; i < count; i++) {
+					if (a[p + i])
+						bits[i >> 3] |= 1 << (i & 7);
+				}
+				buffers.add(new BodyBuffer(null, 0, 0, 1));
+			}
+			buffers.add(new BodyBuffer(bits, 0, bits.length, 1));
+			return nullCount;
+		}
+		case KIND_UINT8:
+			buffers.add(new BodyBuffer(null, 0, 0, 1));
+			buffers.add(new BodyBuffer(column.data, p, count, 1));
+			return 0;
+		case KIND_FLOAT64: {
+			double[] a = (double[]) column.data;
+			for (int i = 0; i < count; i++) {
+				double d = a[p + i];
+				if (d != d && (int) Double.doubleToRawLongBits(d) == NA_DOUBLE_LOW_WORD)
+					nullCount++;
+				else
+					validity[i >> 3] |= 1 << (i & 7);
+			}
+			addValidity(buffers, validity, nullCount);
+			buffers.add(new BodyBuffer(a, p, count, 8));
+			return nullCount;
+		}
+		case KIND_INT32: {
+			int[] a = (int[]) column.data;
+			for (int i = 0; i < count; i++) {
+				if (a[p + i] == NA_INT)
+					nullCount++;
+				else
+					validity[i >> 3] |= 1 << (i & 7);
+			}
+			addValidity(buffers, validity, nullCount);
+			buffers.add(new BodyBuffer(a, p, count, 4));
+			return nullCount;
+		}
+		case KIND_DICTIONARY: {
+			int[] a = column.indices;
+			for (int i = 0; i < count; i++) {
+				if (a[start + i] < 0)
+					nullCount++;
+				else
+					validity[i >> 3] |= 1 << (i & 7);
+			}
+			addValidity(buffers, validity, nullCount);
+			buffers.add(new BodyBuffer(a, start, count, 4));
+			return nullCount;
+		}
+		default: {
+			String[] a = (String[]) column.data;
+			for (int i = 0; i < count; i++) {
+				if (a[p + i] == null)
+					nullCount++;
+				else
+					validity[i >> 3] |= 1 << (i & 7);
+			}
+			addValidity(buffers, validity, nullCount);
+			planStrings(a, p, count, buffers);
+			return nullCount;
+		}
+		}
+	}
+
+	/*
+	 * Adds the offset and data buffers of a utf8 array.
+	 */
+	private static void planStrings(String[] a, int p, int count, List<BodyBuffer> buffers) {
+		byte[][] encoded = new byte[count][];
+		int[] offsets = new int[count + 1];
+		long length = 0;
+		for (int i = 0; i < count; i++) {
+			encoded[i] = (a[p + i] == null) ? new byte[0] : a[p + i].getBytes(StandardCharsets.UTF_8);
+			length += encoded[i].length;
+			if (length > Integer.MAX_VALUE)
+				throw new RuntimeException("The strings of a column exceed the maximum size of an Arrow utf8 array (2 GB). Use setBatchSize to write smaller batches.");
+			offsets[i + 1] = (int) length;
+		}
+		byte[] data = new byte[(int) length];
+		for (int i = 0; i < count; i++)
+			System.arraycopy(encoded[i], 0, data, offsets[i], encoded[i].length);
+		buffers.add(new BodyBuffer(offsets, 0, offsets.length, 4));
+		buffers.add(new BodyBuffer(data, 0, data.length, 1));
+	}
+
+	/*
+	 * The number of rows per record batch. The default (0) writes all rows in
+	 * a single batch.
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 0)
+			throw new RuntimeException("The batch size must be non-negative.");
+		this.batchSize = batchSize;
+	}
+
+	/*
+	 * Character columns are dictionary-encoded by default. Otherwise, they are
+	 * written as plain utf8 arrays.
+	 */
+	public void setDictionaryEncoding(boolean dictionaryEncoding) {
+		this.dictionaryEncoding = dictionaryEncoding;
+	}
+
+	/*
+	 * Writes the IPC file format (random access; .arrow/.feather files)
+	 * instead of the streaming format.
+	 */
+	public void setFileFormat(boolean fileFormat) {
+		this.fileFormat = fileFormat;
+	}
+
+	/*
+	 * Returns the value of `j2r` (which must be initialized) in the Arrow IPC
+	 * format.
+	 */
+	public byte[] write(JavaToR j2r) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			write(j2r, out);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return out.toByteArray();
+	}
+
+	/*
+	 * Writes the value of `j2r` to a file.
+	 */
+	public void write(JavaToR j2r, String path) throws IOException {
+		try (OutputStream out = new FileOutputStream(path)) {
+			write(j2r, out);
+		}
+	}
+
+	public void write(JavaToR j2r, OutputStream out) throws IOException {
+		this.missingLogicalValues = false;
+		this.missingRawValues = false;
+		int code = j2r.getRdataCompositeCode();
+		Object value = j2r.getValueObject();
+		if ((code & 0xFF00) == SC_MAPPED_FILE) {
+			// A value spilled by JavaToR (see setMemoryBudget).
+			checkExceptionCode(code, value);
+			Object[] a = SpillFile.read((String) value);
+			code = (Integer) a[0];
+			value = a[1];
+		}
+		Column[] columns = getColumns(code, value);
+		int rowCount = (columns.length == 0) ? 0 : getRowCount(code, value, columns[0]);
+		for (Column column : columns) {
+			if (column.kind == KIND_UTF8 && this.dictionaryEncoding) {
+				encodeDictionary(column, rowCount);
+				column.kind = KIND_DICTIONARY;
+			}
+		}
+		CountingOutputStream stream = new CountingOutputStream(out);
+		List<long[]> dictionaryBlocks = new ArrayList<long[]>();
+		List<long[]> recordBatchBlocks = new ArrayList<long[]>();
+		this.chunk = ByteBuffer.allocate(CHUNK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		try {
+			if (this.fileFormat) {
+				stream.write(MAGIC);
+				stream.write(new byte[2]);
+			}
+			FlatBufferBuilder b = new FlatBufferBuilder();
+			writeMessage(stream, buildMessage(b, HEADER_SCHEMA, buildSchema(b, columns), 0), null);
+			for (int j = 0; j < columns.length; j++) {
+				if (columns[j].kind != KIND_DICTIONARY)
+					continue;
+				String[] dictionary = columns[j].dictionary;
+				List<BodyBuffer> buffers = new ArrayList<BodyBuffer>();
+				buffers.add(new BodyBuffer(null, 0, 0, 1));
+				planStrings(dictionary, 0, dictionary.length, buffers);
+				b = new FlatBufferBuilder();
+				int recordBatch = buildRecordBatch(b, dictionary.length, new long[] {dictionary.length, 0}, buffers);
+				b.startTable(3);
+				b.addFieldLong(0, j);
+				b.addFieldOffset(1, recordBatch);
+				int dictionaryBatch = b.endTable();
+				dictionaryBlocks.add(writeMessage(stream, buildMessage(b, HEADER_DICTIONARY_BATCH, dictionaryBatch, getBodyLength(buffers)), buffers));
+			}
+			int size = (this.batchSize == 0) ? Math.max(rowCount, 1) : this.batchSize;
+			int start = 0;
+			do {
+				int count = Math.min(size, rowCount - start);
+				List<BodyBuffer> buffers = new ArrayList<BodyBuffer>();
+				long[] nodes = new long[columns.length * 2];
+				for (int j = 0; j < columns.length; j++) {
+					nodes[2 * j] = count;
+					nodes[2 * j + 1] = planColumn(columns[j], start, count, buffers);
+				}
+				b = new FlatBufferBuilder();
+				int recordBatch = buildRecordBatch(b, count, nodes, buffers);
+				recordBatchBlocks.add(writeMessage(stream, buildMessage(b, HEADER_RECORD_BATCH, recordBatch, getBodyLength(buffers)), buffers));
+				start += count;
+			} while (start < rowCount);
+			// End-of-stream marker.
+			writeInt(stream, CONTINUATION);
+			writeInt(stream, 0);
+			if (this.fileFormat)
+				writeFooter(stream, columns, dictionaryBlocks, recordBatchBlocks);
+			stream.flush();
+		} finally {
+			this.chunk = null;
+		}
+	}
+
+	private void writeBuffer(OutputStream out, BodyBuffer buffer) throws IOException {
+		if (buffer.data instanceof byte[]) {
+			out.write((byte[]) buffer.data, buffer.offset, buffer.count);
+		} else if (buffer.data instanceof int[]) {
+			int[] a = (int[]) buffer.data;
+			int step = CHUNK_SIZE / 4;
+			for (int i = 0; i < buffer.count; i += step) {
+				int n = Math.min(step, buffer.count - i);
+				this.chunk.clear();
+				this.chunk.asIntBuffer().put(a, buffer.offset + i, n);
+				out.write(this.chunk.array(), 0, n * 4);
+			}
+		} else if (buffer.data instanceof double[]) {
+			double[] a = (double[]) buffer.data;
+			int step = CHUNK_SIZE / 8;
+			for (int i = 0; i < buffer.count; i += step) {
+				int n = Math.min(step, buffer.count - i);
+				this.chunk.clear();
+				this.chunk.asDoubleBuffer().put(a, buffer.offset + i, n);
+				out.write(this.chunk.array(), 0, n * 8);
+			}
+		}
+		writePadding(out, buffer.length);
+	}
+
+	private static void writeFooter(CountingOutputStream out, Column[] columns, List<long[]> dictionaryBlocks, List<long[]> recordBatchBlocks) throws IOException {
+		FlatBufferBuilder b = new FlatBufferBuilder();
+		int schema = buildSchema(b, columns);
+		int dictionaries = b.createStructVector(flattenBlocks(dictionaryBlocks), 3);
+		int recordBatches = b.createStructVector(flattenBlocks(recordBatchBlocks), 3);
+		b.startTable(5);
+		b.addFieldOffset(1, schema);
+		b.addFieldOffset(2, dictionaries);
+		b.addFieldOffset(3, recordBatches);
+		b.addFieldShort(0, METADATA_VERSION_V5);
+		byte[] footer = b.finish(b.endTable());
+		out.write(footer);
+		writeInt(out, footer.length);
+		out.write(MAGIC);
+	}
+
+	private static void writeInt(OutputStream out, int value) throws IOException {
+		out.write(value);
+		out.write(value >> 8);
+		out.write(value >> 16);
+		out.write(value >> 24);
+	}
+
+	/*
+	 * Writes an encapsulated message and returns its file block (offset,
+	 * metadata length, and body length).
+	 */
+	private long[] writeMessage(CountingOutputStream out, byte[] metadata, List<BodyBuffer> buffers) throws IOException {
+		long offset = out.count;
+		int metadataLength = (int) align8(metadata.length);
+		writeInt(out, CONTINUATION);
+		writeInt(out, metadataLength);
+		out.write(metadata);
+		writePadding(out, metadata.length);
+		long bodyLength = 0;
+		if (buffers != null) {
+			for (BodyBuffer buffer : buffers)
+				writeBuffer(out, buffer);
+			bodyLength = getBodyLength(buffers);
+		}
+		return new long[] {offset, metadataLength + 8, bodyLength};
+	}
+
+	private static void writePadding(OutputStream out, long length) throws IOException {
+		for (long i = length; i < align8(length); i++)
+			out.write(0);
+	}
+
+}
@@ -0,0 +1,141 @@
+package org.fgilbert.jdx;
+
+/*
+ * An immutable record (map) that stores its values in an array and shares its
+ * keys with all other records of the same data frame via a Schema. See
+ * Utility.createListOfCompactRecords. Compared to a LinkedHashMap, the per-row
+ * overhead is one small object and one array instead of a hash table and an
+ * entry object per value. Iteration order is the column order.
+ */
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+public final class CompactRecord extends AbstractMap<String, Object> {
+
+	/*
+	 * The keys and key index shared by all records of a data frame.
+	 */
+	public static final class Schema {
+
+		private final Map<String, Integer> indices;
+		private final Set<String> keySet;
+		private final String[] names;
+
+		public Schema(String[] names) {
+			this.names = names.clone();
+			this.indices = new HashMap<String, Integer>(names.length * 2);
+			for (int j = 0; j < names.length; j++) {
+				if (this.indices.put(names[j], j) != null)
+					throw new RuntimeException(String.format("The name '%s' is duplicated.", names[j]));
+			}
+			this.keySet = new AbstractSet<String>() {
+
+				@Override
+				public boolean contains(Object o) {
+					return Schema.this.indices.containsKey(o);
+				}
+
+				@Override
+				public Iterator<String> iterator() {
+					return Collections.unmodifiableList(Arrays.asList(Schema.this.names)).iterator();
+				}
+
+				@Override
+				public int size() {
+					return Schema.this.names.length;
+				}
+			};
+		}
+
+		public String[] getNames() {
+			return names.clone();
+		}
+
+		int indexOf(Object key) {
+			Integer j = this.indices.get(key);
+			return (j == null) ? -1 : j;
+		}
+
+		public int size() {
+			return names.length;
+		}
+	}
+
+	private final Schema schema;
+	private final Object[] values;
+
+	/*
+	 * `values` is not copied. IMPORTANT: This constructor does not validate
+	 * the incoming data.
+	 */
+	public CompactRecord(Schema schema, Object[] values) {
+		this.schema = schema;
+		this.values = values;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return this.schema.indexOf(key) != -1;
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		return new AbstractSet<Map.Entry<String, Object>>() {
+
+			@Override
+			public Iterator<Map.Entry<String, Object>> iterator() {
+				return new Iterator<Map.Entry<String, Object>>() {
+
+					private int column = 0;
+
+					@Override
+					public boolean hasNext() {
+						return this.column < CompactRecord.this.values.length;
+					}
+
+					@Override
+					public Map.Entry<String, Object> next() {
+						if (!hasNext())
+							throw new NoSuchElementException();
+						int j = this.column++;
+						return new AbstractMap.SimpleImmutableEntry<String, Object>(CompactRecord.this.schema.names[j], CompactRecord.this.values[j]);
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return CompactRecord.this.values.length;
+			}
+		};
+	}
+
+	@Override
+	public Object get(Object key) {
+		int j = this.schema.indexOf(key);
+		return (j == -1) ? null : this.values[j];
+	}
+
+	public Schema getSchema() {
+		return schema;
+	}
+
+	@Override
+	public Set<String> keySet() {
+		return this.schema.keySet;
+	}
+
+	@Override
+	public int size() {
+		return values.length;
+	}
+
+}
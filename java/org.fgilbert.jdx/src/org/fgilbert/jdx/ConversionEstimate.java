@@ -0,0 +1,568 @@
+package org.fgilbert.jdx;
+
+/*
+ * A dry-run estimate of the result of JavaToR.initialize (see
+ * JavaToR.estimate). The value is classified by JavaToR itself, with the
+ * array order, column selection, and row filter of the estimate, and the
+ * result is measured. Collections larger than SAMPLE_SIZE (at the top level
+ * and as members of a map) are replaced by a sample of SAMPLE_SIZE members,
+ * evenly spaced for random access lists, and the measurements are
+ * extrapolated to the whole collection. So only the result of the sample is
+ * allocated. The estimate is exact when nothing was sampled; otherwise the
+ * structure and sizes may differ from the conversion (e.g. a collection with
+ * an unsampled member of another type is converted to a list). Rectangular
+ * arrays of simple types, NdArray, SparseMatrix, and ResultSet values are
+ * measured from their dimensions instead, because converting them copies the
+ * data (or consumes the result set) and no option applies to them.
+ *
+ * The memory budget and the arena of the JavaToR object are applied as by
+ * the conversion: isSpilled is true if the result would be spilled to a file
+ * (see JavaToR.setMemoryBudget and setArena). The R object is the same in
+ * either case.
+ *
+ * The byte count approximates the size of the R object: a vector header of
+ * VECTOR_HEADER_SIZE bytes plus 8 bytes per numeric value, 4 bytes per
+ * integer and logical value, 1 byte per raw value, 8 bytes per list element,
+ * and for character values 8 bytes per reference plus a string of
+ * CHARSXP_HEADER_SIZE bytes and the encoded characters. R shares equal
+ * strings, so the count for character vectors is an upper bound. Attributes
+ * are ignored, except for names and factor levels.
+ */
+
+import java.lang.reflect.Array;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+import org.fgilbert.jdx.JavaToR.ArrayOrder;
+import org.fgilbert.jdx.JavaToR.RdataExceptionCode;
+import org.fgilbert.jdx.JavaToR.RdataStructureCode;
+import org.fgilbert.jdx.JavaToR.RdataTypeCode;
+
+public final class ConversionEstimate {
+
+	private static final int CHARSXP_HEADER_SIZE = 56;
+	// Assumed mean length of strings that are not sampled.
+	private static final int DEFAULT_STRING_LENGTH = 8;
+	private static final int LIST_ELEMENT_SIZE = 8;
+	private static final int SAMPLE_SIZE = 32;
+	private static final int VECTOR_HEADER_SIZE = 48;
+
+	private final long byteCount;
+	private final int[] dimensions;
+	private final long elementCount;
+	private final boolean exact;
+	private final RdataExceptionCode rDataExceptionCode;
+	private final RdataStructureCode rDataStructureCode;
+	private final RdataTypeCode rDataTypeCode;
+	private boolean spilled;
+
+	private ConversionEstimate(RdataTypeCode rDataTypeCode, RdataStructureCode rDataStructureCode, int[] dimensions, long elementCount, long byteCount, boolean exact) {
+		this(rDataTypeCode, rDataStructureCode, RdataExceptionCode.NONE, dimensions, elementCount, byteCount, exact);
+	}
+
+	private ConversionEstimate(RdataTypeCode rDataTypeCode, RdataStructureCode rDataStructureCode, RdataExceptionCode rDataExceptionCode, int[] dimensions, long elementCount, long byteCount, boolean exact) {
+		this.byteCount = byteCount;
+		this.dimensions = dimensions;
+		this.elementCount = elementCount;
+		this.exact = exact;
+		this.rDataExceptionCode = rDataExceptionCode;
+		this.rDataStructureCode = rDataStructureCode;
+		this.rDataTypeCode = rDataTypeCode;
+	}
+
+	/*
+	 * Creates the estimate of an atomic vector, n-d array, or scalar of
+	 * `count` elements of `elementSize` bytes.
+	 */
+	private static ConversionEstimate createAtomic(RdataTypeCode type, RdataStructureCode structure, int[] dimensions, long count, double elementSize, boolean exact) {
+		long bytes = VECTOR_HEADER_SIZE + (long) Math.ceil(count * elementSize);
+		return new ConversionEstimate(type, structure, dimensions, count, bytes, exact);
+	}
+
+	/*
+	 * Creates the estimate of a list, named list, or data frame from the
+	 * estimates of its members.
+	 */
+	private static ConversionEstimate createList(RdataStructureCode structure, int[] dimensions, ConversionEstimate[] members, String[] names, boolean exact) {
+		long bytes = VECTOR_HEADER_SIZE + (long) LIST_ELEMENT_SIZE * members.length;
+		long count = 0;
+		for (ConversionEstimate member : members) {
+			exact &= member.exact;
+			count += member.elementCount;
+			bytes += member.byteCount;
+		}
+		if (names != null)
+			bytes += VECTOR_HEADER_SIZE + (long) Math.ceil(names.length * getStringSize(getMeanLength(Arrays.asList(names))));
+		return new ConversionEstimate(RdataTypeCode.OTHER, structure, dimensions, count, bytes, exact);
+	}
+
+	/*
+	 * Returns the estimate of `value` converted by `j2r` with the given
+	 * options (see JavaToR.initialize). `j2r` is not modified; it provides the
+	 * memory budget and the arena. Throws an exception if the value cannot be
+	 * converted, as initialize does.
+	 */
+	static ConversionEstimate estimate(JavaToR j2r, Object value, ArrayOrder arrayOrder, String[] columns, RowFilter rowFilter) {
+		ConversionEstimate estimate = measureDirectly(value, arrayOrder);
+		if (estimate != null)
+			return estimate;
+
+		/*
+		 * Large collections are replaced by samples. `sizes` maps the sampled
+		 * members of a map to their sizes.
+		 */
+		Object sample = value;
+		int size = -1;
+		Map<String, Integer> sizes = null;
+		if (isSampled(value)) {
+			size = getSize(value);
+			sample = sample(value);
+		} else if (value instanceof Map && ((Map<?, ?>) value).keySet().stream().allMatch(key -> key instanceof String)) {
+			Map<String, Object> m = new LinkedHashMap<String, Object>();
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				Object member = entry.getValue();
+				if (isSampled(member)) {
+					if (sizes == null)
+						sizes = new LinkedHashMap<String, Integer>();
+					sizes.put((String) entry.getKey(), getSize(member));
+					member = sample(member);
+				}
+				m.put((String) entry.getKey(), member);
+			}
+			if (sizes != null)
+				sample = m;
+		}
+
+		JavaToR probe = new JavaToR();
+		probe.initialize(sample, arrayOrder, columns, rowFilter);
+		estimate = measure(probe.getRdataCompositeCode(), probe.getValueObject());
+		if (size >= 0) {
+			estimate = extrapolate(estimate, SAMPLE_SIZE, size, arrayOrder);
+		} else if (sizes != null) {
+			if (estimate.rDataStructureCode == RdataStructureCode.DATA_FRAME) {
+				// The columns have equal lengths, so they were sampled alike.
+				estimate = extrapolate(estimate, SAMPLE_SIZE, sizes.values().iterator().next(), arrayOrder);
+			} else if (estimate.rDataStructureCode == RdataStructureCode.NAMED_LIST) {
+				estimate = extrapolateMembers(probe, sizes, arrayOrder);
+			}
+		}
+
+		/*
+		 * The top-level results that JavaToR spills: vectors, n-d arrays, and
+		 * data frames of records created from collections. Record list views
+		 * without a column selection or row filter are converted by column and
+		 * are not spilled. See JavaToR.spills.
+		 */
+		boolean byColumn = value instanceof RecordListView && columns == null && rowFilter == null;
+		if ((value instanceof Collection || value instanceof Object[]) && !(value instanceof Factor) && !byColumn) {
+			Collection<?> col = (sample instanceof Collection) ? (Collection<?>) sample : Arrays.asList((Object[]) sample);
+			switch (estimate.rDataStructureCode) {
+			case VECTOR:
+			case ND_ARRAY:
+				estimate.spilled = j2r.spills(estimate.elementCount * SpillFile.getElementSize(estimate.rDataTypeCode.value));
+				break;
+			case DATA_FRAME:
+				// Collections of beans are not spilled.
+				if (JavaToR.getObjectClass(col) != null)
+					break;
+				long rowBytes = 0;
+				int[] types = (int[]) ((Object[]) probe.getValueObject())[0];
+				for (int type : types)
+					rowBytes += SpillFile.getElementSize(type & 0xFF);
+				estimate.spilled = j2r.spills(rowBytes * estimate.dimensions[0]);
+				break;
+			default:
+				break;
+			}
+		}
+		return estimate;
+	}
+
+	/*
+	 * Extrapolates the estimate of a sample of `sampleSize` members to a
+	 * collection of `size` members.
+	 */
+	private static ConversionEstimate extrapolate(ConversionEstimate e, int sampleSize, int size, ArrayOrder arrayOrder) {
+		double ratio = (double) size / sampleSize;
+		long bytes = VECTOR_HEADER_SIZE + Math.round((e.byteCount - VECTOR_HEADER_SIZE) * ratio);
+		int[] dimensions = (e.dimensions == null) ? null : e.dimensions.clone();
+		long count = Math.round(e.elementCount * ratio);
+		switch (e.rDataStructureCode) {
+		case VECTOR:
+			dimensions[0] = size;
+			count = size;
+			break;
+		case DATA_FRAME:
+			// Rows that pass the row filter are extrapolated like the others.
+			dimensions[0] = (int) Math.round(dimensions[0] * ratio);
+			count = (long) dimensions[0] * dimensions[1];
+			break;
+		case ND_ARRAY:
+			/*
+			 * The dimension of the collection. See
+			 * JavaToR.convertCollectionOfVectorsToMatrix and
+			 * convertCollectionOfArraysToArray.
+			 */
+			int d;
+			if (dimensions.length == 2)
+				d = (arrayOrder == ArrayOrder.COLUMN_MAJOR) ? 1 : 0;
+			else
+				d = (arrayOrder == ArrayOrder.ROW_MAJOR) ? 0 : dimensions.length - 1;
+			count = e.elementCount / dimensions[d] * size;
+			dimensions[d] = size;
+			break;
+		default:
+			break;
+		}
+		return new ConversionEstimate(e.rDataTypeCode, e.rDataStructureCode, e.rDataExceptionCode, dimensions, count, bytes, false);
+	}
+
+	/*
+	 * Returns the estimate of the named list converted by `probe`, whose
+	 * members named in `sizes` are samples.
+	 */
+	private static ConversionEstimate extrapolateMembers(JavaToR probe, Map<String, Integer> sizes, ArrayOrder arrayOrder) {
+		Object[] value = (Object[]) probe.getValueObject();
+		int[] types = (int[]) value[0];
+		Object[] objects = (Object[]) value[1];
+		String[] names = (String[]) value[2];
+		ConversionEstimate[] members = new ConversionEstimate[types.length];
+		for (int k = 0; k < types.length; k++) {
+			members[k] = measure(types[k], objects[k]);
+			Integer size = sizes.get(names[k]);
+			if (size != null)
+				members[k] = extrapolate(members[k], SAMPLE_SIZE, size, arrayOrder);
+		}
+		return createList(RdataStructureCode.NAMED_LIST, new int[] {types.length}, members, names, true);
+	}
+
+	public long getByteCount() {
+		return byteCount;
+	}
+
+	public int[] getDimensions() {
+		return dimensions;
+	}
+
+	public long getElementCount() {
+		return elementCount;
+	}
+
+	/*
+	 * Returns the estimated bytes per element of R vectors of `type`.
+	 */
+	private static int getElementSize(RdataTypeCode type) {
+		switch (type) {
+		case NUMERIC:
+			return 8;
+		case INTEGER:
+		case LOGICAL:
+			return 4;
+		case RAW:
+			return 1;
+		default:
+			return LIST_ELEMENT_SIZE;
+		}
+	}
+
+	/*
+	 * Returns the estimated bytes per element of the R vector `a` of `type`
+	 * (a Java array or list). Strings are measured.
+	 */
+	private static double getElementSize(RdataTypeCode type, Object a) {
+		if (type != RdataTypeCode.CHARACTER)
+			return getElementSize(type);
+		List<?> strings = (a instanceof List) ? (List<?>) a : Arrays.asList((Object[]) a);
+		return getStringSize(getMeanLength(strings));
+	}
+
+	private static double getMeanLength(List<?> strings) {
+		if (strings.isEmpty())
+			return 0;
+		long length = 0;
+		for (Object o : strings) {
+			if (o != null)
+				length += o.toString().length();
+		}
+		return (double) length / strings.size();
+	}
+
+	public int getRdataCompositeCode() {
+		return rDataTypeCode.value | rDataStructureCode.value | rDataExceptionCode.value;
+	}
+
+	public RdataStructureCode getRdataStructureCode() {
+		return rDataStructureCode;
+	}
+
+	public RdataTypeCode getRdataTypeCode() {
+		return rDataTypeCode;
+	}
+
+	/*
+	 * Returns the R dimensions of a rectangular Java array with dimensions
+	 * `dimensions`, as the n-d array conversions of JavaToR do.
+	 */
+	private static int[] getRdimensions(int[] dimensions, ArrayOrder arrayOrder) {
+		int[] result = dimensions.clone();
+		switch (arrayOrder) {
+		case ROW_MAJOR:
+			break;
+		case COLUMN_MAJOR:
+			Utility.reverseArray(result);
+			break;
+		case COLUMN_MINOR:
+			int swap = result[result.length - 1];
+			result[result.length - 1] = result[result.length - 2];
+			result[result.length - 2] = swap;
+			Utility.reverseArray(result);
+			break;
+		}
+		return result;
+	}
+
+	/*
+	 * Returns the indices of the sampled elements of a random access list of
+	 * size `n`: all of them, or SAMPLE_SIZE evenly spaced indices including the
+	 * first and the last.
+	 */
+	private static int[] getSampleIndices(int n) {
+		if (n <= SAMPLE_SIZE) {
+			int[] indices = new int[n];
+			for (int i = 0; i < n; i++)
+				indices[i] = i;
+			return indices;
+		}
+		int[] indices = new int[SAMPLE_SIZE];
+		for (int i = 0; i < SAMPLE_SIZE; i++)
+			indices[i] = (int) ((long) i * (n - 1) / (SAMPLE_SIZE - 1));
+		return indices;
+	}
+
+	/*
+	 * Returns the R type of scalars of class `cls`, or UNSUPPORTED. See
+	 * JavaToR.convertSimpleStructure.
+	 */
+	private static RdataTypeCode getSimpleTypeCode(Class<?> cls) {
+		if (cls.isEnum())
+			return RdataTypeCode.UNSUPPORTED;
+		return JavaToR.getPropertyTypeCode(cls);
+	}
+
+	private static int getSize(Object value) {
+		return (value instanceof Collection) ? ((Collection<?>) value).size() : Array.getLength(value);
+	}
+
+	/*
+	 * Returns the estimated bytes per element of a character vector with
+	 * strings of mean length `meanLength`. CHARSXPs are aligned to 8 bytes.
+	 */
+	private static double getStringSize(double meanLength) {
+		return LIST_ELEMENT_SIZE + CHARSXP_HEADER_SIZE + 8 * Math.ceil((meanLength + 1) / 8);
+	}
+
+	/*
+	 * True if the structure, dimensions, and element count were determined
+	 * without sampling. The byte count is always an estimate.
+	 */
+	public boolean isExact() {
+		return exact;
+	}
+
+	/*
+	 * True if `value` is replaced by a sample: a collection, or a
+	 * one-dimensional array or an array of arrays that is not measured
+	 * directly, with more than SAMPLE_SIZE members. Factors are converted by
+	 * reference and are never sampled.
+	 */
+	private static boolean isSampled(Object value) {
+		if (value instanceof Factor)
+			return false;
+		if (value instanceof Collection)
+			return ((Collection<?>) value).size() > SAMPLE_SIZE;
+		if (value == null || !value.getClass().isArray() || Array.getLength(value) <= SAMPLE_SIZE)
+			return false;
+		return !value.getClass().getComponentType().isArray() || Utility.getRectangularArrayDimensions(value) == null;
+	}
+
+	/*
+	 * True if the result of `value` would be spilled to a file by the
+	 * conversion. See JavaToR.setMemoryBudget and setArena.
+	 */
+	public boolean isSpilled() {
+		return spilled;
+	}
+
+	/*
+	 * Returns the exact estimate of a converted value with the R data code
+	 * `code` in the form of JavaToR.getValueObject.
+	 */
+	private static ConversionEstimate measure(int code, Object value) {
+		RdataTypeCode type = null;
+		for (RdataTypeCode t : RdataTypeCode.values()) {
+			if (t.value == (code & 0xFF))
+				type = t;
+		}
+		RdataStructureCode structure = null;
+		for (RdataStructureCode t : RdataStructureCode.values()) {
+			if (t.value == (code & 0xFF00))
+				structure = t;
+		}
+		if ((code & 0xFF0000) == RdataExceptionCode.EXCEPTION.value)
+			return new ConversionEstimate(RdataTypeCode.OTHER, RdataStructureCode.SCALAR, RdataExceptionCode.EXCEPTION, null, 0, 0, true);
+		if (type == RdataTypeCode.NULL)
+			return new ConversionEstimate(type, RdataStructureCode.SCALAR, null, 0, 0, true);
+		Object[] a;
+		switch (structure) {
+		case SCALAR:
+			return createAtomic(type, structure, null, 1, getElementSize(type, Arrays.asList(value)), true);
+		case VECTOR:
+			int n = Array.getLength(value);
+			return createAtomic(type, structure, new int[] {n}, n, getElementSize(type, value), true);
+		case ND_ARRAY:
+			a = (Object[]) value;
+			return createAtomic(type, structure, (int[]) a[0], Array.getLength(a[1]), getElementSize(type, a[1]), true);
+		case FACTOR:
+			a = (Object[]) value;
+			int[] codes = (int[]) a[0];
+			String[] levels = (String[]) a[1];
+			long bytes = 2 * VECTOR_HEADER_SIZE + 4L * codes.length + (long) Math.ceil(levels.length * getStringSize(getMeanLength(Arrays.asList(levels))));
+			return new ConversionEstimate(RdataTypeCode.INTEGER, structure, new int[] {codes.length}, codes.length, bytes, true);
+		case SPARSE_MATRIX:
+			a = (Object[]) value;
+			return measureSparseMatrix((int[]) a[0], ((double[]) a[3]).length);
+		case DATA_FRAME:
+		case LIST:
+		case NAMED_LIST:
+			a = (Object[]) value;
+			int[] types = (int[]) a[0];
+			Object[] objects = (Object[]) a[1];
+			ConversionEstimate[] members = new ConversionEstimate[types.length];
+			for (int k = 0; k < types.length; k++)
+				members[k] = measure(types[k], objects[k]);
+			String[] names = (structure == RdataStructureCode.LIST || types.length == 0) ? null : (String[]) a[2];
+			int[] dimensions = null;
+			if (structure == RdataStructureCode.DATA_FRAME)
+				dimensions = new int[] {(types.length == 0) ? 0 : Array.getLength(objects[0]), types.length};
+			else if (structure == RdataStructureCode.NAMED_LIST)
+				dimensions = new int[] {types.length};
+			return createList(structure, dimensions, members, names, true);
+		default:
+			throw new RuntimeException(String.format("The R data code 0x%X is not supported.", code));
+		}
+	}
+
+	/*
+	 * Returns the estimate of values that are measured from their dimensions,
+	 * or null if `value` is converted by JavaToR. See the class comment.
+	 */
+	private static ConversionEstimate measureDirectly(Object value, ArrayOrder arrayOrder) {
+		if (value == null)
+			return null;
+		Class<?> cls = value.getClass();
+		if (cls.isArray()) {
+			int[] dimensions = Utility.getRectangularArrayDimensions(value);
+			if (dimensions == null)
+				return null;
+			Class<?> componentType = Utility.getArrayBaseComponentType(cls);
+			RdataTypeCode type = getSimpleTypeCode(componentType);
+			if (type == RdataTypeCode.UNSUPPORTED)
+				return null;
+			long count = 1;
+			for (int d : dimensions)
+				count *= d;
+			double size = getElementSize(type);
+			if (componentType == String.class) {
+				List<Object> sample = new ArrayList<Object>();
+				sampleArray(value, sample);
+				size = getStringSize(getMeanLength(sample));
+			} else if (type == RdataTypeCode.CHARACTER) {
+				size = getStringSize(1);
+			}
+			if (dimensions.length == 1)
+				return createAtomic(type, RdataStructureCode.VECTOR, dimensions, count, size, true);
+			return createAtomic(type, RdataStructureCode.ND_ARRAY, getRdimensions(dimensions, arrayOrder), count, size, true);
+		}
+		if (ResultSet.class.isAssignableFrom(cls)) {
+			// The rows are unknown until the result set is read.
+			int columnCount;
+			try {
+				columnCount = ((ResultSet) value).getMetaData().getColumnCount();
+			} catch (SQLException e) {
+				throw new RuntimeException(e);
+			}
+			return new ConversionEstimate(RdataTypeCode.OTHER, RdataStructureCode.DATA_FRAME, new int[] {-1, columnCount}, -1, -1, false);
+		}
+		if (cls == NdArray.class) {
+			NdArray array = (NdArray) value;
+			int[] dimensions = array.getRdimensions();
+			RdataTypeCode componentType = getSimpleTypeCode(array.getComponentType());
+			boolean isString = array.getComponentType() == String.class;
+			return createAtomic(componentType, (dimensions.length > 1) ? RdataStructureCode.ND_ARRAY : RdataStructureCode.VECTOR, dimensions, array.getSize()
+					, isString ? getStringSize(DEFAULT_STRING_LENGTH) : getElementSize(componentType), true);
+		}
+		if (cls == SparseMatrix.class) {
+			SparseMatrix matrix = (SparseMatrix) value;
+			return measureSparseMatrix(new int[] {matrix.getRowCount(), matrix.getColumnCount()}, matrix.getNonZeroCount());
+		}
+		return null;
+	}
+
+	private static ConversionEstimate measureSparseMatrix(int[] dimensions, long n) {
+		// The row indices, column pointers, and values of a dgCMatrix.
+		long bytes = 3 * VECTOR_HEADER_SIZE + n * (4 + 8) + 4L * (dimensions[1] + 1);
+		return new ConversionEstimate(RdataTypeCode.NUMERIC, RdataStructureCode.SPARSE_MATRIX, dimensions, n, bytes, true);
+	}
+
+	/*
+	 * Returns a sample of the collection or array `value` (see isSampled):
+	 * evenly spaced members of random access lists and arrays, or the first
+	 * SAMPLE_SIZE members otherwise. Arrays are sampled into arrays of the
+	 * same component type, so they are converted alike.
+	 */
+	private static Object sample(Object value) {
+		if (value.getClass().isArray()) {
+			int[] indices = getSampleIndices(Array.getLength(value));
+			Object a = Array.newInstance(value.getClass().getComponentType(), indices.length);
+			for (int i = 0; i < indices.length; i++)
+				Array.set(a, i, Array.get(value, indices[i]));
+			return a;
+		}
+		Collection<?> col = (Collection<?>) value;
+		List<Object> sample = new ArrayList<Object>(Math.min(col.size(), SAMPLE_SIZE));
+		if (col instanceof List && col instanceof RandomAccess) {
+			List<?> list = (List<?>) col;
+			for (int i : getSampleIndices(list.size()))
+				sample.add(list.get(i));
+			return sample;
+		}
+		Iterator<?> iter = col.iterator();
+		while (iter.hasNext() && sample.size() < SAMPLE_SIZE)
+			sample.add(iter.next());
+		return sample;
+	}
+
+	/*
+	 * Adds the first SAMPLE_SIZE elements of the rectangular array `array` to
+	 * `sample` in row-major order.
+	 */
+	private static void sampleArray(Object array, List<Object> sample) {
+		int length = Array.getLength(array);
+		boolean isLeaf = !array.getClass().getComponentType().isArray();
+		for (int i = 0; i < length && sample.size() < SAMPLE_SIZE; i++) {
+			if (isLeaf)
+				sample.add(Array.get(array, i));
+			else
+				sampleArray(Array.get(array, i), sample);
+		}
+	}
+
+}
@@ -0,0 +1,292 @@
+package org.fgilbert.jdx;
+
+/*
+ * Converts large collections of records (maps) to R data frames in chunks so
+ * that neither the JVM nor R needs to hold the entire data frame at once.
+ * Sources that are lists support random-access paging via `page`. All sources
+ * (lists, iterators, other iterables, and JDBC result sets) support sequential
+ * access via `next`. Result sets are read via ResultSetReader with typed
+ * getters, so cells are never boxed.
+ *
+ * The schema (column names and types) is inferred from the first chunk
+ * converted and is enforced for all subsequent chunks, so every chunk has the
+ * same column types in R. Values that cannot be coerced to the schema raise an
+ * exception.
+ *
+ * When prefetching is enabled, the chunk following the one returned by `next`
+ * is converted on a background thread while R processes the current chunk.
+ * This class is not thread-safe.
+ *
+ * Like JavaToR.initialize, `next` and `page` initialize an existing JavaToR
+ * object and return the composite data code. This avoids creating new object
+ * references in R via rJava.
+ */
+
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class DataFrameCursor {
+
+	/*
+	 * A converted chunk and the records it was converted from. The records
+	 * are retained so that a prefetched chunk of the wrong size can be
+	 * returned to the source. Records are null for result sets.
+	 */
+	private static class Chunk {
+
+		final JavaToR j2r;
+		final List<?> records;
+		final int size;
+
+		Chunk(JavaToR j2r, List<?> records, int size) {
+			this.j2r = j2r;
+			this.records = records;
+			this.size = size;
+		}
+	}
+
+	private int[] compositeTypes;
+	private ExecutorService executor;
+	private final Iterator<?> iterator;
+	private final List<?> list;
+	private String[] names;
+	/*
+	 * Prefetched records returned to an iterator source (see next). They are
+	 * consumed from `pendingIndex` so that draining them is linear; records
+	 * may be null, which rules out ArrayDeque.
+	 */
+	private List<Object> pending = new ArrayList<Object>();
+	private int pendingIndex;
+	private long position;
+	private Future<Chunk> prefetched;
+	private int prefetchedSize;
+	private final ResultSetReader reader;
+
+	public DataFrameCursor(Object source) {
+		this(source, false);
+	}
+
+	public DataFrameCursor(Object source, boolean prefetch) {
+		if (source instanceof List) {
+			this.list = (List<?>) source;
+			this.iterator = null;
+			this.reader = null;
+		} else if (source instanceof Iterator) {
+			this.list = null;
+			this.iterator = (Iterator<?>) source;
+			this.reader = null;
+		} else if (source instanceof Iterable) {
+			this.list = null;
+			this.iterator = ((Iterable<?>) source).iterator();
+			this.reader = null;
+		} else if (source instanceof ResultSet) {
+			this.list = null;
+			this.iterator = null;
+			this.reader = new ResultSetReader((ResultSet) source);
+			this.names = this.reader.getNames();
+		} else {
+			throw new RuntimeException(String.format("Java class '%s' is not supported by DataFrameCursor. Lists, iterators, iterables, and result sets are supported.", (source == null) ? "null" : source.getClass().getName()));
+		}
+		if (prefetch) {
+			this.executor = Executors.newSingleThreadExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "jdx-cursor-prefetch");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+	}
+
+	/*
+	 * Waits for the prefetched chunk, if any, and returns it without
+	 * consuming it.
+	 */
+	private Chunk awaitPrefetched() {
+		if (this.prefetched == null)
+			return null;
+		try {
+			return this.prefetched.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			this.prefetched = null;
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/*
+	 * Releases the prefetch thread, if any. A prefetched chunk is kept and
+	 * returned by the next call to `next`. The cursor can still be used
+	 * afterward without prefetching.
+	 */
+	public void close() {
+		if (this.executor != null) {
+			awaitPrefetched();
+			this.executor.shutdown();
+			this.executor = null;
+		}
+	}
+
+	private JavaToR convert(Collection<?> records) {
+		JavaToR j2r = new JavaToR();
+		if (this.names != null) {
+			j2r.initializeDataFrame(records, this.names, this.compositeTypes);
+			return j2r;
+		}
+		if (records.isEmpty()) {
+			j2r.initializeDataFrame(records, new String[0], new int[0]);
+			return j2r;
+		}
+		j2r.initialize(records);
+		if (j2r.getRdataStructureCode() != JavaToR.RdataStructureCode.DATA_FRAME || !(records.iterator().next() instanceof Map))
+			throw new RuntimeException("The records cannot be converted to a data frame. Records must be maps with the same keys and scalar values of compatible types.");
+		Object[] value = j2r.getValueObjectArray1d();
+		this.compositeTypes = (int[]) value[0];
+		this.names = (String[]) value[2];
+		return j2r;
+	}
+
+	/*
+	 * Removes up to `n` records from the source and converts them.
+	 */
+	private Chunk convertNext(int n) {
+		if (this.reader != null) {
+			JavaToR j2r = new JavaToR();
+			int size = this.reader.read(n);
+			j2r.initializeFromResultSetReader(this.reader);
+			this.position += size;
+			return new Chunk(j2r, null, size);
+		}
+		List<?> records;
+		if (this.list != null) {
+			int from = (int) this.position;
+			int to = (int) Math.min(this.list.size(), this.position + n);
+			records = this.list.subList(from, to);
+		} else {
+			List<Object> chunk = new ArrayList<Object>(Math.min(n, 1024));
+			while (chunk.size() < n && this.pendingIndex < this.pending.size())
+				chunk.add(this.pending.get(this.pendingIndex++));
+			if (this.pendingIndex == this.pending.size()) {
+				this.pending.clear();
+				this.pendingIndex = 0;
+			}
+			while (chunk.size() < n && this.iterator.hasNext())
+				chunk.add(this.iterator.next());
+			records = chunk;
+		}
+		JavaToR j2r;
+		try {
+			j2r = convert(records);
+		} catch (RuntimeException e) {
+			// Keep the records so that a failed (e.g. prefetched) chunk does
+			// not skip them.
+			if (this.list == null)
+				restore(records);
+			throw e;
+		}
+		this.position += records.size();
+		return new Chunk(j2r, records, records.size());
+	}
+
+	/*
+	 * Returns null until the first chunk has been converted.
+	 */
+	public String[] getNames() {
+		return names;
+	}
+
+	/*
+	 * Returns the number of records consumed by `next`, including a
+	 * prefetched chunk.
+	 */
+	public long getPosition() {
+		awaitPrefetched(); // The prefetch thread may be advancing the position.
+		return position;
+	}
+
+	/*
+	 * Returns the number of records in the source if it is a list, otherwise -1.
+	 */
+	public int getSize() {
+		return (this.list == null) ? -1 : this.list.size();
+	}
+
+	public boolean hasNext() {
+		Chunk chunk = awaitPrefetched();
+		if (chunk != null && chunk.size > 0)
+			return true;
+		if (this.reader != null)
+			return !this.reader.isExhausted();
+		if (this.list != null)
+			return this.position < this.list.size();
+		return this.pendingIndex < this.pending.size() || this.iterator.hasNext();
+	}
+
+	/*
+	 * Converts the next `n` records (fewer at the end of the source) to a data
+	 * frame and initializes `j2r` with the result. Returns the composite data
+	 * code. For result sets, the last chunk may be empty because the end of a
+	 * result set is not known until it has been reached.
+	 */
+	public int next(int n, JavaToR j2r) {
+		if (n < 0)
+			throw new RuntimeException("The number of records must be zero or greater.");
+		Chunk chunk = awaitPrefetched();
+		this.prefetched = null;
+		if (chunk != null && this.prefetchedSize != n && this.reader == null) {
+			/*
+			 * Return the prefetched records to the source and start over.
+			 * Rows cannot be returned to a result set, so in that case the
+			 * prefetched chunk is returned as is.
+			 */
+			this.position -= chunk.size;
+			if (this.list == null)
+				restore(chunk.records);
+			chunk = null;
+		}
+		if (chunk == null)
+			chunk = convertNext(n);
+		if (this.executor != null && hasNext()) {
+			this.prefetchedSize = n;
+			this.prefetched = this.executor.submit(() -> convertNext(n));
+		}
+		return j2r.initializeFrom(chunk.j2r);
+	}
+
+	/*
+	 * Converts the records in [from, to) (zero-based) to a data frame and
+	 * initializes `j2r` with the result. Returns the composite data code. Only
+	 * lists are supported. Paging does not affect the position used by
+	 * `next`.
+	 */
+	public int page(int from, int to, JavaToR j2r) {
+		if (this.list == null)
+			throw new RuntimeException("Paging requires a list. Use 'next' for iterators.");
+		if (from < 0 || to > this.list.size() || from > to)
+			throw new RuntimeException(String.format("The page [%d, %d) is out of bounds for %d records.", from, to, this.list.size()));
+		awaitPrefetched(); // The prefetch thread may be setting the schema.
+		return j2r.initializeFrom(convert(this.list.subList(from, to)));
+	}
+
+	/*
+	 * Returns records taken from an iterator source to the front of
+	 * `pending`.
+	 */
+	private void restore(List<?> records) {
+		List<Object> lst = new ArrayList<Object>(records);
+		lst.addAll(this.pending.subList(this.pendingIndex, this.pending.size()));
+		this.pending = lst;
+		this.pendingIndex = 0;
+	}
+
+}
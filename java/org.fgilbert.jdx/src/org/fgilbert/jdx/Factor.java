@@ -0,0 +1,125 @@
+package org.fgilbert.jdx;
+
+/*
+ * A dictionary-encoded column: the Java-side representation of an R factor.
+ * The codes are R's one-based factor codes (NA is Integer.MIN_VALUE, R's
+ * NA_integer_) and index the levels array, which is shared by all elements.
+ * See Utility.createFactor.
+ *
+ * As a List<String>, each element is the level string itself (or null for
+ * NA), so no strings are created per element. Use getLevelIndex for the
+ * zero-based code and createEnumLookup/getEnum to map levels to enum
+ * constants once per level instead of once per element.
+ *
+ * Factors are read-only. The codes and levels are not copied.
+ */
+
+import static org.fgilbert.jdx.Rdata.*;
+
+import java.lang.reflect.Array;
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+public final class Factor extends AbstractList<String> implements RandomAccess {
+
+	private final int[] codes;
+	private final String[] levels;
+	private final boolean ordered;
+
+	public Factor(int[] codes, String[] levels, boolean ordered) {
+		for (int i = 0; i < codes.length; i++) {
+			if (codes[i] != NA_INT && (codes[i] < 1 || codes[i] > levels.length))
+				throw new RuntimeException(String.format("The factor code %d is out of bounds for %d levels.", codes[i], levels.length));
+		}
+		this.codes = codes;
+		this.levels = levels;
+		this.ordered = ordered;
+	}
+
+	/*
+	 * Returns an array that maps each zero-based level index to the enum
+	 * constant with the same name. An exception is thrown if a level does not
+	 * match a constant.
+	 */
+	public <E extends Enum<E>> E[] createEnumLookup(Class<E> cls) {
+		E[] constants = cls.getEnumConstants();
+		@SuppressWarnings("unchecked")
+		E[] lookup = (E[]) Array.newInstance(cls, this.levels.length);
+		for (int k = 0; k < this.levels.length; k++) {
+			for (E constant : constants) {
+				if (constant.name().equals(this.levels[k])) {
+					lookup[k] = constant;
+					break;
+				}
+			}
+			if (lookup[k] == null)
+				throw new RuntimeException(String.format("The level '%s' does not match a constant of the enum '%s'.", this.levels[k], cls.getName()));
+		}
+		return lookup;
+	}
+
+	@Override
+	public String get(int index) {
+		int code = this.codes[index];
+		return (code == NA_INT) ? null : this.levels[code - 1];
+	}
+
+	/*
+	 * Returns the backing array of one-based codes.
+	 */
+	public int[] getCodes() {
+		return codes;
+	}
+
+	/*
+	 * Returns the enum constant for the element, or null if it is NA.
+	 * `lookup` is created by createEnumLookup.
+	 */
+	public <E extends Enum<E>> E getEnum(int index, E[] lookup) {
+		int code = this.codes[index];
+		return (code == NA_INT) ? null : lookup[code - 1];
+	}
+
+	/*
+	 * Returns the zero-based level index of the element, or -1 if it is NA.
+	 */
+	public int getLevelIndex(int index) {
+		int code = this.codes[index];
+		return (code == NA_INT) ? -1 : code - 1;
+	}
+
+	/*
+	 * Returns the backing array of levels.
+	 */
+	public String[] getLevels() {
+		return levels;
+	}
+
+	public boolean isNA(int index) {
+		return this.codes[index] == NA_INT;
+	}
+
+	public boolean isOrdered() {
+		return ordered;
+	}
+
+	@Override
+	public int size() {
+		return codes.length;
+	}
+
+	/*
+	 * Returns the elements as a String[]. The elements are references to the
+	 * level strings; no strings are created.
+	 */
+	public String[] toStringArray() {
+		String[] a = new String[this.codes.length];
+		for (int i = 0; i < a.length; i++) {
+			int code = this.codes[i];
+			if (code != NA_INT)
+				a[i] = this.levels[code - 1];
+		}
+		return a;
+	}
+
+}
@@ -0,0 +1,186 @@
+package org.fgilbert.jdx;
+
+/*
+ * A minimal FlatBuffers builder for the Arrow IPC metadata written by
+ * ArrowWriter. The buffer is built back to front, as by the reference
+ * implementation: children are created before the tables that refer to them,
+ * and every method returns the position of the object as an offset from the
+ * end of the buffer. Only the features used by the Arrow schema are supported
+ * (scalars, strings, tables, and vectors of offsets or structs); vtables are
+ * not shared.
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+final class FlatBufferBuilder {
+
+	private byte[] buffer = new byte[1024];
+	private int minAlignment = 1;
+	private int objectStart;
+	private int space = 1024;
+	private int[] vtable;
+
+	FlatBufferBuilder() {
+	}
+
+	private void addByte(int value) {
+		prep(1, 0);
+		putByte(value);
+	}
+
+	void addFieldBoolean(int slot, boolean value) {
+		addByte(value ? 1 : 0);
+		this.vtable[slot] = offset();
+	}
+
+	void addFieldByte(int slot, int value) {
+		addByte(value);
+		this.vtable[slot] = offset();
+	}
+
+	void addFieldInt(int slot, int value) {
+		addInt(value);
+		this.vtable[slot] = offset();
+	}
+
+	void addFieldLong(int slot, long value) {
+		prep(8, 0);
+		putLong(value);
+		this.vtable[slot] = offset();
+	}
+
+	void addFieldOffset(int slot, int offset) {
+		addOffset(offset);
+		this.vtable[slot] = offset();
+	}
+
+	void addFieldShort(int slot, int value) {
+		addShort(value);
+		this.vtable[slot] = offset();
+	}
+
+	private void addInt(int value) {
+		prep(4, 0);
+		putInt(value);
+	}
+
+	private void addOffset(int offset) {
+		prep(4, 0);
+		putInt(offset() - offset + 4);
+	}
+
+	private void addShort(int value) {
+		prep(2, 0);
+		this.space -= 2;
+		this.buffer[this.space] = (byte) value;
+		this.buffer[this.space + 1] = (byte) (value >> 8);
+	}
+
+	int createString(String s) {
+		byte[] a = s.getBytes(StandardCharsets.UTF_8);
+		addByte(0);
+		prep(4, a.length);
+		this.space -= a.length;
+		System.arraycopy(a, 0, this.buffer, this.space, a.length);
+		putInt(a.length);
+		return offset();
+	}
+
+	/*
+	 * Creates a vector of structs, where each struct consists of
+	 * `fieldsPerStruct` 8-byte fields in declaration order. A 4-byte field
+	 * followed by 4 bytes of padding is passed as one long.
+	 */
+	int createStructVector(long[] fields, int fieldsPerStruct) {
+		int count = fields.length / fieldsPerStruct;
+		prep(4, fields.length * 8);
+		prep(8, fields.length * 8);
+		for (int i = fields.length - 1; i >= 0; i--)
+			putLong(fields[i]);
+		putInt(count);
+		return offset();
+	}
+
+	int createOffsetVector(int[] offsets) {
+		prep(4, offsets.length * 4);
+		for (int i = offsets.length - 1; i >= 0; i--)
+			addOffset(offsets[i]);
+		putInt(offsets.length);
+		return offset();
+	}
+
+	int endTable() {
+		addInt(0);
+		int tableOffset = offset();
+		int n = this.vtable.length;
+		while (n > 0 && this.vtable[n - 1] == 0)
+			n--;
+		for (int i = n - 1; i >= 0; i--)
+			addShort((this.vtable[i] != 0) ? tableOffset - this.vtable[i] : 0);
+		addShort(tableOffset - this.objectStart);
+		addShort((n + 2) * 2);
+		int position = this.buffer.length - tableOffset;
+		int value = offset() - tableOffset;
+		this.buffer[position] = (byte) value;
+		this.buffer[position + 1] = (byte) (value >> 8);
+		this.buffer[position + 2] = (byte) (value >> 16);
+		this.buffer[position + 3] = (byte) (value >> 24);
+		this.vtable = null;
+		return tableOffset;
+	}
+
+	/*
+	 * Returns the finished buffer with `root` as the root table.
+	 */
+	byte[] finish(int root) {
+		prep(this.minAlignment, 4);
+		addOffset(root);
+		return Arrays.copyOfRange(this.buffer, this.space, this.buffer.length);
+	}
+
+	private int offset() {
+		return this.buffer.length - this.space;
+	}
+
+	/*
+	 * Aligns the buffer so that `size` bytes can be written after
+	 * `additionalBytes` bytes, growing it as required.
+	 */
+	private void prep(int size, int additionalBytes) {
+		if (size > this.minAlignment)
+			this.minAlignment = size;
+		int alignSize = (~(this.buffer.length - this.space + additionalBytes) + 1) & (size - 1);
+		while (this.space < alignSize + size + additionalBytes) {
+			int oldLength = this.buffer.length;
+			byte[] b = new byte[oldLength * 2];
+			System.arraycopy(this.buffer, 0, b, oldLength, oldLength);
+			this.buffer = b;
+			this.space += oldLength;
+		}
+		for (int i = 0; i < alignSize; i++)
+			this.buffer[--this.space] = 0;
+	}
+
+	private void putByte(int value) {
+		this.buffer[--this.space] = (byte) value;
+	}
+
+	private void putInt(int value) {
+		this.space -= 4;
+		for (int i = 0; i < 4; i++)
+			this.buffer[this.space + i] = (byte) (value >> (8 * i));
+	}
+
+	private void putLong(long value) {
+		this.space -= 8;
+		for (int i = 0; i < 8; i++)
+			this.buffer[this.space + i] = (byte) (value >> (8 * i));
+	}
+
+	void startTable(int fieldCount) {
+		this.vtable = new int[fieldCount];
+		this.objectStart = offset();
+	}
+
+}
@@ -6,28 +6,31 @@ package org.fgilbert.jdx;
  * in many cases for the sake of speed. All code is designed to reduce the number of calls from R by rJava.   
  */
 
+import static org.fgilbert.jdx.Rdata.*;
+
+import java.io.File;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Array;
 
 import java.math.BigDecimal;
 import java.math.BigInteger;
 
+import java.sql.ResultSet;
+
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 import jdk.nashorn.api.scripting.ScriptObjectMirror;
 
 public class JavaToR {
 	
-	/*
-	 * These constants are special values in R that are interpreted as NA for
-	 * numeric (i.e. double) and integer types. NA_INT is used to signify NA for
-	 * logical types in R, but Java booleans are bytes.
-	 */
-	private static final int NA_INT = Integer.MIN_VALUE;
-	private static final double NA_DOUBLE = Double.longBitsToDouble(0x7ff00000000007a2L);
-	
 	/*
 	 * rJava translates NA to FALSE for logicals (i.e. booleans).
 	 */ 
@@ -45,14 +48,14 @@ public class JavaToR {
 	 * values will be combined in a composite code (see getRdataCompositeCode)
 	 */
 	public enum RdataTypeCode {
-		NULL(0x00)
-		, NUMERIC(0x01)
-		, INTEGER(0x02)
-		, CHARACTER(0x03)
-		, LOGICAL(0x04)
-		, RAW(0x05)
-		, OTHER(0xFE) // Lists, data frames, user-defined, and exceptions.
-		, UNSUPPORTED(0xFF) // An exception is thrown in this case.
+		NULL(TC_NULL)
+		, NUMERIC(TC_NUMERIC)
+		, INTEGER(TC_INTEGER)
+		, CHARACTER(TC_CHARACTER)
+		, LOGICAL(TC_LOGICAL)
+		, RAW(TC_RAW)
+		, OTHER(TC_OTHER) // Lists, data frames, user-defined, and exceptions.
+		, UNSUPPORTED(TC_UNSUPPORTED) // An exception is thrown in this case.
 		;
 		
 		final int value;
@@ -67,13 +70,16 @@ public class JavaToR {
 	 * values will be combined in a composite code (see getRdataCompositeCode)
 	 */
 	public enum RdataStructureCode {
-		SCALAR(0x000)
-		, VECTOR(0x100)
-		, ND_ARRAY(0X200)  
-		, DATA_FRAME(0x300)
-		, LIST(0x400)
-		, NAMED_LIST(0x500)
-		, USER_DEFINED(0xFF00)
+		SCALAR(SC_SCALAR)
+		, VECTOR(SC_VECTOR)
+		, ND_ARRAY(SC_ND_ARRAY)  
+		, DATA_FRAME(SC_DATA_FRAME)
+		, LIST(SC_LIST)
+		, NAMED_LIST(SC_NAMED_LIST)
+		, SPARSE_MATRIX(SC_SPARSE_MATRIX)
+		, FACTOR(SC_FACTOR)
+		, MAPPED_FILE(SC_MAPPED_FILE) // A value spilled to a file. See setMemoryBudget.
+		, USER_DEFINED(SC_USER_DEFINED)
 		;
 		
 		final int value;
@@ -259,19 +265,129 @@ public class JavaToR {
 		
 	}
 	
+	/*
+	 * Exposes one row of a map of columns (i.e. a column-major data frame) to
+	 * a RowFilter. Columns are looked up once and cached because a filter
+	 * usually references only a few of them.
+	 */
+	private class ColumnRow implements RowFilter.Row {
+
+		private final Map<String, Object> columns;
+		private final Map<String, Object> cache = new HashMap<String, Object>();
+		private int index;
+		private final int rowCount;
+
+		ColumnRow(Map<String, Object> columns, int rowCount) {
+			this.columns = columns;
+			this.rowCount = rowCount;
+		}
+
+		@Override
+		public Object get(String field) {
+			Object column;
+			if (this.cache.containsKey(field)) {
+				column = this.cache.get(field);
+			} else {
+				column = this.columns.get(field);
+				if (column instanceof Collection && !(column instanceof List))
+					column = new ArrayList<Object>((Collection<?>) column);
+				if (column != null && getColumnLength(column) != this.rowCount)
+					throw new RuntimeException(String.format("The column '%s' referenced by the row filter does not have %d rows.", field, this.rowCount));
+				this.cache.put(field, column);
+			}
+			if (column == null)
+				return null;
+			if (column instanceof List)
+				return ((List<?>) column).get(this.index);
+			return Array.get(column, this.index);
+		}
+	}
+
+	/*
+	 * Exposes a record (i.e. a row of a row-major data frame) to a RowFilter.
+	 */
+	private class RecordRow implements RowFilter.Row {
+
+		private Map<?, ?> record;
+
+		@Override
+		public Object get(String field) {
+			return this.record.get(field);
+		}
+	}
+
+	/*
+	 * Exposes a record or JavaBean to a RowFilter via its AccessorPlan.
+	 */
+	private class ObjectRow implements RowFilter.Row {
+
+		// The getters of the fields of the filter, resolved once per conversion.
+		private final Map<String, MethodHandle> getters = new HashMap<String, MethodHandle>();
+		private Object object;
+		private final AccessorPlan plan;
+
+		ObjectRow(AccessorPlan plan) {
+			this.plan = plan;
+		}
+
+		@Override
+		public Object get(String field) {
+			if (this.object == null)
+				return null;
+			MethodHandle getter = this.getters.get(field);
+			if (getter == null) {
+				getter = this.plan.findProperty(field).objectGetter;
+				this.getters.put(field, getter);
+			}
+			try {
+				Object o = (Object) getter.invokeExact(this.object);
+				return (o instanceof Enum) ? ((Enum<?>) o).name() : o;
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Throwable e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/*
+	 * Exposes one row of a Table to a RowFilter.
+	 */
+	private class TableRow implements RowFilter.Row {
+
+		private int index;
+		private final Table table;
+
+		TableRow(Table table) {
+			this.table = table;
+		}
+
+		@Override
+		public Object get(String field) {
+			int column = this.table.getColumnIndex(field);
+			return (column == -1) ? null : this.table.getValue(this.index, column);
+		}
+	}
+
 	/*
 	 * IMPORTANT! Any new module-level variables must be added to methods
 	 * `initialize` and `initializeFrom`. This is kludgy to be sure, but these
 	 * methods are used to improve performance on the R side by minimizing
 	 * expensive calls to create new object references in rJava.
 	 */
+	private OffHeapArena arena; // Configuration; not reset by `initialize`.
 	private ArrayOrder arrayOrder;
+	private String[] columnSelection; // Applied to maps and to records of row-major data frames.
 	private int[] dimensions;
+	private boolean isMember; // Set by createMember; not reset by `initialize`.
 	private boolean isNamedListOfScalars; // Used to detect row major data frames.
+	private long memoryBudget; // Configuration; not reset by `initialize`.
 	private RdataExceptionCode rDataExceptionCode;
 	private RdataTypeCode rDataTypeCode;
 	private RdataStructureCode rDataStructureCode;
 	private int rDataUserDefinedCode;
+	private RowFilter rowFilter; // Applied to collections of records and maps of columns.
+	private String spillDirectory; // Configuration; not reset by `initialize`.
 	private Object value;
 	
 	public JavaToR() {
@@ -290,6 +406,18 @@ public class JavaToR {
 		initialize(value, rDataUserDefinedCode);
 	}
 	
+	/*
+	 * Throws an exception unless the value is a vector containing the region
+	 * of `length` elements at `start`.
+	 */
+	private void checkRegion(int start, int length) {
+		if (this.rDataStructureCode != RdataStructureCode.VECTOR)
+			throw new RuntimeException("Regions can only be read from vector values.");
+		int n = Array.getLength(this.value);
+		if (start < 0 || length < 0 || start > n - length)
+			throw new RuntimeException(String.format("The region [%d, %d) is out of bounds for a vector of length %d.", start, (long) start + length, n));
+	}
+	
 	private double[] coerceToDoubleArray1D(BigDecimal[] a) {
 		if (a == null)
 			return null;
@@ -464,7 +592,37 @@ public class JavaToR {
 	 * combinations of objects/values will be converted to unnamed lists.
 	 */
 	private void convertCollection() {
+		if (this.value instanceof RecordListView && this.columnSelection == null && this.rowFilter == null) {
+			/*
+			 * Record views are backed by data frame columns. Use the columns
+			 * directly instead of converting each record. Factors are
+			 * expanded to character vectors, as for other records.
+			 */
+			RecordListView view = (RecordListView) this.value;
+			if (view.getNames().length > 0) {
+				Object[] columns = view.getColumns();
+				int[] compositeTypes = new int[columns.length];
+				Object[] objects = new Object[columns.length];
+				for (int i = 0; i < columns.length; i++) {
+					Object column = (columns[i] instanceof Factor) ? ((Factor) columns[i]).toStringArray() : columns[i];
+					JavaToR j2r = new JavaToR(column);
+					compositeTypes[i] = j2r.getRdataCompositeCode();
+					objects[i] = j2r.getValueObject();
+				}
+				this.rDataTypeCode = RdataTypeCode.OTHER;
+				this.rDataStructureCode = RdataStructureCode.DATA_FRAME;
+				this.value = new Object[] {compositeTypes, objects, view.getNames()};
+				return;
+			}
+		}
 		Collection<?> col = (Collection<?>) this.value;
+		Class<?> objectClass = getObjectClass(col);
+		if (objectClass != null) {
+			convertCollectionOfObjects(col, AccessorPlan.get(objectClass));
+			return;
+		}
+		if (this.rowFilter != null)
+			col = filterRecords(col);
 		if (col.isEmpty()) {
 			// Return empty list.
 			this.rDataTypeCode = RdataTypeCode.OTHER;
@@ -482,7 +640,7 @@ public class JavaToR {
 		 */
 		Iterator<?> iter = col.iterator();
 		Object o = iter.next();
-		JavaToR j2r = new JavaToR(o, this.arrayOrder);
+		JavaToR j2r = createCollectionMember(o);
 		if (j2r.rDataExceptionCode != RdataExceptionCode.NONE)
 			this.rDataExceptionCode = j2r.rDataExceptionCode;
 		int[] compositeTypes = new int[col.size()];
@@ -493,7 +651,7 @@ public class JavaToR {
 		MaybeNdimensionalArray maybeNdimensionalArray = new MaybeNdimensionalArray(col.size(), j2r);
 		MaybeRowMajorDataFrame maybeRowMajorDataFrame = new MaybeRowMajorDataFrame(j2r);
 		for (int i = 1; i < compositeTypes.length; i++) {
-			j2r = new JavaToR(iter.next(), this.arrayOrder);
+			j2r = createCollectionMember(iter.next());
 			if (j2r.rDataExceptionCode != RdataExceptionCode.NONE)
 				this.rDataExceptionCode = j2r.rDataExceptionCode;
 			compositeTypes[i] = j2r.getRdataCompositeCode();
@@ -572,6 +730,23 @@ public class JavaToR {
 				}
 			}
 		}
+		/*
+		 * Large vectors are written off-heap (see setArena and
+		 * setMemoryBudget), except for members of collections and maps, which
+		 * may be combined into arrays and data frames.
+		 */
+		if (!this.isMember && (numericVector || integerVector || rawVector || characterVector || logicalVector)) {
+			RdataTypeCode typeCode = numericVector ? RdataTypeCode.NUMERIC : integerVector ? RdataTypeCode.INTEGER
+					: rawVector ? RdataTypeCode.RAW : characterVector ? RdataTypeCode.CHARACTER : RdataTypeCode.LOGICAL;
+			if (spills((long) col.size() * SpillFile.getElementSize(typeCode.value))) {
+				File file = createSpillFile();
+				if (SpillFile.writeVector(file, typeCode.value, col))
+					this.rDataExceptionCode = (typeCode == RdataTypeCode.LOGICAL) ? RdataExceptionCode.WARNING_MISSING_LOGICAL_VALUES : RdataExceptionCode.WARNING_MISSING_RAW_VALUES;
+				this.dimensions = new int[] {col.size()};
+				setSpilled(file.getPath());
+				return true;
+			}
+		}
 		/*
 		 * The three numeric types are not exclusive of each other and therefore
 		 * must be tested in this order (from general to specific).
@@ -640,6 +815,10 @@ public class JavaToR {
 		 */
 		Object flatArray = null;
 		int flatArrayLength = objects.length * subarrayLength;
+		if (spills((long) objects.length * subarrayLength * SpillFile.getElementSize(maybeNdimensionalArray.getTypeCode().value))) {
+			spill(maybeNdimensionalArray.getTypeCode(), objects, this.arrayOrder != ArrayOrder.COLUMN_MAJOR);
+			return;
+		}
 		int dataTypeCodeInt;
 		int[] subarrayInt; double[] subarrayDouble; byte[] subarrayByte;
 		boolean[] subarrayBoolean; String[] subarrayString;
@@ -848,6 +1027,16 @@ public class JavaToR {
 		int flatArrayLength = objects.length;
 		for (int i = 0; i < subarrayDimensions.length; i++)
 			flatArrayLength *= subarrayDimensions[i];
+		long flatArrayBytes = (long) SpillFile.getElementSize(maybeNdimensionalArray.getTypeCode().value) * objects.length;
+		for (int i = 0; i < subarrayDimensions.length; i++)
+			flatArrayBytes *= subarrayDimensions[i];
+		if (spills(flatArrayBytes)) {
+			Object[] subarrays = new Object[objects.length];
+			for (int i = 0; i < objects.length; i++)
+				subarrays[i] = ((Object[]) objects[i])[1];
+			spill(maybeNdimensionalArray.getTypeCode(), subarrays, this.arrayOrder == ArrayOrder.ROW_MAJOR);
+			return;
+		}
 		int dataTypeCodeInt;
 		int[] arrayDataInt; double[] arrayDataDouble; byte[] arrayDataByte;
 		boolean[] arrayDataBoolean; String[] arrayDataString;
@@ -1033,6 +1222,160 @@ public class JavaToR {
 		return;
 	}
 	
+	/*
+	 * Converts a collection of records or JavaBeans (see getObjectClass) to a
+	 * data frame. Each supported property is read via the class's cached
+	 * AccessorPlan and written directly to a typed column; primitive
+	 * properties are not boxed. Properties of other types (e.g. nested
+	 * objects) are skipped. Null elements are converted to rows of NA values.
+	 */
+	private void convertCollectionOfObjects(Collection<?> col, AccessorPlan plan) {
+		List<AccessorPlan.Property> properties = new ArrayList<AccessorPlan.Property>();
+		if (this.columnSelection == null) {
+			for (AccessorPlan.Property p : plan.getProperties()) {
+				if (getPropertyTypeCode(p.type) != RdataTypeCode.UNSUPPORTED)
+					properties.add(p);
+			}
+		} else {
+			for (String name : this.columnSelection) {
+				AccessorPlan.Property p = plan.findProperty(name);
+				if (getPropertyTypeCode(p.type) == RdataTypeCode.UNSUPPORTED)
+					throw new RuntimeException(String.format("The property '%s' of class '%s' cannot be converted to a data frame column.", p.name, p.type.getName()));
+				properties.add(p);
+			}
+		}
+		List<Object> objects = new ArrayList<Object>(col.size());
+		if (this.rowFilter == null) {
+			objects.addAll(col);
+		} else {
+			ObjectRow row = new ObjectRow(plan);
+			for (Object o : col) {
+				row.object = o;
+				if (this.rowFilter.test(row))
+					objects.add(o);
+			}
+		}
+		int rowCount = objects.size();
+		int[] compositeTypes = new int[properties.size()];
+		Object[] columns = new Object[properties.size()];
+		String[] names = new String[properties.size()];
+		try {
+			for (int j = 0; j < columns.length; j++) {
+				AccessorPlan.Property p = properties.get(j);
+				Class<?> type = p.type;
+				RdataTypeCode typeCode = getPropertyTypeCode(type);
+				names[j] = p.name;
+				compositeTypes[j] = RdataStructureCode.VECTOR.value | typeCode.value;
+				if (type == Double.TYPE || type == Float.TYPE || type == Long.TYPE) {
+					MethodHandle getter = p.getter.asType(MethodType.methodType(double.class, Object.class));
+					double[] a = new double[rowCount];
+					for (int i = 0; i < rowCount; i++) {
+						Object o = objects.get(i);
+						a[i] = (o == null) ? NA_DOUBLE : (double) getter.invokeExact(o);
+					}
+					columns[j] = a;
+				} else if (type == Integer.TYPE || type == Short.TYPE) {
+					MethodHandle getter = p.getter.asType(MethodType.methodType(int.class, Object.class));
+					int[] a = new int[rowCount];
+					for (int i = 0; i < rowCount; i++) {
+						Object o = objects.get(i);
+						a[i] = (o == null) ? NA_INT : (int) getter.invokeExact(o);
+					}
+					columns[j] = a;
+				} else if (type == Boolean.TYPE) {
+					MethodHandle getter = p.getter.asType(MethodType.methodType(boolean.class, Object.class));
+					boolean[] a = new boolean[rowCount];
+					for (int i = 0; i < rowCount; i++) {
+						Object o = objects.get(i);
+						if (o == null) {
+							a[i] = NA_ASSUMPTION_LOGICAL;
+							this.rDataExceptionCode = RdataExceptionCode.WARNING_MISSING_LOGICAL_VALUES;
+						} else {
+							a[i] = (boolean) getter.invokeExact(o);
+						}
+					}
+					columns[j] = a;
+				} else if (type == Byte.TYPE) {
+					MethodHandle getter = p.getter.asType(MethodType.methodType(byte.class, Object.class));
+					byte[] a = new byte[rowCount];
+					for (int i = 0; i < rowCount; i++) {
+						Object o = objects.get(i);
+						if (o == null) {
+							a[i] = NA_ASSUMPTION_RAW;
+							this.rDataExceptionCode = RdataExceptionCode.WARNING_MISSING_RAW_VALUES;
+						} else {
+							a[i] = (byte) getter.invokeExact(o);
+						}
+					}
+					columns[j] = a;
+				} else {
+					/*
+					 * Reference types (and char) are read as objects.
+					 */
+					MethodHandle getter = p.getter.asType(MethodType.methodType(Object.class, Object.class));
+					if (typeCode == RdataTypeCode.NUMERIC) {
+						double[] a = new double[rowCount];
+						for (int i = 0; i < rowCount; i++) {
+							Object o = objects.get(i);
+							Object v = (o == null) ? null : (Object) getter.invokeExact(o);
+							a[i] = (v == null) ? NA_DOUBLE : ((Number) v).doubleValue();
+						}
+						columns[j] = a;
+					} else if (typeCode == RdataTypeCode.INTEGER) {
+						int[] a = new int[rowCount];
+						for (int i = 0; i < rowCount; i++) {
+							Object o = objects.get(i);
+							Object v = (o == null) ? null : (Object) getter.invokeExact(o);
+							a[i] = (v == null) ? NA_INT : ((Number) v).intValue();
+						}
+						columns[j] = a;
+					} else if (typeCode == RdataTypeCode.CHARACTER) {
+						String[] a = new String[rowCount];
+						for (int i = 0; i < rowCount; i++) {
+							Object o = objects.get(i);
+							Object v = (o == null) ? null : (Object) getter.invokeExact(o);
+							a[i] = (v == null) ? null : (v instanceof Enum) ? ((Enum<?>) v).name() : v.toString();
+						}
+						columns[j] = a;
+					} else if (typeCode == RdataTypeCode.LOGICAL) {
+						boolean[] a = new boolean[rowCount];
+						for (int i = 0; i < rowCount; i++) {
+							Object o = objects.get(i);
+							Object v = (o == null) ? null : (Object) getter.invokeExact(o);
+							if (v == null) {
+								a[i] = NA_ASSUMPTION_LOGICAL;
+								this.rDataExceptionCode = RdataExceptionCode.WARNING_MISSING_LOGICAL_VALUES;
+							} else {
+								a[i] = (Boolean) v;
+							}
+						}
+						columns[j] = a;
+					} else {
+						byte[] a = new byte[rowCount];
+						for (int i = 0; i < rowCount; i++) {
+							Object o = objects.get(i);
+							Object v = (o == null) ? null : (Object) getter.invokeExact(o);
+							if (v == null) {
+								a[i] = NA_ASSUMPTION_RAW;
+								this.rDataExceptionCode = RdataExceptionCode.WARNING_MISSING_RAW_VALUES;
+							} else {
+								a[i] = (Byte) v;
+							}
+						}
+						columns[j] = a;
+					}
+				}
+			}
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+		this.rDataTypeCode = RdataTypeCode.OTHER;
+		this.rDataStructureCode = RdataStructureCode.DATA_FRAME;
+		this.value = new Object[] {compositeTypes, columns, names};
+	}
+	
 	/*
 	 * This function is called only from within convertCollection.
 	 * 
@@ -1044,6 +1387,13 @@ public class JavaToR {
 		int[] compositeTypes = maybeRowMajorDataFrame.getCompositeTypes();
 		String[] names = maybeRowMajorDataFrame.getNames();
 		Object[] columns = new Object[compositeTypes.length];
+		long rowBytes = 0;
+		for (int i = 0; i < compositeTypes.length; i++)
+			rowBytes += SpillFile.getElementSize(compositeTypes[i] & 0xFF);
+		if (spills(rowBytes * lists.length)) {
+			setSpilled(SpillFile.writeDataFrame(createSpillFile(), compositeTypes, names, lists));
+			return;
+		}
 		
 		/*
 		 * Allocate column arrays.
@@ -1101,6 +1451,13 @@ public class JavaToR {
 		this.value = new Object[] {compositeTypes, columns, names};
 	}
 
+	private void convertFactor() {
+		Factor factor = (Factor) this.value;
+		this.rDataTypeCode = RdataTypeCode.INTEGER;
+		this.rDataStructureCode = RdataStructureCode.FACTOR;
+		this.value = new Object[] {factor.getCodes(), factor.getLevels(), factor.isOrdered()};
+	}
+
 	/*
 	 * Maps are converted to data frames if they contain more than one
 	 * one-dimensional arrays/collections of the same length. All other contents
@@ -1109,21 +1466,32 @@ public class JavaToR {
 	private void convertMap() {
 		@SuppressWarnings("unchecked")
 		Map<String, Object> m = (Map<String, Object>) value;
-		String[] names = new String[m.size()];
-		try {
-			m.keySet().toArray(names);
-		} catch (ArrayStoreException e) {
-			throw new RuntimeException("Map keys must be string types.");
+		String[] names;
+		Object[] members;
+		if (this.columnSelection == null) {
+			names = new String[m.size()];
+			try {
+				m.keySet().toArray(names);
+			} catch (ArrayStoreException e) {
+				throw new RuntimeException("Map keys must be string types.");
+			}
+			members = m.values().toArray();
+		} else {
+			names = Arrays.copyOf(this.columnSelection, this.columnSelection.length);
+			members = new Object[names.length];
+			for (int i = 0; i < names.length; i++)
+				members[i] = m.get(names[i]);
 		}
-		Iterator<?> iter = m.values().iterator();
-		int[] types = new int[m.size()];
-		Object[] objects = new Object[m.size()];
+		if (this.rowFilter != null)
+			filterColumns(m, members);
+		int[] types = new int[members.length];
+		Object[] objects = new Object[members.length];
 		JavaToR j2r;
 		this.isNamedListOfScalars = true;
-		boolean isDataFrame = m.size() > 1;
+		boolean isDataFrame = members.length > 1;
 		int vectorLength = -1;
-		for (int i = 0; i < m.size(); i++) {
-			j2r = new JavaToR(iter.next(), this.arrayOrder);
+		for (int i = 0; i < members.length; i++) {
+			j2r = createMember(members[i], null);
 			types[i] = j2r.getRdataCompositeCode();
 			objects[i] = j2r.getValueObject();
 			if (this.isNamedListOfScalars)
@@ -1145,6 +1513,25 @@ public class JavaToR {
 		this.value = new Object[] {types, objects, names};
 	}
 
+	/*
+	 * The data are not copied if the view covers its backing array in R
+	 * order (e.g. a view created from an R array). Otherwise, the values are
+	 * gathered into R order in a single pass.
+	 */
+	private void convertNdArray() {
+		NdArray array = (NdArray) this.value;
+		int[] dimensions = array.getRdimensions();
+		this.value = array.toRorderArray();
+		this.rDataStructureCode = RdataStructureCode.VECTOR;
+		// Sets this.rDataTypeCode and coerces the values to an R type.
+		convertSimpleStructure(array.getComponentType());
+		if (dimensions.length > 1) {
+			this.dimensions = dimensions;
+			this.rDataStructureCode = RdataStructureCode.ND_ARRAY;
+			this.value = new Object[] {dimensions, this.value};
+		}
+	}
+
 	private void convertNdimensionalBooleanArray() {
 		int flatArrayLength = this.dimensions[0];
 		for (int i = 1; i < this.dimensions.length; i++)
@@ -1565,6 +1952,16 @@ public class JavaToR {
 		this.value = new Object[] {this.dimensions, flatArray};
 	}
 	
+	/*
+	 * Reads all remaining rows of a JDBC result set into a data frame. Use
+	 * DataFrameCursor to read large result sets in batches.
+	 */
+	private void convertResultSet() {
+		ResultSetReader reader = new ResultSetReader((ResultSet) this.value, this.columnSelection, this.rowFilter);
+		reader.read(Integer.MAX_VALUE);
+		initializeFromResultSetReader(reader);
+	}
+	
 	/*
 	 * Nashorn JavaScript returns ScriptObjectMirror objects for anything that
 	 * is not a scalar (e.g. native JavaScript arrays). The JS arrays are
@@ -1574,7 +1971,9 @@ public class JavaToR {
 	private void convertScriptObjectMirror() {
 		ScriptObjectMirror som = (ScriptObjectMirror) this.value;
 		if (som.isArray()) {
-			this.initializeFrom(new JavaToR(som.values(), this.arrayOrder));
+			JavaToR j2r = new JavaToR();
+			j2r.initialize(som.values(), this.arrayOrder, this.columnSelection, this.rowFilter);
+			this.initializeFrom(j2r);
 		} else if (som.isFunction() || som.isStrictFunction()) {
 			/*
 			 * Because the last expression of a script is returned, a script
@@ -1591,6 +1990,98 @@ public class JavaToR {
 		}
 	}
 	
+	/*
+	 * Sparse matrices are converted to CSC, the layout of R's dgCMatrix. CSC
+	 * arrays are passed through without copying.
+	 */
+	private void convertSparseMatrix() {
+		SparseMatrix matrix = ((SparseMatrix) this.value).toCsc();
+		this.rDataTypeCode = RdataTypeCode.NUMERIC;
+		this.rDataStructureCode = RdataStructureCode.SPARSE_MATRIX;
+		this.value = new Object[] {new int[] {matrix.getRowCount(), matrix.getColumnCount()}, matrix.getRowIndices(), matrix.getPointers(), matrix.getValues()};
+	}
+
+	/*
+	 * Converts a Table to a data frame. The column arrays are passed to R
+	 * without copying unless the table is a slice or rows are filtered.
+	 * Logical columns with missing values are passed in R's integer encoding
+	 * of logical vectors (int[] holding 0, 1, or NA_INT), so NA values are
+	 * retained. Missing raw values cannot be represented, so they are
+	 * converted using the usual NA assumption (with a warning). Factor columns
+	 * are expanded to character vectors (see Table.getStringColumn).
+	 */
+	private void convertTable() {
+		Table table = (Table) this.value;
+		int[] selection;
+		if (this.columnSelection == null) {
+			selection = new int[table.getColumnCount()];
+			for (int j = 0; j < selection.length; j++)
+				selection[j] = j;
+		} else {
+			selection = new int[this.columnSelection.length];
+			for (int j = 0; j < selection.length; j++) {
+				selection[j] = table.getColumnIndex(this.columnSelection[j]);
+				if (selection[j] == -1)
+					throw new RuntimeException(String.format("The column '%s' does not exist in the table.", this.columnSelection[j]));
+			}
+		}
+		int[] rows = null;
+		int selectedRowCount = table.getRowCount();
+		if (this.rowFilter != null) {
+			TableRow row = new TableRow(table);
+			rows = new int[table.getRowCount()];
+			selectedRowCount = 0;
+			for (int i = 0; i < table.getRowCount(); i++) {
+				row.index = i;
+				if (this.rowFilter.test(row))
+					rows[selectedRowCount++] = i;
+			}
+		}
+		int[] compositeTypes = new int[selection.length];
+		Object[] columns = new Object[selection.length];
+		String[] names = new String[selection.length];
+		String[] tableNames = table.getNames();
+		for (int j = 0; j < selection.length; j++) {
+			int column = selection[j];
+			RdataTypeCode type = table.getColumnType(column);
+			names[j] = tableNames[column];
+			compositeTypes[j] = RdataStructureCode.VECTOR.value | type.value;
+			columns[j] = table.getColumn(column);
+			if (rows != null)
+				columns[j] = selectRows(columns[j], rows, selectedRowCount);
+			if (type == RdataTypeCode.LOGICAL) {
+				if (table.hasMissingValues(column))
+					columns[j] = encodeLogicalColumn(table, column, (boolean[]) columns[j], rows);
+				continue;
+			}
+			if (type == RdataTypeCode.RAW) {
+				int[] missingRows = table.getMissingRows(column);
+				if (missingRows == null)
+					continue;
+				if (rows != null) {
+					// Only warn if missing values remain after filtering.
+					boolean found = false;
+					for (int i = 0, k = 0; i < selectedRowCount && k < missingRows.length; ) {
+						if (rows[i] == missingRows[k]) {
+							found = true;
+							break;
+						}
+						if (rows[i] < missingRows[k])
+							i++;
+						else
+							k++;
+					}
+					if (!found)
+						continue;
+				}
+				this.rDataExceptionCode = RdataExceptionCode.WARNING_MISSING_RAW_VALUES;
+			}
+		}
+		this.rDataTypeCode = RdataTypeCode.OTHER;
+		this.rDataStructureCode = RdataStructureCode.DATA_FRAME;
+		this.value = new Object[] {compositeTypes, columns, names};
+	}
+	
 	/*
 	 * Assumes that this.rDataStructureCode has already been set. Sets
 	 * this.rDataTypeCode and this.value.
@@ -1759,6 +2250,197 @@ public class JavaToR {
 		this.rDataTypeCode = RdataTypeCode.UNSUPPORTED;
 	}
 	
+	/*
+	 * Creates a JavaToR object for a member of a collection. The column
+	 * selection is passed down to members that are maps so that it applies to
+	 * each record of a row-major data frame.
+	 */
+	private JavaToR createCollectionMember(Object o) {
+		return createMember(o, (o instanceof Map) ? this.columnSelection : null);
+	}
+	
+	/*
+	 * Creates a JavaToR object for a member of a collection or map that
+	 * shares the arena, memory budget, and spill directory of this object.
+	 */
+	private JavaToR createMember(Object o, String[] columnSelection) {
+		if (this.memoryBudget == 0 && this.arena == null && columnSelection == null)
+			return new JavaToR(o, this.arrayOrder);
+		JavaToR j2r = new JavaToR();
+		j2r.arena = this.arena;
+		j2r.isMember = true;
+		j2r.memoryBudget = this.memoryBudget;
+		j2r.spillDirectory = this.spillDirectory;
+		j2r.initialize(o, this.arrayOrder, columnSelection, (RowFilter) null);
+		return j2r;
+	}
+	
+	private static RuntimeException createColumnTypeException(String name, Object o, String type) {
+		return new RuntimeException(String.format("A value of class '%s' cannot be stored in the %s data frame column '%s'.", o.getClass().getName(), type, name));
+	}
+	
+	/*
+	 * Returns a new segment of the arena if one is set, otherwise a temporary
+	 * file in the spill directory. The arena deletes its segments on release;
+	 * other spill files are deleted on exit in case they are never read.
+	 */
+	private File createSpillFile() {
+		if (this.arena != null)
+			return this.arena.allocate();
+		File file = SpillFile.createFile((this.spillDirectory == null) ? null : new File(this.spillDirectory));
+		file.deleteOnExit();
+		return file;
+	}
+	
+	/*
+	 * Returns the logical column `values` (selected from column `column` of
+	 * `table` by `rows` if not null) in R's integer encoding with NA_INT for
+	 * missing values, or `values` if none of them is missing.
+	 */
+	private static Object encodeLogicalColumn(Table table, int column, boolean[] values, int[] rows) {
+		int[] a = new int[values.length];
+		boolean missing = false;
+		for (int i = 0; i < a.length; i++) {
+			if (table.isNA((rows == null) ? i : rows[i], column)) {
+				a[i] = NA_INT;
+				missing = true;
+			} else {
+				a[i] = values[i] ? 1 : 0;
+			}
+		}
+		return missing ? a : values;
+	}
+	
+	/*
+	 * Returns the structure, dimensions, element count, and size of the R
+	 * object that `value` would be converted to, without converting it. This
+	 * object is not modified. See ConversionEstimate.
+	 */
+	public ConversionEstimate estimate(Object value) {
+		return this.estimate(value, ArrayOrder.ROW_MAJOR);
+	}
+
+	public ConversionEstimate estimate(Object value, ArrayOrder arrayOrder) {
+		return this.estimate(value, arrayOrder, null, (RowFilter) null);
+	}
+
+	/*
+	 * Same as `estimate(Object, ArrayOrder, String[], RowFilter)`, but the row
+	 * filter is parsed from a string. See RowFilter for the syntax.
+	 */
+	public ConversionEstimate estimate(Object value, ArrayOrder arrayOrder, String[] columns, String rowFilter) {
+		return this.estimate(value, arrayOrder, columns, rowFilter == null ? null : RowFilter.parse(rowFilter));
+	}
+
+	/*
+	 * Estimates the result of `initialize(value, arrayOrder, columns,
+	 * rowFilter)` with the memory budget and the arena of this object.
+	 */
+	public ConversionEstimate estimate(Object value, ArrayOrder arrayOrder, String[] columns, RowFilter rowFilter) {
+		return ConversionEstimate.estimate(this, value, arrayOrder, columns, rowFilter);
+	}
+
+	/*
+	 * Applies this.rowFilter to a map of columns (i.e. a column-major data
+	 * frame). Each member of `columns` is replaced with a copy containing only
+	 * the matching rows. The filter is evaluated before any values are
+	 * converted, so conversion cost scales with the selected rows only.
+	 */
+	private void filterColumns(Map<String, Object> m, Object[] columns) {
+		int rowCount = -1;
+		for (int i = 0; i < columns.length; i++) {
+			int length = getColumnLength(columns[i]);
+			if (rowCount == -1)
+				rowCount = length;
+			else if (rowCount != length)
+				throw new RuntimeException("Row filters require a map of equal-length columns.");
+		}
+		if (rowCount == -1)
+			return;
+		ColumnRow row = new ColumnRow(m, rowCount);
+		int[] rows = new int[rowCount];
+		int selectedRowCount = 0;
+		for (int i = 0; i < rowCount; i++) {
+			row.index = i;
+			if (this.rowFilter.test(row))
+				rows[selectedRowCount++] = i;
+		}
+		for (int i = 0; i < columns.length; i++)
+			columns[i] = selectRows(columns[i], rows, selectedRowCount);
+	}
+	
+	/*
+	 * Applies this.rowFilter to a collection of records (i.e. a row-major data
+	 * frame). Returns the matching records.
+	 */
+	private Collection<?> filterRecords(Collection<?> col) {
+		List<Object> lst = new ArrayList<Object>();
+		RecordRow row = new RecordRow();
+		for (Object o : col) {
+			if (!(o instanceof Map))
+				throw new RuntimeException("Row filters can only be applied to collections of maps or maps of columns.");
+			row.record = (Map<?, ?>) o;
+			if (this.rowFilter.test(row))
+				lst.add(o);
+		}
+		return lst;
+	}
+	
+	/*
+	 * Returns the class of the elements of `col` if they are records or
+	 * JavaBeans, otherwise null. All non-null elements must be instances of
+	 * the class of the first non-null element. Classes in the java.*, javax.*,
+	 * and jdk.* packages, and types otherwise supported by JavaToR (e.g. maps
+	 * and boxed values) are excluded.
+	 */
+	static Class<?> getObjectClass(Collection<?> col) {
+		Class<?> cls = null;
+		for (Object o : col) {
+			if (o == null)
+				continue;
+			if (cls == null) {
+				cls = o.getClass();
+				if (cls.isArray() || cls.isEnum() || cls.getName().startsWith("java.") || cls.getName().startsWith("javax.")
+						|| Map.class.isAssignableFrom(cls) || Collection.class.isAssignableFrom(cls) || Throwable.class.isAssignableFrom(cls)
+						|| ResultSet.class.isAssignableFrom(cls) || ScriptObjectMirror.class.isAssignableFrom(cls)
+						|| cls.getName().startsWith("jdk."))
+					return null;
+			} else if (!cls.isInstance(o)) {
+				return null;
+			}
+		}
+		if (cls == null)
+			return null;
+		for (AccessorPlan.Property p : AccessorPlan.get(cls).getProperties()) {
+			if (getPropertyTypeCode(p.type) != RdataTypeCode.UNSUPPORTED)
+				return cls;
+		}
+		return null;
+	}
+	
+	/*
+	 * Returns the R data type used for a record component or bean property of
+	 * the given type, or UNSUPPORTED.
+	 */
+	static RdataTypeCode getPropertyTypeCode(Class<?> type) {
+		if (type == Double.TYPE || type == Float.TYPE || type == Long.TYPE || type == Double.class || type == Float.class || type == Long.class
+				|| type == BigDecimal.class || type == BigInteger.class)
+			return RdataTypeCode.NUMERIC;
+		if (type == Integer.TYPE || type == Short.TYPE || type == Integer.class || type == Short.class)
+			return RdataTypeCode.INTEGER;
+		if (type == String.class || type == Character.TYPE || type == Character.class || type.isEnum())
+			return RdataTypeCode.CHARACTER;
+		if (type == Boolean.TYPE || type == Boolean.class)
+			return RdataTypeCode.LOGICAL;
+		if (type == Byte.TYPE || type == Byte.class)
+			return RdataTypeCode.RAW;
+		return RdataTypeCode.UNSUPPORTED;
+	}
+	
+	public OffHeapArena getArena() {
+		return arena;
+	}
+	
 	public ArrayOrder getArrayOrder() {
 		return arrayOrder;
 	}
@@ -1767,6 +2449,10 @@ public class JavaToR {
 		return dimensions;
 	}
 	
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+	
 	public int getRdataCompositeCode() {
 		return rDataTypeCode.value | rDataStructureCode.value | rDataExceptionCode.value | rDataUserDefinedCode;
 	}
@@ -1795,6 +2481,16 @@ public class JavaToR {
 		return (boolean[]) value;
 	}
 	
+	/*
+	 * The region getters return `length` elements of a vector value starting
+	 * at `start` (zero-based). They allow R to read large vectors on demand
+	 * (see the R function convertToRlazy) instead of copying them in full.
+	 */
+	public boolean[] getValueBooleanRegion(int start, int length) {
+		checkRegion(start, length);
+		return Arrays.copyOfRange((boolean[]) value, start, start + length);
+	}
+	
 	public byte getValueByte() {
 		return (byte) value;
 	}
@@ -1803,6 +2499,11 @@ public class JavaToR {
 		return (byte[]) value;
 	}
 	
+	public byte[] getValueByteRegion(int start, int length) {
+		checkRegion(start, length);
+		return Arrays.copyOfRange((byte[]) value, start, start + length);
+	}
+	
 	public double getValueDouble() {
 		return (double) value;
 	}
@@ -1811,6 +2512,11 @@ public class JavaToR {
 		return (double[]) value;
 	}
 	
+	public double[] getValueDoubleRegion(int start, int length) {
+		checkRegion(start, length);
+		return Arrays.copyOfRange((double[]) value, start, start + length);
+	}
+	
 	public int getValueInt() {
 		return (int) value;
 	}
@@ -1819,6 +2525,19 @@ public class JavaToR {
 		return (int[]) value;
 	}
 	
+	public int[] getValueIntRegion(int start, int length) {
+		checkRegion(start, length);
+		return Arrays.copyOfRange((int[]) value, start, start + length);
+	}
+	
+	/*
+	 * Returns the length of a vector value.
+	 */
+	public int getValueLength() {
+		checkRegion(0, 0);
+		return Array.getLength(value);
+	}
+	
 	public Object getValueObject() {
 		return value;
 	}
@@ -1835,6 +2554,25 @@ public class JavaToR {
 		return (String[]) value;
 	}
 	
+	public String[] getValueStringRegion(int start, int length) {
+		checkRegion(start, length);
+		return Arrays.copyOfRange((String[]) value, start, start + length);
+	}
+	
+	/*
+	 * Returns the length of a column used in a row filter. Columns must be
+	 * arrays or collections.
+	 */
+	private static int getColumnLength(Object column) {
+		if (column != null) {
+			if (column.getClass().isArray())
+				return Array.getLength(column);
+			if (column instanceof Collection)
+				return ((Collection<?>) column).size();
+		}
+		throw new RuntimeException("Row filters require a map of equal-length columns.");
+	}
+	
 	public int initialize(Object value) {
 		return this.initialize(value, ArrayOrder.ROW_MAJOR);
 	}
@@ -1849,13 +2587,38 @@ public class JavaToR {
 	 * objects via rJava is expensive.
 	 */
 	public int initialize(Object value, ArrayOrder arrayOrder) {
+		return this.initialize(value, arrayOrder, null, (RowFilter) null);
+	}
+	
+	/*
+	 * Same as `initialize(Object, ArrayOrder, String[], RowFilter)`, but the
+	 * row filter is parsed from a string. See RowFilter for the syntax. This
+	 * overload is provided for R, where creating Java objects is expensive.
+	 */
+	public int initialize(Object value, ArrayOrder arrayOrder, String[] columns, String rowFilter) {
+		return this.initialize(value, arrayOrder, columns, rowFilter == null ? null : RowFilter.parse(rowFilter));
+	}
+	
+	/*
+	 * Same as `initialize(Object, ArrayOrder)`, but restricts the conversion
+	 * to the given columns and to the rows matching `rowFilter`. Either may be
+	 * null. Both apply to the top-level structure only: the column selection
+	 * applies to a map or to each map (record) in a collection, and the row
+	 * filter applies to a collection of maps or to a map of equal-length
+	 * arrays/collections. Selected columns that do not exist are converted
+	 * from null. The selection and filter are evaluated before any values are
+	 * converted.
+	 */
+	public int initialize(Object value, ArrayOrder arrayOrder, String[] columns, RowFilter rowFilter) {
 		this.arrayOrder = arrayOrder;
+		this.columnSelection = columns;
 		this.dimensions = null;
 		this.isNamedListOfScalars = false; // Used to detect row major data frames.
 		this.rDataExceptionCode = RdataExceptionCode.NONE;
 		this.rDataTypeCode = RdataTypeCode.UNSUPPORTED;
 		this.rDataStructureCode = RdataStructureCode.SCALAR;
 		this.rDataUserDefinedCode = 0;
+		this.rowFilter = rowFilter;
 		this.value = value;
 		
 		/*
@@ -1930,10 +2693,31 @@ public class JavaToR {
 			}
 			return this.getRdataCompositeCode();
 		}
+		// Factor must precede Collection because it is a List.
+		if (cls == Factor.class) {
+			convertFactor();
+			return this.getRdataCompositeCode();
+		}
 		if (Collection.class.isAssignableFrom(cls)) {
 			convertCollection();
 			return this.getRdataCompositeCode();
 		}
+		if (ResultSet.class.isAssignableFrom(cls)) {
+			convertResultSet();
+			return this.getRdataCompositeCode();
+		}
+		if (cls == NdArray.class) {
+			convertNdArray();
+			return this.getRdataCompositeCode();
+		}
+		if (cls == SparseMatrix.class) {
+			convertSparseMatrix();
+			return this.getRdataCompositeCode();
+		}
+		if (cls == Table.class) {
+			convertTable();
+			return this.getRdataCompositeCode();
+		}
 		// Use getValueString() to retrieve error message.
 		if (Throwable.class.isAssignableFrom(cls)) {
 			this.rDataTypeCode = RdataTypeCode.OTHER;
@@ -1958,16 +2742,108 @@ public class JavaToR {
 		if (rDataUserDefinedCode < 0x01000000)
 			throw new RuntimeException("User defined data codes are between 0x01000000 and 0x7FFFFFFF.");
 		this.arrayOrder = ArrayOrder.ROW_MAJOR;
+		this.columnSelection = null;
 		this.dimensions = null;
 		this.isNamedListOfScalars = false;
 		this.rDataExceptionCode = RdataExceptionCode.NONE;
 		this.rDataTypeCode = RdataTypeCode.OTHER;
 		this.rDataStructureCode = RdataStructureCode.USER_DEFINED;
 		this.rDataUserDefinedCode = rDataUserDefinedCode;
+		this.rowFilter = null;
 		this.value = value;
 		return this.getRdataCompositeCode();
 	}
 	
+	/*
+	 * Converts a collection of records (maps) to a data frame using a fixed
+	 * schema instead of inferring one. `compositeTypes` are data frame column
+	 * codes as produced by convertCollectionToDataFrame. Values are coerced to
+	 * the column types, and null values and missing keys are converted to NA.
+	 * This is used by DataFrameCursor so that every chunk has the same column
+	 * types in R.
+	 */
+	int initializeDataFrame(Collection<?> records, String[] names, int[] compositeTypes) {
+		this.initialize(null);
+		int rowCount = records.size();
+		Object[] columns = new Object[compositeTypes.length];
+		for (int j = 0; j < compositeTypes.length; j++) {
+			int typeCode = compositeTypes[j] & 0xFF;
+			if (typeCode == RdataTypeCode.NUMERIC.value) {
+				columns[j] = new double[rowCount];
+			} else if (typeCode == RdataTypeCode.INTEGER.value) {
+				columns[j] = new int[rowCount];
+			} else if (typeCode == RdataTypeCode.CHARACTER.value) {
+				columns[j] = new String[rowCount];
+			} else if (typeCode == RdataTypeCode.LOGICAL.value) {
+				columns[j] = new boolean[rowCount];
+			} else if (typeCode == RdataTypeCode.RAW.value) {
+				columns[j] = new byte[rowCount];
+			} else {
+				throw new RuntimeException(String.format("The R data type code 0x%X is not supported for a data frame column structure.", typeCode));
+			}
+		}
+		int i = 0;
+		for (Object record : records) {
+			if (!(record instanceof Map))
+				throw new RuntimeException(String.format("Data frame rows must be maps. Row %d is of class '%s'.", i + 1, (record == null) ? "null" : record.getClass().getName()));
+			Map<?, ?> m = (Map<?, ?>) record;
+			for (int j = 0; j < names.length; j++) {
+				Object o = m.get(names[j]);
+				int typeCode = compositeTypes[j] & 0xFF;
+				if (typeCode == RdataTypeCode.NUMERIC.value) {
+					if (o != null && !(o instanceof Number))
+						throw createColumnTypeException(names[j], o, "numeric");
+					((double[]) columns[j])[i] = (o == null) ? NA_DOUBLE : ((Number) o).doubleValue();
+				} else if (typeCode == RdataTypeCode.INTEGER.value) {
+					if (o != null && !(o instanceof Integer || o instanceof Short || o instanceof Byte))
+						throw createColumnTypeException(names[j], o, "integer");
+					((int[]) columns[j])[i] = (o == null) ? NA_INT : ((Number) o).intValue();
+				} else if (typeCode == RdataTypeCode.CHARACTER.value) {
+					if (o != null && !(o instanceof String || o instanceof Character))
+						throw createColumnTypeException(names[j], o, "character");
+					((String[]) columns[j])[i] = (o == null) ? null : o.toString();
+				} else if (typeCode == RdataTypeCode.LOGICAL.value) {
+					if (o == null) {
+						((boolean[]) columns[j])[i] = NA_ASSUMPTION_LOGICAL;
+						this.rDataExceptionCode = RdataExceptionCode.WARNING_MISSING_LOGICAL_VALUES;
+					} else if (o instanceof Boolean) {
+						((boolean[]) columns[j])[i] = (Boolean) o;
+					} else {
+						throw createColumnTypeException(names[j], o, "logical");
+					}
+				} else {
+					if (o == null) {
+						((byte[]) columns[j])[i] = NA_ASSUMPTION_RAW;
+						this.rDataExceptionCode = RdataExceptionCode.WARNING_MISSING_RAW_VALUES;
+					} else if (o instanceof Byte) {
+						((byte[]) columns[j])[i] = (Byte) o;
+					} else {
+						throw createColumnTypeException(names[j], o, "raw");
+					}
+				}
+			}
+			i++;
+		}
+		this.rDataTypeCode = RdataTypeCode.OTHER;
+		this.rDataStructureCode = RdataStructureCode.DATA_FRAME;
+		this.value = new Object[] {compositeTypes, columns, names};
+		return this.getRdataCompositeCode();
+	}
+	
+	/*
+	 * Sets the value to the batch most recently read by `reader`. The result
+	 * is always a data frame, even if the batch is empty.
+	 */
+	int initializeFromResultSetReader(ResultSetReader reader) {
+		this.initialize(null);
+		this.rDataTypeCode = RdataTypeCode.OTHER;
+		this.rDataStructureCode = RdataStructureCode.DATA_FRAME;
+		if (reader.hasMissingLogicalValues())
+			this.rDataExceptionCode = RdataExceptionCode.WARNING_MISSING_LOGICAL_VALUES;
+		this.value = reader.getDataFrame();
+		return this.getRdataCompositeCode();
+	}
+	
 	/*
 	 * This method is provided to allow a shallow, in-place copy of the object
 	 * to prevent creating new object references on the R side via rJava
@@ -1975,16 +2851,149 @@ public class JavaToR {
 	 */
 	public int initializeFrom(JavaToR j2r) {
 		this.arrayOrder = j2r.arrayOrder;
+		this.columnSelection = j2r.columnSelection;
 		this.dimensions = j2r.dimensions;
 		this.isNamedListOfScalars = j2r.isNamedListOfScalars;
 		this.rDataExceptionCode = j2r.rDataExceptionCode;
 		this.rDataTypeCode = j2r.rDataTypeCode;
 		this.rDataStructureCode = j2r.rDataStructureCode;
 		this.rDataUserDefinedCode = j2r.rDataUserDefinedCode;
+		this.rowFilter = j2r.rowFilter;
 		this.value = j2r.value;
 		return this.getRdataCompositeCode();
 	}
 	
+	/*
+	 * Returns a copy of a column (an array or collection) containing only the
+	 * elements at the first `count` indices of `rows`. Common array types are
+	 * copied without boxing.
+	 */
+	private static Object selectRows(Object column, int[] rows, int count) {
+		if (column instanceof Collection) {
+			List<Object> lst = new ArrayList<Object>(count);
+			if (column instanceof List) {
+				List<?> l = (List<?>) column;
+				for (int i = 0; i < count; i++)
+					lst.add(l.get(rows[i]));
+			} else {
+				Iterator<?> iter = ((Collection<?>) column).iterator();
+				Object o = null;
+				int index = -1;
+				for (int i = 0; i < count; i++) {
+					while (index < rows[i]) {
+						o = iter.next();
+						index++;
+					}
+					lst.add(o);
+				}
+			}
+			return lst;
+		}
+		if (column instanceof double[]) {
+			double[] a = (double[]) column; double[] b = new double[count];
+			for (int i = 0; i < count; i++)
+				b[i] = a[rows[i]];
+			return b;
+		}
+		if (column instanceof int[]) {
+			int[] a = (int[]) column; int[] b = new int[count];
+			for (int i = 0; i < count; i++)
+				b[i] = a[rows[i]];
+			return b;
+		}
+		if (column instanceof boolean[]) {
+			boolean[] a = (boolean[]) column; boolean[] b = new boolean[count];
+			for (int i = 0; i < count; i++)
+				b[i] = a[rows[i]];
+			return b;
+		}
+		if (column instanceof byte[]) {
+			byte[] a = (byte[]) column; byte[] b = new byte[count];
+			for (int i = 0; i < count; i++)
+				b[i] = a[rows[i]];
+			return b;
+		}
+		if (column instanceof Object[]) {
+			Object[] a = (Object[]) column;
+			Object[] b = (Object[]) Array.newInstance(column.getClass().getComponentType(), count);
+			for (int i = 0; i < count; i++)
+				b[i] = a[rows[i]];
+			return b;
+		}
+		Object b = Array.newInstance(column.getClass().getComponentType(), count);
+		for (int i = 0; i < count; i++)
+			Array.set(b, i, Array.get(column, rows[i]));
+		return b;
+	}
+	
+	/*
+	 * Sets the arena of off-heap result segments, or null (the default) to
+	 * allocate results on the heap. Results of at least the threshold of the
+	 * arena are written to its segments as if they exceeded the memory budget
+	 * (see setMemoryBudget). The arena persists across calls to `initialize`;
+	 * the caller releases or closes it after the segments are consumed.
+	 */
+	public void setArena(OffHeapArena arena) {
+		this.arena = arena;
+	}
+	
+	/*
+	 * Sets the memory budget in bytes (0, the default, means no budget). When
+	 * a vector built from a collection of scalars (top-level values only), the
+	 * flat array of an n-d array, or the columns of a row-major data frame
+	 * built from a collection would exceed the budget or the free heap, the
+	 * result is streamed to a temporary file (see SpillFile) instead. The
+	 * value is then the path of the file and the structure code is
+	 * MAPPED_FILE. The consumer (the R package or one of the writers) deletes
+	 * the file. The budget applies to values nested in collections and maps
+	 * as well and persists across calls to `initialize`.
+	 */
+	public void setMemoryBudget(long memoryBudget) {
+		if (memoryBudget < 0)
+			throw new RuntimeException("The memory budget must be non-negative.");
+		this.memoryBudget = memoryBudget;
+	}
+	
+	/*
+	 * The directory of spill files. The default (null) is the system temporary
+	 * directory.
+	 */
+	public void setSpillDirectory(String spillDirectory) {
+		this.spillDirectory = spillDirectory;
+	}
+	
+	/*
+	 * Makes the spill file `path` the result. See setMemoryBudget.
+	 */
+	private void setSpilled(String path) {
+		this.rDataTypeCode = RdataTypeCode.OTHER;
+		this.rDataStructureCode = RdataStructureCode.MAPPED_FILE;
+		this.value = path;
+	}
+	
+	/*
+	 * Streams an n-d array to a spill file. See SpillFile.writeArray.
+	 */
+	private void spill(RdataTypeCode typeCode, Object[] subarrays, boolean transposed) {
+		setSpilled(SpillFile.writeArray(createSpillFile(), typeCode.value, this.dimensions, subarrays, transposed));
+	}
+	
+	/*
+	 * Returns true if a result of `bytes` bytes is spilled to a file instead
+	 * of allocated on the heap: it reaches the threshold of the arena, or it
+	 * exceeds the memory budget or the free heap. Always false if neither an
+	 * arena nor a budget is set.
+	 */
+	boolean spills(long bytes) {
+		if (this.arena != null && bytes >= this.arena.getThreshold())
+			return true;
+		if (this.memoryBudget <= 0)
+			return false;
+		Runtime runtime = Runtime.getRuntime();
+		long free = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+		return bytes > Math.min(this.memoryBudget, free);
+	}
+	
 	private boolean[] unboxArray1D(Boolean[] a) {
 		if (a == null)
 			return null;
@@ -2030,5 +3039,5 @@ public class JavaToR {
 			b[i] = (a[i] == null) ? NA_INT : a[i].intValue();
 		return b;
 	}
-
+	
 }
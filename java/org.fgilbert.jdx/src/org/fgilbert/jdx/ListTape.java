@@ -0,0 +1,167 @@
+package org.fgilbert.jdx;
+
+/*
+ * Builds a nested graph of lists and maps from a packed description (a tape)
+ * created by the R package (see packListTape in Private.R). The whole graph is
+ * created with one rJava call instead of one call per scalar.
+ *
+ * codes    One composite code per node: a structure code (SC_SCALAR,
+ *          SC_VECTOR, SC_LIST, or SC_NAMED_LIST in the R package) combined
+ *          with a type code (TC_NULL through TC_RAW).
+ * lengths  The number of elements of each node (vector length or list size).
+ * doubles  The values of numeric nodes.
+ * integers The values of integer, logical (NA is R's NA_integer_), and raw
+ *          nodes.
+ * strings  The values of character nodes.
+ * names    The keys of named lists.
+ *
+ * The first node is the root list. The remaining nodes are grouped in blocks:
+ * each list contributes one block containing its elements, and the blocks of
+ * nested lists follow the block of their parent in element order. The pools
+ * are consumed in the same order. This layout allows the R side to pack each
+ * list with vectorized operations.
+ *
+ * Scalars become boxed objects and vectors become primitive arrays (String[]
+ * for character), as for convertToJava with scalars.as.objects = TRUE. Logical
+ * NA values are converted to false; the R side raises the warning.
+ */
+
+import static org.fgilbert.jdx.Rdata.*;
+
+import java.util.Arrays;
+
+final class ListTape {
+
+	private final int[] codes;
+	private final double[] doubles;
+	private final int[] integers;
+	private final int[] lengths;
+	private final String[] names;
+	private final String[] strings;
+	private int doublePosition;
+	private int integerPosition;
+	private int namePosition;
+	private int nodePosition;
+	private int stringPosition;
+
+	private ListTape(int[] codes, int[] lengths, double[] doubles, int[] integers, String[] strings, String[] names) {
+		if (codes.length != lengths.length)
+			throw new RuntimeException("The code and length arrays must have the same length.");
+		this.codes = codes;
+		this.lengths = lengths;
+		this.doubles = doubles;
+		this.integers = integers;
+		this.strings = strings;
+		this.names = names;
+	}
+
+	private void checkPool(int position, int count, int poolLength) {
+		if (count < 0 || position + count > poolLength)
+			throw new RuntimeException("The list tape is malformed: a value pool is too short.");
+	}
+
+	private Object readBlock(int code, int n) {
+		String[] keys = null;
+		if (code == SC_NAMED_LIST) {
+			checkPool(this.namePosition, n, this.names.length);
+			keys = Arrays.copyOfRange(this.names, this.namePosition, this.namePosition + n);
+			this.namePosition += n;
+		}
+		if (n < 0 || this.nodePosition + n > this.codes.length)
+			throw new RuntimeException("The list tape is malformed: too few nodes.");
+		int start = this.nodePosition;
+		this.nodePosition += n;
+		Object[] values = new Object[n];
+		boolean nested = false;
+		for (int k = 0; k < n; k++) {
+			int childCode = this.codes[start + k];
+			if (childCode == SC_LIST || childCode == SC_NAMED_LIST)
+				nested = true;
+			else
+				values[k] = readValue(childCode, this.lengths[start + k]);
+		}
+		if (nested) {
+			for (int k = 0; k < n; k++) {
+				int childCode = this.codes[start + k];
+				if (childCode == SC_LIST || childCode == SC_NAMED_LIST)
+					values[k] = readBlock(childCode, this.lengths[start + k]);
+			}
+		}
+		return (keys == null) ? Utility.createList(values) : Utility.createMap(keys, values);
+	}
+
+	private Object readValue(int code, int n) {
+		int structure = code & 0xFF00;
+		int type = code & 0xFF;
+		if (type == TC_NULL)
+			return null;
+		if (structure != SC_VECTOR && (structure != SC_SCALAR || n != 1))
+			throw new RuntimeException(String.format("The list tape is malformed: unsupported code 0x%X.", code));
+		boolean scalar = structure == SC_SCALAR;
+		int p;
+		switch (type) {
+		case TC_NUMERIC:
+			checkPool(this.doublePosition, n, this.doubles.length);
+			p = this.doublePosition;
+			this.doublePosition += n;
+			if (scalar)
+				return this.doubles[p];
+			return Arrays.copyOfRange(this.doubles, p, p + n);
+		case TC_INTEGER:
+			checkPool(this.integerPosition, n, this.integers.length);
+			p = this.integerPosition;
+			this.integerPosition += n;
+			if (scalar)
+				return this.integers[p];
+			return Arrays.copyOfRange(this.integers, p, p + n);
+		case TC_CHARACTER:
+			checkPool(this.stringPosition, n, this.strings.length);
+			p = this.stringPosition;
+			this.stringPosition += n;
+			if (scalar)
+				return this.strings[p];
+			return Arrays.copyOfRange(this.strings, p, p + n);
+		case TC_LOGICAL: {
+			checkPool(this.integerPosition, n, this.integers.length);
+			p = this.integerPosition;
+			this.integerPosition += n;
+			if (scalar)
+				return this.integers[p] != 0 && this.integers[p] != NA_INT;
+			boolean[] a = new boolean[n];
+			for (int i = 0; i < n; i++)
+				a[i] = this.integers[p + i] != 0 && this.integers[p + i] != NA_INT;
+			return a;
+		}
+		case TC_RAW: {
+			checkPool(this.integerPosition, n, this.integers.length);
+			p = this.integerPosition;
+			this.integerPosition += n;
+			if (scalar)
+				return (byte) this.integers[p];
+			byte[] a = new byte[n];
+			for (int i = 0; i < n; i++)
+				a[i] = (byte) this.integers[p + i];
+			return a;
+		}
+		default:
+			throw new RuntimeException(String.format("The list tape is malformed: unsupported code 0x%X.", code));
+		}
+	}
+
+	/*
+	 * Returns a List<Object> or a Map<String, Object> depending on the code of
+	 * the root node. An exception is thrown if the pools are not consumed
+	 * exactly.
+	 */
+	static Object unpack(int[] codes, int[] lengths, double[] doubles, int[] integers, String[] strings, String[] names) {
+		ListTape tape = new ListTape(codes, lengths, doubles, integers, strings, names);
+		if (codes.length == 0 || (codes[0] != SC_LIST && codes[0] != SC_NAMED_LIST))
+			throw new RuntimeException("The list tape is malformed: the root node must be a list.");
+		tape.nodePosition = 1;
+		Object result = tape.readBlock(codes[0], lengths[0]);
+		if (tape.nodePosition != codes.length || tape.doublePosition != doubles.length || tape.integerPosition != integers.length || tape.stringPosition != strings.length || tape.namePosition != names.length)
+			throw new RuntimeException("The list tape is malformed: not all values were consumed.");
+		return result;
+	}
+
+}
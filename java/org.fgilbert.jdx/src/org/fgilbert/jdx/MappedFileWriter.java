@@ -0,0 +1,460 @@
+package org.fgilbert.jdx;
+
+/*
+ * Writes the value of an initialized JavaToR object to a memory-mapped file
+ * (e.g. under /dev/shm) that the R package reads with readBin (see
+ * convertToR(transport = "mapped")). Large vectors are copied once from the
+ * Java arrays to the mapping and read once by R, so neither the JVM heap nor
+ * the JNI array copies of rJava hold a second copy of the data. The file is
+ * mapped in windows, so values larger than 2 GB can be written. Each window
+ * is unmapped when the next one is mapped and before the file is truncated
+ * (see unmap).
+ *
+ * Layout. All numbers are in native byte order. Every block starts at a
+ * multiple of 8 bytes and is padded with zeros to a multiple of 8 bytes.
+ *
+ * header  "JDXMAP01" (8 bytes), int32 1 (byte order mark), int32 layout
+ *         version (1), int64 file length.
+ * node    int32 code (R type code | R structure code; see jdxConstants in the
+ *         R package), int32 n, followed by the payload of the structure:
+ *
+ *   null         Nothing.
+ *   scalar       A values block of one element.
+ *   vector       A values block of n elements.
+ *   n-d array    An int32 block of the n dimensions, then a values block of
+ *                prod(dimensions) elements (column-major).
+ *   data frame   A strings block of the n column names, then n column nodes.
+ *   list         n element nodes.
+ *   named list   A strings block of the n names, then n element nodes.
+ *   factor       An int32 block containing 1 if the factor is ordered, an
+ *                int32 block of the n codes (one-based), then a character
+ *                vector node of the levels.
+ *   sparse       Four vector nodes: dimensions, i, p (both zero-based), x.
+ *
+ * values  numeric: float64; integer and logical: int32; raw: uint8;
+ *         character: a strings block.
+ * strings An int32 block of the UTF-8 byte lengths (-1 for NA), then a block
+ *         of the NUL-terminated UTF-8 strings (NA is written as "").
+ *
+ * Missing-value warnings of nested values are collected (see
+ * hasMissingLogicalValues and hasMissingRawValues) so that R can raise them.
+ */
+
+import static org.fgilbert.jdx.Rdata.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import org.fgilbert.jdx.JavaToR.RdataExceptionCode;
+
+public final class MappedFileWriter {
+
+	private static final byte[] MAGIC = "JDXMAP01".getBytes(StandardCharsets.US_ASCII);
+	private static final int LAYOUT_VERSION = 1;
+	private static final int WINDOW_SIZE = 1 << 26;
+
+	// See unmap.
+	private static final Object UNSAFE;
+	private static final Method UNMAPPER;
+
+	static {
+		Object unsafe = null;
+		Method unmapper = null;
+		try {
+			Class<?> cls = Class.forName("sun.misc.Unsafe");
+			Field field = cls.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafe = field.get(null);
+			unmapper = cls.getMethod("invokeCleaner", ByteBuffer.class);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			try {
+				unmapper = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+			} catch (ReflectiveOperationException | RuntimeException e2) {
+				unmapper = null;
+			}
+		}
+		UNSAFE = unsafe;
+		UNMAPPER = unmapper;
+	}
+
+	private FileChannel channel;
+	private RandomAccessFile file;
+	private boolean missingLogicalValues;
+	private boolean missingRawValues;
+	private MappedByteBuffer window;
+	private long windowStart;
+
+	public MappedFileWriter() {
+	}
+
+	/*
+	 * Returns the UTF-8 encoding of `s`, or null if `s` is null (NA).
+	 */
+	static byte[] encode(String s) {
+		if (s == null)
+			return null;
+		if (s.indexOf('\0') >= 0)
+			throw new RuntimeException("Strings containing NUL characters cannot be converted to R.");
+		return s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * Maps a new window at the current position if fewer than `count` bytes
+	 * remain in the current one.
+	 */
+	private void ensureRemaining(int count) throws IOException {
+		if (this.window != null && this.window.remaining() >= count)
+			return;
+		long position = getPosition();
+		unmap(this.window);
+		this.window = null;
+		this.window = this.channel.map(FileChannel.MapMode.READ_WRITE, position, Math.max(WINDOW_SIZE, count));
+		this.window.order(ByteOrder.nativeOrder());
+		this.windowStart = position;
+	}
+
+	private long getPosition() {
+		return (this.window == null) ? 0 : this.windowStart + this.window.position();
+	}
+
+	/*
+	 * Writes the remaining header fields and truncates the file to the length
+	 * written. Returns the length.
+	 */
+	long finish() throws IOException {
+		long length = getPosition();
+		// Mapping extends the file by whole windows. The file cannot be
+		// truncated while it is mapped on some platforms (e.g. Windows).
+		unmap(this.window);
+		this.window = null;
+		this.channel.truncate(length);
+		ByteBuffer b = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder());
+		b.putLong(0, length);
+		this.channel.write(b, 16);
+		return length;
+	}
+
+	public boolean hasMissingLogicalValues() {
+		return missingLogicalValues;
+	}
+
+	public boolean hasMissingRawValues() {
+		return missingRawValues;
+	}
+
+	/*
+	 * Creates (or replaces) the file `path` and writes the header. The methods
+	 * below are used directly by SpillFile to stream values that are not held
+	 * in memory; the root node must be followed by finish and release.
+	 */
+	void open(String path) throws IOException {
+		this.file = new RandomAccessFile(path, "rw");
+		this.channel = this.file.getChannel();
+		this.channel.truncate(0);
+		this.window = null;
+		ensureRemaining(24);
+		this.window.put(MAGIC);
+		this.window.putInt(1);
+		this.window.putInt(LAYOUT_VERSION);
+		this.window.putLong(0);
+	}
+
+	/*
+	 * Ends a block.
+	 */
+	void pad() throws IOException {
+		int n = (int) (-getPosition() & 7);
+		ensureRemaining(n);
+		for (int i = 0; i < n; i++)
+			this.window.put((byte) 0);
+	}
+
+	void putByte(byte value) throws IOException {
+		ensureRemaining(1);
+		this.window.put(value);
+	}
+
+	void putDouble(double value) throws IOException {
+		ensureRemaining(8);
+		this.window.putDouble(value);
+	}
+
+	void putInt(int value) throws IOException {
+		ensureRemaining(4);
+		this.window.putInt(value);
+	}
+
+	/*
+	 * Writes `a` followed by a NUL byte; a is an encoded string (see encode).
+	 */
+	void putString(byte[] a) throws IOException {
+		if (a != null) {
+			int offset = 0;
+			while (offset < a.length) {
+				ensureRemaining(1);
+				int n = Math.min(this.window.remaining(), a.length - offset);
+				this.window.put(a, offset, n);
+				offset += n;
+			}
+		}
+		ensureRemaining(1);
+		this.window.put((byte) 0);
+	}
+
+	void release() throws IOException {
+		this.channel = null;
+		unmap(this.window);
+		this.window = null;
+		RandomAccessFile f = this.file;
+		this.file = null;
+		if (f != null)
+			f.close();
+	}
+
+	/*
+	 * Releases the mapping of `buffer` now instead of when the buffer is
+	 * garbage collected; otherwise, every window would keep the file open
+	 * (and undeletable on Windows) until then. There is no public API for
+	 * this, so the JDK cleaner is called reflectively (Unsafe.invokeCleaner
+	 * in Java 9 and later, DirectBuffer.cleaner in Java 8). If neither is
+	 * available, the mapping is left to the garbage collector. `buffer` must
+	 * not be used afterwards.
+	 */
+	private static void unmap(MappedByteBuffer buffer) {
+		if (buffer == null || UNMAPPER == null)
+			return;
+		try {
+			if (UNMAPPER.getName().equals("invokeCleaner")) {
+				UNMAPPER.invoke(UNSAFE, buffer);
+			} else {
+				Object cleaner = UNMAPPER.invoke(buffer);
+				if (cleaner != null)
+					cleaner.getClass().getMethod("clean").invoke(cleaner);
+			}
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// Left to the garbage collector.
+		}
+	}
+
+	/*
+	 * Writes the value of `j2r` (which must be initialized) to `path` and
+	 * returns the length of the file. An existing file is replaced.
+	 */
+	public long write(JavaToR j2r, String path) throws IOException {
+		this.missingLogicalValues = false;
+		this.missingRawValues = false;
+		open(path);
+		try {
+			writeValue(j2r.getRdataCompositeCode(), j2r.getValueObject());
+			return finish();
+		} finally {
+			release();
+		}
+	}
+
+	private void writeBooleans(boolean[] a) throws IOException {
+		for (int i = 0; i < a.length; i++) {
+			ensureRemaining(4);
+			this.window.putInt(a[i] ? 1 : 0);
+		}
+		pad();
+	}
+
+	private void writeBytes(byte[] a) throws IOException {
+		int offset = 0;
+		while (offset < a.length) {
+			ensureRemaining(1);
+			int n = Math.min(this.window.remaining(), a.length - offset);
+			this.window.put(a, offset, n);
+			offset += n;
+		}
+		pad();
+	}
+
+	private void writeDoubles(double[] a) throws IOException {
+		int offset = 0;
+		while (offset < a.length) {
+			ensureRemaining(8);
+			int n = Math.min(this.window.remaining() / 8, a.length - offset);
+			this.window.asDoubleBuffer().put(a, offset, n);
+			this.window.position(this.window.position() + 8 * n);
+			offset += n;
+		}
+		pad();
+	}
+
+	void writeHeader(int code, int n) throws IOException {
+		ensureRemaining(8);
+		this.window.putInt(code);
+		this.window.putInt(n);
+	}
+
+	void writeInts(int[] a) throws IOException {
+		int offset = 0;
+		while (offset < a.length) {
+			ensureRemaining(4);
+			int n = Math.min(this.window.remaining() / 4, a.length - offset);
+			this.window.asIntBuffer().put(a, offset, n);
+			this.window.position(this.window.position() + 4 * n);
+			offset += n;
+		}
+		pad();
+	}
+
+	void writeStrings(String[] a) throws IOException {
+		byte[][] encoded = new byte[a.length][];
+		int[] lengths = new int[a.length];
+		for (int i = 0; i < a.length; i++) {
+			encoded[i] = encode(a[i]);
+			lengths[i] = (encoded[i] == null) ? -1 : encoded[i].length;
+		}
+		writeInts(lengths);
+		for (int i = 0; i < a.length; i++)
+			putString(encoded[i]);
+		pad();
+	}
+
+	private void writeValue(int code, Object value) throws IOException {
+		int type = code & 0xFF;
+		int structure = code & 0xFF00;
+		int exception = code & 0xFF0000;
+		if (exception == RdataExceptionCode.EXCEPTION.value)
+			throw new RuntimeException(String.valueOf(value));
+		if (exception == RdataExceptionCode.WARNING_MISSING_LOGICAL_VALUES.value)
+			this.missingLogicalValues = true;
+		else if (exception == RdataExceptionCode.WARNING_MISSING_RAW_VALUES.value)
+			this.missingRawValues = true;
+		code &= 0xFFFF;
+		if (type == TC_NULL) {
+			writeHeader(code, 0);
+			return;
+		}
+		Object[] a;
+		switch (structure) {
+		case SC_SCALAR:
+			writeHeader(code, 1);
+			switch (type) {
+			case TC_NUMERIC:
+				writeDoubles(new double[] {((Number) value).doubleValue()});
+				break;
+			case TC_INTEGER:
+				writeInts(new int[] {((Number) value).intValue()});
+				break;
+			case TC_CHARACTER:
+				writeStrings(new String[] {(value == null) ? null : value.toString()});
+				break;
+			case TC_LOGICAL:
+				writeBooleans(new boolean[] {(Boolean) value});
+				break;
+			case TC_RAW:
+				writeBytes(new byte[] {(Byte) value});
+				break;
+			default:
+				throw new RuntimeException(String.format("The R type code 0x%X is not supported.", type));
+			}
+			break;
+		case SC_VECTOR:
+			writeHeader(code, Array.getLength(value));
+			writeVector(type, value);
+			break;
+		case SC_ND_ARRAY:
+			a = (Object[]) value;
+			int[] dimensions = (int[]) a[0];
+			writeHeader(code, dimensions.length);
+			writeInts(dimensions);
+			writeVector(type, a[1]);
+			break;
+		case SC_DATA_FRAME:
+		case SC_LIST:
+		case SC_NAMED_LIST:
+			a = (Object[]) value;
+			int[] types = (int[]) a[0];
+			Object[] objects = (Object[]) a[1];
+			writeHeader(code, types.length);
+			if (structure != SC_LIST)
+				writeStrings((types.length == 0) ? new String[0] : (String[]) a[2]);
+			for (int i = 0; i < types.length; i++)
+				writeValue(types[i], objects[i]);
+			break;
+		case SC_FACTOR:
+			a = (Object[]) value;
+			int[] codes = (int[]) a[0];
+			writeHeader(code, codes.length);
+			writeInts(new int[] {((Boolean) a[2]) ? 1 : 0});
+			writeInts(codes);
+			writeValue(SC_VECTOR | TC_CHARACTER, a[1]);
+			break;
+		case SC_SPARSE_MATRIX:
+			a = (Object[]) value;
+			writeHeader(code, 0);
+			writeValue(SC_VECTOR | TC_INTEGER, a[0]);
+			writeValue(SC_VECTOR | TC_INTEGER, a[1]);
+			writeValue(SC_VECTOR | TC_INTEGER, a[2]);
+			writeValue(SC_VECTOR | TC_NUMERIC, a[3]);
+			break;
+		case SC_MAPPED_FILE:
+			writeSpilledValue((String) value);
+			break;
+		default:
+			throw new RuntimeException(String.format("The R data code 0x%X is not supported.", code));
+		}
+	}
+
+	/*
+	 * Copies the root node of a file written by SpillFile (see
+	 * JavaToR.setMemoryBudget) and deletes the file.
+	 */
+	private void writeSpilledValue(String path) throws IOException {
+		try (RandomAccessFile f = new RandomAccessFile(path, "r")) {
+			FileChannel source = f.getChannel();
+			long position = 24;
+			long length = source.size();
+			while (position < length) {
+				ensureRemaining(8);
+				int n = (int) Math.min(this.window.remaining(), length - position);
+				ByteBuffer b = this.window.slice();
+				b.limit(n);
+				while (b.hasRemaining())
+					position += source.read(b, position);
+				this.window.position(this.window.position() + n);
+			}
+		}
+		new File(path).delete();
+	}
+
+	private void writeVector(int type, Object value) throws IOException {
+		switch (type) {
+		case TC_NUMERIC:
+			writeDoubles((double[]) value);
+			break;
+		case TC_INTEGER:
+			writeInts((int[]) value);
+			break;
+		case TC_CHARACTER:
+			writeStrings((String[]) value);
+			break;
+		case TC_LOGICAL:
+			// Table columns with NA values are in R's integer encoding.
+			if (value instanceof int[])
+				writeInts((int[]) value);
+			else
+				writeBooleans((boolean[]) value);
+			break;
+		case TC_RAW:
+			writeBytes((byte[]) value);
+			break;
+		default:
+			throw new RuntimeException(String.format("The R type code 0x%X is not supported.", type));
+		}
+	}
+
+}
@@ -0,0 +1,372 @@
+package org.fgilbert.jdx;
+
+/*
+ * A strided, n-dimensional view over a flat array. This is an alternative to
+ * the jagged Java arrays created by Utility.createNdimensionalArray*: the R
+ * vector backing an R array is used as is, and array order is handled by
+ * stride arithmetic instead of copying. See Utility.createNdArray.
+ *
+ * Indices are given in the order specified by the ArrayOrder used to create
+ * the view, exactly as they would be for the corresponding jagged array. For
+ * example, for an R matrix with 2 rows and 3 columns:
+ *
+ * ROW_MAJOR     shape {2, 3}, index [row][column]
+ * COLUMN_MAJOR  shape {3, 2}, index [column][row]
+ * COLUMN_MINOR  shape {2, 3}, index [row][column] (for n > 2 dimensions, the
+ *               remaining indices are in reverse R order: [.., k, row, column])
+ *
+ * Views created by `create` are backed by an array in R order (the left-most
+ * R index changes the fastest); `createFromRowMajorData` wraps data in C
+ * order. Each axis of the view records the R dimension it corresponds to, so
+ * any view (including slices) can be converted to an R array by JavaToR.
+ * Views that cover their backing array in R order are passed to R without
+ * copying; all others are reordered in a single pass.
+ *
+ * Views are not thread-safe for writes. Setting a value writes to the backing
+ * array, which is shared with all views created from it.
+ */
+
+import java.lang.reflect.Array;
+
+import org.fgilbert.jdx.JavaToR.ArrayOrder;
+
+public final class NdArray {
+
+	private final Object data;
+	private final int offset;
+	private final ArrayOrder order;
+	private final int[] rAxes; // The R dimension corresponding to each axis.
+	private final int[] shape;
+	private final int[] strides;
+
+	private NdArray(Object data, int offset, int[] shape, int[] strides, int[] rAxes, ArrayOrder order) {
+		this.data = data;
+		this.offset = offset;
+		this.shape = shape;
+		this.strides = strides;
+		this.rAxes = rAxes;
+		this.order = order;
+	}
+
+	private void checkAxis(int axis) {
+		if (axis < 0 || axis >= this.shape.length)
+			throw new RuntimeException(String.format("Axis %d does not exist in an array with %d dimensions.", axis, this.shape.length));
+	}
+
+	private static void checkData(Object data, int size) {
+		if (data == null || !data.getClass().isArray() || !data.getClass().getComponentType().isPrimitive() && data.getClass().getComponentType() != String.class)
+			throw new RuntimeException("NdArray requires a one-dimensional array of a primitive type or String.");
+		if (size != Array.getLength(data))
+			throw new RuntimeException(String.format("The dimensions do not match the data length %d.", Array.getLength(data)));
+	}
+
+	private static int checkDimensions(int[] dimensions) {
+		int size = 1;
+		for (int i = 0; i < dimensions.length; i++) {
+			if (dimensions[i] < 0)
+				throw new RuntimeException("Dimensions must be zero or greater.");
+			size *= dimensions[i];
+		}
+		return size;
+	}
+
+	/*
+	 * Creates a view of `data`, a flat array (double[], int[], String[],
+	 * boolean[], or byte[]) in R order with R dimensions `dimensions`. The
+	 * data are not copied.
+	 */
+	public static NdArray create(Object data, int[] dimensions, ArrayOrder order) {
+		checkData(data, checkDimensions(dimensions));
+		int n = dimensions.length;
+		int[] rStrides = new int[n];
+		for (int i = 0, stride = 1; i < n; i++) {
+			rStrides[i] = stride;
+			stride *= dimensions[i];
+		}
+		int[] rAxes = new int[n];
+		switch (order) {
+		case ROW_MAJOR:
+			for (int i = 0; i < n; i++)
+				rAxes[i] = i;
+			break;
+		case COLUMN_MAJOR:
+			for (int i = 0; i < n; i++)
+				rAxes[i] = n - 1 - i;
+			break;
+		case COLUMN_MINOR:
+			for (int i = 0; i < n; i++)
+				rAxes[i] = n - 1 - i;
+			if (n > 1) {
+				rAxes[n - 2] = 0;
+				rAxes[n - 1] = 1;
+			}
+			break;
+		}
+		int[] shape = new int[n];
+		int[] strides = new int[n];
+		for (int i = 0; i < n; i++) {
+			shape[i] = dimensions[rAxes[i]];
+			strides[i] = rStrides[rAxes[i]];
+		}
+		return new NdArray(data, 0, shape, strides, rAxes, order);
+	}
+
+	/*
+	 * Creates a view of `data`, a flat array in row-major (C) order where the
+	 * right-most index changes the fastest. This is the layout used by most
+	 * Java numeric libraries. The view is indexed like a ROW_MAJOR view and
+	 * corresponds to an R array with dimensions `shape`. The data are not
+	 * copied, but conversion to R requires one pass to reorder them.
+	 */
+	public static NdArray createFromRowMajorData(Object data, int[] shape) {
+		checkData(data, checkDimensions(shape));
+		int n = shape.length;
+		int[] strides = new int[n];
+		int[] rAxes = new int[n];
+		for (int i = n - 1, stride = 1; i >= 0; i--) {
+			strides[i] = stride;
+			stride *= shape[i];
+			rAxes[i] = i;
+		}
+		return new NdArray(data, 0, shape.clone(), strides, rAxes, ArrayOrder.ROW_MAJOR);
+	}
+
+	/*
+	 * Copies `count` elements starting at `from` with stride `stride` to
+	 * `target` starting at `k`.
+	 */
+	private static void gather(Object source, int from, int stride, int count, Object target, int k) {
+		if (source instanceof double[]) {
+			double[] a = (double[]) source;
+			double[] b = (double[]) target;
+			for (int i = 0; i < count; i++, from += stride)
+				b[k + i] = a[from];
+		} else if (source instanceof int[]) {
+			int[] a = (int[]) source;
+			int[] b = (int[]) target;
+			for (int i = 0; i < count; i++, from += stride)
+				b[k + i] = a[from];
+		} else if (source instanceof String[]) {
+			String[] a = (String[]) source;
+			String[] b = (String[]) target;
+			for (int i = 0; i < count; i++, from += stride)
+				b[k + i] = a[from];
+		} else if (source instanceof boolean[]) {
+			boolean[] a = (boolean[]) source;
+			boolean[] b = (boolean[]) target;
+			for (int i = 0; i < count; i++, from += stride)
+				b[k + i] = a[from];
+		} else if (source instanceof byte[]) {
+			byte[] a = (byte[]) source;
+			byte[] b = (byte[]) target;
+			for (int i = 0; i < count; i++, from += stride)
+				b[k + i] = a[from];
+		} else {
+			for (int i = 0; i < count; i++, from += stride)
+				Array.set(target, k + i, Array.get(source, from));
+		}
+	}
+
+	public boolean getBoolean(int... index) {
+		return ((boolean[]) this.data)[offsetOf(index)];
+	}
+
+	public byte getByte(int... index) {
+		return ((byte[]) this.data)[offsetOf(index)];
+	}
+
+	public Class<?> getComponentType() {
+		return data.getClass().getComponentType();
+	}
+
+	/*
+	 * Returns the backing array. See getOffset and getStrides.
+	 */
+	public Object getData() {
+		return data;
+	}
+
+	public double getDouble(int... index) {
+		return ((double[]) this.data)[offsetOf(index)];
+	}
+
+	public int getInt(int... index) {
+		return ((int[]) this.data)[offsetOf(index)];
+	}
+
+	public int getOffset() {
+		return offset;
+	}
+
+	public ArrayOrder getOrder() {
+		return order;
+	}
+
+	public int getRank() {
+		return shape.length;
+	}
+
+	/*
+	 * Returns the R dimensions of the view (i.e. the shape in R order).
+	 */
+	public int[] getRdimensions() {
+		int[] dimensions = new int[this.shape.length];
+		for (int i = 0; i < this.shape.length; i++)
+			dimensions[this.rAxes[i]] = this.shape[i];
+		return dimensions;
+	}
+
+	public int[] getShape() {
+		return shape.clone();
+	}
+
+	public int getSize() {
+		int size = 1;
+		for (int i = 0; i < this.shape.length; i++)
+			size *= this.shape[i];
+		return size;
+	}
+
+	public int[] getStrides() {
+		return strides.clone();
+	}
+
+	public String getString(int... index) {
+		return ((String[]) this.data)[offsetOf(index)];
+	}
+
+	/*
+	 * Returns true if the view covers the entire backing array in R order, in
+	 * which case the backing array can be passed to R without copying.
+	 */
+	public boolean isRorderContiguous() {
+		if (this.offset != 0 || getSize() != Array.getLength(this.data))
+			return false;
+		int[] rStrides = new int[this.shape.length];
+		int[] dimensions = getRdimensions();
+		int stride = 1;
+		for (int r = 0; r < dimensions.length; r++) {
+			rStrides[r] = stride;
+			stride *= dimensions[r];
+		}
+		for (int i = 0; i < this.shape.length; i++) {
+			if (this.shape[i] > 1 && this.strides[i] != rStrides[this.rAxes[i]])
+				return false;
+		}
+		return true;
+	}
+
+	/*
+	 * Returns the position of the element in the backing array.
+	 */
+	public int offsetOf(int... index) {
+		if (index.length != this.shape.length)
+			throw new RuntimeException(String.format("%d indices are required.", this.shape.length));
+		int position = this.offset;
+		for (int i = 0; i < index.length; i++) {
+			if (index[i] < 0 || index[i] >= this.shape[i])
+				throw new IndexOutOfBoundsException(String.format("Index %d is out of bounds for axis %d with length %d.", index[i], i, this.shape[i]));
+			position += index[i] * this.strides[i];
+		}
+		return position;
+	}
+
+	/*
+	 * Returns a view with one fewer dimension by fixing `axis` at `index`.
+	 */
+	public NdArray select(int axis, int index) {
+		checkAxis(axis);
+		if (index < 0 || index >= this.shape[axis])
+			throw new IndexOutOfBoundsException(String.format("Index %d is out of bounds for axis %d with length %d.", index, axis, this.shape[axis]));
+		int n = this.shape.length - 1;
+		int[] shape = new int[n];
+		int[] strides = new int[n];
+		int[] rAxes = new int[n];
+		for (int i = 0, k = 0; i <= n; i++) {
+			if (i == axis)
+				continue;
+			shape[k] = this.shape[i];
+			strides[k] = this.strides[i];
+			// Renumber the R dimensions to close the gap.
+			rAxes[k] = this.rAxes[i] > this.rAxes[axis] ? this.rAxes[i] - 1 : this.rAxes[i];
+			k++;
+		}
+		return new NdArray(this.data, this.offset + index * this.strides[axis], shape, strides, rAxes, this.order);
+	}
+
+	public void setBoolean(boolean value, int... index) {
+		((boolean[]) this.data)[offsetOf(index)] = value;
+	}
+
+	public void setByte(byte value, int... index) {
+		((byte[]) this.data)[offsetOf(index)] = value;
+	}
+
+	public void setDouble(double value, int... index) {
+		((double[]) this.data)[offsetOf(index)] = value;
+	}
+
+	public void setInt(int value, int... index) {
+		((int[]) this.data)[offsetOf(index)] = value;
+	}
+
+	public void setString(String value, int... index) {
+		((String[]) this.data)[offsetOf(index)] = value;
+	}
+
+	/*
+	 * Returns a view of indices [from, to) along `axis` without copying.
+	 */
+	public NdArray slice(int axis, int from, int to) {
+		checkAxis(axis);
+		if (from < 0 || to > this.shape[axis] || from > to)
+			throw new RuntimeException(String.format("The slice [%d, %d) is out of bounds for axis %d with length %d.", from, to, axis, this.shape[axis]));
+		int[] shape = this.shape.clone();
+		shape[axis] = to - from;
+		return new NdArray(this.data, this.offset + from * this.strides[axis], shape, this.strides, this.rAxes, this.order);
+	}
+
+	/*
+	 * Returns the values in R order. The backing array is returned if the
+	 * view covers it exactly in R order (do not modify it); otherwise, the
+	 * values are gathered into a new array.
+	 */
+	public Object toRorderArray() {
+		if (isRorderContiguous())
+			return this.data;
+		int size = getSize();
+		Object result = Array.newInstance(this.data.getClass().getComponentType(), size);
+		if (size == 0)
+			return result;
+		int n = this.shape.length;
+		if (n == 0) {
+			gather(this.data, this.offset, 0, 1, result, 0);
+			return result;
+		}
+		/*
+		 * Copy runs along the axis for R dimension 0, which changes the
+		 * fastest in R order, and step through the remaining axes in R order.
+		 */
+		int[] axes = new int[n];
+		for (int i = 0; i < n; i++)
+			axes[this.rAxes[i]] = i;
+		int runLength = this.shape[axes[0]];
+		int runStride = this.strides[axes[0]];
+		int[] index = new int[n];
+		int source = this.offset;
+		for (int k = 0; k < size; k += runLength) {
+			gather(this.data, source, runStride, runLength, result, k);
+			for (int r = 1; r < n; r++) {
+				int axis = axes[r];
+				if (++index[axis] < this.shape[axis]) {
+					source += this.strides[axis];
+					break;
+				}
+				source -= this.strides[axis] * (this.shape[axis] - 1);
+				index[axis] = 0;
+			}
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,230 @@
+package org.fgilbert.jdx;
+
+/*
+ * Selects nodes of a Java object graph composed of maps, collections, and
+ * arrays so that small pieces of a large structure can be converted to R
+ * objects without converting the whole structure. The selected nodes are
+ * converted via JavaToR as usual.
+ *
+ * Paths are composed of the following segments.
+ *
+ * name or .name  - The value of a map key. The name ends at the next '.' or '['.
+ * ['name']       - The value of a map key containing special characters.
+ * [n]            - The nth element (zero-based) of a list, collection, or
+ *                  array. Negative indices count from the end.
+ * * or [*]       - All values of a map or all elements of a collection/array.
+ *
+ * For example: `a.b[3].c`, `results[*].score`, `config['file.name']`.
+ *
+ * A path without wildcards selects a single node, and an exception is thrown
+ * if the node does not exist. A path with wildcards returns a list of all
+ * matches (possibly empty); branches that do not match are skipped.
+ */
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import jdk.nashorn.api.scripting.ScriptObjectMirror;
+
+public class ObjectPath {
+
+	private enum SegmentType {
+		KEY
+		, INDEX
+		, WILDCARD
+	}
+
+	private static class Segment {
+
+		final SegmentType type;
+		final String key;
+		final int index;
+
+		Segment(SegmentType type, String key, int index) {
+			this.type = type;
+			this.key = key;
+			this.index = index;
+		}
+	}
+
+	private final String path;
+	private final Segment[] segments;
+	private final boolean hasWildcard;
+
+	private ObjectPath(String path) {
+		this.path = path;
+		List<Segment> lst = new ArrayList<Segment>();
+		int i = path.startsWith("$") ? 1 : 0;
+		boolean hasWildcard = false;
+		while (i < path.length()) {
+			char c = path.charAt(i);
+			if (c == '[') {
+				int end = path.indexOf(']', i);
+				if (end == -1)
+					throw createSyntaxException("Missing ']'.");
+				String s = path.substring(i + 1, end).trim();
+				if (s.equals("*")) {
+					lst.add(new Segment(SegmentType.WILDCARD, null, 0));
+					hasWildcard = true;
+				} else if (s.length() > 1 && (s.charAt(0) == '\'' || s.charAt(0) == '"') && s.charAt(s.length() - 1) == s.charAt(0)) {
+					lst.add(new Segment(SegmentType.KEY, s.substring(1, s.length() - 1), 0));
+				} else {
+					try {
+						lst.add(new Segment(SegmentType.INDEX, null, Integer.parseInt(s)));
+					} catch (NumberFormatException e) {
+						throw createSyntaxException(String.format("'%s' is not a valid index.", s));
+					}
+				}
+				i = end + 1;
+				continue;
+			}
+			if (c == '.') {
+				i++;
+			} else if (i > (path.startsWith("$") ? 1 : 0)) {
+				throw createSyntaxException(String.format("Unexpected character '%s'.", c));
+			}
+			int start = i;
+			while (i < path.length() && path.charAt(i) != '.' && path.charAt(i) != '[')
+				i++;
+			String name = path.substring(start, i);
+			if (name.isEmpty())
+				throw createSyntaxException("Empty name.");
+			if (name.equals("*")) {
+				lst.add(new Segment(SegmentType.WILDCARD, null, 0));
+				hasWildcard = true;
+			} else {
+				lst.add(new Segment(SegmentType.KEY, name, 0));
+			}
+		}
+		this.segments = lst.toArray(new Segment[lst.size()]);
+		this.hasWildcard = hasWildcard;
+	}
+
+	public static ObjectPath compile(String path) {
+		return new ObjectPath(path);
+	}
+
+	private RuntimeException createMissingNodeException(int segmentIndex) {
+		return new RuntimeException(String.format("The path '%s' does not exist (segment %d).", this.path, segmentIndex + 1));
+	}
+
+	private RuntimeException createSyntaxException(String message) {
+		return new RuntimeException(String.format("Invalid path '%s'. %s", this.path, message));
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public boolean hasWildcard() {
+		return hasWildcard;
+	}
+
+	/*
+	 * Returns the selected node, or a list of matching nodes if the path
+	 * contains wildcards. See the comments at the top of the file.
+	 */
+	public Object select(Object root) {
+		if (this.hasWildcard) {
+			List<Object> matches = new ArrayList<Object>();
+			selectAll(root, 0, matches);
+			return matches;
+		}
+		Object o = root;
+		for (int i = 0; i < this.segments.length; i++) {
+			o = normalize(o);
+			Segment segment = this.segments[i];
+			if (segment.type == SegmentType.KEY) {
+				if (!(o instanceof Map) || !((Map<?, ?>) o).containsKey(segment.key))
+					throw createMissingNodeException(i);
+				o = ((Map<?, ?>) o).get(segment.key);
+			} else {
+				int length = getLength(o);
+				int index = segment.index < 0 ? length + segment.index : segment.index;
+				if (length == -1 || index < 0 || index >= length)
+					throw createMissingNodeException(i);
+				o = getElement(o, index);
+			}
+		}
+		return o;
+	}
+
+	public static Object select(Object root, String path) {
+		return new ObjectPath(path).select(root);
+	}
+
+	private void selectAll(Object o, int segmentIndex, List<Object> matches) {
+		if (segmentIndex == this.segments.length) {
+			matches.add(o);
+			return;
+		}
+		o = normalize(o);
+		Segment segment = this.segments[segmentIndex];
+		switch (segment.type) {
+		case KEY:
+			if (o instanceof Map && ((Map<?, ?>) o).containsKey(segment.key))
+				selectAll(((Map<?, ?>) o).get(segment.key), segmentIndex + 1, matches);
+			break;
+		case INDEX:
+			int length = getLength(o);
+			int index = segment.index < 0 ? length + segment.index : segment.index;
+			if (length != -1 && index >= 0 && index < length)
+				selectAll(getElement(o, index), segmentIndex + 1, matches);
+			break;
+		case WILDCARD:
+			if (o instanceof Map) {
+				for (Object member : ((Map<?, ?>) o).values())
+					selectAll(member, segmentIndex + 1, matches);
+			} else if (o instanceof Collection) {
+				for (Object member : (Collection<?>) o)
+					selectAll(member, segmentIndex + 1, matches);
+			} else if (o != null && o.getClass().isArray()) {
+				int arrayLength = Array.getLength(o);
+				for (int i = 0; i < arrayLength; i++)
+					selectAll(Array.get(o, i), segmentIndex + 1, matches);
+			}
+			break;
+		}
+	}
+
+	/*
+	 * Returns the element at `index` of a collection or array. `index` is
+	 * assumed to be valid.
+	 */
+	private static Object getElement(Object o, int index) {
+		if (o instanceof List)
+			return ((List<?>) o).get(index);
+		if (o instanceof Collection) {
+			Iterator<?> iter = ((Collection<?>) o).iterator();
+			for (int i = 0; i < index; i++)
+				iter.next();
+			return iter.next();
+		}
+		return Array.get(o, index);
+	}
+
+	/*
+	 * Returns the length of a collection or array, or -1 for all other values.
+	 */
+	private static int getLength(Object o) {
+		if (o instanceof Collection)
+			return ((Collection<?>) o).size();
+		if (o != null && o.getClass().isArray())
+			return Array.getLength(o);
+		return -1;
+	}
+
+	/*
+	 * Nashorn JavaScript arrays are maps. Treat them as collections instead.
+	 */
+	private static Object normalize(Object o) {
+		if (o instanceof ScriptObjectMirror && ((ScriptObjectMirror) o).isArray())
+			return ((ScriptObjectMirror) o).values();
+		return o;
+	}
+
+}
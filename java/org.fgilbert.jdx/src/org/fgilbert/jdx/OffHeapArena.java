@@ -0,0 +1,117 @@
+package org.fgilbert.jdx;
+
+/*
+ * An explicitly managed set of off-heap result segments for JavaToR (see
+ * JavaToR.setArena). An arena is a spill target: while it is set, results that
+ * JavaToR would spill to files under a memory budget (see
+ * JavaToR.setMemoryBudget) are spilled to segments of the arena if they are at
+ * least `threshold` bytes. The segments are written and read exactly like
+ * other spill files (see SpillFile); the default directory is /dev/shm (shared
+ * memory) where it exists, so the data never occupy the Java heap or a disk.
+ * The consumer (R or one of the writers) deletes each segment after reading
+ * it.
+ *
+ * Segments are released deterministically: release deletes every segment
+ * allocated since the previous release (e.g. segments of a conversion that
+ * failed before they were read), and close releases the arena for good. The
+ * files are not registered with File.deleteOnExit, which would retain every
+ * path for the life of the JVM.
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+public final class OffHeapArena implements AutoCloseable {
+
+	public static final long DEFAULT_THRESHOLD = 1 << 20;
+
+	private boolean closed;
+	private final File directory;
+	private final List<File> segments = new ArrayList<File>();
+	private final long threshold;
+
+	public OffHeapArena() {
+		this(null, DEFAULT_THRESHOLD);
+	}
+
+	/*
+	 * Creates an arena with segments in `directory`, or in the default
+	 * directory if null. Values smaller than `threshold` bytes stay on the
+	 * heap.
+	 */
+	public OffHeapArena(String directory, long threshold) {
+		if (threshold < 0)
+			throw new RuntimeException("The threshold must be non-negative.");
+		if (directory == null) {
+			File shm = new File("/dev/shm");
+			this.directory = shm.isDirectory() ? shm : new File(System.getProperty("java.io.tmpdir"));
+		} else {
+			this.directory = new File(directory);
+		}
+		this.threshold = threshold;
+	}
+
+	/*
+	 * Creates an empty segment file. See JavaToR.createSpillFile.
+	 */
+	synchronized File allocate() {
+		if (this.closed)
+			throw new RuntimeException("The arena is closed.");
+		File file = SpillFile.createFile(this.directory);
+		this.segments.add(file);
+		return file;
+	}
+
+	@Override
+	public synchronized void close() {
+		release();
+		this.closed = true;
+	}
+
+	/*
+	 * Returns the total size of the segments that have not been deleted.
+	 */
+	public synchronized long getByteCount() {
+		long n = 0;
+		for (File file : this.segments)
+			n += file.length();
+		return n;
+	}
+
+	public String getDirectory() {
+		return directory.getPath();
+	}
+
+	/*
+	 * Returns the number of segments that have not been deleted (by R or by
+	 * release).
+	 */
+	public synchronized int getSegmentCount() {
+		int n = 0;
+		for (File file : this.segments) {
+			if (file.exists())
+				n++;
+		}
+		return n;
+	}
+
+	public long getThreshold() {
+		return threshold;
+	}
+
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	/*
+	 * Deletes the segments allocated since the previous release. The arena
+	 * can be used again afterwards.
+	 */
+	public synchronized void release() {
+		for (File file : this.segments)
+			file.delete();
+		this.segments.clear();
+	}
+
+}
@@ -0,0 +1,46 @@
+package org.fgilbert.jdx;
+
+/*
+ * R's NA values and the codes of JavaToR.RdataTypeCode and
+ * JavaToR.RdataStructureCode as compile-time constants, so the writers and
+ * readers can switch on composite codes (see JavaToR.getRdataCompositeCode).
+ * The enums are defined from these constants; this is the only place the
+ * values are spelled out.
+ */
+
+final class Rdata {
+
+	/*
+	 * These constants are special values in R that are interpreted as NA for
+	 * numeric (i.e. double) and integer types. NA_INT is used to signify NA for
+	 * logical types in R, but Java booleans are bytes. R's NA_real_ is a NaN
+	 * that stores 1954 in the low word; other NaN values are not NA.
+	 */
+	static final int NA_INT = Integer.MIN_VALUE;
+	static final double NA_DOUBLE = Double.longBitsToDouble(0x7ff00000000007a2L);
+	static final int NA_DOUBLE_LOW_WORD = 1954;
+
+	static final int TC_NULL = 0x00;
+	static final int TC_NUMERIC = 0x01;
+	static final int TC_INTEGER = 0x02;
+	static final int TC_CHARACTER = 0x03;
+	static final int TC_LOGICAL = 0x04;
+	static final int TC_RAW = 0x05;
+	static final int TC_OTHER = 0xFE;
+	static final int TC_UNSUPPORTED = 0xFF;
+
+	static final int SC_SCALAR = 0x000;
+	static final int SC_VECTOR = 0x100;
+	static final int SC_ND_ARRAY = 0x200;
+	static final int SC_DATA_FRAME = 0x300;
+	static final int SC_LIST = 0x400;
+	static final int SC_NAMED_LIST = 0x500;
+	static final int SC_SPARSE_MATRIX = 0x600;
+	static final int SC_FACTOR = 0x700;
+	static final int SC_MAPPED_FILE = 0x800;
+	static final int SC_USER_DEFINED = 0xFF00;
+
+	private Rdata() {
+	}
+
+}
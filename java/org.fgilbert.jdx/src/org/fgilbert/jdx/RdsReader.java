@@ -0,0 +1,926 @@
+package org.fgilbert.jdx;
+
+/*
+ * Reads R's serialization format (the output of `serialize(x, NULL)`; the
+ * payload of RDS files) and converts the object to the same Java structures
+ * as the R function convertToJava, so that any R object can be imported with
+ * a single byte[] transfer. Binary (xdr = FALSE, native byte order) and XDR
+ * (big-endian) streams of serialization versions 2 and 3 are supported. ASCII
+ * streams are not.
+ *
+ * Conversion follows convertToJava with scalars.as.objects = TRUE:
+ *
+ * vectors        Length-one vectors become boxed objects (see
+ *                setLengthOneVectorAsArray); other vectors become double[],
+ *                int[], String[], boolean[], or byte[]. The vectors are not
+ *                copied after they are read.
+ * arrays         Arrays with two or more dimensions become n-dimensional Java
+ *                arrays in the requested order (see setArrayOrder) or NdArray
+ *                views (see setArrayView). Tables are arrays.
+ * factors        See setCoerceFactors and setFactorsAsCodes.
+ * data frames    Lists of records, typed objects, a Table, or a map of
+ *                columns. See setDataFrameRecords.
+ * lists          Named lists and environments become maps; other lists
+ *                become lists.
+ * Matrix         dgCMatrix, dgRMatrix, and dgTMatrix objects become
+ *                SparseMatrix objects.
+ *
+ * Logical NA values are converted to false (see hasMissingLogicalValues)
+ * except in Tables, where they are retained. Compact integer and real
+ * sequences (e.g. 1:n), wrapped vectors, and deferred strings (ALTREP
+ * objects) are expanded. Other values (e.g. functions, language objects,
+ * complex vectors, and classes other than those above) raise an exception.
+ *
+ * Instances hold the options and are not thread-safe.
+ */
+
+import static org.fgilbert.jdx.Rdata.*;
+
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.fgilbert.jdx.JavaToR.ArrayOrder;
+
+public final class RdsReader {
+
+	// SEXP types. See R's Rinternals.h and serialize.c.
+	private static final int NILSXP = 0;
+	private static final int SYMSXP = 1;
+	private static final int LISTSXP = 2;
+	private static final int CLOSXP = 3;
+	private static final int ENVSXP = 4;
+	private static final int PROMSXP = 5;
+	private static final int LANGSXP = 6;
+	private static final int CHARSXP = 9;
+	private static final int LGLSXP = 10;
+	private static final int INTSXP = 13;
+	private static final int REALSXP = 14;
+	private static final int CPLXSXP = 15;
+	private static final int STRSXP = 16;
+	private static final int DOTSXP = 17;
+	private static final int VECSXP = 19;
+	private static final int EXPRSXP = 20;
+	private static final int RAWSXP = 24;
+	private static final int S4SXP = 25;
+	private static final int ALTREP_SXP = 238;
+	private static final int ATTRLISTSXP = 239;
+	private static final int ATTRLANGSXP = 240;
+	private static final int BASEENV_SXP = 241;
+	private static final int EMPTYENV_SXP = 242;
+	private static final int GLOBALENV_SXP = 253;
+	private static final int MISSINGARG_SXP = 251;
+	private static final int NAMESPACESXP = 249;
+	private static final int NILVALUE_SXP = 254;
+	private static final int PACKAGESXP = 248;
+	private static final int PERSISTSXP = 247;
+	private static final int BASENAMESPACE_SXP = 250;
+	private static final int REFSXP = 255;
+	private static final int UNBOUNDVALUE_SXP = 252;
+
+	private static final int HAS_ATTRIBUTES = 1 << 9;
+	private static final int HAS_TAG = 1 << 10;
+	private static final int LATIN1_MASK = 1 << 2;
+	private static final int UTF8_MASK = 1 << 3;
+
+	/*
+	 * A deserialized R object. `value` is a primitive array for atomic
+	 * vectors, Node[] for lists and pairlists, a String for symbols, and a
+	 * Map<String, Node> of bindings for environments.
+	 */
+	private static final class Node {
+		Map<String, Node> attributes;
+		boolean converting;
+		String[] tags;
+		final int type;
+		Object value;
+
+		Node(int type, Object value) {
+			this.type = type;
+			this.value = value;
+		}
+
+		Node getAttribute(String name) {
+			return (this.attributes == null) ? null : this.attributes.get(name);
+		}
+
+		String[] getClassAttribute() {
+			Node cls = getAttribute("class");
+			return (cls != null && cls.value instanceof String[]) ? (String[]) cls.value : null;
+		}
+
+		boolean inherits(String name) {
+			String[] classes = getClassAttribute();
+			if (classes == null)
+				return false;
+			for (String cls : classes) {
+				if (name.equals(cls))
+					return true;
+			}
+			return false;
+		}
+	}
+
+	private static final Node NULL_NODE = new Node(NILSXP, null);
+
+	private ArrayOrder arrayOrder = ArrayOrder.ROW_MAJOR;
+	private boolean arrayView;
+	private ByteBuffer buffer;
+	private boolean coerceFactors = true;
+	private Class<?> dataFrameClass;
+	private String dataFrameRecords = "mutable";
+	private boolean dataFrameRowMajor = true;
+	private boolean dataFrameTable;
+	private StringDeduplicator deduplicator;
+	private boolean factorsAsCodes;
+	private boolean lengthOneVectorAsArray;
+	private boolean missingLogicalValues;
+	private Charset nativeEncoding = StandardCharsets.UTF_8;
+	private List<Node> references;
+
+	public RdsReader() {
+	}
+
+	private Object convert(Node node, boolean lengthOneVectorAsArray) {
+		switch (node.type) {
+		case NILSXP:
+			return null;
+		case LGLSXP:
+		case INTSXP:
+		case REALSXP:
+		case STRSXP:
+		case RAWSXP:
+			return convertAtomic(node, lengthOneVectorAsArray);
+		case VECSXP:
+		case EXPRSXP:
+			if (node.inherits("data.frame"))
+				return convertDataFrame(node);
+			if (node.inherits("POSIXlt"))
+				throw unsupported(node);
+			return convertList((Node[]) node.value, getNames(node), lengthOneVectorAsArray);
+		case ENVSXP:
+			return convertEnvironment(node, lengthOneVectorAsArray);
+		case S4SXP:
+			return convertS4(node);
+		case CPLXSXP:
+			throw new RuntimeException("Values of class 'complex' are not supported.");
+		default:
+			throw unsupported(node);
+		}
+	}
+
+	/*
+	 * Converts vectors, arrays, and factors.
+	 */
+	private Object convertAtomic(Node node, boolean lengthOneVectorAsArray) {
+		String[] classes = node.getClassAttribute();
+		if (classes != null) {
+			if (node.inherits("factor"))
+				return convertFactor(node, lengthOneVectorAsArray || node.inherits("AsIs"));
+			if (node.inherits("AsIs"))
+				lengthOneVectorAsArray = true;
+			else if (!node.inherits("table") || node.getAttribute("dim") == null)
+				throw unsupported(node);
+		}
+		Object data = node.value;
+		if (node.type == LGLSXP)
+			data = toBooleanArray((int[]) data, false);
+		Node dim = node.getAttribute("dim");
+		if (dim != null && ((int[]) dim.value).length > 1)
+			return createArray(data, (int[]) dim.value);
+		return convertVector(data, lengthOneVectorAsArray);
+	}
+
+	/*
+	 * Same as convertToJava for data frames. Columns are converted with
+	 * length.one.vector.as.array = TRUE.
+	 */
+	private Object convertDataFrame(Node node) {
+		Node[] elements = (Node[]) node.value;
+		String[] names = getNames(node);
+		if (names == null)
+			names = new String[0];
+		if (elements.length > 0)
+			validateNames(names);
+		Object[] columns = new Object[elements.length];
+		Object[] missingRows = new Object[elements.length];
+		for (int j = 0; j < elements.length; j++) {
+			Node column = elements[j];
+			if (this.dataFrameTable && column.type == LGLSXP && column.getClassAttribute() == null) {
+				// Logical NA values are passed to the Table separately so that
+				// they are retained.
+				int[] a = (int[]) column.value;
+				missingRows[j] = getMissingRows(a);
+				columns[j] = toBooleanArray(a, true);
+			} else {
+				columns[j] = convert(column, true);
+			}
+		}
+		if (this.dataFrameTable)
+			return Utility.createTable(names, columns, missingRows);
+		if (this.dataFrameClass != null)
+			return Utility.createListOfObjects(names, columns, this.dataFrameClass);
+		if (this.dataFrameRowMajor) {
+			switch (this.dataFrameRecords) {
+			case "compact":
+				return Utility.createListOfCompactRecords(names, columns);
+			case "view":
+				return Utility.createListOfRecordsView(names, columns);
+			default:
+				return Utility.createListOfRecords(names, columns);
+			}
+		}
+		return Utility.createMap(names, columns);
+	}
+
+	/*
+	 * Environments are converted to maps of their bindings. As for
+	 * as.list(environment), names starting with a dot are skipped.
+	 */
+	private Object convertEnvironment(Node node, boolean lengthOneVectorAsArray) {
+		@SuppressWarnings("unchecked")
+		Map<String, Node> bindings = (Map<String, Node>) node.value;
+		if (bindings == null)
+			throw new RuntimeException("Special environments (e.g. the global environment) are not supported.");
+		if (node.converting)
+			throw new RuntimeException("Environments that contain themselves are not supported.");
+		List<String> names = new ArrayList<String>(bindings.size());
+		List<Node> values = new ArrayList<Node>(bindings.size());
+		for (Map.Entry<String, Node> binding : bindings.entrySet()) {
+			if (binding.getKey().startsWith("."))
+				continue;
+			names.add(binding.getKey());
+			values.add(binding.getValue());
+		}
+		node.converting = true;
+		try {
+			return convertList(values.toArray(new Node[values.size()]), names.toArray(new String[names.size()]), lengthOneVectorAsArray);
+		} finally {
+			node.converting = false;
+		}
+	}
+
+	/*
+	 * Same as convertToJava for factors: factorsAsCodes takes precedence over
+	 * coerceFactors, which converts the levels to integer, numeric, or
+	 * logical values where possible (see StringCoercion).
+	 */
+	private Object convertFactor(Node node, boolean lengthOneVectorAsArray) {
+		int[] codes = (int[]) node.value;
+		Node levelsNode = node.getAttribute("levels");
+		String[] levels = (levelsNode == null || !(levelsNode.value instanceof String[])) ? new String[0] : (String[]) levelsNode.value;
+		if (this.factorsAsCodes)
+			return new Factor(codes, levels, node.inherits("ordered"));
+		Object coerced = this.coerceFactors ? StringCoercion.coerce(levels) : levels;
+		int n = codes.length;
+		Object data;
+		if (coerced instanceof int[]) {
+			int[] source = (int[]) coerced;
+			int[] a = new int[n];
+			for (int i = 0; i < n; i++)
+				a[i] = (codes[i] == NA_INT) ? NA_INT : source[codes[i] - 1];
+			data = a;
+		} else if (coerced instanceof double[]) {
+			double[] source = (double[]) coerced;
+			double[] a = new double[n];
+			for (int i = 0; i < n; i++)
+				a[i] = (codes[i] == NA_INT) ? NA_DOUBLE : source[codes[i] - 1];
+			data = a;
+		} else if (coerced instanceof boolean[]) {
+			boolean[] source = (boolean[]) coerced;
+			boolean[] a = new boolean[n];
+			for (int i = 0; i < n; i++) {
+				if (codes[i] == NA_INT)
+					this.missingLogicalValues = true;
+				else
+					a[i] = source[codes[i] - 1];
+			}
+			data = a;
+		} else {
+			String[] a = new String[n];
+			for (int i = 0; i < n; i++) {
+				if (codes[i] != NA_INT)
+					a[i] = levels[codes[i] - 1];
+			}
+			data = a;
+		}
+		return convertVector(data, lengthOneVectorAsArray);
+	}
+
+	/*
+	 * Elements are converted with scalars as objects.
+	 */
+	private Object convertList(Node[] elements, String[] names, boolean lengthOneVectorAsArray) {
+		Object[] values = new Object[elements.length];
+		for (int k = 0; k < elements.length; k++)
+			values[k] = convert(elements[k], lengthOneVectorAsArray);
+		if (names == null)
+			return Utility.createList(values);
+		if (elements.length > 0)
+			validateNames(names);
+		return Utility.createMap(names, values);
+	}
+
+	private Object convertS4(Node node) {
+		if (node.inherits("dgCMatrix"))
+			return Utility.createSparseMatrixCsc(getSlot(node, "Dim", int[].class), getSlot(node, "i", int[].class), getSlot(node, "p", int[].class), getSlot(node, "x", double[].class));
+		if (node.inherits("dgRMatrix"))
+			return Utility.createSparseMatrixCsr(getSlot(node, "Dim", int[].class), getSlot(node, "j", int[].class), getSlot(node, "p", int[].class), getSlot(node, "x", double[].class));
+		if (node.inherits("dgTMatrix"))
+			return Utility.createSparseMatrixCoo(getSlot(node, "Dim", int[].class), getSlot(node, "i", int[].class), getSlot(node, "j", int[].class), getSlot(node, "x", double[].class));
+		throw unsupported(node);
+	}
+
+	private Object convertVector(Object data, boolean lengthOneVectorAsArray) {
+		if (this.deduplicator != null && data instanceof String[])
+			this.deduplicator.deduplicate((String[]) data);
+		if (lengthOneVectorAsArray || Array.getLength(data) != 1)
+			return data;
+		if (data instanceof double[])
+			return ((double[]) data)[0];
+		if (data instanceof int[])
+			return ((int[]) data)[0];
+		if (data instanceof String[])
+			return ((String[]) data)[0];
+		if (data instanceof boolean[])
+			return ((boolean[]) data)[0];
+		return ((byte[]) data)[0];
+	}
+
+	/*
+	 * Same as convertToJava for arrays. `dimensions` are R dimensions.
+	 */
+	private Object createArray(Object data, int[] dimensions) {
+		if (this.deduplicator != null && data instanceof String[])
+			this.deduplicator.deduplicate((String[]) data);
+		if (this.arrayView)
+			return NdArray.create(data, dimensions, this.arrayOrder);
+		if (this.arrayOrder == ArrayOrder.ROW_MAJOR) {
+			int[] d = dimensions;
+			if (data instanceof double[])
+				return Utility.createNdimensionalArrayRowMajor((double[]) data, d);
+			if (data instanceof int[])
+				return Utility.createNdimensionalArrayRowMajor((int[]) data, d);
+			if (data instanceof String[])
+				return Utility.createNdimensionalArrayRowMajor((String[]) data, d);
+			if (data instanceof boolean[])
+				return Utility.createNdimensionalArrayRowMajor((boolean[]) data, d);
+			return Utility.createNdimensionalArrayRowMajor((byte[]) data, d);
+		}
+		int[] d = new int[dimensions.length];
+		for (int k = 0; k < d.length; k++)
+			d[k] = dimensions[d.length - 1 - k];
+		if (this.arrayOrder == ArrayOrder.COLUMN_MAJOR) {
+			if (data instanceof double[])
+				return Utility.createNdimensionalArrayColumnMajor((double[]) data, d);
+			if (data instanceof int[])
+				return Utility.createNdimensionalArrayColumnMajor((int[]) data, d);
+			if (data instanceof String[])
+				return Utility.createNdimensionalArrayColumnMajor((String[]) data, d);
+			if (data instanceof boolean[])
+				return Utility.createNdimensionalArrayColumnMajor((boolean[]) data, d);
+			return Utility.createNdimensionalArrayColumnMajor((byte[]) data, d);
+		}
+		// Column-minor: swap the row and column dimensions.
+		int rowCount = d[d.length - 1];
+		d[d.length - 1] = d[d.length - 2];
+		d[d.length - 2] = rowCount;
+		if (data instanceof double[])
+			return Utility.createNdimensionalArrayColumnMinor((double[]) data, d);
+		if (data instanceof int[])
+			return Utility.createNdimensionalArrayColumnMinor((int[]) data, d);
+		if (data instanceof String[])
+			return Utility.createNdimensionalArrayColumnMinor((String[]) data, d);
+		if (data instanceof boolean[])
+			return Utility.createNdimensionalArrayColumnMinor((boolean[]) data, d);
+		return Utility.createNdimensionalArrayColumnMinor((byte[]) data, d);
+	}
+
+	/*
+	 * Expands ALTREP objects serialized in compact form. `info` is a pairlist
+	 * of the class name, package name, and type.
+	 */
+	private Node expandAltrep(Node info, Node state) {
+		String cls = (String) ((Node[]) info.value)[0].value;
+		switch (cls) {
+		case "compact_intseq": {
+			double[] s = (double[]) state.value;
+			int n = (int) s[0];
+			int start = (int) s[1];
+			int increment = (int) s[2];
+			int[] a = new int[n];
+			for (int i = 0; i < n; i++)
+				a[i] = start + i * increment;
+			return new Node(INTSXP, a);
+		}
+		case "compact_realseq": {
+			double[] s = (double[]) state.value;
+			int n = (int) s[0];
+			double[] a = new double[n];
+			for (int i = 0; i < n; i++)
+				a[i] = s[1] + i * s[2];
+			return new Node(REALSXP, a);
+		}
+		case "deferred_string": {
+			// The state is a pairlist of the integer or numeric vector and
+			// scalar formatting information.
+			Node source = ((Node[]) state.value)[0];
+			String[] a;
+			if (source.value instanceof int[]) {
+				int[] values = (int[]) source.value;
+				a = new String[values.length];
+				for (int i = 0; i < a.length; i++)
+					a[i] = (values[i] == NA_INT) ? null : Integer.toString(values[i]);
+			} else {
+				double[] values = (double[]) source.value;
+				a = new String[values.length];
+				for (int i = 0; i < a.length; i++)
+					a[i] = formatDouble(values[i]);
+			}
+			return new Node(STRSXP, a);
+		}
+		default:
+			if (cls.startsWith("wrap_")) {
+				// The state is a pairlist of the wrapped vector and metadata.
+				return ((Node[]) state.value)[0];
+			}
+			throw new RuntimeException(String.format("The ALTREP class '%s' is not supported.", cls));
+		}
+	}
+
+	/*
+	 * Formats a double as as.character does (15 significant digits, fixed or
+	 * scientific notation, whichever is shorter). NA is returned as null.
+	 */
+	private static String formatDouble(double value) {
+		if (Double.isNaN(value))
+			return (Double.doubleToRawLongBits(value) == Double.doubleToRawLongBits(NA_DOUBLE)) ? null : "NaN";
+		if (Double.isInfinite(value))
+			return (value > 0) ? "Inf" : "-Inf";
+		if (value == 0)
+			return "0";
+		BigDecimal d = new BigDecimal(value).round(new MathContext(15)).stripTrailingZeros();
+		String fixed = d.toPlainString();
+		String unscaled = d.unscaledValue().abs().toString();
+		int exponent = unscaled.length() - 1 - d.scale();
+		StringBuilder sb = new StringBuilder();
+		if (d.signum() < 0)
+			sb.append('-');
+		sb.append(unscaled.charAt(0));
+		if (unscaled.length() > 1)
+			sb.append('.').append(unscaled, 1, unscaled.length());
+		sb.append('e').append(exponent < 0 ? '-' : '+');
+		if (Math.abs(exponent) < 10)
+			sb.append('0');
+		sb.append(Math.abs(exponent));
+		return (fixed.length() <= sb.length()) ? fixed : sb.toString();
+	}
+
+	private static int[] getMissingRows(int[] a) {
+		int count = 0;
+		for (int i = 0; i < a.length; i++) {
+			if (a[i] == NA_INT)
+				count++;
+		}
+		int[] rows = new int[count];
+		for (int i = 0, k = 0; k < count; i++) {
+			if (a[i] == NA_INT)
+				rows[k++] = i;
+		}
+		return rows;
+	}
+
+	private static String[] getNames(Node node) {
+		Node names = node.getAttribute("names");
+		return (names == null) ? null : (String[]) names.value;
+	}
+
+	private static <T> T getSlot(Node node, String name, Class<T> cls) {
+		Node slot = node.getAttribute(name);
+		if (slot == null || !cls.isInstance(slot.value))
+			throw new RuntimeException(String.format("The slot '%s' is missing or invalid.", name));
+		return cls.cast(slot.value);
+	}
+
+	/*
+	 * Returns true if logical NA values were converted to false by the last
+	 * call to read. The R package raises a warning.
+	 */
+	public boolean hasMissingLogicalValues() {
+		return missingLogicalValues;
+	}
+
+	/*
+	 * Reads and converts the serialized object in `data`.
+	 */
+	public Object read(byte[] data) {
+		this.missingLogicalValues = false;
+		this.references = new ArrayList<Node>();
+		this.buffer = ByteBuffer.wrap(data);
+		try {
+			readHeader();
+			Node node = readItem();
+			return convert(node, this.lengthOneVectorAsArray);
+		} finally {
+			this.buffer = null;
+			this.references = null;
+		}
+	}
+
+	private double[] readDoubles(int n) {
+		double[] a = new double[n];
+		checkRemaining(n, 8);
+		this.buffer.asDoubleBuffer().get(a);
+		this.buffer.position(this.buffer.position() + n * 8);
+		return a;
+	}
+
+	private void checkRemaining(long count, int size) {
+		if (count * size > this.buffer.remaining())
+			throw new RuntimeException("The serialized data are truncated.");
+	}
+
+	private void readHeader() {
+		if (this.buffer.remaining() < 2)
+			throw new RuntimeException("The serialized data are truncated.");
+		byte format = this.buffer.get();
+		if (this.buffer.get() != '\n')
+			throw new RuntimeException("The data are not in R's serialization format.");
+		switch (format) {
+		case 'X':
+			this.buffer.order(ByteOrder.BIG_ENDIAN);
+			break;
+		case 'B':
+			// Native binary streams are written in the byte order of the
+			// writing machine; R does not record it.
+			this.buffer.order(ByteOrder.nativeOrder());
+			break;
+		case 'A':
+			throw new RuntimeException("ASCII serialization is not supported. Use serialize(x, NULL, xdr = FALSE).");
+		default:
+			throw new RuntimeException("The data are not in R's serialization format.");
+		}
+		int version = readInt();
+		readInt(); // Writer R version.
+		readInt(); // Minimum reader R version.
+		if (version == 3) {
+			String encoding = readString(readInt(), StandardCharsets.US_ASCII);
+			try {
+				this.nativeEncoding = Charset.forName(encoding);
+			} catch (RuntimeException e) {
+				this.nativeEncoding = StandardCharsets.UTF_8;
+			}
+		} else if (version != 2) {
+			throw new RuntimeException(String.format("Serialization version %d is not supported.", version));
+		}
+	}
+
+	private int readInt() {
+		checkRemaining(1, 4);
+		return this.buffer.getInt();
+	}
+
+	private int[] readInts(int n) {
+		int[] a = new int[n];
+		checkRemaining(n, 4);
+		this.buffer.asIntBuffer().get(a);
+		this.buffer.position(this.buffer.position() + n * 4);
+		return a;
+	}
+
+	private Node readItem() {
+		int flags = readInt();
+		int type = flags & 0xFF;
+		boolean hasAttributes = (flags & HAS_ATTRIBUTES) != 0;
+		Node node;
+		switch (type) {
+		case NILVALUE_SXP:
+		case MISSINGARG_SXP:
+		case UNBOUNDVALUE_SXP:
+			return NULL_NODE;
+		case GLOBALENV_SXP:
+		case EMPTYENV_SXP:
+		case BASEENV_SXP:
+		case BASENAMESPACE_SXP:
+			return new Node(ENVSXP, null);
+		case REFSXP: {
+			int index = flags >> 8;
+			if (index == 0)
+				index = readInt();
+			if (index < 1 || index > this.references.size())
+				throw new RuntimeException("The serialized data contain an invalid reference.");
+			return this.references.get(index - 1);
+		}
+		case PERSISTSXP:
+		case NAMESPACESXP:
+		case PACKAGESXP: {
+			// A STRSXP of names identifying the object.
+			if (readInt() != 0)
+				throw new RuntimeException("The serialized data are invalid.");
+			int n = readInt();
+			for (int i = 0; i < n; i++)
+				readItem();
+			node = new Node(ENVSXP, null);
+			this.references.add(node);
+			return node;
+		}
+		case SYMSXP: {
+			Node name = readItem();
+			node = new Node(SYMSXP, name.value);
+			this.references.add(node);
+			return node;
+		}
+		case ENVSXP: {
+			readInt(); // Locked.
+			Map<String, Node> bindings = new LinkedHashMap<String, Node>();
+			node = new Node(ENVSXP, bindings);
+			this.references.add(node);
+			readItem(); // Enclosure.
+			addBindings(bindings, readItem()); // Frame.
+			Node table = readItem(); // Hash table.
+			if (table.value instanceof Node[]) {
+				for (Node chain : (Node[]) table.value)
+					addBindings(bindings, chain);
+			}
+			Node attributes = readItem();
+			if (attributes.type == LISTSXP)
+				node.attributes = toAttributeMap(attributes);
+			return node;
+		}
+		case LISTSXP:
+		case LANGSXP:
+		case CLOSXP:
+		case PROMSXP:
+		case DOTSXP:
+		case ATTRLISTSXP:
+		case ATTRLANGSXP:
+			return readPairlist(flags);
+		case ALTREP_SXP: {
+			Node info = readItem();
+			Node state = readItem();
+			Node attributes = readItem();
+			node = expandAltrep(info, state);
+			if (attributes.type == LISTSXP)
+				node.attributes = toAttributeMap(attributes);
+			return node;
+		}
+		case CHARSXP: {
+			int length = readInt();
+			if (length == -1)
+				return new Node(CHARSXP, null);
+			int levels = flags >> 12;
+			Charset charset = ((levels & UTF8_MASK) != 0) ? StandardCharsets.UTF_8 : ((levels & LATIN1_MASK) != 0) ? StandardCharsets.ISO_8859_1 : this.nativeEncoding;
+			return new Node(CHARSXP, readString(length, charset));
+		}
+		case LGLSXP:
+		case INTSXP:
+			node = new Node(type, readInts(readLength()));
+			break;
+		case REALSXP:
+			node = new Node(type, readDoubles(readLength()));
+			break;
+		case CPLXSXP: {
+			int n = readLength();
+			checkRemaining(n, 16);
+			this.buffer.position(this.buffer.position() + n * 16);
+			node = new Node(type, null);
+			break;
+		}
+		case STRSXP: {
+			int n = readLength();
+			String[] a = new String[n];
+			for (int i = 0; i < n; i++) {
+				int charFlags = readInt();
+				int length = readInt();
+				if (length == -1)
+					continue;
+				int levels = charFlags >> 12;
+				Charset charset = ((levels & UTF8_MASK) != 0) ? StandardCharsets.UTF_8 : ((levels & LATIN1_MASK) != 0) ? StandardCharsets.ISO_8859_1 : this.nativeEncoding;
+				a[i] = readString(length, charset);
+			}
+			node = new Node(type, a);
+			break;
+		}
+		case VECSXP:
+		case EXPRSXP: {
+			int n = readLength();
+			Node[] a = new Node[n];
+			for (int i = 0; i < n; i++)
+				a[i] = readItem();
+			node = new Node(type, a);
+			break;
+		}
+		case RAWSXP: {
+			int n = readLength();
+			checkRemaining(n, 1);
+			byte[] a = new byte[n];
+			this.buffer.get(a);
+			node = new Node(type, a);
+			break;
+		}
+		case S4SXP:
+			node = new Node(type, null);
+			break;
+		default:
+			throw new RuntimeException(String.format("The R type %d is not supported.", type));
+		}
+		if (hasAttributes)
+			node.attributes = toAttributeMap(readItem());
+		return node;
+	}
+
+	private int readLength() {
+		int length = readInt();
+		if (length != -1)
+			return length;
+		long upper = readInt();
+		long lower = readInt() & 0xFFFFFFFFL;
+		long n = (upper << 32) + lower;
+		if (n > Integer.MAX_VALUE - 8)
+			throw new RuntimeException("Long vectors are not supported.");
+		return (int) n;
+	}
+
+	/*
+	 * Reads a pairlist iteratively (pairlists can be long). The elements are
+	 * stored in `value` and the tags in `tags`.
+	 */
+	private Node readPairlist(int flags) {
+		int type = flags & 0xFF;
+		List<Node> values = new ArrayList<Node>();
+		List<String> tags = new ArrayList<String>();
+		Map<String, Node> attributes = null;
+		while (true) {
+			if ((flags & HAS_ATTRIBUTES) != 0) {
+				Map<String, Node> a = toAttributeMap(readItem());
+				if (attributes == null)
+					attributes = a;
+			}
+			String tag = null;
+			if ((flags & HAS_TAG) != 0) {
+				Node t = readItem();
+				if (t.type == SYMSXP)
+					tag = (String) t.value;
+			}
+			tags.add(tag);
+			values.add(readItem());
+			// The CDR is the next cell unless it is the end of the list or a
+			// different kind of item.
+			flags = readInt();
+			int next = flags & 0xFF;
+			if (next == NILVALUE_SXP)
+				break;
+			if (next != type) {
+				this.buffer.position(this.buffer.position() - 4);
+				readItem();
+				break;
+			}
+		}
+		Node node = new Node((type == ATTRLISTSXP) ? LISTSXP : (type == ATTRLANGSXP) ? LANGSXP : type, values.toArray(new Node[values.size()]));
+		node.tags = tags.toArray(new String[tags.size()]);
+		node.attributes = attributes;
+		return node;
+	}
+
+	private String readString(int length, Charset charset) {
+		checkRemaining(length, 1);
+		String s;
+		if (this.buffer.hasArray()) {
+			s = new String(this.buffer.array(), this.buffer.arrayOffset() + this.buffer.position(), length, charset);
+			this.buffer.position(this.buffer.position() + length);
+		} else {
+			byte[] a = new byte[length];
+			this.buffer.get(a);
+			s = new String(a, charset);
+		}
+		return s;
+	}
+
+	private static void addBindings(Map<String, Node> bindings, Node frame) {
+		if (frame.type != LISTSXP)
+			return;
+		Node[] values = (Node[]) frame.value;
+		for (int k = 0; k < values.length; k++) {
+			if (frame.tags[k] != null)
+				bindings.put(frame.tags[k], values[k]);
+		}
+	}
+
+	/*
+	 * See convertToJava.
+	 */
+	public void setArrayOrder(ArrayOrder arrayOrder) {
+		this.arrayOrder = arrayOrder;
+	}
+
+	public void setArrayView(boolean arrayView) {
+		this.arrayView = arrayView;
+	}
+
+	public void setCoerceFactors(boolean coerceFactors) {
+		this.coerceFactors = coerceFactors;
+	}
+
+	/*
+	 * Data frames are converted to lists of `cls` objects. This takes
+	 * precedence over setDataFrameRowMajor and setDataFrameRecords. See
+	 * Utility.createListOfObjects.
+	 */
+	public void setDataFrameClass(Class<?> cls) {
+		this.dataFrameClass = cls;
+	}
+
+	/*
+	 * "mutable", "compact", or "view".
+	 */
+	public void setDataFrameRecords(String dataFrameRecords) {
+		switch (dataFrameRecords) {
+		case "mutable":
+		case "compact":
+		case "view":
+			this.dataFrameRecords = dataFrameRecords;
+			break;
+		default:
+			throw new RuntimeException(String.format("Invalid 'data.frame.records' parameter: '%s'.", dataFrameRecords));
+		}
+	}
+
+	public void setDataFrameRowMajor(boolean dataFrameRowMajor) {
+		this.dataFrameRowMajor = dataFrameRowMajor;
+	}
+
+	/*
+	 * Data frames are converted to Tables. This takes precedence over all
+	 * other data frame options.
+	 */
+	public void setDataFrameTable(boolean dataFrameTable) {
+		this.dataFrameTable = dataFrameTable;
+	}
+
+	/*
+	 * When true, all strings read are deduplicated by one StringDeduplicator
+	 * (see getDeduplicator).
+	 */
+	public void setDeduplicateStrings(boolean deduplicateStrings) {
+		this.deduplicator = deduplicateStrings ? new StringDeduplicator() : null;
+	}
+
+	public void setFactorsAsCodes(boolean factorsAsCodes) {
+		this.factorsAsCodes = factorsAsCodes;
+	}
+
+	public void setLengthOneVectorAsArray(boolean lengthOneVectorAsArray) {
+		this.lengthOneVectorAsArray = lengthOneVectorAsArray;
+	}
+
+	private boolean[] toBooleanArray(int[] a, boolean quiet) {
+		boolean[] b = new boolean[a.length];
+		for (int i = 0; i < a.length; i++) {
+			if (a[i] == NA_INT) {
+				if (!quiet)
+					this.missingLogicalValues = true;
+			} else {
+				b[i] = a[i] != 0;
+			}
+		}
+		return b;
+	}
+
+	private static Map<String, Node> toAttributeMap(Node pairlist) {
+		Map<String, Node> attributes = new LinkedHashMap<String, Node>();
+		if (pairlist.type != LISTSXP)
+			return attributes;
+		Node[] values = (Node[]) pairlist.value;
+		for (int k = 0; k < values.length; k++) {
+			if (pairlist.tags[k] != null)
+				attributes.put(pairlist.tags[k], values[k]);
+		}
+		return attributes;
+	}
+
+	private static RuntimeException unsupported(Node node) {
+		String[] classes = node.getClassAttribute();
+		if (classes != null && classes.length > 0)
+			return new RuntimeException(String.format("Values of class '%s' are not supported.", classes[0]));
+		return new RuntimeException(String.format("The R type %d is not supported.", node.type));
+	}
+
+	private static void validateNames(String[] names) {
+		Set<String> set = new HashSet<String>();
+		for (String name : names) {
+			if (!set.add(name))
+				throw new RuntimeException("Data frames and named lists are required to have unique names for each column or member.");
+		}
+	}
+
+}
@@ -0,0 +1,436 @@
+package org.fgilbert.jdx;
+
+/*
+ * Writes the value of an initialized JavaToR object in R's serialization
+ * format (version 2), so that R can create the whole result with a single
+ * call to `unserialize` (or `readRDS` for files) instead of one rJava call per
+ * node in convertToRlowLevel. The result is the same as convertToRlowLevel
+ * with strings.as.factors = FALSE:
+ *
+ * scalars/vectors  Atomic vectors.
+ * n-d arrays       Vectors with a `dim` attribute.
+ * data frames      Lists with `names`, `class`, and compact `row.names`
+ *                  attributes.
+ * lists            Lists; named lists have a `names` attribute.
+ * factors          Integer vectors with `levels` and `class` attributes.
+ * sparse matrices  S4 Matrix::dgCMatrix objects.
+ *
+ * Values spilled to files (see JavaToR.setMemoryBudget and setArena) are read
+ * back and the files are deleted.
+ *
+ * The stream is written in native byte order (format "B"); it is intended for
+ * the R process hosting the JVM. Missing-value warnings of nested values are
+ * collected (see hasMissingLogicalValues and hasMissingRawValues) so that R
+ * can raise them. See convertToR(transport = "serialize").
+ */
+
+import static org.fgilbert.jdx.Rdata.*;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.fgilbert.jdx.JavaToR.RdataExceptionCode;
+
+public final class RdsWriter {
+
+	// SEXP types. See RdsReader.
+	private static final int SYMSXP = 1;
+	private static final int LISTSXP = 2;
+	private static final int CHARSXP = 9;
+	private static final int LGLSXP = 10;
+	private static final int INTSXP = 13;
+	private static final int REALSXP = 14;
+	private static final int STRSXP = 16;
+	private static final int VECSXP = 19;
+	private static final int RAWSXP = 24;
+	private static final int S4SXP = 25;
+	private static final int NILVALUE_SXP = 254;
+	private static final int REFSXP = 255;
+
+	private static final int HAS_ATTRIBUTES = 1 << 9;
+	private static final int HAS_TAG = 1 << 10;
+	private static final int IS_OBJECT = 1 << 8;
+	private static final int ASCII_MASK = 1 << 6 << 12;
+	private static final int S4_OBJECT_MASK = 1 << 4 << 12;
+	private static final int UTF8_MASK = 1 << 3 << 12;
+
+	private static final int INITIAL_CAPACITY = 1 << 12;
+
+	private ByteBuffer buffer;
+	private boolean missingLogicalValues;
+	private boolean missingRawValues;
+	private Map<String, Integer> symbols;
+
+	public RdsWriter() {
+	}
+
+	private void ensureCapacity(long count) {
+		if (count <= this.buffer.remaining())
+			return;
+		long required = this.buffer.position() + count;
+		if (required > Integer.MAX_VALUE - 8)
+			throw new RuntimeException("The serialized data exceed the maximum size of a Java array (2 GB).");
+		long capacity = this.buffer.capacity();
+		while (capacity < required)
+			capacity *= 2;
+		ByteBuffer b = ByteBuffer.wrap(Arrays.copyOf(this.buffer.array(), (int) Math.min(capacity, Integer.MAX_VALUE - 8)));
+		b.order(this.buffer.order());
+		b.position(this.buffer.position());
+		this.buffer = b;
+	}
+
+	/*
+	 * Returns true if logical NA values were converted to FALSE in the last
+	 * value written. The R package raises a warning.
+	 */
+	public boolean hasMissingLogicalValues() {
+		return missingLogicalValues;
+	}
+
+	public boolean hasMissingRawValues() {
+		return missingRawValues;
+	}
+
+	/*
+	 * Returns the value of `j2r` (which must be initialized) as a serialized R
+	 * object.
+	 */
+	public byte[] write(JavaToR j2r) {
+		this.buffer = ByteBuffer.allocate(INITIAL_CAPACITY).order(ByteOrder.nativeOrder());
+		this.symbols = new HashMap<String, Integer>();
+		this.missingLogicalValues = false;
+		this.missingRawValues = false;
+		try {
+			writeHeader();
+			writeValue(j2r.getRdataCompositeCode(), j2r.getValueObject());
+			return Arrays.copyOf(this.buffer.array(), this.buffer.position());
+		} finally {
+			this.buffer = null;
+			this.symbols = null;
+		}
+	}
+
+	/*
+	 * Writes the value of `j2r` to a file that can be read with readRDS.
+	 */
+	public void write(JavaToR j2r, String path) throws IOException {
+		byte[] data = write(j2r);
+		try (OutputStream out = new FileOutputStream(path)) {
+			out.write(data);
+		}
+	}
+
+	/*
+	 * Writes the header and the first tag of an attribute pairlist cell.
+	 * Attribute lists are terminated by writeInt(NILVALUE_SXP).
+	 */
+	private void writeAttribute(String name) {
+		writeInt(LISTSXP | HAS_TAG);
+		writeSymbol(name);
+	}
+
+	private void writeBooleans(boolean[] a) {
+		writeInt(LGLSXP);
+		writeInt(a.length);
+		ensureCapacity(4L * a.length);
+		for (int i = 0; i < a.length; i++)
+			this.buffer.putInt(a[i] ? 1 : 0);
+	}
+
+	private void writeBytes(byte[] a) {
+		writeInt(RAWSXP);
+		writeInt(a.length);
+		ensureCapacity(a.length);
+		this.buffer.put(a);
+	}
+
+	/*
+	 * `value` is {int[] types, Object[] columns, String[] names}.
+	 */
+	private void writeDataFrame(Object[] value) {
+		int[] types = (int[]) value[0];
+		Object[] columns = (Object[]) value[1];
+		String[] names = (String[]) value[2];
+		int rowCount = 0;
+		writeInt(VECSXP | IS_OBJECT | HAS_ATTRIBUTES);
+		writeInt(types.length);
+		for (int j = 0; j < types.length; j++) {
+			writeValue(types[j], columns[j]);
+			if (j == 0)
+				rowCount = Array.getLength(columns[j]);
+		}
+		writeAttribute("names");
+		writeStrings((types.length == 0) ? new String[0] : names);
+		writeAttribute("class");
+		writeStrings(new String[] {"data.frame"});
+		// Compact row names: c(NA_integer_, -n).
+		writeAttribute("row.names");
+		writeInts((rowCount == 0) ? new int[0] : new int[] {NA_INT, -rowCount});
+		writeInt(NILVALUE_SXP);
+	}
+
+	private void writeDoubles(double[] a) {
+		writeInt(REALSXP);
+		writeInt(a.length);
+		ensureCapacity(8L * a.length);
+		this.buffer.asDoubleBuffer().put(a);
+		this.buffer.position(this.buffer.position() + 8 * a.length);
+	}
+
+	/*
+	 * `value` is {int[] codes, String[] levels, Boolean ordered}.
+	 */
+	private void writeFactor(Object[] value) {
+		writeInt(INTSXP | IS_OBJECT | HAS_ATTRIBUTES);
+		int[] codes = (int[]) value[0];
+		writeInt(codes.length);
+		writeIntValues(codes);
+		writeAttribute("levels");
+		writeStrings((String[]) value[1]);
+		writeAttribute("class");
+		writeStrings(((Boolean) value[2]) ? new String[] {"ordered", "factor"} : new String[] {"factor"});
+		writeInt(NILVALUE_SXP);
+	}
+
+	private void writeHeader() {
+		ensureCapacity(14);
+		this.buffer.put((byte) 'B').put((byte) '\n');
+		writeInt(2);
+		writeInt(0x030500); // Writer version (R 3.5.0).
+		writeInt(0x020300); // Minimum reader version (R 2.3.0).
+	}
+
+	private void writeInt(int value) {
+		ensureCapacity(4);
+		this.buffer.putInt(value);
+	}
+
+	private void writeInts(int[] a) {
+		writeInt(INTSXP);
+		writeInt(a.length);
+		writeIntValues(a);
+	}
+
+	private void writeIntValues(int[] a) {
+		ensureCapacity(4L * a.length);
+		this.buffer.asIntBuffer().put(a);
+		this.buffer.position(this.buffer.position() + 4 * a.length);
+	}
+
+	/*
+	 * `value` is {int[] types, Object[] objects, String[] names}. Empty named
+	 * lists are written as list(), as in convertToRlowLevel.
+	 */
+	private void writeList(Object[] value, boolean named) {
+		int[] types = (int[]) value[0];
+		Object[] objects = (Object[]) value[1];
+		named = named && types.length > 0;
+		writeInt(VECSXP | (named ? HAS_ATTRIBUTES : 0));
+		writeInt(types.length);
+		for (int k = 0; k < types.length; k++)
+			writeValue(types[k], objects[k]);
+		if (named) {
+			writeAttribute("names");
+			writeStrings((String[]) value[2]);
+			writeInt(NILVALUE_SXP);
+		}
+	}
+
+	/*
+	 * `value` is {int[] dimensions, flat array} in R order.
+	 */
+	private void writeNdArray(int type, Object[] value) {
+		int position = this.buffer.position();
+		writeVector(type, value[1]);
+		// Set the attribute flag of the vector that was just written.
+		this.buffer.putInt(position, this.buffer.getInt(position) | HAS_ATTRIBUTES);
+		writeAttribute("dim");
+		writeInts((int[]) value[0]);
+		writeInt(NILVALUE_SXP);
+	}
+
+	private void writeScalar(int type, Object value) {
+		switch (type) {
+		case TC_NUMERIC:
+			writeDoubles(new double[] {((Number) value).doubleValue()});
+			break;
+		case TC_INTEGER:
+			writeInts(new int[] {((Number) value).intValue()});
+			break;
+		case TC_CHARACTER:
+			writeStrings(new String[] {(value == null) ? null : value.toString()});
+			break;
+		case TC_LOGICAL:
+			writeBooleans(new boolean[] {(Boolean) value});
+			break;
+		case TC_RAW:
+			writeBytes(new byte[] {(Byte) value});
+			break;
+		default:
+			throw new RuntimeException(String.format("The R type code 0x%X is not supported.", type));
+		}
+	}
+
+	/*
+	 * `value` is {int[] dimensions, int[] i, int[] p, double[] x}. The slots
+	 * are those of Matrix::sparseMatrix(..., index1 = FALSE).
+	 */
+	private void writeSparseMatrix(Object[] value) {
+		writeInt(S4SXP | IS_OBJECT | HAS_ATTRIBUTES | S4_OBJECT_MASK);
+		writeAttribute("i");
+		writeInts((int[]) value[1]);
+		writeAttribute("p");
+		writeInts((int[]) value[2]);
+		writeAttribute("Dim");
+		writeInts((int[]) value[0]);
+		writeAttribute("Dimnames");
+		writeInt(VECSXP);
+		writeInt(2);
+		writeInt(NILVALUE_SXP);
+		writeInt(NILVALUE_SXP);
+		writeAttribute("x");
+		writeDoubles((double[]) value[3]);
+		writeAttribute("factors");
+		writeInt(VECSXP);
+		writeInt(0);
+		writeAttribute("class");
+		writeInt(STRSXP | HAS_ATTRIBUTES);
+		writeInt(1);
+		writeString("dgCMatrix");
+		writeAttribute("package");
+		writeStrings(new String[] {"Matrix"});
+		writeInt(NILVALUE_SXP);
+		writeInt(NILVALUE_SXP);
+	}
+
+	private void writeString(String s) {
+		if (s == null) {
+			writeInt(CHARSXP);
+			writeInt(-1);
+			return;
+		}
+		int length = s.length();
+		boolean ascii = true;
+		for (int i = 0; i < length && ascii; i++)
+			ascii = s.charAt(i) < 0x80;
+		if (ascii) {
+			ensureCapacity(8L + length);
+			this.buffer.putInt(CHARSXP | ASCII_MASK);
+			this.buffer.putInt(length);
+			for (int i = 0; i < length; i++)
+				this.buffer.put((byte) s.charAt(i));
+		} else {
+			byte[] a = s.getBytes(StandardCharsets.UTF_8);
+			ensureCapacity(8L + a.length);
+			this.buffer.putInt(CHARSXP | UTF8_MASK);
+			this.buffer.putInt(a.length);
+			this.buffer.put(a);
+		}
+	}
+
+	private void writeStrings(String[] a) {
+		writeInt(STRSXP);
+		writeInt(a.length);
+		for (int i = 0; i < a.length; i++)
+			writeString(a[i]);
+	}
+
+	/*
+	 * Symbols are written once and referenced afterwards, as R does.
+	 */
+	private void writeSymbol(String name) {
+		Integer index = this.symbols.get(name);
+		if (index != null) {
+			writeInt((index << 8) | REFSXP);
+			return;
+		}
+		this.symbols.put(name, this.symbols.size() + 1);
+		writeInt(SYMSXP);
+		writeString(name);
+	}
+
+	private void writeValue(int code, Object value) {
+		int type = code & 0xFF;
+		int structure = code & 0xFF00;
+		int exception = code & 0xFF0000;
+		if (exception == RdataExceptionCode.EXCEPTION.value)
+			throw new RuntimeException(String.valueOf(value));
+		if (exception == RdataExceptionCode.WARNING_MISSING_LOGICAL_VALUES.value)
+			this.missingLogicalValues = true;
+		else if (exception == RdataExceptionCode.WARNING_MISSING_RAW_VALUES.value)
+			this.missingRawValues = true;
+		if (type == TC_NULL) {
+			writeInt(NILVALUE_SXP);
+			return;
+		}
+		switch (structure) {
+		case SC_SCALAR:
+			writeScalar(type, value);
+			break;
+		case SC_VECTOR:
+			writeVector(type, value);
+			break;
+		case SC_ND_ARRAY:
+			writeNdArray(type, (Object[]) value);
+			break;
+		case SC_DATA_FRAME:
+			writeDataFrame((Object[]) value);
+			break;
+		case SC_LIST:
+		case SC_NAMED_LIST:
+			writeList((Object[]) value, structure == SC_NAMED_LIST);
+			break;
+		case SC_SPARSE_MATRIX:
+			writeSparseMatrix((Object[]) value);
+			break;
+		case SC_FACTOR:
+			writeFactor((Object[]) value);
+			break;
+		case SC_MAPPED_FILE:
+			// A value spilled by JavaToR (see setMemoryBudget).
+			Object[] a = SpillFile.read((String) value);
+			writeValue((Integer) a[0], a[1]);
+			break;
+		default:
+			throw new RuntimeException(String.format("The R data code 0x%X is not supported.", code));
+		}
+	}
+
+	private void writeVector(int type, Object value) {
+		switch (type) {
+		case TC_NUMERIC:
+			writeDoubles((double[]) value);
+			break;
+		case TC_INTEGER:
+			writeInts((int[]) value);
+			break;
+		case TC_CHARACTER:
+			writeStrings((String[]) value);
+			break;
+		case TC_LOGICAL:
+			// Table columns with NA values are in R's integer encoding.
+			if (value instanceof int[]) {
+				writeInt(LGLSXP);
+				writeInt(((int[]) value).length);
+				writeIntValues((int[]) value);
+			} else {
+				writeBooleans((boolean[]) value);
+			}
+			break;
+		case TC_RAW:
+			writeBytes((byte[]) value);
+			break;
+		default:
+			throw new RuntimeException(String.format("The R type code 0x%X is not supported.", type));
+		}
+	}
+
+}
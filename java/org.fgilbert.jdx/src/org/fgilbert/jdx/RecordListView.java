@@ -0,0 +1,174 @@
+package org.fgilbert.jdx;
+
+/*
+ * A read-only, row-major view of a data frame backed by the original column
+ * arrays. See Utility.createListOfRecordsView. Each row is a lightweight map
+ * that holds only a reference to the view and a row index; values are read
+ * from the columns (and boxed) on demand. Hence, memory use is essentially
+ * the column data, compared to one map and one boxed object per cell for
+ * Utility.createListOfRecords.
+ *
+ * Rows are created on access and are not cached, so `get(i) == get(i)` is
+ * false, although the rows are equal. Rows and the list cannot be modified.
+ * Columns are not copied; changes to the column arrays are visible through
+ * the view. Factor columns are kept as Factor objects, so their values are
+ * references to the level strings.
+ */
+
+import java.lang.reflect.Array;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+import java.util.Set;
+
+public class RecordListView extends AbstractList<Map<String, Object>> implements RandomAccess {
+
+	private class Row extends AbstractMap<String, Object> {
+
+		private final int index;
+
+		Row(int index) {
+			this.index = index;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return RecordListView.this.indices.containsKey(key);
+		}
+
+		@Override
+		public Set<Map.Entry<String, Object>> entrySet() {
+			return new AbstractSet<Map.Entry<String, Object>>() {
+
+				@Override
+				public Iterator<Map.Entry<String, Object>> iterator() {
+					return new Iterator<Map.Entry<String, Object>>() {
+
+						private int column = 0;
+
+						@Override
+						public boolean hasNext() {
+							return this.column < RecordListView.this.names.length;
+						}
+
+						@Override
+						public Map.Entry<String, Object> next() {
+							if (!hasNext())
+								throw new NoSuchElementException();
+							int j = this.column++;
+							return new AbstractMap.SimpleImmutableEntry<String, Object>(RecordListView.this.names[j], getValue(j, Row.this.index));
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return RecordListView.this.names.length;
+				}
+			};
+		}
+
+		@Override
+		public Object get(Object key) {
+			Integer j = RecordListView.this.indices.get(key);
+			return (j == null) ? null : getValue(j, this.index);
+		}
+
+		@Override
+		public Set<String> keySet() {
+			return RecordListView.this.keySet;
+		}
+
+		@Override
+		public int size() {
+			return RecordListView.this.names.length;
+		}
+	}
+
+	private final Object[] columns;
+	private final Map<String, Integer> indices;
+	private final Set<String> keySet;
+	private final String[] names;
+	private final int rowCount;
+
+	/*
+	 * IMPORTANT: This constructor does not validate the incoming data.
+	 */
+	public RecordListView(String[] names, Object[] columns) {
+		this.names = names;
+		this.columns = columns;
+		this.rowCount = (columns.length > 0) ? lengthOf(columns[0]) : 0;
+		this.indices = new HashMap<String, Integer>(names.length * 2);
+		for (int j = 0; j < names.length; j++)
+			this.indices.put(names[j], j);
+		this.keySet = new AbstractSet<String>() {
+
+			@Override
+			public boolean contains(Object o) {
+				return RecordListView.this.indices.containsKey(o);
+			}
+
+			@Override
+			public Iterator<String> iterator() {
+				return Collections.unmodifiableList(Arrays.asList(RecordListView.this.names)).iterator();
+			}
+
+			@Override
+			public int size() {
+				return RecordListView.this.names.length;
+			}
+		};
+	}
+
+	@Override
+	public Map<String, Object> get(int index) {
+		if (index < 0 || index >= this.rowCount)
+			throw new IndexOutOfBoundsException(String.format("Index: %d, Size: %d", index, this.rowCount));
+		return new Row(index);
+	}
+
+	/*
+	 * Returns the backing column arrays and factors. These are not copies.
+	 */
+	public Object[] getColumns() {
+		return columns;
+	}
+
+	public String[] getNames() {
+		return names;
+	}
+
+	private Object getValue(int column, int row) {
+		Object a = this.columns[column];
+		if (a instanceof double[])
+			return ((double[]) a)[row];
+		if (a instanceof int[])
+			return ((int[]) a)[row];
+		if (a instanceof String[])
+			return ((String[]) a)[row];
+		if (a instanceof boolean[])
+			return ((boolean[]) a)[row];
+		if (a instanceof byte[])
+			return ((byte[]) a)[row];
+		if (a instanceof Factor)
+			return ((Factor) a).get(row);
+		return Array.get(a, row);
+	}
+
+	private static int lengthOf(Object column) {
+		return (column instanceof Factor) ? ((Factor) column).size() : Array.getLength(column);
+	}
+
+	@Override
+	public int size() {
+		return rowCount;
+	}
+
+}
@@ -0,0 +1,353 @@
+package org.fgilbert.jdx;
+
+/*
+ * Reads JDBC result sets into primitive column buffers that are converted to R
+ * data frames. Values are read with typed getters (getDouble, getInt, etc.)
+ * and `wasNull`, so cells are never boxed. Column types are determined from
+ * the result set metadata as follows.
+ *
+ * DOUBLE, FLOAT, REAL, NUMERIC, DECIMAL, BIGINT  -> numeric
+ * INTEGER, SMALLINT, TINYINT                     -> integer
+ * BOOLEAN, BIT                                   -> logical
+ * BINARY, VARBINARY, LONGVARBINARY, BLOB         -> not supported
+ * All other types (text, dates, times, etc.)     -> character (via getString)
+ *
+ * BIGINT values are converted to doubles because R does not have a 64-bit
+ * integer type. This is consistent with the conversion of Java longs.
+ *
+ * Rows are read in batches via `read`. The buffers are reused between batches
+ * and grow as needed. Each call to `getDataFrame` returns copies of the
+ * buffers trimmed to the number of rows read in the last batch.
+ */
+
+import static org.fgilbert.jdx.Rdata.*;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+public class ResultSetReader {
+
+	/*
+	 * Exposes the row being read to a RowFilter. NA values are returned as
+	 * null so that comparisons with missing values are false.
+	 */
+	private class BufferRow implements RowFilter.Row {
+
+		@Override
+		public Object get(String field) {
+			int j = findColumn(ResultSetReader.this.labels, field);
+			if (j == -1)
+				return null;
+			int i = ResultSetReader.this.rowCount;
+			if (ResultSetReader.this.isNull[j][i])
+				return null;
+			Object buffer = ResultSetReader.this.buffers[j];
+			if (buffer instanceof double[])
+				return ((double[]) buffer)[i];
+			if (buffer instanceof int[])
+				return ((int[]) buffer)[i];
+			if (buffer instanceof boolean[])
+				return ((boolean[]) buffer)[i];
+			return ((String[]) buffer)[i];
+		}
+	}
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/*
+	 * The buffers hold the selected columns followed by the columns that are
+	 * only used by the row filter. `columnIndices`, `labels`, `sqlTypes`, and
+	 * `typeCodes` describe all of them; `compositeTypes` and `names` describe
+	 * the selected columns only.
+	 */
+	private Object[] buffers;
+	private int capacity;
+	private final int[] columnIndices; // One-based JDBC column indices.
+	private final int[] compositeTypes;
+	private boolean hasMissingLogicalValues;
+	private boolean[][] isNull; // Only used by row filters.
+	private boolean isExhausted;
+	private final String[] labels;
+	private final String[] names;
+	private final ResultSet resultSet;
+	private int rowCount;
+	private final RowFilter rowFilter;
+	private final int[] sqlTypes;
+	private final int[] typeCodes;
+
+	public ResultSetReader(ResultSet resultSet) {
+		this(resultSet, null, null);
+	}
+
+	/*
+	 * `columns` selects and orders the columns by label (case-insensitive).
+	 * `rowFilter` is evaluated against each row after it is read; rows that do
+	 * not match are discarded. Either may be null. The filter sees the full
+	 * row: columns it compares that are not selected are read as well, and
+	 * fields that are not columns of the result set raise an exception.
+	 */
+	public ResultSetReader(ResultSet resultSet, String[] columns, RowFilter rowFilter) {
+		this.resultSet = resultSet;
+		this.rowFilter = rowFilter;
+		try {
+			ResultSetMetaData metaData = resultSet.getMetaData();
+			List<Integer> indices = new ArrayList<Integer>();
+			List<String> labels = new ArrayList<String>();
+			if (columns == null) {
+				int columnCount = metaData.getColumnCount();
+				for (int j = 1; j <= columnCount; j++) {
+					indices.add(j);
+					labels.add(metaData.getColumnLabel(j));
+				}
+			} else {
+				for (String column : columns) {
+					indices.add(findColumn(metaData, column));
+					labels.add(column);
+				}
+			}
+			this.names = labels.toArray(new String[labels.size()]);
+			if (rowFilter != null) {
+				Set<String> fields = new LinkedHashSet<String>();
+				rowFilter.addFields(fields);
+				for (String field : fields) {
+					if (findColumn(labels, field) == -1) {
+						indices.add(findColumn(metaData, field));
+						labels.add(field);
+					}
+				}
+			}
+			this.labels = labels.toArray(new String[labels.size()]);
+			this.columnIndices = new int[indices.size()];
+			this.sqlTypes = new int[indices.size()];
+			this.typeCodes = new int[indices.size()];
+			for (int j = 0; j < this.columnIndices.length; j++) {
+				this.columnIndices[j] = indices.get(j);
+				this.sqlTypes[j] = metaData.getColumnType(this.columnIndices[j]);
+				this.typeCodes[j] = getRdataTypeCode(this.sqlTypes[j], this.labels[j]).value;
+			}
+			this.compositeTypes = new int[this.names.length];
+			for (int j = 0; j < this.names.length; j++)
+				this.compositeTypes[j] = JavaToR.RdataStructureCode.VECTOR.value | this.typeCodes[j];
+		} catch (SQLException e) {
+			throw createException(e);
+		}
+		allocate(INITIAL_CAPACITY);
+	}
+
+	private void allocate(int capacity) {
+		this.capacity = capacity;
+		this.buffers = new Object[this.columnIndices.length];
+		this.isNull = new boolean[this.columnIndices.length][];
+		for (int j = 0; j < this.columnIndices.length; j++) {
+			this.buffers[j] = newBuffer(this.typeCodes[j], capacity);
+			if (this.rowFilter != null)
+				this.isNull[j] = new boolean[capacity];
+		}
+	}
+
+	private static Object copyBuffer(Object buffer, int length) {
+		if (buffer instanceof double[])
+			return Arrays.copyOf((double[]) buffer, length);
+		if (buffer instanceof int[])
+			return Arrays.copyOf((int[]) buffer, length);
+		if (buffer instanceof boolean[])
+			return Arrays.copyOf((boolean[]) buffer, length);
+		return Arrays.copyOf((String[]) buffer, length);
+	}
+
+	private static RuntimeException createException(SQLException e) {
+		return new RuntimeException(String.format("Error reading the result set: %s", e.getMessage()), e);
+	}
+
+	/*
+	 * Returns the index of `label` in `labels` (case-insensitive), or -1.
+	 */
+	private static int findColumn(List<String> labels, String label) {
+		for (int j = 0; j < labels.size(); j++) {
+			if (labels.get(j).equalsIgnoreCase(label))
+				return j;
+		}
+		return -1;
+	}
+
+	private static int findColumn(String[] labels, String label) {
+		return findColumn(Arrays.asList(labels), label);
+	}
+
+	private static int findColumn(ResultSetMetaData metaData, String label) throws SQLException {
+		int columnCount = metaData.getColumnCount();
+		for (int j = 1; j <= columnCount; j++) {
+			if (metaData.getColumnLabel(j).equalsIgnoreCase(label))
+				return j;
+		}
+		throw new RuntimeException(String.format("The column '%s' does not exist in the result set.", label));
+	}
+
+	private void grow() {
+		int capacity = this.capacity * 2;
+		for (int j = 0; j < this.buffers.length; j++) {
+			this.buffers[j] = copyBuffer(this.buffers[j], capacity);
+			if (this.rowFilter != null)
+				this.isNull[j] = Arrays.copyOf(this.isNull[j], capacity);
+		}
+		this.capacity = capacity;
+	}
+
+	public int[] getCompositeTypes() {
+		return compositeTypes;
+	}
+
+	/*
+	 * Returns the rows read by the last call to `read` as a data frame value
+	 * (see JavaToR.getValueObjectArray1d).
+	 */
+	Object[] getDataFrame() {
+		Object[] columns = new Object[this.names.length];
+		for (int j = 0; j < columns.length; j++)
+			columns[j] = copyBuffer(this.buffers[j], this.rowCount);
+		return new Object[] {this.compositeTypes, columns, this.names};
+	}
+
+	public String[] getNames() {
+		return names;
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	private static JavaToR.RdataTypeCode getRdataTypeCode(int sqlType, String name) {
+		switch (sqlType) {
+		case Types.DOUBLE:
+		case Types.FLOAT:
+		case Types.REAL:
+		case Types.NUMERIC:
+		case Types.DECIMAL:
+		case Types.BIGINT:
+			return JavaToR.RdataTypeCode.NUMERIC;
+		case Types.INTEGER:
+		case Types.SMALLINT:
+		case Types.TINYINT:
+			return JavaToR.RdataTypeCode.INTEGER;
+		case Types.BOOLEAN:
+		case Types.BIT:
+			return JavaToR.RdataTypeCode.LOGICAL;
+		case Types.BINARY:
+		case Types.VARBINARY:
+		case Types.LONGVARBINARY:
+		case Types.BLOB:
+			throw new RuntimeException(String.format("The binary column '%s' cannot be converted to a data frame column.", name));
+		default:
+			return JavaToR.RdataTypeCode.CHARACTER;
+		}
+	}
+
+	public boolean hasMissingLogicalValues() {
+		return hasMissingLogicalValues;
+	}
+
+	/*
+	 * Returns true if a previous call to `read` reached the end of the result
+	 * set.
+	 */
+	public boolean isExhausted() {
+		return isExhausted;
+	}
+
+	private static Object newBuffer(int typeCode, int capacity) {
+		if (typeCode == JavaToR.RdataTypeCode.NUMERIC.value)
+			return new double[capacity];
+		if (typeCode == JavaToR.RdataTypeCode.INTEGER.value)
+			return new int[capacity];
+		if (typeCode == JavaToR.RdataTypeCode.LOGICAL.value)
+			return new boolean[capacity];
+		return new String[capacity];
+	}
+
+	/*
+	 * Reads up to `maxRows` rows from the current position of the result set
+	 * into the column buffers, replacing the previous batch. Returns the number
+	 * of rows read. Rows discarded by the row filter do not count toward
+	 * `maxRows`.
+	 */
+	public int read(int maxRows) {
+		if (maxRows < 0)
+			throw new RuntimeException("The number of rows must be zero or greater.");
+		this.rowCount = 0;
+		this.hasMissingLogicalValues = false;
+		BufferRow row = (this.rowFilter == null) ? null : new BufferRow();
+		try {
+			while (this.rowCount < maxRows) {
+				if (this.isExhausted || !this.resultSet.next()) {
+					this.isExhausted = true;
+					break;
+				}
+				if (this.rowCount == this.capacity)
+					grow();
+				readRow(this.rowCount);
+				if (row == null || this.rowFilter.test(row))
+					this.rowCount++;
+			}
+		} catch (SQLException e) {
+			throw createException(e);
+		}
+		return this.rowCount;
+	}
+
+	private void readRow(int i) throws SQLException {
+		ResultSet rs = this.resultSet;
+		for (int j = 0; j < this.columnIndices.length; j++) {
+			int index = this.columnIndices[j];
+			Object buffer = this.buffers[j];
+			boolean wasNull;
+			switch (this.sqlTypes[j]) {
+			case Types.BIGINT:
+				long l = rs.getLong(index);
+				wasNull = rs.wasNull();
+				((double[]) buffer)[i] = wasNull ? NA_DOUBLE : (double) l;
+				break;
+			case Types.DOUBLE:
+			case Types.FLOAT:
+			case Types.REAL:
+			case Types.NUMERIC:
+			case Types.DECIMAL:
+				double d = rs.getDouble(index);
+				wasNull = rs.wasNull();
+				((double[]) buffer)[i] = wasNull ? NA_DOUBLE : d;
+				break;
+			case Types.INTEGER:
+			case Types.SMALLINT:
+			case Types.TINYINT:
+				int n = rs.getInt(index);
+				wasNull = rs.wasNull();
+				((int[]) buffer)[i] = wasNull ? NA_INT : n;
+				break;
+			case Types.BOOLEAN:
+			case Types.BIT:
+				boolean b = rs.getBoolean(index);
+				wasNull = rs.wasNull();
+				if (wasNull) {
+					// rJava translates NA to FALSE for logicals.
+					b = false;
+					this.hasMissingLogicalValues = true;
+				}
+				((boolean[]) buffer)[i] = b;
+				break;
+			default:
+				String s = rs.getString(index);
+				wasNull = (s == null);
+				((String[]) buffer)[i] = s;
+			}
+			if (this.rowFilter != null)
+				this.isNull[j][i] = wasNull;
+		}
+	}
+
+}
@@ -0,0 +1,373 @@
+package org.fgilbert.jdx;
+
+/*
+ * Row predicates used to filter records before they are converted to R
+ * objects. See JavaToR.initialize(Object, ArrayOrder, String[], RowFilter).
+ * Predicates are composed of comparisons of scalar fields with literal values
+ * combined with `and` and `or`. They can be built in Java via the static
+ * methods `compare`, `and`, and `or`, or parsed from a string via `parse`. The
+ * string form is intended for use from R, where creating Java objects is
+ * expensive. The grammar is as follows.
+ *
+ * expression  := conjunction (('|' | '||' | 'or') conjunction)*
+ * conjunction := term (('&' | '&&' | 'and') term)*
+ * term        := '(' expression ')' | comparison
+ * comparison  := field ('==' | '!=' | '<' | '<=' | '>' | '>=') literal
+ * field       := identifier | `back-quoted name`
+ * literal     := number | 'string' | "string" | TRUE | FALSE | NULL
+ *
+ * Comparisons against missing values (Java null, NaN, and R NA values,
+ * including Integer.MIN_VALUE, R's integer NA) are false, as are comparisons
+ * of fields that do not exist. The only exceptions are `field == NULL` and
+ * `field != NULL`. Numbers are compared as doubles, strings and characters
+ * lexicographically, and booleans only for equality. Result sets have a fixed
+ * set of columns, so fields that are not columns raise an exception there
+ * (see ResultSetReader).
+ */
+
+import static org.fgilbert.jdx.Rdata.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+public abstract class RowFilter {
+
+	/*
+	 * Provides field values for the row being tested. This allows the same
+	 * predicate to be evaluated against records (maps) and against rows of
+	 * column-major structures without creating an object per row.
+	 */
+	public interface Row {
+		Object get(String field);
+	}
+
+	public enum Operator {
+		EQUAL("==")
+		, NOT_EQUAL("!=")
+		, LESS("<")
+		, LESS_OR_EQUAL("<=")
+		, GREATER(">")
+		, GREATER_OR_EQUAL(">=")
+		;
+
+		final String symbol;
+
+		Operator(String symbol) {
+			this.symbol = symbol;
+		}
+
+		static Operator fromSymbol(String symbol) {
+			for (Operator operator : Operator.values()) {
+				if (operator.symbol.equals(symbol))
+					return operator;
+			}
+			throw new RuntimeException(String.format("'%s' is not a supported comparison operator.", symbol));
+		}
+	}
+
+	private static class Comparison extends RowFilter {
+
+		private final String field;
+		private final Operator operator;
+		private final Object literal;
+
+		Comparison(String field, Operator operator, Object literal) {
+			if (literal == null && operator != Operator.EQUAL && operator != Operator.NOT_EQUAL)
+				throw new RuntimeException(String.format("NULL can only be used with '==' and '!=' (field '%s').", field));
+			if (literal instanceof Boolean && operator != Operator.EQUAL && operator != Operator.NOT_EQUAL)
+				throw new RuntimeException(String.format("Logical values can only be used with '==' and '!=' (field '%s').", field));
+			if (literal != null && !(literal instanceof Number || literal instanceof String || literal instanceof Boolean))
+				throw new RuntimeException(String.format("Values of class '%s' are not supported in row filters.", literal.getClass().getName()));
+			this.field = field;
+			this.operator = operator;
+			this.literal = literal;
+		}
+
+		@Override
+		void addFields(Collection<String> fields) {
+			fields.add(this.field);
+		}
+
+		@Override
+		public boolean test(Row row) {
+			Object o = row.get(this.field);
+			if (this.literal == null)
+				return (this.operator == Operator.EQUAL) == (o == null);
+			if (o == null)
+				return false;
+			if (this.literal instanceof Number) {
+				if (!(o instanceof Number))
+					throw createTypeException(o, "numeric");
+				// R's integer NA is missing, like NaN below.
+				if (o instanceof Integer && (Integer) o == NA_INT)
+					return false;
+				return compare(((Number) o).doubleValue(), ((Number) this.literal).doubleValue());
+			}
+			if (this.literal instanceof String) {
+				if (!(o instanceof String || o instanceof Character))
+					throw createTypeException(o, "character");
+				return compare(o.toString().compareTo((String) this.literal));
+			}
+			if (!(o instanceof Boolean))
+				throw createTypeException(o, "logical");
+			return (this.operator == Operator.EQUAL) == (((Boolean) o).booleanValue() == ((Boolean) this.literal).booleanValue());
+		}
+
+		/*
+		 * NaN (including R's NA) is treated as a missing value, so every
+		 * comparison is false, including `!=`.
+		 */
+		private boolean compare(double a, double b) {
+			if (Double.isNaN(a))
+				return false;
+			switch (this.operator) {
+			case EQUAL:
+				return a == b;
+			case NOT_EQUAL:
+				return a != b;
+			case LESS:
+				return a < b;
+			case LESS_OR_EQUAL:
+				return a <= b;
+			case GREATER:
+				return a > b;
+			default:
+				return a >= b;
+			}
+		}
+
+		private boolean compare(int comparison) {
+			switch (this.operator) {
+			case EQUAL:
+				return comparison == 0;
+			case NOT_EQUAL:
+				return comparison != 0;
+			case LESS:
+				return comparison < 0;
+			case LESS_OR_EQUAL:
+				return comparison <= 0;
+			case GREATER:
+				return comparison > 0;
+			default:
+				return comparison >= 0;
+			}
+		}
+
+		private RuntimeException createTypeException(Object o, String type) {
+			return new RuntimeException(String.format("The field '%s' of class '%s' cannot be compared with a %s value.", this.field, o.getClass().getName(), type));
+		}
+	}
+
+	private static class Conjunction extends RowFilter {
+
+		private final RowFilter left;
+		private final RowFilter right;
+
+		Conjunction(RowFilter left, RowFilter right) {
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		void addFields(Collection<String> fields) {
+			this.left.addFields(fields);
+			this.right.addFields(fields);
+		}
+
+		@Override
+		public boolean test(Row row) {
+			return this.left.test(row) && this.right.test(row);
+		}
+	}
+
+	private static class Disjunction extends RowFilter {
+
+		private final RowFilter left;
+		private final RowFilter right;
+
+		Disjunction(RowFilter left, RowFilter right) {
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override
+		void addFields(Collection<String> fields) {
+			this.left.addFields(fields);
+			this.right.addFields(fields);
+		}
+
+		@Override
+		public boolean test(Row row) {
+			return this.left.test(row) || this.right.test(row);
+		}
+	}
+
+	/*
+	 * A simple recursive descent parser for the grammar described at the top
+	 * of this file.
+	 */
+	private static class Parser {
+
+		private final String expression;
+		private final List<String> tokens = new ArrayList<String>();
+		private int position = 0;
+
+		Parser(String expression) {
+			this.expression = expression;
+			tokenize();
+		}
+
+		private RuntimeException createSyntaxException(String message) {
+			return new RuntimeException(String.format("Invalid row filter '%s'. %s", this.expression, message));
+		}
+
+		private boolean isIdentifierPart(char c) {
+			return Character.isLetterOrDigit(c) || c == '_' || c == '.';
+		}
+
+		private String next() {
+			if (this.position == this.tokens.size())
+				throw createSyntaxException("Unexpected end of expression.");
+			return this.tokens.get(this.position++);
+		}
+
+		RowFilter parse() {
+			if (this.tokens.isEmpty())
+				throw createSyntaxException("The expression is empty.");
+			RowFilter filter = parseExpression();
+			if (this.position != this.tokens.size())
+				throw createSyntaxException(String.format("Unexpected token '%s'.", this.tokens.get(this.position)));
+			return filter;
+		}
+
+		private RowFilter parseComparison() {
+			String field = next();
+			if (field.startsWith("`"))
+				field = field.substring(1, field.length() - 1);
+			else if (!isIdentifierPart(field.charAt(0)) || Character.isDigit(field.charAt(0)))
+				throw createSyntaxException(String.format("Expected a field name instead of '%s'.", field));
+			Operator operator = Operator.fromSymbol(next());
+			return new Comparison(field, operator, parseLiteral(next()));
+		}
+
+		private RowFilter parseConjunction() {
+			RowFilter filter = parseTerm();
+			while (peekAny("&", "&&", "and", "AND")) {
+				this.position++;
+				filter = new Conjunction(filter, parseTerm());
+			}
+			return filter;
+		}
+
+		private RowFilter parseExpression() {
+			RowFilter filter = parseConjunction();
+			while (peekAny("|", "||", "or", "OR")) {
+				this.position++;
+				filter = new Disjunction(filter, parseConjunction());
+			}
+			return filter;
+		}
+
+		private Object parseLiteral(String token) {
+			char c = token.charAt(0);
+			if (c == '\'' || c == '"')
+				return token.substring(1, token.length() - 1);
+			if (token.equals("TRUE") || token.equals("true"))
+				return Boolean.TRUE;
+			if (token.equals("FALSE") || token.equals("false"))
+				return Boolean.FALSE;
+			if (token.equals("NULL") || token.equals("null"))
+				return null;
+			try {
+				return Double.valueOf(token);
+			} catch (NumberFormatException e) {
+				throw createSyntaxException(String.format("Expected a literal value instead of '%s'.", token));
+			}
+		}
+
+		private RowFilter parseTerm() {
+			if (peekAny("(")) {
+				this.position++;
+				RowFilter filter = parseExpression();
+				if (!next().equals(")"))
+					throw createSyntaxException("Expected ')'.");
+				return filter;
+			}
+			return parseComparison();
+		}
+
+		private boolean peekAny(String... values) {
+			if (this.position == this.tokens.size())
+				return false;
+			String token = this.tokens.get(this.position);
+			for (String value : values) {
+				if (token.equals(value))
+					return true;
+			}
+			return false;
+		}
+
+		private void tokenize() {
+			String s = this.expression;
+			int i = 0;
+			while (i < s.length()) {
+				char c = s.charAt(i);
+				if (Character.isWhitespace(c)) {
+					i++;
+					continue;
+				}
+				int start = i;
+				if (c == '\'' || c == '"' || c == '`') {
+					i = s.indexOf(c, i + 1);
+					if (i == -1)
+						throw createSyntaxException("Unterminated quotation.");
+					i++;
+				} else if (c == '(' || c == ')') {
+					i++;
+				} else if ("=!<>&|".indexOf(c) != -1) {
+					i++;
+					if (i < s.length() && (s.charAt(i) == '=' || (s.charAt(i) == c && (c == '&' || c == '|'))))
+						i++;
+				} else if (isIdentifierPart(c) || c == '-' || c == '+') {
+					i++;
+					while (i < s.length() && (isIdentifierPart(s.charAt(i)) || ((s.charAt(i) == '-' || s.charAt(i) == '+') && (s.charAt(i - 1) == 'e' || s.charAt(i - 1) == 'E'))))
+						i++;
+				} else {
+					throw createSyntaxException(String.format("Unexpected character '%s'.", c));
+				}
+				this.tokens.add(s.substring(start, i));
+			}
+		}
+	}
+
+	/*
+	 * Adds the names of the fields compared by this filter to `fields`. Used
+	 * by sources that read only the fields they need (see ResultSetReader).
+	 */
+	void addFields(Collection<String> fields) {
+	}
+
+	public static RowFilter and(RowFilter left, RowFilter right) {
+		return new Conjunction(left, right);
+	}
+
+	public static RowFilter compare(String field, Operator operator, Object value) {
+		return new Comparison(field, operator, value);
+	}
+
+	public static RowFilter compare(String field, String operator, Object value) {
+		return new Comparison(field, Operator.fromSymbol(operator), value);
+	}
+
+	public static RowFilter or(RowFilter left, RowFilter right) {
+		return new Disjunction(left, right);
+	}
+
+	public static RowFilter parse(String expression) {
+		return new Parser(expression).parse();
+	}
+
+	public abstract boolean test(Row row);
+
+}
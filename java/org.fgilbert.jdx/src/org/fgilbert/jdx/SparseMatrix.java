@@ -0,0 +1,311 @@
+package org.fgilbert.jdx;
+
+/*
+ * A sparse numeric matrix in compressed sparse column (CSC), compressed sparse
+ * row (CSR), or coordinate (COO) format. All indices are zero-based. The
+ * arrays are stored as given (they are not copied) and are returned as is by
+ * the getters.
+ *
+ * CSC      rowIndices, pointers (length columnCount + 1), values. This is the
+ *          layout of R's Matrix::dgCMatrix (slots i, p, and x).
+ * CSR      columnIndices, pointers (length rowCount + 1), values. This is the
+ *          layout of Matrix::dgRMatrix (slots j, p, and x).
+ * COO      rowIndices, columnIndices, values. This is the layout of
+ *          Matrix::dgTMatrix (slots i, j, and x).
+ *
+ * Within each column (CSC) or row (CSR), indices must be strictly increasing.
+ * COO entries may be in any order and may contain duplicates, which are
+ * summed on conversion. JavaToR converts all formats to CSC, which R turns
+ * into a dgCMatrix. Conversion to and from dense arrays is done only on
+ * request (see fromDense and toDense).
+ */
+
+import java.util.Arrays;
+
+public final class SparseMatrix {
+
+	public enum Format {
+		COO
+		, CSC
+		, CSR
+	}
+
+	private final int columnCount;
+	private final int[] columnIndices;
+	private final Format format;
+	private final int[] pointers;
+	private final int rowCount;
+	private final int[] rowIndices;
+	private final double[] values;
+
+	private SparseMatrix(Format format, int rowCount, int columnCount, int[] rowIndices, int[] columnIndices, int[] pointers, double[] values) {
+		if (rowCount < 0 || columnCount < 0)
+			throw new RuntimeException("Dimensions must be zero or greater.");
+		this.format = format;
+		this.rowCount = rowCount;
+		this.columnCount = columnCount;
+		this.rowIndices = rowIndices;
+		this.columnIndices = columnIndices;
+		this.pointers = pointers;
+		this.values = values;
+	}
+
+	private static void checkCompressed(int majorCount, int minorCount, int[] indices, int[] pointers, double[] values) {
+		if (pointers.length != majorCount + 1)
+			throw new RuntimeException(String.format("The pointers array must have length %d.", majorCount + 1));
+		if (indices.length != values.length)
+			throw new RuntimeException("The index and value arrays must have the same length.");
+		if (pointers[0] != 0 || pointers[majorCount] != values.length)
+			throw new RuntimeException(String.format("The pointers array must start with 0 and end with %d.", values.length));
+		for (int k = 0; k < majorCount; k++) {
+			if (pointers[k] > pointers[k + 1])
+				throw new RuntimeException("The pointers array must be non-decreasing.");
+			for (int m = pointers[k]; m < pointers[k + 1]; m++) {
+				if (indices[m] < 0 || indices[m] >= minorCount)
+					throw new RuntimeException(String.format("The index %d is out of bounds for dimension %d.", indices[m], minorCount));
+				if (m > pointers[k] && indices[m] <= indices[m - 1])
+					throw new RuntimeException("Indices must be strictly increasing within each compressed column or row.");
+			}
+		}
+	}
+
+	private static void checkIndices(int[] indices, int count) {
+		for (int m = 0; m < indices.length; m++) {
+			if (indices[m] < 0 || indices[m] >= count)
+				throw new RuntimeException(String.format("The index %d is out of bounds for dimension %d.", indices[m], count));
+		}
+	}
+
+	/*
+	 * Sorts entries by major index, then by minor index, and sums duplicates.
+	 * Returns {pointers, minor indices, values}. Two stable counting sorts
+	 * are used, so the cost is linear in the number of entries.
+	 */
+	private static Object[] compress(int majorCount, int minorCount, int[] major, int[] minor, double[] values) {
+		int n = values.length;
+		// Sort by minor index.
+		int[] counts = new int[minorCount + 1];
+		for (int m = 0; m < n; m++)
+			counts[minor[m] + 1]++;
+		for (int k = 0; k < minorCount; k++)
+			counts[k + 1] += counts[k];
+		int[] order = new int[n];
+		for (int m = 0; m < n; m++)
+			order[counts[minor[m]]++] = m;
+		// Stable sort by major index.
+		int[] pointers = new int[majorCount + 1];
+		for (int m = 0; m < n; m++)
+			pointers[major[m] + 1]++;
+		for (int k = 0; k < majorCount; k++)
+			pointers[k + 1] += pointers[k];
+		int[] next = pointers.clone();
+		int[] sortedMinor = new int[n];
+		double[] sortedValues = new double[n];
+		for (int m : order) {
+			int position = next[major[m]]++;
+			sortedMinor[position] = minor[m];
+			sortedValues[position] = values[m];
+		}
+		// Sum duplicates.
+		int count = 0;
+		for (int k = 0; k < majorCount; k++) {
+			int start = count;
+			for (int m = pointers[k]; m < pointers[k + 1]; m++) {
+				if (count > start && sortedMinor[count - 1] == sortedMinor[m]) {
+					sortedValues[count - 1] += sortedValues[m];
+				} else {
+					sortedMinor[count] = sortedMinor[m];
+					sortedValues[count] = sortedValues[m];
+					count++;
+				}
+			}
+			pointers[k] = start;
+		}
+		pointers[majorCount] = count;
+		if (count < n) {
+			sortedMinor = Arrays.copyOf(sortedMinor, count);
+			sortedValues = Arrays.copyOf(sortedValues, count);
+		}
+		return new Object[] {pointers, sortedMinor, sortedValues};
+	}
+
+	public static SparseMatrix createCoo(int rowCount, int columnCount, int[] rowIndices, int[] columnIndices, double[] values) {
+		if (rowIndices.length != values.length || columnIndices.length != values.length)
+			throw new RuntimeException("The index and value arrays must have the same length.");
+		checkIndices(rowIndices, rowCount);
+		checkIndices(columnIndices, columnCount);
+		return new SparseMatrix(Format.COO, rowCount, columnCount, rowIndices, columnIndices, null, values);
+	}
+
+	public static SparseMatrix createCsc(int rowCount, int columnCount, int[] rowIndices, int[] columnPointers, double[] values) {
+		checkCompressed(columnCount, rowCount, rowIndices, columnPointers, values);
+		return new SparseMatrix(Format.CSC, rowCount, columnCount, rowIndices, null, columnPointers, values);
+	}
+
+	public static SparseMatrix createCsr(int rowCount, int columnCount, int[] columnIndices, int[] rowPointers, double[] values) {
+		checkCompressed(rowCount, columnCount, columnIndices, rowPointers, values);
+		return new SparseMatrix(Format.CSR, rowCount, columnCount, null, columnIndices, rowPointers, values);
+	}
+
+	/*
+	 * Returns the row indices (CSR) or column indices (CSC) of each entry by
+	 * expanding the pointers.
+	 */
+	private int[] expandPointers() {
+		int[] major = new int[this.values.length];
+		for (int k = 0; k < this.pointers.length - 1; k++) {
+			for (int m = this.pointers[k]; m < this.pointers[k + 1]; m++)
+				major[m] = k;
+		}
+		return major;
+	}
+
+	/*
+	 * Creates a CSC matrix from the non-zero values of a rectangular array
+	 * indexed [row][column].
+	 */
+	public static SparseMatrix fromDense(double[][] array) {
+		int rowCount = array.length;
+		int columnCount = (rowCount > 0) ? array[0].length : 0;
+		int[] pointers = new int[columnCount + 1];
+		for (int i = 0; i < rowCount; i++) {
+			if (array[i].length != columnCount)
+				throw new RuntimeException("The array must be rectangular.");
+			for (int j = 0; j < columnCount; j++) {
+				if (array[i][j] != 0)
+					pointers[j + 1]++;
+			}
+		}
+		for (int j = 0; j < columnCount; j++)
+			pointers[j + 1] += pointers[j];
+		int[] rowIndices = new int[pointers[columnCount]];
+		double[] values = new double[pointers[columnCount]];
+		for (int j = 0, m = 0; j < columnCount; j++) {
+			for (int i = 0; i < rowCount; i++) {
+				if (array[i][j] != 0) {
+					rowIndices[m] = i;
+					values[m++] = array[i][j];
+				}
+			}
+		}
+		return new SparseMatrix(Format.CSC, rowCount, columnCount, rowIndices, null, pointers, values);
+	}
+
+	/*
+	 * Returns the value at [row, column]. Compressed formats use a binary
+	 * search; COO uses a linear scan.
+	 */
+	public double get(int row, int column) {
+		if (row < 0 || row >= this.rowCount || column < 0 || column >= this.columnCount)
+			throw new IndexOutOfBoundsException(String.format("[%d, %d] is out of bounds for a %d x %d matrix.", row, column, this.rowCount, this.columnCount));
+		switch (this.format) {
+		case CSC:
+			return search(this.rowIndices, this.pointers[column], this.pointers[column + 1], row);
+		case CSR:
+			return search(this.columnIndices, this.pointers[row], this.pointers[row + 1], column);
+		default:
+			double sum = 0;
+			for (int m = 0; m < this.values.length; m++) {
+				if (this.rowIndices[m] == row && this.columnIndices[m] == column)
+					sum += this.values[m];
+			}
+			return sum;
+		}
+	}
+
+	public int getColumnCount() {
+		return columnCount;
+	}
+
+	/*
+	 * Returns the column indices for CSR and COO matrices; null for CSC.
+	 */
+	public int[] getColumnIndices() {
+		return columnIndices;
+	}
+
+	public Format getFormat() {
+		return format;
+	}
+
+	/*
+	 * Returns the number of stored entries, including explicit zeros and COO
+	 * duplicates.
+	 */
+	public int getNonZeroCount() {
+		return values.length;
+	}
+
+	/*
+	 * Returns the column pointers for CSC matrices, the row pointers for CSR
+	 * matrices, and null for COO matrices.
+	 */
+	public int[] getPointers() {
+		return pointers;
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	/*
+	 * Returns the row indices for CSC and COO matrices; null for CSR.
+	 */
+	public int[] getRowIndices() {
+		return rowIndices;
+	}
+
+	public double[] getValues() {
+		return values;
+	}
+
+	private double search(int[] indices, int from, int to, int index) {
+		int m = Arrays.binarySearch(indices, from, to, index);
+		return (m < 0) ? 0 : this.values[m];
+	}
+
+	public SparseMatrix toCoo() {
+		switch (this.format) {
+		case CSC:
+			return new SparseMatrix(Format.COO, this.rowCount, this.columnCount, this.rowIndices, expandPointers(), null, this.values);
+		case CSR:
+			return new SparseMatrix(Format.COO, this.rowCount, this.columnCount, expandPointers(), this.columnIndices, null, this.values);
+		default:
+			return this;
+		}
+	}
+
+	/*
+	 * Returns this matrix if it is already in CSC format.
+	 */
+	public SparseMatrix toCsc() {
+		if (this.format == Format.CSC)
+			return this;
+		SparseMatrix coo = toCoo();
+		Object[] result = compress(this.columnCount, this.rowCount, coo.columnIndices, coo.rowIndices, coo.values);
+		return new SparseMatrix(Format.CSC, this.rowCount, this.columnCount, (int[]) result[1], null, (int[]) result[0], (double[]) result[2]);
+	}
+
+	/*
+	 * Returns this matrix if it is already in CSR format.
+	 */
+	public SparseMatrix toCsr() {
+		if (this.format == Format.CSR)
+			return this;
+		SparseMatrix coo = toCoo();
+		Object[] result = compress(this.rowCount, this.columnCount, coo.rowIndices, coo.columnIndices, coo.values);
+		return new SparseMatrix(Format.CSR, this.rowCount, this.columnCount, null, (int[]) result[1], (int[]) result[0], (double[]) result[2]);
+	}
+
+	/*
+	 * Returns a dense array indexed [row][column]. COO duplicates are summed.
+	 */
+	public double[][] toDense() {
+		double[][] array = new double[this.rowCount][this.columnCount];
+		SparseMatrix coo = toCoo();
+		for (int m = 0; m < coo.values.length; m++)
+			array[coo.rowIndices[m]][coo.columnIndices[m]] += coo.values[m];
+		return array;
+	}
+
+}
@@ -0,0 +1,411 @@
+package org.fgilbert.jdx;
+
+/*
+ * Streams vectors, n-d arrays, and data frames that exceed the memory budget
+ * of a JavaToR object (see JavaToR.setMemoryBudget), or that are written to an
+ * OffHeapArena, to files instead of allocating the result on the heap. The
+ * values are read directly from the collection or the converted collection
+ * members in the order of the result, so the vector, the flat array, or the
+ * data frame columns are never allocated. The files have the layout of
+ * MappedFileWriter and are read by the R package with readMappedFile; the
+ * reader deletes the file. Writers that need the whole value in memory
+ * (RdsWriter and ArrowWriter) read spilled values back with read.
+ */
+
+import static org.fgilbert.jdx.Rdata.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Collection;
+
+final class SpillFile {
+
+	/*
+	 * Reads the nodes of a spill file sequentially through a small buffer.
+	 * The file is not mapped, so it can be deleted as soon as it is closed.
+	 */
+	private static final class Reader {
+		private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.nativeOrder());
+		private final FileChannel channel;
+		private long position;
+
+		Reader(FileChannel channel) {
+			this.channel = channel;
+			this.buffer.limit(0);
+		}
+
+		private void ensureRemaining(int count) throws IOException {
+			if (this.buffer.remaining() >= count)
+				return;
+			this.buffer.compact();
+			while (this.buffer.position() < count) {
+				if (this.channel.read(this.buffer) < 0)
+					throw new RuntimeException("The spill file is truncated.");
+			}
+			this.buffer.flip();
+		}
+
+		byte getByte() throws IOException {
+			ensureRemaining(1);
+			this.position++;
+			return this.buffer.get();
+		}
+
+		void getBytes(byte[] a) throws IOException {
+			int offset = 0;
+			while (offset < a.length) {
+				ensureRemaining(1);
+				int n = Math.min(this.buffer.remaining(), a.length - offset);
+				this.buffer.get(a, offset, n);
+				this.position += n;
+				offset += n;
+			}
+		}
+
+		double getDouble() throws IOException {
+			ensureRemaining(8);
+			this.position += 8;
+			return this.buffer.getDouble();
+		}
+
+		int getInt() throws IOException {
+			ensureRemaining(4);
+			this.position += 4;
+			return this.buffer.getInt();
+		}
+
+		void skip(int count) throws IOException {
+			for (int i = 0; i < count; i++)
+				getByte();
+		}
+
+		void pad() throws IOException {
+			skip((int) (-this.position & 7));
+		}
+
+		int[] readInts(int n) throws IOException {
+			int[] a = new int[n];
+			for (int i = 0; i < n; i++)
+				a[i] = getInt();
+			pad();
+			return a;
+		}
+
+		String[] readStrings(int n) throws IOException {
+			int[] lengths = readInts(n);
+			String[] a = new String[n];
+			for (int i = 0; i < n; i++) {
+				byte[] bytes = new byte[Math.max(lengths[i], 0)];
+				getBytes(bytes);
+				getByte();
+				a[i] = (lengths[i] < 0) ? null : new String(bytes, StandardCharsets.UTF_8);
+			}
+			pad();
+			return a;
+		}
+
+		/*
+		 * Reads the payload of a node with the given code and count in the
+		 * form of JavaToR.getValueObject.
+		 */
+		Object readValue(int code, int n) throws IOException {
+			int type = code & 0xFF;
+			switch (code & 0xFF00) {
+			case SC_VECTOR:
+				return readVector(type, n);
+			case SC_ND_ARRAY:
+				int[] dimensions = readInts(n);
+				int length = 1;
+				for (int d : dimensions)
+					length *= d;
+				return new Object[] {dimensions, readVector(type, length)};
+			case SC_DATA_FRAME:
+				String[] names = readStrings(n);
+				int[] types = new int[n];
+				Object[] objects = new Object[n];
+				for (int j = 0; j < n; j++) {
+					types[j] = getInt();
+					objects[j] = readValue(types[j], getInt());
+				}
+				return new Object[] {types, objects, names};
+			default:
+				throw new RuntimeException(String.format("The R data code 0x%X is not supported in spill files.", code));
+			}
+		}
+
+		Object readVector(int type, int n) throws IOException {
+			Object a;
+			switch (type) {
+			case TC_NUMERIC:
+				double[] doubles = new double[n];
+				for (int i = 0; i < n; i++)
+					doubles[i] = getDouble();
+				a = doubles;
+				break;
+			case TC_INTEGER:
+				a = readInts(n);
+				break;
+			case TC_CHARACTER:
+				return readStrings(n);
+			case TC_LOGICAL:
+				boolean[] booleans = new boolean[n];
+				for (int i = 0; i < n; i++)
+					booleans[i] = getInt() != 0;
+				a = booleans;
+				break;
+			case TC_RAW:
+				byte[] bytes = new byte[n];
+				getBytes(bytes);
+				a = bytes;
+				break;
+			default:
+				throw new RuntimeException(String.format("The R type code 0x%X is not supported.", type));
+			}
+			pad();
+			return a;
+		}
+	}
+
+	/*
+	 * Writes the payload of the root node of a spill file.
+	 */
+	private interface Body {
+		void write(MappedFileWriter writer) throws IOException;
+	}
+
+	private static final int BUFFER_SIZE = 1 << 16;
+	private static final int HEADER_SIZE = 24;
+
+	private SpillFile() {
+	}
+
+	/*
+	 * Creates an empty spill file in `directory`, or in the system temporary
+	 * directory if null.
+	 */
+	static File createFile(File directory) {
+		try {
+			return File.createTempFile("jdx", ".bin", directory);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/*
+	 * Returns the estimated number of heap bytes of an R vector element of the
+	 * given type.
+	 */
+	static int getElementSize(int type) {
+		switch (type) {
+		case TC_NUMERIC:
+			return 8;
+		case TC_INTEGER:
+			return 4;
+		case TC_CHARACTER:
+			// A reference; the strings already exist.
+			return 8;
+		default:
+			return 1;
+		}
+	}
+
+	/*
+	 * Reads the value of the spill file `path` and deletes the file. Returns
+	 * the R data code of the value (without an exception code) and the value
+	 * in the form of JavaToR.getValueObject.
+	 */
+	static Object[] read(String path) {
+		File file = new File(path);
+		try (FileInputStream in = new FileInputStream(file)) {
+			Reader reader = new Reader(in.getChannel());
+			reader.skip(HEADER_SIZE);
+			int code = reader.getInt();
+			int n = reader.getInt();
+			return new Object[] {code, reader.readValue(code, n)};
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			file.delete();
+		}
+	}
+
+	/*
+	 * Writes the element `index` of the subarray `a` (a converted R vector)
+	 * coerced to `type`, as the n-d array conversions of JavaToR do.
+	 */
+	private static void putElement(MappedFileWriter writer, int type, Object a, int index) throws IOException {
+		switch (type) {
+		case TC_NUMERIC:
+			if (a instanceof double[])
+				writer.putDouble(((double[]) a)[index]);
+			else if (a instanceof int[])
+				writer.putDouble((double) ((int[]) a)[index]);
+			else
+				writer.putDouble((double) ((byte[]) a)[index]);
+			break;
+		case TC_INTEGER:
+			if (a instanceof int[])
+				writer.putInt(((int[]) a)[index]);
+			else
+				writer.putInt((int) ((byte[]) a)[index]);
+			break;
+		case TC_LOGICAL:
+			writer.putInt(((boolean[]) a)[index] ? 1 : 0);
+			break;
+		case TC_RAW:
+			writer.putByte(((byte[]) a)[index]);
+			break;
+		default:
+			throw new RuntimeException(String.format("The R data type code 0x%X is unsupported when converting collections to arrays.", type));
+		}
+	}
+
+	/*
+	 * Writes the scalar `value` (a member of a collection or a converted record)
+	 * coerced to `type`, as JavaToR.convertCollectionToArray1D does. Null is
+	 * written as NA, or as FALSE or 0 for logical and raw vectors. Returns true
+	 * if that assumption was made.
+	 */
+	private static boolean putScalar(MappedFileWriter writer, int type, Object value, boolean lengths) throws IOException {
+		switch (type) {
+		case TC_NUMERIC:
+			writer.putDouble((value == null) ? NA_DOUBLE : ((Number) value).doubleValue());
+			break;
+		case TC_INTEGER:
+			writer.putInt((value == null) ? NA_INT : ((Number) value).intValue());
+			break;
+		case TC_CHARACTER:
+			byte[] encoded = MappedFileWriter.encode((value == null) ? null : value.toString());
+			if (lengths)
+				writer.putInt((encoded == null) ? -1 : encoded.length);
+			else
+				writer.putString(encoded);
+			break;
+		case TC_LOGICAL:
+			writer.putInt((value != null && (Boolean) value) ? 1 : 0);
+			return value == null;
+		case TC_RAW:
+			writer.putByte((value == null) ? 0 : ((Number) value).byteValue());
+			return value == null;
+		default:
+			throw new RuntimeException(String.format("The R data type code 0x%X is unsupported when converting collections to vectors.", type));
+		}
+		return false;
+	}
+
+	/*
+	 * Writes a spill file with a root node of `code` and `count` and the
+	 * payload written by `body`. The file is deleted if writing fails.
+	 * Returns the path of the file.
+	 */
+	private static String write(File file, int code, int count, Body body) {
+		MappedFileWriter writer = new MappedFileWriter();
+		try {
+			writer.open(file.getPath());
+			try {
+				writer.writeHeader(code, count);
+				body.write(writer);
+				writer.finish();
+			} finally {
+				writer.release();
+			}
+		} catch (IOException | RuntimeException e) {
+			file.delete();
+			throw (e instanceof RuntimeException) ? (RuntimeException) e : new RuntimeException(e);
+		}
+		return file.getPath();
+	}
+
+	/*
+	 * Writes an n-d array of `type` with R dimensions `dimensions` from the
+	 * flat data of the converted subarrays. If `transposed`, the element j of
+	 * subarray i is at flat index i + j * subarrays.length; otherwise the
+	 * subarrays are concatenated. Returns the path of the file.
+	 */
+	static String writeArray(File file, int type, int[] dimensions, Object[] subarrays, boolean transposed) {
+		int n = subarrays.length;
+		int m = (n == 0) ? 0 : Array.getLength(subarrays[0]);
+		return write(file, SC_ND_ARRAY | type, dimensions.length, writer -> {
+			writer.writeInts(dimensions);
+			if (type == TC_CHARACTER) {
+				// The strings block: byte lengths, then the strings.
+				for (int k = 0; k < 2; k++) {
+					for (int a = 0; a < (transposed ? m : n); a++) {
+						for (int b = 0; b < (transposed ? n : m); b++) {
+							String s = transposed ? ((String[]) subarrays[b])[a] : ((String[]) subarrays[a])[b];
+							putScalar(writer, type, s, k == 0);
+						}
+					}
+					writer.pad();
+				}
+			} else {
+				for (int a = 0; a < (transposed ? m : n); a++) {
+					for (int b = 0; b < (transposed ? n : m); b++) {
+						if (transposed)
+							putElement(writer, type, subarrays[b], a);
+						else
+							putElement(writer, type, subarrays[a], b);
+					}
+				}
+				writer.pad();
+			}
+		});
+	}
+
+	/*
+	 * Writes a data frame from the converted records `lists` (each is a named
+	 * list of scalars) column by column. Returns the path of the file.
+	 */
+	static String writeDataFrame(File file, int[] types, String[] names, Object[] lists) {
+		return write(file, SC_DATA_FRAME | TC_OTHER, types.length, writer -> {
+			writer.writeStrings(names);
+			for (int j = 0; j < types.length; j++) {
+				int column = j;
+				writer.writeHeader(SC_VECTOR | (types[j] & 0xFF), lists.length);
+				writeScalars(writer, types[j] & 0xFF, new AbstractList<Object>() {
+					@Override
+					public Object get(int index) {
+						return ((Object[]) ((Object[]) lists[index])[1])[column];
+					}
+
+					@Override
+					public int size() {
+						return lists.length;
+					}
+				});
+			}
+		});
+	}
+
+	/*
+	 * Writes the payload of a vector of `type` from `values`. See putScalar.
+	 */
+	private static boolean writeScalars(MappedFileWriter writer, int type, Collection<?> values) throws IOException {
+		boolean missing = false;
+		for (int k = 0; k < ((type == TC_CHARACTER) ? 2 : 1); k++) {
+			for (Object value : values)
+				missing |= putScalar(writer, type, value, k == 0);
+			writer.pad();
+		}
+		return missing;
+	}
+
+	/*
+	 * Writes a vector of `type` from the collection of scalars `col`, coerced
+	 * as by JavaToR.convertCollectionToArray1D. Returns true if null values
+	 * were written as the NA assumption of logical or raw vectors.
+	 */
+	static boolean writeVector(File file, int type, Collection<?> col) {
+		boolean[] missing = new boolean[1];
+		write(file, SC_VECTOR | type, col.size(), writer -> missing[0] = writeScalars(writer, type, col));
+		return missing[0];
+	}
+
+}
@@ -0,0 +1,209 @@
+package org.fgilbert.jdx;
+
+/*
+ * A Java port of coerceCharacterToX in the R package. A string array is
+ * converted to the first of integer, numeric, or logical to which all
+ * non-missing (null) values can be converted; otherwise, the array is
+ * returned as is. The rules follow R's strtoi, as.numeric, and as.logical:
+ *
+ * integer  Optional leading whitespace, an optional sign, and decimal digits
+ *          (strtoi uses base 10, so "0x01" is not an integer). Values outside
+ *          the range of R integers and "" are rejected.
+ * numeric  Optional leading and trailing whitespace, an optional sign, and a
+ *          decimal or hexadecimal number, "Inf", or "NaN" (case-insensitive).
+ *          "NA" and "" are rejected because R converts them to NA.
+ * logical  Exactly "T", "TRUE", "true", "True", "F", "FALSE", "false", or
+ *          "False".
+ *
+ * Each string is parsed once. Large arrays are parsed in chunks in parallel.
+ * Missing values are converted to R's NA for integer and numeric results and
+ * to false for logical results (the caller must restore NA).
+ */
+
+import static org.fgilbert.jdx.Rdata.*;
+
+import java.util.stream.IntStream;
+
+final class StringCoercion {
+
+	private static final int CHUNK_SIZE = 1 << 14;
+	private static final int INTEGER = 0x1;
+	private static final int LOGICAL = 0x4;
+	private static final int NUMERIC = 0x2;
+	private static final int PARALLEL_THRESHOLD = 1 << 16;
+
+	private StringCoercion() {
+	}
+
+	/*
+	 * Returns int[], double[], boolean[], or `values` if no conversion is
+	 * possible or all values are missing.
+	 */
+	static Object coerce(String[] values) {
+		int n = values.length;
+		double[] numbers = new double[n];
+		boolean[] logicals = new boolean[n];
+		int chunkCount = (n + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		int[] masks = new int[chunkCount];
+		boolean[] missing = new boolean[chunkCount];
+		IntStream chunks = IntStream.range(0, chunkCount);
+		if (n >= PARALLEL_THRESHOLD)
+			chunks = chunks.parallel();
+		chunks.forEach(k -> {
+			int mask = INTEGER | NUMERIC | LOGICAL;
+			boolean allMissing = true;
+			for (int i = k * CHUNK_SIZE, to = Math.min(n, i + CHUNK_SIZE); i < to && mask != 0; i++) {
+				String s = values[i];
+				if (s == null)
+					continue;
+				allMissing = false;
+				mask &= parse(s, i, numbers, logicals);
+			}
+			masks[k] = mask;
+			missing[k] = allMissing;
+		});
+		int mask = INTEGER | NUMERIC | LOGICAL;
+		boolean allMissing = true;
+		for (int k = 0; k < chunkCount; k++) {
+			mask &= masks[k];
+			allMissing &= missing[k];
+		}
+		if (allMissing)
+			return values;
+		if ((mask & INTEGER) != 0) {
+			int[] result = new int[n];
+			for (int i = 0; i < n; i++)
+				result[i] = (values[i] == null) ? NA_INT : (int) numbers[i];
+			return result;
+		}
+		if ((mask & NUMERIC) != 0) {
+			for (int i = 0; i < n; i++) {
+				if (values[i] == null)
+					numbers[i] = NA_DOUBLE;
+			}
+			return numbers;
+		}
+		if ((mask & LOGICAL) != 0)
+			return logicals;
+		return values;
+	}
+
+	private static int digit(char c, int radix) {
+		if (c >= '0' && c <= '9')
+			return c - '0';
+		if (radix == 16) {
+			if (c >= 'a' && c <= 'f')
+				return c - 'a' + 10;
+			if (c >= 'A' && c <= 'F')
+				return c - 'A' + 10;
+		}
+		return -1;
+	}
+
+	private static boolean isSpace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+	}
+
+	private static boolean matches(String s, int position, String word) {
+		return s.regionMatches(true, position, word, 0, word.length());
+	}
+
+	/*
+	 * Parses `s` and returns the types it can be converted to. The numeric
+	 * value is stored in numbers[i] and the logical value in logicals[i].
+	 */
+	private static int parse(String s, int i, double[] numbers, boolean[] logicals) {
+		int length = s.length();
+		int p = 0;
+		while (p < length && isSpace(s.charAt(p)))
+			p++;
+		int start = p;
+		boolean negative = false;
+		if (p < length && (s.charAt(p) == '+' || s.charAt(p) == '-')) {
+			negative = s.charAt(p) == '-';
+			p++;
+		}
+		int end = length;
+		while (end > p && isSpace(s.charAt(end - 1)))
+			end--;
+		if (p == end)
+			return parseLogical(s, i, logicals);
+
+		// Hexadecimal numbers. as.numeric accepts them, but strtoi (base 10)
+		// does not.
+		if (end - p > 2 && s.charAt(p) == '0' && (s.charAt(p + 1) == 'x' || s.charAt(p + 1) == 'X')) {
+			double value = 0;
+			for (int q = p + 2; q < end; q++) {
+				int d = digit(s.charAt(q), 16);
+				if (d < 0)
+					return parseLogical(s, i, logicals);
+				value = value * 16 + d;
+			}
+			numbers[i] = negative ? -value : value;
+			return NUMERIC;
+		}
+
+		// Inf and NaN. "NA" is converted to NA by as.numeric.
+		if (end - p == 3 && matches(s, p, "Inf")) {
+			numbers[i] = negative ? Double.NEGATIVE_INFINITY : Double.POSITIVE_INFINITY;
+			return NUMERIC;
+		}
+		if (end - p == 3 && matches(s, p, "NaN")) {
+			numbers[i] = Double.NaN;
+			return NUMERIC;
+		}
+
+		// Decimal numbers.
+		int digits = 0;
+		boolean integral = true;
+		long value = 0;
+		int q = p;
+		for (; q < end && digit(s.charAt(q), 10) >= 0; q++, digits++) {
+			if (value <= Integer.MAX_VALUE)
+				value = value * 10 + digit(s.charAt(q), 10);
+		}
+		if (q < end && s.charAt(q) == '.') {
+			integral = false;
+			for (q++; q < end && digit(s.charAt(q), 10) >= 0; q++)
+				digits++;
+		}
+		if (digits == 0)
+			return parseLogical(s, i, logicals);
+		int mantissaEnd = q;
+		boolean exponentDigits = false;
+		if (q < end && (s.charAt(q) == 'e' || s.charAt(q) == 'E')) {
+			integral = false;
+			q++;
+			if (q < end && (s.charAt(q) == '+' || s.charAt(q) == '-'))
+				q++;
+			for (; q < end && digit(s.charAt(q), 10) >= 0; q++)
+				exponentDigits = true;
+		}
+		if (q != end)
+			return parseLogical(s, i, logicals);
+		numbers[i] = Double.parseDouble(s.substring(start, exponentDigits ? end : mantissaEnd));
+		if (integral && end == length && value <= Integer.MAX_VALUE)
+			return INTEGER | NUMERIC;
+		return NUMERIC;
+	}
+
+	private static int parseLogical(String s, int i, boolean[] logicals) {
+		switch (s) {
+		case "T":
+		case "TRUE":
+		case "true":
+		case "True":
+			logicals[i] = true;
+			return LOGICAL;
+		case "F":
+		case "FALSE":
+		case "false":
+		case "False":
+			logicals[i] = false;
+			return LOGICAL;
+		default:
+			return 0;
+		}
+	}
+
+}
@@ -0,0 +1,171 @@
+package org.fgilbert.jdx;
+
+/*
+ * Collapses equal strings to one instance per distinct value. rJava creates a
+ * new String for every element of a character vector, so a column with
+ * millions of rows and a few distinct values retains millions of equal
+ * strings. Deduplicating the arrays before they are stored in long-lived
+ * structures (e.g. lists of records or tables) reduces the retained heap to
+ * one instance per distinct value.
+ *
+ * The canonicalization table is bounded: once it holds `maxSize` distinct
+ * values, new values are no longer added (existing values are still
+ * deduplicated). Because the table is shared by all arrays (e.g. all columns
+ * of a data frame), a high-cardinality array must not fill it before the
+ * arrays that follow. Each array is therefore sampled first: if more than
+ * MAX_DISTINCT_RATIO of its leading SAMPLE_SIZE non-null values are new, the
+ * array only looks up existing values (see getHighCardinalityCount). The
+ * table is not global; a deduplicator is created per conversion (see
+ * Utility.deduplicateStrings) and can be discarded afterwards. Instances are
+ * thread-safe.
+ */
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+public final class StringDeduplicator {
+
+	public static final int DEFAULT_MAX_SIZE = 1 << 16;
+
+	private static final int CHUNK_SIZE = 1 << 12;
+	private static final double MAX_DISTINCT_RATIO = 0.5;
+	private static final int PARALLEL_THRESHOLD = 1 << 16;
+	private static final int SAMPLE_SIZE = 1 << 10;
+
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong duplicateCount = new AtomicLong();
+	private final AtomicLong highCardinalityCount = new AtomicLong();
+	private final int maxSize;
+	private final ConcurrentHashMap<String, String> table;
+
+	public StringDeduplicator() {
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	public StringDeduplicator(int maxSize) {
+		if (maxSize < 0)
+			throw new RuntimeException("The maximum size must be zero or greater.");
+		this.maxSize = maxSize;
+		this.table = new ConcurrentHashMap<String, String>(Math.min(maxSize, 1024));
+	}
+
+	/*
+	 * Returns the canonical instance of `value`. New values are added to the
+	 * table only if `add` is true and the table is not full.
+	 */
+	private String canonicalize(String value, boolean add) {
+		String canonical = this.table.get(value);
+		if (canonical != null)
+			return canonical;
+		if (!add || this.table.size() >= this.maxSize)
+			return value;
+		canonical = this.table.putIfAbsent(value, value);
+		return (canonical == null) ? value : canonical;
+	}
+
+	/*
+	 * Returns the canonical instance of `value`, or `value` itself if it is
+	 * new and the table is full. null is returned as is.
+	 */
+	public String deduplicate(String value) {
+		if (value == null)
+			return null;
+		this.count.incrementAndGet();
+		String canonical = canonicalize(value, true);
+		if (canonical != value)
+			this.duplicateCount.incrementAndGet();
+		return canonical;
+	}
+
+	/*
+	 * Replaces the elements of `values` with their canonical instances in
+	 * place and returns `values`. The leading values are sampled first to
+	 * decide whether the array adds values to the table (see above). Large
+	 * arrays are processed in parallel.
+	 */
+	public String[] deduplicate(String[] values) {
+		Set<String> sample = new HashSet<String>();
+		long sampleCount = 0;
+		for (int i = 0, to = Math.min(values.length, SAMPLE_SIZE); i < to; i++) {
+			String value = values[i];
+			if (value == null)
+				continue;
+			sampleCount++;
+			if (!this.table.containsKey(value))
+				sample.add(value);
+		}
+		boolean add = sampleCount < SAMPLE_SIZE || sample.size() <= MAX_DISTINCT_RATIO * sampleCount;
+		if (!add)
+			this.highCardinalityCount.incrementAndGet();
+		IntStream chunks = IntStream.range(0, (values.length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+		if (values.length >= PARALLEL_THRESHOLD)
+			chunks = chunks.parallel();
+		chunks.forEach(k -> {
+			long count = 0;
+			long duplicateCount = 0;
+			for (int i = k * CHUNK_SIZE, to = Math.min(values.length, i + CHUNK_SIZE); i < to; i++) {
+				String value = values[i];
+				if (value == null)
+					continue;
+				count++;
+				String canonical = canonicalize(value, add);
+				if (canonical != value) {
+					values[i] = canonical;
+					duplicateCount++;
+				}
+			}
+			this.count.addAndGet(count);
+			this.duplicateCount.addAndGet(duplicateCount);
+		});
+		return values;
+	}
+
+	/*
+	 * Returns the number of non-null strings processed.
+	 */
+	public long getCount() {
+		return count.get();
+	}
+
+	public int getDistinctCount() {
+		return table.size();
+	}
+
+	/*
+	 * Returns the number of strings that were replaced by an existing
+	 * instance.
+	 */
+	public long getDuplicateCount() {
+		return duplicateCount.get();
+	}
+
+	/*
+	 * Returns the number of arrays whose sampled values were mostly distinct,
+	 * so that their remaining values were not added to the table.
+	 */
+	public long getHighCardinalityCount() {
+		return highCardinalityCount.get();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/*
+	 * Returns the fraction of processed strings that were duplicates (i.e.
+	 * the fraction of String instances that can be reclaimed).
+	 */
+	public double getRatio() {
+		long count = this.count.get();
+		return (count == 0) ? 0 : (double) this.duplicateCount.get() / count;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d strings, %d distinct, %.1f%% duplicates, %d high-cardinality arrays", getCount(), getDistinctCount(), 100 * getRatio(), getHighCardinalityCount());
+	}
+
+}
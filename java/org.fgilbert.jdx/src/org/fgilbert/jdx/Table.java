@@ -0,0 +1,388 @@
+package org.fgilbert.jdx;
+
+/*
+ * A typed, column-major table used as the Java-side representation of an R
+ * data frame. Columns are arrays of double, int, String, boolean, or byte, or
+ * Factor objects. Factors are character columns that keep R's dictionary
+ * encoding; getString and getStringColumn return their levels, and
+ * getFactorColumn returns the codes and levels. Missing values are tracked in one bitmap per column (null if the column has
+ * no missing values). This allows NA to be represented for logical and raw
+ * columns, which cannot be represented in Java primitive arrays.
+ *
+ * Tables are immutable. `slice` returns a view that shares the column arrays
+ * and bitmaps. Rows are accessed without allocation via the typed getters
+ * or via a reusable Cursor.
+ *
+ * On creation, missing values are detected as follows: double values with R's
+ * NA bit pattern (not other NaN values), Integer.MIN_VALUE (R's NA_integer_,
+ * also for factor codes), and null strings. Missing logical and raw values must be supplied
+ * explicitly. See Utility.createTable.
+ */
+
+import static org.fgilbert.jdx.Rdata.*;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+
+public final class Table {
+
+	/*
+	 * A reusable, forward-only row cursor. Call `next` before reading the
+	 * first row.
+	 */
+	public final class Cursor {
+
+		private int row = -1;
+
+		public boolean getBoolean(int column) {
+			return Table.this.getBoolean(this.row, column);
+		}
+
+		public byte getByte(int column) {
+			return Table.this.getByte(this.row, column);
+		}
+
+		public double getDouble(int column) {
+			return Table.this.getDouble(this.row, column);
+		}
+
+		public int getInt(int column) {
+			return Table.this.getInt(this.row, column);
+		}
+
+		public int getRow() {
+			return row;
+		}
+
+		public String getString(int column) {
+			return Table.this.getString(this.row, column);
+		}
+
+		public boolean isNA(int column) {
+			return Table.this.isNA(this.row, column);
+		}
+
+		public boolean next() {
+			if (this.row + 1 >= Table.this.rowCount)
+				return false;
+			this.row++;
+			return true;
+		}
+
+		public void reset() {
+			this.row = -1;
+		}
+	}
+
+	private final Object[] columns;
+	private final long[][] missing; // Indexed by absolute row (i.e. including offset).
+	private final String[] names;
+	private final int offset;
+	private final int rowCount;
+	private final JavaToR.RdataTypeCode[] types;
+
+	/*
+	 * Creates a table and detects missing values (see comments at the top of
+	 * the file). Columns are not copied.
+	 */
+	public Table(String[] names, Object[] columns) {
+		this(names, columns, null);
+	}
+
+	/*
+	 * Same as Table(String[], Object[]), but `missingRows[j]` (an int[] of
+	 * zero-based row indices, or null) additionally marks missing values in
+	 * column j. This is required for logical and raw columns.
+	 */
+	public Table(String[] names, Object[] columns, Object[] missingRows) {
+		if (names.length != columns.length)
+			throw new RuntimeException("The number of names must equal the number of columns.");
+		this.names = names;
+		this.columns = columns;
+		this.offset = 0;
+		this.rowCount = (columns.length > 0) ? lengthOf(columns[0]) : 0;
+		this.types = new JavaToR.RdataTypeCode[columns.length];
+		this.missing = new long[columns.length][];
+		for (int j = 0; j < columns.length; j++) {
+			Object column = columns[j];
+			if (column == null || lengthOf(column) != this.rowCount)
+				throw new RuntimeException(String.format("The column '%s' does not have %d rows.", names[j], this.rowCount));
+			long[] bitmap = null;
+			if (column instanceof double[]) {
+				this.types[j] = JavaToR.RdataTypeCode.NUMERIC;
+				double[] a = (double[]) column;
+				for (int i = 0; i < a.length; i++) {
+					if (isNA(a[i]))
+						bitmap = setBit(bitmap, i);
+				}
+			} else if (column instanceof int[]) {
+				this.types[j] = JavaToR.RdataTypeCode.INTEGER;
+				int[] a = (int[]) column;
+				for (int i = 0; i < a.length; i++) {
+					if (a[i] == Integer.MIN_VALUE)
+						bitmap = setBit(bitmap, i);
+				}
+			} else if (column instanceof String[]) {
+				this.types[j] = JavaToR.RdataTypeCode.CHARACTER;
+				String[] a = (String[]) column;
+				for (int i = 0; i < a.length; i++) {
+					if (a[i] == null)
+						bitmap = setBit(bitmap, i);
+				}
+			} else if (column instanceof Factor) {
+				this.types[j] = JavaToR.RdataTypeCode.CHARACTER;
+				Factor a = (Factor) column;
+				for (int i = 0; i < a.size(); i++) {
+					if (a.isNA(i))
+						bitmap = setBit(bitmap, i);
+				}
+			} else if (column instanceof boolean[]) {
+				this.types[j] = JavaToR.RdataTypeCode.LOGICAL;
+			} else if (column instanceof byte[]) {
+				this.types[j] = JavaToR.RdataTypeCode.RAW;
+			} else {
+				throw new RuntimeException(String.format("'%s' is not a supported column type.", column.getClass().getName()));
+			}
+			if (missingRows != null && missingRows[j] != null) {
+				for (int i : (int[]) missingRows[j]) {
+					if (i < 0 || i >= this.rowCount)
+						throw new RuntimeException(String.format("The missing row index %d is out of bounds for column '%s'.", i, names[j]));
+					bitmap = setBit(bitmap, i);
+				}
+			}
+			this.missing[j] = bitmap;
+		}
+	}
+
+	private Table(Table table, int offset, int rowCount) {
+		this.names = table.names;
+		this.columns = table.columns;
+		this.missing = table.missing;
+		this.types = table.types;
+		this.offset = offset;
+		this.rowCount = rowCount;
+	}
+
+	private void checkType(int column, JavaToR.RdataTypeCode type) {
+		if (this.types[column] != type)
+			throw new RuntimeException(String.format("The column '%s' is not of type %s.", this.names[column], type.name().toLowerCase()));
+	}
+
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	public boolean getBoolean(int row, int column) {
+		return ((boolean[]) this.columns[column])[this.offset + row];
+	}
+
+	/*
+	 * The typed column getters return the backing arrays if the table is not
+	 * a slice (do not modify them); otherwise, they return copies of the
+	 * sliced range.
+	 */
+	public boolean[] getBooleanColumn(int column) {
+		checkType(column, JavaToR.RdataTypeCode.LOGICAL);
+		boolean[] a = (boolean[]) this.columns[column];
+		return isSlice() ? Arrays.copyOfRange(a, this.offset, this.offset + this.rowCount) : a;
+	}
+
+	public byte getByte(int row, int column) {
+		return ((byte[]) this.columns[column])[this.offset + row];
+	}
+
+	public byte[] getByteColumn(int column) {
+		checkType(column, JavaToR.RdataTypeCode.RAW);
+		byte[] a = (byte[]) this.columns[column];
+		return isSlice() ? Arrays.copyOfRange(a, this.offset, this.offset + this.rowCount) : a;
+	}
+
+	/*
+	 * Returns the column array (sliced if necessary) without type checking.
+	 */
+	Object getColumn(int column) {
+		switch (this.types[column]) {
+		case NUMERIC:
+			return getDoubleColumn(column);
+		case INTEGER:
+			return getIntColumn(column);
+		case CHARACTER:
+			return getStringColumn(column);
+		case LOGICAL:
+			return getBooleanColumn(column);
+		default:
+			return getByteColumn(column);
+		}
+	}
+
+	public int getColumnCount() {
+		return columns.length;
+	}
+
+	/*
+	 * Returns the index of the named column or -1.
+	 */
+	public int getColumnIndex(String name) {
+		for (int j = 0; j < this.names.length; j++) {
+			if (this.names[j].equals(name))
+				return j;
+		}
+		return -1;
+	}
+
+	public JavaToR.RdataTypeCode getColumnType(int column) {
+		return types[column];
+	}
+
+	public double getDouble(int row, int column) {
+		return ((double[]) this.columns[column])[this.offset + row];
+	}
+
+	public double[] getDoubleColumn(int column) {
+		checkType(column, JavaToR.RdataTypeCode.NUMERIC);
+		double[] a = (double[]) this.columns[column];
+		return isSlice() ? Arrays.copyOfRange(a, this.offset, this.offset + this.rowCount) : a;
+	}
+
+	/*
+	 * Returns the factor column (sliced if necessary). The levels are shared
+	 * with the table; the codes are shared unless the table is a slice.
+	 */
+	public Factor getFactorColumn(int column) {
+		if (!isFactor(column))
+			throw new RuntimeException(String.format("The column '%s' is not a factor.", this.names[column]));
+		Factor a = (Factor) this.columns[column];
+		if (!isSlice())
+			return a;
+		return new Factor(Arrays.copyOfRange(a.getCodes(), this.offset, this.offset + this.rowCount), a.getLevels(), a.isOrdered());
+	}
+
+	public int getInt(int row, int column) {
+		return ((int[]) this.columns[column])[this.offset + row];
+	}
+
+	public int[] getIntColumn(int column) {
+		checkType(column, JavaToR.RdataTypeCode.INTEGER);
+		int[] a = (int[]) this.columns[column];
+		return isSlice() ? Arrays.copyOfRange(a, this.offset, this.offset + this.rowCount) : a;
+	}
+
+	/*
+	 * Returns the zero-based indices of the missing values in the column, or
+	 * null if there are none.
+	 */
+	public int[] getMissingRows(int column) {
+		long[] bitmap = this.missing[column];
+		if (bitmap == null)
+			return null;
+		int count = 0;
+		for (int i = 0; i < this.rowCount; i++) {
+			if (isSet(bitmap, this.offset + i))
+				count++;
+		}
+		if (count == 0)
+			return null;
+		int[] rows = new int[count];
+		count = 0;
+		for (int i = 0; i < this.rowCount; i++) {
+			if (isSet(bitmap, this.offset + i))
+				rows[count++] = i;
+		}
+		return rows;
+	}
+
+	public String[] getNames() {
+		return names.clone();
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	public String getString(int row, int column) {
+		Object a = this.columns[column];
+		if (a instanceof Factor)
+			return ((Factor) a).get(this.offset + row);
+		return ((String[]) a)[this.offset + row];
+	}
+
+	/*
+	 * Factor columns are expanded to references to their levels.
+	 */
+	public String[] getStringColumn(int column) {
+		checkType(column, JavaToR.RdataTypeCode.CHARACTER);
+		if (isFactor(column))
+			return getFactorColumn(column).toStringArray();
+		String[] a = (String[]) this.columns[column];
+		return isSlice() ? Arrays.copyOfRange(a, this.offset, this.offset + this.rowCount) : a;
+	}
+
+	/*
+	 * Returns the value as an object, or null if it is missing. Used by row
+	 * filters.
+	 */
+	Object getValue(int row, int column) {
+		if (isNA(row, column))
+			return null;
+		int i = this.offset + row;
+		Object a = this.columns[column];
+		switch (this.types[column]) {
+		case NUMERIC:
+			return ((double[]) a)[i];
+		case INTEGER:
+			return ((int[]) a)[i];
+		case CHARACTER:
+			return getString(row, column);
+		case LOGICAL:
+			return ((boolean[]) a)[i];
+		default:
+			return ((byte[]) a)[i];
+		}
+	}
+
+	public boolean hasMissingValues(int column) {
+		return getMissingRows(column) != null;
+	}
+
+	private static boolean isNA(double value) {
+		return Double.isNaN(value) && (Double.doubleToRawLongBits(value) & 0xFFFFFFFFL) == NA_DOUBLE_LOW_WORD;
+	}
+
+	public boolean isFactor(int column) {
+		return columns[column] instanceof Factor;
+	}
+
+	public boolean isNA(int row, int column) {
+		long[] bitmap = this.missing[column];
+		return bitmap != null && isSet(bitmap, this.offset + row);
+	}
+
+	private static boolean isSet(long[] bitmap, int i) {
+		return (bitmap[i >>> 6] & (1L << i)) != 0;
+	}
+
+	public boolean isSlice() {
+		return this.offset != 0 || (this.columns.length > 0 && this.rowCount != lengthOf(this.columns[0]));
+	}
+
+	private static int lengthOf(Object column) {
+		return (column instanceof Factor) ? ((Factor) column).size() : Array.getLength(column);
+	}
+
+	private long[] setBit(long[] bitmap, int i) {
+		if (bitmap == null)
+			bitmap = new long[(this.rowCount + 63) >>> 6];
+		bitmap[i >>> 6] |= 1L << i;
+		return bitmap;
+	}
+
+	/*
+	 * Returns rows [from, to) without copying.
+	 */
+	public Table slice(int from, int to) {
+		if (from < 0 || to > this.rowCount || from > to)
+			throw new RuntimeException(String.format("The slice [%d, %d) is out of bounds for %d rows.", from, to, this.rowCount));
+		return new Table(this, this.offset + from, to - from);
+	}
+
+}
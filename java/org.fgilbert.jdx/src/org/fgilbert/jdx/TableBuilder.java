@@ -0,0 +1,304 @@
+package org.fgilbert.jdx;
+
+/*
+ * Builds a Table from blocks of rows (chunks) appended one at a time, so that
+ * data too large to convert at once can be transferred from R in pieces (e.g.
+ * while reading a file). Columns are stored in growable typed buffers. Only
+ * the current chunk and the buffers are held in memory; `build` seals the
+ * builder and returns the result.
+ *
+ * Column types are taken from the first chunk. In later chunks, integer and
+ * numeric columns are widened to numeric as required. A logical column in
+ * which every value is missing (e.g. an all-NA column in a chunk read by
+ * read.csv) adopts the type of the other chunks. Factors are stored as
+ * character columns because the levels of chunks may differ.
+ *
+ * Missing logical and raw values are passed via `missingRows` (zero-based row
+ * indices within the chunk), as for Utility.createTable. Other missing values
+ * are detected by Table. See createTableBuilder in the R package.
+ *
+ * Builders are not thread-safe.
+ */
+
+import static org.fgilbert.jdx.Rdata.*;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+
+import org.fgilbert.jdx.JavaToR.RdataTypeCode;
+
+public final class TableBuilder {
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private int capacity;
+	private Object[] columns;
+	private final StringDeduplicator deduplicator;
+	private final int expectedRowCount;
+	private int[][] missing;
+	private int[] missingCounts;
+	private final String[] names;
+	private int rowCount;
+	private boolean sealed;
+	private RdataTypeCode[] types;
+
+	public TableBuilder(String[] names) {
+		this(names, 0, false);
+	}
+
+	/*
+	 * `expectedRowCount` is the initial capacity of the buffers. If it is
+	 * correct, the buffers are not copied when the builder is sealed. When
+	 * `deduplicateStrings` is true, one StringDeduplicator is shared by all
+	 * character columns and chunks.
+	 */
+	public TableBuilder(String[] names, int expectedRowCount, boolean deduplicateStrings) {
+		for (int j = 0; j < names.length; j++) {
+			for (int k = 0; k < j; k++) {
+				if (names[j].equals(names[k]))
+					throw new RuntimeException(String.format("The name '%s' is duplicated.", names[j]));
+			}
+		}
+		this.names = names.clone();
+		this.expectedRowCount = Math.max(expectedRowCount, 0);
+		this.deduplicator = deduplicateStrings ? new StringDeduplicator() : null;
+	}
+
+	private void addMissingRow(int column, int row) {
+		if (this.missing[column] == null)
+			this.missing[column] = new int[16];
+		else if (this.missingCounts[column] == this.missing[column].length)
+			this.missing[column] = Arrays.copyOf(this.missing[column], this.missing[column].length * 2);
+		this.missing[column][this.missingCounts[column]++] = row;
+	}
+
+	public TableBuilder append(Object[] columns) {
+		return append(columns, null);
+	}
+
+	public TableBuilder append(Object[] columns, Object[] missingRows) {
+		if (this.sealed)
+			throw new RuntimeException("Rows cannot be appended after the table has been built.");
+		if (columns.length != this.names.length)
+			throw new RuntimeException(String.format("%d columns are required.", this.names.length));
+		columns = columns.clone();
+		for (int j = 0; j < columns.length; j++) {
+			if (columns[j] instanceof Factor)
+				columns[j] = ((Factor) columns[j]).toStringArray();
+		}
+		int n = (columns.length > 0) ? lengthOf(columns[0]) : 0;
+		RdataTypeCode[] chunkTypes = new RdataTypeCode[columns.length];
+		for (int j = 0; j < columns.length; j++) {
+			chunkTypes[j] = typeOf(columns[j], this.names[j]);
+			if (lengthOf(columns[j]) != n)
+				throw new RuntimeException(String.format("The column '%s' does not have %d rows.", this.names[j], n));
+		}
+		if (this.types == null) {
+			this.types = chunkTypes.clone();
+			this.capacity = Math.max(Math.max(this.expectedRowCount, n), INITIAL_CAPACITY);
+			this.columns = new Object[columns.length];
+			for (int j = 0; j < columns.length; j++)
+				this.columns[j] = createBuffer(this.types[j], this.capacity);
+			this.missing = new int[columns.length][];
+			this.missingCounts = new int[columns.length];
+		}
+		ensureCapacity(this.rowCount + n);
+		for (int j = 0; j < columns.length; j++) {
+			int[] chunkMissingRows = (missingRows == null) ? null : (int[]) missingRows[j];
+			int chunkMissingCount = (chunkMissingRows == null) ? 0 : chunkMissingRows.length;
+			if (chunkTypes[j] != this.types[j]) {
+				if (this.types[j] == RdataTypeCode.LOGICAL && this.missingCounts[j] == this.rowCount) {
+					// Every value so far is missing. Adopt the type of this chunk.
+					this.types[j] = chunkTypes[j];
+					this.columns[j] = createBuffer(chunkTypes[j], this.capacity);
+					this.missingCounts[j] = 0;
+					fillMissing(j, 0, this.rowCount);
+				} else if (chunkTypes[j] == RdataTypeCode.LOGICAL && chunkMissingCount == n) {
+					fillMissing(j, this.rowCount, n);
+					continue;
+				} else if (this.types[j] == RdataTypeCode.NUMERIC && chunkTypes[j] == RdataTypeCode.INTEGER) {
+					columns[j] = toDoubleArray((int[]) columns[j]);
+				} else if (this.types[j] == RdataTypeCode.INTEGER && chunkTypes[j] == RdataTypeCode.NUMERIC) {
+					this.types[j] = RdataTypeCode.NUMERIC;
+					this.columns[j] = toDoubleArray((int[]) this.columns[j]);
+				} else {
+					throw new RuntimeException(String.format("The column '%s' is of type %s in previous chunks, but of type %s in this chunk.", this.names[j], this.types[j].name().toLowerCase(), chunkTypes[j].name().toLowerCase()));
+				}
+			}
+			if (this.deduplicator != null && columns[j] instanceof String[])
+				this.deduplicator.deduplicate((String[]) columns[j]);
+			System.arraycopy(columns[j], 0, this.columns[j], this.rowCount, n);
+			if (this.types[j] == RdataTypeCode.LOGICAL || this.types[j] == RdataTypeCode.RAW) {
+				for (int k = 0; k < chunkMissingCount; k++) {
+					int row = chunkMissingRows[k];
+					if (row < 0 || row >= n)
+						throw new RuntimeException(String.format("The missing row index %d is out of bounds for column '%s'.", row, this.names[j]));
+					addMissingRow(j, this.rowCount + row);
+				}
+			}
+		}
+		this.rowCount += n;
+		return this;
+	}
+
+	/*
+	 * Seals the builder and returns the table. The buffers are trimmed to the
+	 * row count.
+	 */
+	public Table build() {
+		Object[] columns = buildColumns();
+		Object[] missingRows = new Object[columns.length];
+		for (int j = 0; j < columns.length; j++) {
+			if (this.missingCounts != null && this.missingCounts[j] > 0)
+				missingRows[j] = Arrays.copyOf(this.missing[j], this.missingCounts[j]);
+		}
+		return new Table(this.names, columns, missingRows);
+	}
+
+	/*
+	 * Seals the builder and returns the columns trimmed to the row count
+	 * (e.g. for Utility.createListOfRecordsView). Missing logical and raw
+	 * values are returned as false and 0, respectively; see
+	 * hasMissingLogicalValues and hasMissingRawValues.
+	 */
+	public Object[] buildColumns() {
+		this.sealed = true;
+		if (this.types == null)
+			throw new RuntimeException("At least one chunk must be appended to determine the column types.");
+		for (int j = 0; j < this.columns.length; j++) {
+			if (lengthOf(this.columns[j]) != this.rowCount)
+				this.columns[j] = copyOf(this.columns[j], this.rowCount);
+		}
+		this.capacity = this.rowCount;
+		return this.columns.clone();
+	}
+
+	private static Object copyOf(Object array, int length) {
+		if (array instanceof double[])
+			return Arrays.copyOf((double[]) array, length);
+		if (array instanceof int[])
+			return Arrays.copyOf((int[]) array, length);
+		if (array instanceof String[])
+			return Arrays.copyOf((String[]) array, length);
+		if (array instanceof boolean[])
+			return Arrays.copyOf((boolean[]) array, length);
+		return Arrays.copyOf((byte[]) array, length);
+	}
+
+	private static Object createBuffer(RdataTypeCode type, int capacity) {
+		switch (type) {
+		case NUMERIC:
+			return new double[capacity];
+		case INTEGER:
+			return new int[capacity];
+		case CHARACTER:
+			return new String[capacity];
+		case LOGICAL:
+			return new boolean[capacity];
+		default:
+			return new byte[capacity];
+		}
+	}
+
+	private void ensureCapacity(int required) {
+		if (required <= this.capacity)
+			return;
+		int capacity = this.capacity;
+		while (capacity < required)
+			capacity = (capacity > Integer.MAX_VALUE / 2) ? Integer.MAX_VALUE : capacity * 2;
+		for (int j = 0; j < this.columns.length; j++)
+			this.columns[j] = copyOf(this.columns[j], capacity);
+		this.capacity = capacity;
+	}
+
+	/*
+	 * Sets `count` values of the column starting at `from` to NA.
+	 */
+	private void fillMissing(int column, int from, int count) {
+		Object a = this.columns[column];
+		switch (this.types[column]) {
+		case NUMERIC:
+			Arrays.fill((double[]) a, from, from + count, NA_DOUBLE);
+			break;
+		case INTEGER:
+			Arrays.fill((int[]) a, from, from + count, NA_INT);
+			break;
+		case CHARACTER:
+			Arrays.fill((String[]) a, from, from + count, null);
+			break;
+		default:
+			// Logical and raw values default to false and 0.
+			for (int i = from; i < from + count; i++)
+				addMissingRow(column, i);
+			break;
+		}
+	}
+
+	/*
+	 * Returns the deduplicator, or null if strings are not deduplicated.
+	 */
+	public StringDeduplicator getDeduplicator() {
+		return deduplicator;
+	}
+
+	public String[] getNames() {
+		return names.clone();
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	/*
+	 * Returns true if a logical column contains missing values. They are
+	 * retained by build, but not by buildColumns. The R package raises a
+	 * warning.
+	 */
+	public boolean hasMissingLogicalValues() {
+		return hasMissingValues(RdataTypeCode.LOGICAL);
+	}
+
+	public boolean hasMissingRawValues() {
+		return hasMissingValues(RdataTypeCode.RAW);
+	}
+
+	private boolean hasMissingValues(RdataTypeCode type) {
+		if (this.types == null)
+			return false;
+		for (int j = 0; j < this.types.length; j++) {
+			if (this.types[j] == type && this.missingCounts[j] > 0)
+				return true;
+		}
+		return false;
+	}
+
+	public boolean isSealed() {
+		return sealed;
+	}
+
+	private static int lengthOf(Object array) {
+		return (array == null || !array.getClass().isArray()) ? -1 : Array.getLength(array);
+	}
+
+	private static double[] toDoubleArray(int[] a) {
+		double[] b = new double[a.length];
+		for (int i = 0; i < a.length; i++)
+			b[i] = (a[i] == NA_INT) ? NA_DOUBLE : a[i];
+		return b;
+	}
+
+	private static RdataTypeCode typeOf(Object column, String name) {
+		if (column instanceof double[])
+			return RdataTypeCode.NUMERIC;
+		if (column instanceof int[])
+			return RdataTypeCode.INTEGER;
+		if (column instanceof String[])
+			return RdataTypeCode.CHARACTER;
+		if (column instanceof boolean[])
+			return RdataTypeCode.LOGICAL;
+		if (column instanceof byte[])
+			return RdataTypeCode.RAW;
+		throw new RuntimeException(String.format("The column '%s' is not of a supported type.", name));
+	}
+
+}
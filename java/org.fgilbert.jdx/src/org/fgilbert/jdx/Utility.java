@@ -7,6 +7,8 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.fgilbert.jdx.JavaToR.ArrayOrder;
+
 public class Utility {
 
 	/*
@@ -20,11 +22,29 @@ public class Utility {
 		return lst;
 	}
 
+	/*
+	 * Used by the R function coerceCharacterToX. Returns int[], double[],
+	 * boolean[], or `values` (if no conversion is possible). Logical NA values
+	 * are returned as false. See StringCoercion.
+	 */
+	public static Object coerceStringArray(String[] values) {
+		return StringCoercion.coerce(values);
+	}
+
+	/*
+	 * Used to convert an R factor to a Factor without expanding the levels.
+	 * `codes` are R's one-based factor codes.
+	 */
+	public static Factor createFactor(int[] codes, String[] levels, boolean ordered) {
+		return new Factor(codes, levels, ordered);
+	}
+
 	/*
 	 * Used to convert an R data frame to a list of records (a row-major
 	 * structure). IMPORTANT: This method does not validate the incoming data.
 	 */
 	public static List<Map<String, Object>> createListOfRecords(String[] columnNames, Object[] columns) {
+		columns = expandFactors(columns);
 		int rows = 0;
 		if (columns.length > 0)
 			rows = Array.getLength(columns[0]);
@@ -69,6 +89,113 @@ public class Utility {
 		return lst;
 	}
 
+	/*
+	 * Same as createListOfRecords, except the records are immutable
+	 * CompactRecord objects that share one key index. IMPORTANT: This method
+	 * does not validate the incoming data.
+	 */
+	public static List<Map<String, Object>> createListOfCompactRecords(String[] columnNames, Object[] columns) {
+		columns = expandFactors(columns);
+		int rows = 0;
+		if (columns.length > 0)
+			rows = Array.getLength(columns[0]);
+		
+		Object[][] values = new Object[rows][columns.length];
+		for (int i = 0; i < columns.length; i++) {
+			Class<?> ct = columns[i].getClass().getComponentType();
+			if (ct.equals(Double.TYPE)) {
+				double[] a = (double[]) columns[i];
+				for (int j = 0; j < rows; j++) {
+					values[j][i] = a[j];
+				}
+			} else if (ct.equals(String.class)) {
+				String[] a = (String[]) columns[i];
+				for (int j = 0; j < rows; j++) {
+					values[j][i] = a[j];
+				}
+			} else if (ct.equals(Integer.TYPE)) {
+				int[] a = (int[]) columns[i];
+				for (int j = 0; j < rows; j++) {
+					values[j][i] = a[j];
+				}
+			} else if (ct.equals(Boolean.TYPE)) {
+				boolean[] a = (boolean[]) columns[i];
+				for (int j = 0; j < rows; j++) {
+					values[j][i] = a[j];
+				}
+			} else if (ct.equals(Byte.TYPE)) {
+				byte[] a = (byte[]) columns[i];
+				for (int j = 0; j < rows; j++) {
+					values[j][i] = a[j];
+				}
+			} else {
+				throw new RuntimeException(String.format("'%s' is not a supported column type.", ct.getName()));
+			}
+		}
+
+		CompactRecord.Schema schema = new CompactRecord.Schema(columnNames);
+		List<Map<String, Object>> lst = new ArrayList<Map<String, Object>>(rows);
+		for (int j = 0; j < rows; j++) {
+			lst.add(new CompactRecord(schema, values[j]));
+		}
+		return lst;
+	}
+
+	/*
+	 * Used to convert an R data frame to a list of typed Java objects. Each
+	 * row is bound to a new instance of `cls`, which must be a record or a
+	 * JavaBean with a no-argument constructor. Columns are matched to record
+	 * components, writable bean properties, or public fields by name. See
+	 * AccessorPlan.
+	 */
+	public static <T> List<T> createListOfObjects(String[] columnNames, Object[] columns, Class<T> cls) {
+		return AccessorPlan.get(cls).createObjects(columnNames, expandFactors(columns));
+	}
+
+	/*
+	 * Same as createListOfRecords, except the records are read-only views of
+	 * the column arrays. Values are boxed on access only, and factors are not
+	 * expanded. See RecordListView. IMPORTANT: This method does not validate
+	 * the incoming data.
+	 */
+	public static List<Map<String, Object>> createListOfRecordsView(String[] columnNames, Object[] columns) {
+		for (int i = 0; i < columns.length; i++) {
+			if (columns[i] instanceof Factor)
+				continue;
+			Class<?> ct = columns[i].getClass().getComponentType();
+			if (!(ct.equals(Double.TYPE) || ct.equals(String.class) || ct.equals(Integer.TYPE) || ct.equals(Boolean.TYPE) || ct.equals(Byte.TYPE)))
+				throw new RuntimeException(String.format("'%s' is not a supported column type.", ct.getName()));
+		}
+		return new RecordListView(columnNames, columns);
+	}
+
+	/*
+	 * Creates sparse matrices from the slots of R's Matrix::dgCMatrix (i, p,
+	 * x), dgRMatrix (j, p, x), and dgTMatrix (i, j, x). `dimensions` is the
+	 * Dim slot. The arrays are not copied. See SparseMatrix.
+	 */
+	public static SparseMatrix createSparseMatrixCoo(int[] dimensions, int[] rowIndices, int[] columnIndices, double[] values) {
+		return SparseMatrix.createCoo(dimensions[0], dimensions[1], rowIndices, columnIndices, values);
+	}
+
+	public static SparseMatrix createSparseMatrixCsc(int[] dimensions, int[] rowIndices, int[] columnPointers, double[] values) {
+		return SparseMatrix.createCsc(dimensions[0], dimensions[1], rowIndices, columnPointers, values);
+	}
+
+	public static SparseMatrix createSparseMatrixCsr(int[] dimensions, int[] columnIndices, int[] rowPointers, double[] values) {
+		return SparseMatrix.createCsr(dimensions[0], dimensions[1], columnIndices, rowPointers, values);
+	}
+
+	/*
+	 * Used to convert an R data frame to a Table. `missingRows` contains an
+	 * int[] of zero-based row indices (or null) per column and is used to
+	 * retain NA for logical columns. Factors are stored as Factor columns.
+	 * See Table.
+	 */
+	public static Table createTable(String[] columnNames, Object[] columns, Object[] missingRows) {
+		return new Table(columnNames, columns, missingRows);
+	}
+
 	/*
 	 * IMPORTANT: This method does not validate the incoming data.
 	 */
@@ -79,7 +206,54 @@ public class Utility {
 		}
 		return m;
 	}
+
+	/*
+	 * Create a nested graph of lists and maps from a packed description created
+	 * by the R package. The root must be an unnamed list for createListFromTape
+	 * and a named list for createMapFromTape. See ListTape.
+	 */
+	@SuppressWarnings("unchecked")
+	public static List<Object> createListFromTape(int[] codes, int[] lengths, double[] doubles, int[] integers, String[] strings, String[] names) {
+		Object result = ListTape.unpack(codes, lengths, doubles, integers, strings, names);
+		if (!(result instanceof List))
+			throw new RuntimeException("The root of the list tape must be an unnamed list.");
+		return (List<Object>) result;
+	}
+
+	@SuppressWarnings("unchecked")
+	public static Map<String, Object> createMapFromTape(int[] codes, int[] lengths, double[] doubles, int[] integers, String[] strings, String[] names) {
+		Object result = ListTape.unpack(codes, lengths, doubles, integers, strings, names);
+		if (!(result instanceof Map))
+			throw new RuntimeException("The root of the list tape must be a named list.");
+		return (Map<String, Object>) result;
+	}
 	
+	/*
+	 * Creates a strided NdArray view over an R array's backing vector `data`
+	 * with R dimensions `dimensions`. Unlike createNdimensionalArray*, the data
+	 * are not copied; `order` only determines how the view is indexed. The
+	 * typed overloads are provided for rJava.
+	 */
+	public static NdArray createNdArray(boolean[] data, int[] dimensions, ArrayOrder order) {
+		return NdArray.create(data, dimensions, order);
+	}
+
+	public static NdArray createNdArray(byte[] data, int[] dimensions, ArrayOrder order) {
+		return NdArray.create(data, dimensions, order);
+	}
+
+	public static NdArray createNdArray(double[] data, int[] dimensions, ArrayOrder order) {
+		return NdArray.create(data, dimensions, order);
+	}
+
+	public static NdArray createNdArray(int[] data, int[] dimensions, ArrayOrder order) {
+		return NdArray.create(data, dimensions, order);
+	}
+
+	public static NdArray createNdArray(String[] data, int[] dimensions, ArrayOrder order) {
+		return NdArray.create(data, dimensions, order);
+	}
+
 	/*
 	 * Creates an n-dimensional array from a 1-dimensional array (vector) where
 	 * the right-most index changes the fastest:
@@ -619,6 +793,23 @@ public class Utility {
 		return array;
 	}
 	
+	/*
+	 * Deduplicates the strings in each String[] element of `arrays` (and the
+	 * levels of each Factor) in place using one deduplicator, which is
+	 * returned to report the results. Other elements are ignored. Used by
+	 * convertToJava when deduplicate.strings = TRUE. See StringDeduplicator.
+	 */
+	public static StringDeduplicator deduplicateStrings(Object[] arrays) {
+		StringDeduplicator deduplicator = new StringDeduplicator();
+		for (Object array : arrays) {
+			if (array instanceof String[])
+				deduplicator.deduplicate((String[]) array);
+			else if (array instanceof Factor)
+				deduplicator.deduplicate(((Factor) array).getLevels());
+		}
+		return deduplicator;
+	}
+
 	/*
 	 * Creates an n-dimensional array from a 1-dimensional array (vector) using
 	 * R's indexing scheme (the left-most index changes the fastest). That is
@@ -675,6 +866,22 @@ public class Utility {
 		return al;
 	}
 	
+	/*
+	 * Replaces Factor columns with String[] columns of references to the level
+	 * strings. Other columns are returned as is.
+	 */
+	private static Object[] expandFactors(Object[] columns) {
+		Object[] result = columns;
+		for (int i = 0; i < columns.length; i++) {
+			if (columns[i] instanceof Factor) {
+				if (result == columns)
+					result = columns.clone();
+				result[i] = ((Factor) columns[i]).toStringArray();
+			}
+		}
+		return result;
+	}
+
 	/*
 	 * Iterates through all dimensions and returns the base component type of an
 	 * array class. Returns null if `cls` does not represent an array.
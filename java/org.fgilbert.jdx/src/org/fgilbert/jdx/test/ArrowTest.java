@@ -0,0 +1,212 @@
+package org.fgilbert.jdx.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.fgilbert.jdx.ArrowWriter;
+import org.fgilbert.jdx.JavaToR;
+import org.fgilbert.jdx.OffHeapArena;
+import org.junit.Test;
+
+public class ArrowTest {
+
+	/*
+	 * Reads the flatbuffer tables of Arrow IPC metadata.
+	 */
+	private static final class Table {
+		private final ByteBuffer b;
+		private final int position;
+
+		Table(ByteBuffer b, int position) {
+			this.b = b;
+			this.position = position;
+		}
+
+		static Table root(ByteBuffer b, int start) {
+			return new Table(b, start + b.getInt(start));
+		}
+
+		/*
+		 * Returns the absolute position of a field, or 0 if it is absent.
+		 */
+		int field(int slot) {
+			int vtable = this.position - this.b.getInt(this.position);
+			if (4 + 2 * slot >= this.b.getShort(vtable))
+				return 0;
+			int offset = this.b.getShort(vtable + 4 + 2 * slot);
+			return (offset == 0) ? 0 : this.position + offset;
+		}
+
+		long getLong(int slot) {
+			int p = field(slot);
+			return (p == 0) ? 0 : this.b.getLong(p);
+		}
+
+		int getByte(int slot) {
+			int p = field(slot);
+			return (p == 0) ? 0 : this.b.get(p);
+		}
+
+		String getString(int slot) {
+			int p = indirect(field(slot));
+			byte[] a = new byte[this.b.getInt(p)];
+			for (int i = 0; i < a.length; i++)
+				a[i] = this.b.get(p + 4 + i);
+			return new String(a, StandardCharsets.UTF_8);
+		}
+
+		Table getTable(int slot) {
+			return new Table(this.b, indirect(field(slot)));
+		}
+
+		/*
+		 * Returns the position of the first element of a vector; the length
+		 * precedes it.
+		 */
+		int getVector(int slot) {
+			return indirect(field(slot)) + 4;
+		}
+
+		Table getVectorTable(int slot, int i) {
+			int p = getVector(slot) + 4 * i;
+			return new Table(this.b, indirect(p));
+		}
+
+		int getVectorLength(int slot) {
+			return this.b.getInt(getVector(slot) - 4);
+		}
+
+		private int indirect(int p) {
+			return p + this.b.getInt(p);
+		}
+	}
+
+	/*
+	 * Returns the position of the message following the message at `p`.
+	 */
+	private static int nextMessage(ByteBuffer b, int p) {
+		Table message = Table.root(b, p + 8);
+		return p + 8 + b.getInt(p + 4) + (int) message.getLong(3);
+	}
+
+	@Test
+	public void testWriteDataFrame() {
+		Map<String, Object> value = new LinkedHashMap<String, Object>();
+		value.put("a", new double[] {1.5, Double.longBitsToDouble(0x7ff00000000007a2L), Double.NaN});
+		value.put("b", new int[] {7, 8, Integer.MIN_VALUE});
+		value.put("c", new String[] {"x", null, "x"});
+		value.put("d", new boolean[] {true, false, true});
+		JavaToR j2r = new JavaToR();
+		j2r.initialize(value);
+		ArrowWriter writer = new ArrowWriter();
+		ByteBuffer b = ByteBuffer.wrap(writer.write(j2r)).order(ByteOrder.LITTLE_ENDIAN);
+		// Schema message.
+		assertEquals(0xFFFFFFFF, b.getInt(0));
+		assertEquals(0, b.getInt(4) % 8);
+		Table message = Table.root(b, 8);
+		assertEquals(1, message.getByte(1));
+		Table schema = message.getTable(2);
+		assertEquals(4, schema.getVectorLength(1));
+		assertEquals("c", schema.getVectorTable(1, 2).getString(0));
+		assertEquals(2, schema.getVectorTable(1, 2).getTable(4).getLong(0));
+		// Dictionary batch for column c.
+		int p = nextMessage(b, 0);
+		message = Table.root(b, p + 8);
+		assertEquals(2, message.getByte(1));
+		assertEquals(2, message.getTable(2).getLong(0));
+		assertEquals(1, message.getTable(2).getTable(1).getLong(0));
+		// Record batch: one node per column with null counts.
+		p = nextMessage(b, p);
+		message = Table.root(b, p + 8);
+		assertEquals(3, message.getByte(1));
+		Table batch = message.getTable(2);
+		assertEquals(3, batch.getLong(0));
+		int nodes = batch.getVector(1);
+		long[] nullCounts = new long[4];
+		for (int j = 0; j < 4; j++)
+			nullCounts[j] = b.getLong(nodes + 16 * j + 8);
+		assertTrue(Arrays.equals(new long[] {1, 1, 1, 0}, nullCounts));
+		// The int32 values of column b are the third buffer.
+		int buffers = batch.getVector(2);
+		int body = p + 8 + b.getInt(p + 4);
+		int offset = body + (int) b.getLong(buffers + 16 * 3);
+		assertEquals(7, b.getInt(offset));
+		assertEquals(8, b.getInt(offset + 4));
+		// End-of-stream marker.
+		p = nextMessage(b, p);
+		assertEquals(0xFFFFFFFF, b.getInt(p));
+		assertEquals(0, b.getInt(p + 4));
+		assertEquals(b.capacity(), p + 8);
+	}
+
+	@Test
+	public void testWriteSpilled() {
+		Map<String, Object> record = new LinkedHashMap<String, Object>();
+		record.put("x", 1.5);
+		record.put("y", "a");
+		record.put("z", true);
+		Object[] values = {
+			Arrays.asList(record, record, record)
+			, Arrays.asList(new int[] {1, 2, 3}, new int[] {4, 5, 6})
+		};
+		ArrowWriter writer = new ArrowWriter();
+		OffHeapArena arena = new OffHeapArena(null, 0);
+		try {
+			for (Object value : values) {
+				JavaToR j2r = new JavaToR(value);
+				byte[] expected = writer.write(j2r);
+				j2r.setMemoryBudget(1);
+				j2r.initialize(value);
+				assertEquals(JavaToR.RdataStructureCode.MAPPED_FILE, j2r.getRdataStructureCode());
+				String path = j2r.getValueString();
+				assertArrayEquals(expected, writer.write(j2r));
+				assertFalse(new File(path).exists());
+
+				j2r.setMemoryBudget(0);
+				j2r.setArena(arena);
+				j2r.initialize(value);
+				assertEquals(JavaToR.RdataStructureCode.MAPPED_FILE, j2r.getRdataStructureCode());
+				assertArrayEquals(expected, writer.write(j2r));
+				assertEquals(0, arena.getSegmentCount());
+				j2r.setArena(null);
+			}
+		} finally {
+			arena.close();
+		}
+	}
+
+	@Test
+	public void testWriteFile() {
+		JavaToR j2r = new JavaToR();
+		j2r.initialize(new int[][] {{1, 2}, {3, 4}, {5, 6}});
+		ArrowWriter writer = new ArrowWriter();
+		writer.setFileFormat(true);
+		writer.setBatchSize(2);
+		ByteBuffer b = ByteBuffer.wrap(writer.write(j2r)).order(ByteOrder.LITTLE_ENDIAN);
+		byte[] magic = "ARROW1".getBytes(StandardCharsets.US_ASCII);
+		assertArrayEquals(magic, Arrays.copyOfRange(b.array(), 0, 6));
+		assertArrayEquals(magic, Arrays.copyOfRange(b.array(), b.capacity() - 6, b.capacity()));
+		int footerLength = b.getInt(b.capacity() - 10);
+		Table footer = Table.root(b, b.capacity() - 10 - footerLength);
+		Table schema = footer.getTable(1);
+		assertEquals(2, schema.getVectorLength(1));
+		assertEquals("V2", schema.getVectorTable(1, 1).getString(0));
+		// Two record batches (2 rows and 1 row). Blocks are 24 bytes.
+		assertEquals(2, footer.getVectorLength(3));
+		int block = (int) b.getLong(footer.getVector(3) + 24);
+		Table batch = Table.root(b, block + 8).getTable(2);
+		assertEquals(1, batch.getLong(0));
+		int body = block + b.getInt(footer.getVector(3) + 24 + 8);
+		int buffers = batch.getVector(2);
+		// Second column, third row: 6.
+		assertEquals(6, b.getInt(body + (int) b.getLong(buffers + 16 * 3)));
+	}
+
+}
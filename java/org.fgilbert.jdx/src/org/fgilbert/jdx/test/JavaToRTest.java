@@ -0,0 +1,532 @@
+package org.fgilbert.jdx.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.sql.ResultSet;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.fgilbert.jdx.ConversionEstimate;
+import org.fgilbert.jdx.DataFrameCursor;
+import org.fgilbert.jdx.JavaToR;
+import org.fgilbert.jdx.JavaToR.ArrayOrder;
+import org.fgilbert.jdx.JavaToR.RdataStructureCode;
+import org.fgilbert.jdx.NdArray;
+import org.fgilbert.jdx.OffHeapArena;
+import org.fgilbert.jdx.ObjectPath;
+import org.fgilbert.jdx.RowFilter;
+import org.fgilbert.jdx.SparseMatrix;
+import org.junit.Test;
+
+public class JavaToRTest {
+
+	/*
+	 * Most data testing is done via R. These tests cover the Java-only
+	 * features.
+	 */
+
+	@Test
+	public void testColumnSelectionAndRowFilter() {
+		List<Map<String, Object>> records = new ArrayList<Map<String, Object>>();
+		for (int i = 0; i < 6; i++) {
+			Map<String, Object> record = new LinkedHashMap<String, Object>();
+			record.put("id", i);
+			record.put("name", "n" + i);
+			record.put("x", i * 1.5);
+			record.put("flag", i % 2 == 0);
+			records.add(record);
+		}
+		JavaToR j2r = new JavaToR();
+		j2r.initialize(records, ArrayOrder.ROW_MAJOR, new String[] {"id", "x"}, "x >= 3 and (flag == TRUE | name == 'n5')");
+		assertEquals(RdataStructureCode.DATA_FRAME, j2r.getRdataStructureCode());
+		Object[] value = j2r.getValueObjectArray1d();
+		Object[] columns = (Object[]) value[1];
+		assertArrayEquals(new String[] {"id", "x"}, (String[]) value[2]);
+		assertArrayEquals(new int[] {2, 4, 5}, (int[]) columns[0]);
+		assertArrayEquals(new double[] {3, 6, 7.5}, (double[]) columns[1], 0);
+
+		Map<String, Object> m = new LinkedHashMap<String, Object>();
+		m.put("a", new double[] {1, 2, 3, 4});
+		m.put("b", Arrays.asList("p", "q", "r", "s"));
+		m.put("c", new int[] {5, 6, 7, 8});
+		j2r.initialize(m, ArrayOrder.ROW_MAJOR, new String[] {"b", "a"}, "c > 5 && b != 'r'");
+		assertEquals(RdataStructureCode.DATA_FRAME, j2r.getRdataStructureCode());
+		value = j2r.getValueObjectArray1d();
+		columns = (Object[]) value[1];
+		assertArrayEquals(new String[] {"b", "a"}, (String[]) value[2]);
+		assertArrayEquals(new String[] {"q", "s"}, (String[]) columns[0]);
+		assertArrayEquals(new double[] {2, 4}, (double[]) columns[1], 0);
+
+		// Comparisons with missing values are false.
+		RowFilter filter = RowFilter.parse("`a b` <= -1.5e-3 or c == NULL");
+		assertTrue(filter.test(field -> field.equals("a b") ? -2.0 : 1));
+		assertFalse(filter.test(field -> field.equals("a b") ? Double.NaN : 1));
+		assertTrue(filter.test(field -> null));
+		filter = RowFilter.parse("i < 0 | i != 1");
+		assertTrue(filter.test(field -> -1));
+		assertFalse(filter.test(field -> Integer.MIN_VALUE));
+		records.get(1).put("id", Integer.MIN_VALUE);
+		j2r.initialize(records, ArrayOrder.ROW_MAJOR, new String[] {"id"}, "id <= 2");
+		assertArrayEquals(new int[] {0, 2}, (int[]) ((Object[]) j2r.getValueObjectArray1d()[1])[0]);
+	}
+
+	@Test
+	public void testDataFrameCursor() {
+		List<Map<String, Object>> records = new ArrayList<Map<String, Object>>();
+		for (int i = 0; i < 10; i++) {
+			Map<String, Object> record = new LinkedHashMap<String, Object>();
+			record.put("id", i);
+			record.put("x", (i == 7) ? null : i * 0.5);
+			if (i != 8)
+				record.put("name", "n" + i);
+			records.add(record);
+		}
+		JavaToR j2r = new JavaToR();
+		for (boolean prefetch : new boolean[] {false, true}) {
+			for (Object source : new Object[] {records, records.iterator()}) {
+				DataFrameCursor cursor = new DataFrameCursor(source, prefetch);
+				int count = 0;
+				int chunkCount = 0;
+				while (cursor.hasNext()) {
+					cursor.next(chunkCount == 1 ? 3 : 4, j2r);
+					assertEquals(RdataStructureCode.DATA_FRAME, j2r.getRdataStructureCode());
+					Object[] value = j2r.getValueObjectArray1d();
+					Object[] columns = (Object[]) value[1];
+					assertArrayEquals(new String[] {"id", "x", "name"}, (String[]) value[2]);
+					int[] id = (int[]) columns[0];
+					for (int i = 0; i < id.length; i++)
+						assertEquals(count + i, id[i]);
+					count += id.length;
+					chunkCount++;
+				}
+				assertEquals(10, count);
+				assertEquals(3, chunkCount);
+				cursor.close();
+			}
+		}
+
+		// The schema is inferred from the first page.
+		DataFrameCursor cursor = new DataFrameCursor(records);
+		cursor.page(0, 2, j2r);
+		cursor.page(6, 9, j2r);
+		Object[] columns = (Object[]) j2r.getValueObjectArray1d()[1];
+		assertArrayEquals(new int[] {6, 7, 8}, (int[]) columns[0]);
+		assertEquals(0x7ff00000000007a2L, Double.doubleToRawLongBits(((double[]) columns[1])[1]));
+		assertArrayEquals(new String[] {"n6", "n7", null}, (String[]) columns[2]);
+		cursor.page(0, 0, j2r);
+		assertEquals(0, ((int[]) ((Object[]) j2r.getValueObjectArray1d()[1])[0]).length);
+
+		records.get(9).put("id", "nine");
+		cursor.next(5, j2r);
+		try {
+			cursor.next(5, j2r);
+			fail();
+		} catch (RuntimeException e) {
+			assertEquals("A value of class 'java.lang.String' cannot be stored in the integer data frame column 'id'.", e.getMessage());
+		}
+
+		// Records of a chunk that fails to convert are not skipped.
+		for (boolean prefetch : new boolean[] {false, true}) {
+			records.get(9).put("id", "nine");
+			cursor = new DataFrameCursor(records.iterator(), prefetch);
+			cursor.next(5, j2r);
+			try {
+				cursor.next(5, j2r);
+				fail();
+			} catch (RuntimeException e) {
+			}
+			records.get(9).put("id", 9);
+			assertEquals(5, cursor.getPosition());
+			cursor.next(5, j2r);
+			assertArrayEquals(new int[] {5, 6, 7, 8, 9}, (int[]) ((Object[]) j2r.getValueObjectArray1d()[1])[0]);
+			assertEquals(10, cursor.getPosition());
+			assertFalse(cursor.hasNext());
+			cursor.close();
+		}
+	}
+
+	@Test
+	public void testEstimate() {
+		JavaToR j2r = new JavaToR();
+		List<Object> values = new ArrayList<Object>();
+		values.add(null);
+		values.add(3.5);
+		values.add(new int[][] {{1, 2, 3}, {4, 5, 6}});
+		values.add(new String[][][] {{{"a", "b"}}, {{"c", "d"}}});
+		values.add(Arrays.asList(1, 2.5, (byte) 3));
+		values.add(Arrays.asList(new int[] {1, 2}, new double[] {3, 4}, new byte[] {5, 6}));
+		values.add(Arrays.asList(new int[][] {{1, 2}}, new int[][] {{3, 4}}));
+		values.add(Arrays.asList("a", 1));
+		List<Map<String, Object>> records = new ArrayList<Map<String, Object>>();
+		for (int i = 0; i < 5; i++) {
+			Map<String, Object> record = new LinkedHashMap<String, Object>();
+			record.put("id", i);
+			record.put("name", (i == 2) ? null : "n" + i);
+			records.add(record);
+		}
+		values.add(records);
+		Map<String, Object> m = new LinkedHashMap<String, Object>();
+		m.put("x", new double[] {1, 2});
+		m.put("y", Arrays.asList("a", "b"));
+		values.add(m);
+		m = new LinkedHashMap<String, Object>(m);
+		m.put("z", 1);
+		values.add(m);
+		values.add(SparseMatrix.createCoo(3, 4, new int[] {0, 2}, new int[] {1, 3}, new double[] {1, 2}));
+		values.add(new RuntimeException("x"));
+		for (ArrayOrder order : ArrayOrder.values()) {
+			for (Object value : values) {
+				ConversionEstimate estimate = j2r.estimate(value, order);
+				j2r.initialize(value, order);
+				assertEquals(j2r.getRdataCompositeCode(), estimate.getRdataCompositeCode());
+				assertTrue(estimate.isExact());
+				if (j2r.getRdataStructureCode() == RdataStructureCode.VECTOR || j2r.getRdataStructureCode() == RdataStructureCode.ND_ARRAY)
+					assertArrayEquals(j2r.getDimensions(), estimate.getDimensions());
+			}
+		}
+		ConversionEstimate estimate = j2r.estimate(records);
+		assertArrayEquals(new int[] {5, 2}, estimate.getDimensions());
+		assertEquals(10, estimate.getElementCount());
+
+		// Large collections are sampled and extrapolated.
+		List<Object> list = new ArrayList<Object>();
+		for (int i = 0; i < 1000; i++)
+			list.add(new double[] {i, i, i});
+		estimate = j2r.estimate(list, ArrayOrder.COLUMN_MAJOR);
+		assertEquals(RdataStructureCode.ND_ARRAY, estimate.getRdataStructureCode());
+		assertArrayEquals(new int[] {3, 1000}, estimate.getDimensions());
+		assertEquals(3000, estimate.getElementCount());
+		assertEquals(48 + 3000 * 8, estimate.getByteCount());
+		assertFalse(estimate.isExact());
+		list.set(999, "x");
+		estimate = j2r.estimate(list);
+		assertEquals(RdataStructureCode.LIST, estimate.getRdataStructureCode());
+		assertEquals(Math.round(1000 * (31 * 3 + 1) / 32.0), estimate.getElementCount());
+
+		// The column selection and row filter apply as in the conversion.
+		records = new ArrayList<Map<String, Object>>();
+		for (int i = 0; i < 1000; i++) {
+			Map<String, Object> record = new LinkedHashMap<String, Object>();
+			record.put("id", i);
+			record.put("name", "n" + i);
+			record.put("x", i * 1.5);
+			records.add(record);
+		}
+		String[] columns = {"x", "id"};
+		String filter = "id < 10 | name == 'n20'";
+		estimate = j2r.estimate(records.subList(0, 30), ArrayOrder.ROW_MAJOR, columns, filter);
+		j2r.initialize(records.subList(0, 30), ArrayOrder.ROW_MAJOR, columns, filter);
+		assertEquals(j2r.getRdataCompositeCode(), estimate.getRdataCompositeCode());
+		assertArrayEquals(new int[] {11, 2}, estimate.getDimensions());
+		assertEquals(22, estimate.getElementCount());
+		assertTrue(estimate.isExact());
+		m = new LinkedHashMap<String, Object>();
+		m.put("id", new int[] {1, 2, 3});
+		m.put("name", Arrays.asList("a", "b", "c"));
+		m.put("x", null);
+		estimate = j2r.estimate(m, ArrayOrder.ROW_MAJOR, new String[] {"name", "id"}, "id >= 2");
+		j2r.initialize(m, ArrayOrder.ROW_MAJOR, new String[] {"name", "id"}, "id >= 2");
+		assertEquals(j2r.getRdataCompositeCode(), estimate.getRdataCompositeCode());
+		assertArrayEquals(new int[] {2, 2}, estimate.getDimensions());
+
+		// Filtered rows of large collections are extrapolated from the sample.
+		estimate = j2r.estimate(records, ArrayOrder.ROW_MAJOR, columns, "id < 500");
+		j2r.initialize(records, ArrayOrder.ROW_MAJOR, columns, "id < 500");
+		assertEquals(j2r.getRdataCompositeCode(), estimate.getRdataCompositeCode());
+		assertArrayEquals(new int[] {500, 2}, estimate.getDimensions());
+		assertFalse(estimate.isExact());
+		int[] ids = new int[1000];
+		List<String> names = new ArrayList<String>();
+		for (int i = 0; i < 1000; i++) {
+			ids[i] = i;
+			names.add("n" + i);
+		}
+		m = new LinkedHashMap<String, Object>();
+		m.put("id", ids);
+		m.put("name", names);
+		estimate = j2r.estimate(m, ArrayOrder.ROW_MAJOR, null, "id < 500");
+		j2r.initialize(m, ArrayOrder.ROW_MAJOR, null, "id < 500");
+		assertEquals(j2r.getRdataCompositeCode(), estimate.getRdataCompositeCode());
+		assertArrayEquals(new int[] {500, 2}, estimate.getDimensions());
+
+		// The memory budget and the arena decide whether the result is spilled.
+		assertFalse(estimate.isSpilled());
+		j2r.setMemoryBudget(1);
+		try {
+			estimate = j2r.estimate(records, ArrayOrder.ROW_MAJOR, columns, "id < 500");
+			assertTrue(estimate.isSpilled());
+			assertArrayEquals(new int[] {500, 2}, estimate.getDimensions());
+			j2r.initialize(records, ArrayOrder.ROW_MAJOR, columns, "id < 500");
+			assertEquals(RdataStructureCode.MAPPED_FILE, j2r.getRdataStructureCode());
+			new File(j2r.getValueString()).delete();
+
+			// Members of maps are spilled too, except for vectors, so maps of
+			// columns are still data frames.
+			Map<String, Object> nested = new LinkedHashMap<String, Object>();
+			nested.put("records", records);
+			nested.put("names", names);
+			j2r.initialize(nested);
+			assertEquals(RdataStructureCode.NAMED_LIST, j2r.getRdataStructureCode());
+			Object[] value = j2r.getValueObjectArray1d();
+			assertEquals(0x800, ((int[]) value[0])[0] & 0xFF00);
+			assertEquals(0x100, ((int[]) value[0])[1] & 0xFF00);
+			assertTrue(new File((String) ((Object[]) value[1])[0]).delete());
+			j2r.initialize(m);
+			assertEquals(RdataStructureCode.DATA_FRAME, j2r.getRdataStructureCode());
+		} finally {
+			j2r.setMemoryBudget(0);
+		}
+		OffHeapArena arena = new OffHeapArena(null, 100);
+		j2r.setArena(arena);
+		try {
+			for (int n : new int[] {10, 1000}) {
+				List<Double> vector = new ArrayList<Double>();
+				for (int i = 0; i < n; i++)
+					vector.add(i * 0.5);
+				estimate = j2r.estimate(vector);
+				j2r.initialize(vector);
+				assertEquals(j2r.getRdataStructureCode() == RdataStructureCode.MAPPED_FILE, estimate.isSpilled());
+				assertEquals(n >= 100 / 8, estimate.isSpilled());
+				assertArrayEquals(new int[] {n}, estimate.getDimensions());
+			}
+		} finally {
+			j2r.setArena(null);
+			arena.close();
+		}
+	}
+
+	@Test
+	public void testNdArray() {
+		double[][] jagged = new double[][] {{1, 2, 3}, {4, 5, 6}};
+		JavaToR j2r = new JavaToR(jagged);
+		Object[] expected = j2r.getValueObjectArray1d();
+
+		// Views of R data are passed through without copying.
+		double[] data = new double[] {1, 4, 2, 5, 3, 6};
+		j2r = new JavaToR(NdArray.create(data, new int[] {2, 3}, ArrayOrder.COLUMN_MAJOR));
+		assertEquals(RdataStructureCode.ND_ARRAY, j2r.getRdataStructureCode());
+		Object[] value = j2r.getValueObjectArray1d();
+		assertArrayEquals((int[]) expected[0], (int[]) value[0]);
+		assertSame(data, value[1]);
+
+		// Row-major data are reordered once.
+		NdArray view = NdArray.createFromRowMajorData(new double[] {1, 2, 3, 4, 5, 6}, new int[] {2, 3});
+		assertEquals(6, view.getDouble(1, 2), 0);
+		value = new JavaToR(view).getValueObjectArray1d();
+		assertArrayEquals((int[]) expected[0], (int[]) value[0]);
+		assertArrayEquals((double[]) expected[1], (double[]) value[1], 0);
+
+		// Slices, vectors, and coerced types.
+		value = new JavaToR(view.slice(1, 1, 3)).getValueObjectArray1d();
+		assertArrayEquals(new int[] {2, 2}, (int[]) value[0]);
+		assertArrayEquals(new double[] {2, 5, 3, 6}, (double[]) value[1], 0);
+		j2r = new JavaToR(view.select(0, 1));
+		assertEquals(RdataStructureCode.VECTOR, j2r.getRdataStructureCode());
+		assertArrayEquals(new double[] {4, 5, 6}, j2r.getValueDoubleArray1d(), 0);
+		j2r = new JavaToR(NdArray.createFromRowMajorData(new long[] {1, 2, 3, 4}, new int[] {2, 2}));
+		assertEquals(JavaToR.RdataTypeCode.NUMERIC, j2r.getRdataTypeCode());
+		assertArrayEquals(new double[] {1, 3, 2, 4}, (double[]) j2r.getValueObjectArray1d()[1], 0);
+	}
+
+	@Test
+	public void testResultSet() {
+		String[] labels = new String[] {"ID", "Score", "Big", "Name", "Flag", "Day"};
+		int[] sqlTypes = new int[] {Types.INTEGER, Types.DOUBLE, Types.BIGINT, Types.VARCHAR, Types.BOOLEAN, Types.DATE};
+		Object[][] rows = new Object[5][];
+		for (int i = 0; i < rows.length; i++)
+			rows[i] = new Object[] {i, i * 0.5, 10000000000L + i, "n" + i, i % 2 == 0, "2020-01-0" + (i + 1)};
+		rows[3] = new Object[] {null, null, null, null, null, null};
+
+		JavaToR j2r = new JavaToR(StubResultSet.create(labels, sqlTypes, rows));
+		assertEquals(RdataStructureCode.DATA_FRAME, j2r.getRdataStructureCode());
+		assertEquals(JavaToR.RdataExceptionCode.WARNING_MISSING_LOGICAL_VALUES, j2r.getRdataExceptionCode());
+		Object[] value = j2r.getValueObjectArray1d();
+		Object[] columns = (Object[]) value[1];
+		assertArrayEquals(labels, (String[]) value[2]);
+		assertArrayEquals(new int[] {0, 1, 2, Integer.MIN_VALUE, 4}, (int[]) columns[0]);
+		assertEquals(0x7ff00000000007a2L, Double.doubleToRawLongBits(((double[]) columns[1])[3]));
+		assertEquals(10000000004.0, ((double[]) columns[2])[4], 0);
+		assertArrayEquals(new String[] {"n0", "n1", "n2", null, "n4"}, (String[]) columns[3]);
+		assertArrayEquals(new boolean[] {true, false, true, false, true}, (boolean[]) columns[4]);
+		assertEquals("2020-01-05", ((String[]) columns[5])[4]);
+
+		// Column selection is case-insensitive. Rows with NA never match.
+		j2r.initialize(StubResultSet.create(labels, sqlTypes, rows), ArrayOrder.ROW_MAJOR, new String[] {"name", "id"}, "id >= 1");
+		columns = (Object[]) j2r.getValueObjectArray1d()[1];
+		assertArrayEquals(new String[] {"n1", "n2", "n4"}, (String[]) columns[0]);
+		assertArrayEquals(new int[] {1, 2, 4}, (int[]) columns[1]);
+
+		// The filter can compare columns that are not selected, but not columns that do not exist.
+		j2r.initialize(StubResultSet.create(labels, sqlTypes, rows), ArrayOrder.ROW_MAJOR, new String[] {"name"}, "id >= 2 & flag != NULL");
+		Object[] dataFrame = j2r.getValueObjectArray1d();
+		assertArrayEquals(new String[] {"name"}, (String[]) dataFrame[2]);
+		assertEquals(1, ((Object[]) dataFrame[1]).length);
+		assertArrayEquals(new String[] {"n2", "n4"}, (String[]) ((Object[]) dataFrame[1])[0]);
+		try {
+			j2r.initialize(StubResultSet.create(labels, sqlTypes, rows), ArrayOrder.ROW_MAJOR, new String[] {"name"}, "missing == 1");
+			fail();
+		} catch (RuntimeException e) {
+			assertEquals("The column 'missing' does not exist in the result set.", e.getMessage());
+		}
+
+		for (boolean prefetch : new boolean[] {false, true}) {
+			ResultSet rs = StubResultSet.create(labels, sqlTypes, rows);
+			DataFrameCursor cursor = new DataFrameCursor(rs, prefetch);
+			int count = 0;
+			while (cursor.hasNext()) {
+				cursor.next(2, j2r);
+				count += ((int[]) ((Object[]) j2r.getValueObjectArray1d()[1])[0]).length;
+			}
+			assertEquals(5, count);
+			cursor.close();
+		}
+	}
+
+	@Test
+	public void testRegions() {
+		double[] a = new double[] {1, 2, 3, 4, 5};
+		JavaToR j2r = new JavaToR(a);
+		assertEquals(5, j2r.getValueLength());
+		assertArrayEquals(new double[] {2, 3}, j2r.getValueDoubleRegion(1, 2), 0);
+		assertEquals(0, j2r.getValueDoubleRegion(5, 0).length);
+		j2r.initialize(Arrays.asList("a", null, "c"));
+		assertArrayEquals(new String[] {null, "c"}, j2r.getValueStringRegion(1, 2));
+		j2r.initialize(Arrays.asList((short) 1, 2));
+		assertArrayEquals(new int[] {1, 2}, j2r.getValueIntRegion(0, 2));
+		try {
+			j2r.getValueIntRegion(1, 2);
+			fail();
+		} catch (RuntimeException e) {
+			assertEquals("The region [1, 3) is out of bounds for a vector of length 2.", e.getMessage());
+		}
+		j2r.initialize(new int[][] {{1, 2}});
+		try {
+			j2r.getValueLength();
+			fail();
+		} catch (RuntimeException e) {
+			assertEquals("Regions can only be read from vector values.", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testSparseMatrix() {
+		// 3 x 4 matrix:
+		// 1 0 0 2
+		// 0 0 3 0
+		// 4 0 0 5
+		double[][] dense = new double[][] {{1, 0, 0, 2}, {0, 0, 3, 0}, {4, 0, 0, 5}};
+		int[] rowIndices = new int[] {0, 2, 1, 0, 2};
+		int[] columnPointers = new int[] {0, 2, 2, 3, 5};
+		double[] values = new double[] {1, 4, 3, 2, 5};
+		SparseMatrix csc = SparseMatrix.createCsc(3, 4, rowIndices, columnPointers, values);
+		JavaToR j2r = new JavaToR(csc);
+		assertEquals(RdataStructureCode.SPARSE_MATRIX, j2r.getRdataStructureCode());
+		Object[] value = j2r.getValueObjectArray1d();
+		assertArrayEquals(new int[] {3, 4}, (int[]) value[0]);
+		assertSame(rowIndices, value[1]);
+		assertSame(columnPointers, value[2]);
+		assertSame(values, value[3]);
+		assertEquals(3, csc.get(1, 2), 0);
+		assertEquals(0, csc.get(1, 1), 0);
+
+		SparseMatrix csr = csc.toCsr();
+		assertArrayEquals(new int[] {0, 2, 3, 5}, csr.getPointers());
+		assertArrayEquals(new int[] {0, 3, 2, 0, 3}, csr.getColumnIndices());
+		assertArrayEquals(new double[] {1, 2, 3, 4, 5}, csr.getValues(), 0);
+		assertEquals(5, csr.get(2, 3), 0);
+		value = new JavaToR(csr).getValueObjectArray1d();
+		assertArrayEquals(rowIndices, (int[]) value[1]);
+		assertArrayEquals(columnPointers, (int[]) value[2]);
+		assertArrayEquals(values, (double[]) value[3], 0);
+
+		// COO entries are sorted and duplicates are summed.
+		SparseMatrix coo = SparseMatrix.createCoo(3, 4, new int[] {2, 0, 1, 0, 2, 0}, new int[] {3, 3, 2, 0, 0, 3}, new double[] {5, 1, 3, 1, 4, 1});
+		SparseMatrix converted = coo.toCsc();
+		assertArrayEquals(rowIndices, converted.getRowIndices());
+		assertArrayEquals(columnPointers, converted.getPointers());
+		assertArrayEquals(values, converted.getValues(), 0);
+
+		for (int i = 0; i < 3; i++) {
+			assertArrayEquals(dense[i], csc.toDense()[i], 0);
+			assertArrayEquals(dense[i], coo.toDense()[i], 0);
+		}
+		converted = SparseMatrix.fromDense(dense);
+		assertArrayEquals(rowIndices, converted.getRowIndices());
+		assertArrayEquals(columnPointers, converted.getPointers());
+		try {
+			SparseMatrix.createCsc(3, 4, new int[] {2, 0, 1, 0, 2}, columnPointers, values);
+			fail();
+		} catch (RuntimeException e) {
+			// Unsorted row indices.
+		}
+	}
+
+	@Test
+	public void testObjects() {
+		List<UtilityTest.Trade> trades = new ArrayList<UtilityTest.Trade>();
+		for (int i = 0; i < 3; i++) {
+			UtilityTest.Trade trade = new UtilityTest.Trade();
+			trade.setId(i);
+			trade.setPrice(i + 0.5);
+			trade.setQuantity(i == 1 ? null : 10L * i);
+			trade.setSide(UtilityTest.Side.values()[i % 2]);
+			trade.venue = "v" + i;
+			trades.add(trade);
+		}
+		trades.add(null);
+		JavaToR j2r = new JavaToR(trades);
+		assertEquals(RdataStructureCode.DATA_FRAME, j2r.getRdataStructureCode());
+		Object[] value = j2r.getValueObjectArray1d();
+		Object[] columns = (Object[]) value[1];
+		assertArrayEquals(new String[] {"id", "price", "quantity", "side", "venue"}, (String[]) value[2]);
+		assertArrayEquals(new int[] {0, 1, 2, Integer.MIN_VALUE}, (int[]) columns[0]);
+		assertEquals(2.5, ((double[]) columns[1])[2], 0);
+		assertEquals(0x7ff00000000007a2L, Double.doubleToRawLongBits(((double[]) columns[2])[1]));
+		assertArrayEquals(new String[] {"BUY", "SELL", "BUY", null}, (String[]) columns[3]);
+		assertArrayEquals(new String[] {"v0", "v1", "v2", null}, (String[]) columns[4]);
+
+		trades.remove(3);
+		j2r.initialize(trades.toArray(), ArrayOrder.ROW_MAJOR, new String[] {"venue", "id"}, "side == 'BUY'");
+		columns = (Object[]) j2r.getValueObjectArray1d()[1];
+		assertArrayEquals(new String[] {"v0", "v2"}, (String[]) columns[0]);
+		assertArrayEquals(new int[] {0, 2}, (int[]) columns[1]);
+	}
+
+	@Test
+	public void testObjectPath() {
+		Map<String, Object> root = new LinkedHashMap<String, Object>();
+		List<Object> b = new ArrayList<Object>();
+		for (int i = 0; i < 4; i++) {
+			Map<String, Object> m = new LinkedHashMap<String, Object>();
+			m.put("c", i);
+			m.put("d.e", new int[] {i, i});
+			b.add(m);
+		}
+		Map<String, Object> a = new LinkedHashMap<String, Object>();
+		a.put("b", b);
+		root.put("a", a);
+
+		assertEquals(3, ObjectPath.select(root, "a.b[3].c"));
+		assertEquals(3, ObjectPath.select(root, "$.a.b[-1]['c']"));
+		assertArrayEquals(new int[] {2, 2}, (int[]) ObjectPath.select(root, "a.b[2]['d.e']"));
+		assertEquals(Arrays.asList(0, 1, 2, 3), ObjectPath.select(root, "a.b[*].c"));
+		assertEquals(Arrays.asList(1, 1), ObjectPath.select(root, "a.*[1]['d.e'][*]"));
+		assertEquals(new ArrayList<Object>(), ObjectPath.select(root, "a.b[*].x"));
+		try {
+			ObjectPath.select(root, "a.b[4].c");
+			fail();
+		} catch (RuntimeException e) {
+			assertEquals("The path 'a.b[4].c' does not exist (segment 3).", e.getMessage());
+		}
+
+		JavaToR j2r = new JavaToR(ObjectPath.select(root, "a.b[*].c"));
+		assertEquals(RdataStructureCode.VECTOR, j2r.getRdataStructureCode());
+		assertArrayEquals(new int[] {0, 1, 2, 3}, j2r.getValueIntArray1d());
+	}
+
+}
@@ -0,0 +1,248 @@
+package org.fgilbert.jdx.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.fgilbert.jdx.JavaToR;
+import org.fgilbert.jdx.MappedFileWriter;
+import org.fgilbert.jdx.OffHeapArena;
+import org.junit.Test;
+
+public class MappedFileTest {
+
+	private static int readInt(ByteBuffer b) {
+		return b.getInt();
+	}
+
+	private static void skipPadding(ByteBuffer b) {
+		b.position((b.position() + 7) & ~7);
+	}
+
+	private static String[] readStrings(ByteBuffer b, int n) {
+		int[] lengths = new int[n];
+		for (int i = 0; i < n; i++)
+			lengths[i] = readInt(b);
+		skipPadding(b);
+		String[] a = new String[n];
+		for (int i = 0; i < n; i++) {
+			byte[] bytes = new byte[Math.max(lengths[i], 0)];
+			b.get(bytes);
+			assertEquals(0, b.get());
+			a[i] = (lengths[i] < 0) ? null : new String(bytes, StandardCharsets.UTF_8);
+		}
+		skipPadding(b);
+		return a;
+	}
+
+	@Test
+	public void testArena() throws IOException {
+		Map<String, Object> record = new LinkedHashMap<String, Object>();
+		record.put("x", 1);
+		record.put("y", "b");
+		Object[] values = {
+			Arrays.asList(1.5, null, 2)
+			, Arrays.asList((short) 1, null, 3)
+			, Arrays.asList("a", null, '\u00e9')
+			, Arrays.asList(true, null)
+			, Arrays.asList((byte) 1, (byte) 2)
+			, Arrays.asList(new double[] {1, 2}, new double[] {3, 4})
+			, Arrays.asList(record, record)
+		};
+		File expected = File.createTempFile("jdx", ".bin");
+		File actual = File.createTempFile("jdx", ".bin");
+		OffHeapArena arena = new OffHeapArena(null, 0);
+		try {
+			for (Object value : values) {
+				JavaToR j2r = new JavaToR(value);
+				JavaToR.RdataExceptionCode exceptionCode = j2r.getRdataExceptionCode();
+				MappedFileWriter writer = new MappedFileWriter();
+				writer.write(j2r, expected.getPath());
+				j2r.setArena(arena);
+				j2r.initialize(value);
+				assertEquals(JavaToR.RdataStructureCode.MAPPED_FILE, j2r.getRdataStructureCode());
+				assertEquals(exceptionCode, j2r.getRdataExceptionCode());
+				assertEquals(1, arena.getSegmentCount());
+				writer.write(j2r, actual.getPath());
+				assertEquals(0, arena.getSegmentCount());
+				assertArrayEquals(Files.readAllBytes(expected.toPath()), Files.readAllBytes(actual.toPath()));
+			}
+
+			// Values below the threshold stay on the heap.
+			JavaToR j2r = new JavaToR();
+			j2r.setArena(new OffHeapArena(null, 100));
+			j2r.initialize(Arrays.asList(1.5, 2.5));
+			assertEquals(JavaToR.RdataStructureCode.VECTOR, j2r.getRdataStructureCode());
+
+			// Segments that were not consumed are deleted on release.
+			j2r.setArena(arena);
+			j2r.initialize(Arrays.asList(1.5, 2.5));
+			String path = j2r.getValueString();
+			assertTrue(new File(path).exists());
+			arena.close();
+			assertFalse(new File(path).exists());
+			try {
+				j2r.initialize(Arrays.asList(1.5, 2.5));
+				fail();
+			} catch (RuntimeException e) {
+				assertEquals("The arena is closed.", e.getMessage());
+			}
+		} finally {
+			arena.close();
+			expected.delete();
+			actual.delete();
+		}
+	}
+
+	/*
+	 * Returns true if `file` is mapped into this process. Only supported on
+	 * Linux; returns false elsewhere.
+	 */
+	private static boolean isMapped(File file) throws IOException {
+		File maps = new File("/proc/self/maps");
+		if (!maps.exists())
+			return false;
+		String path = file.getCanonicalPath();
+		for (String line : Files.readAllLines(maps.toPath())) {
+			if (line.endsWith(path))
+				return true;
+		}
+		return false;
+	}
+
+	@Test
+	public void testRelease() throws IOException {
+		// Windows are unmapped when the file is truncated and when the writer
+		// is released, so the files can be deleted on all platforms.
+		double[] a = new double[1 << 16];
+		Arrays.fill(a, 1.5);
+		JavaToR j2r = new JavaToR(Arrays.asList(a, new String[] {"x"}));
+		File file = File.createTempFile("jdx", ".bin");
+		try {
+			MappedFileWriter writer = new MappedFileWriter();
+			long length = writer.write(j2r, file.getPath());
+			assertEquals(length, file.length());
+			assertFalse(isMapped(file));
+			assertTrue(file.delete());
+
+			// Spill files are unmapped after they are written and deleted after
+			// they are consumed.
+			j2r.setMemoryBudget(1);
+			j2r.initialize(Arrays.asList(new int[] {1, 2}, new int[] {3, 4}));
+			File spilled = new File(j2r.getValueString());
+			assertTrue(spilled.exists());
+			assertFalse(isMapped(spilled));
+			writer.write(j2r, file.getPath());
+			assertFalse(spilled.exists());
+			assertFalse(isMapped(file));
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testSpill() throws IOException {
+		Map<String, Object> record = new LinkedHashMap<String, Object>();
+		record.put("x", 1.5);
+		record.put("y", "\u00e9");
+		Object[] values = {
+			Arrays.asList(new int[] {1, 2, 3}, new int[] {4, 5, 6})
+			, Arrays.asList(new String[][] {{"a", null}, {"c", "d"}}, new String[][] {{"e", "f"}, {"g", "h"}})
+			, Arrays.asList(record, record, record)
+		};
+		File expected = File.createTempFile("jdx", ".bin");
+		File actual = File.createTempFile("jdx", ".bin");
+		try {
+			for (JavaToR.ArrayOrder order : JavaToR.ArrayOrder.values()) {
+				for (Object value : values) {
+					JavaToR j2r = new JavaToR(value, order);
+					MappedFileWriter writer = new MappedFileWriter();
+					writer.write(j2r, expected.getPath());
+					j2r.setMemoryBudget(1);
+					j2r.initialize(Arrays.asList(value, "z"), order);
+					Object[] list = (Object[]) j2r.getValueObject();
+					int code = ((int[]) list[0])[0];
+					assertEquals(0x800, code & 0xFF00);
+					String path = (String) ((Object[]) list[1])[0];
+					assertTrue(new File(path).exists());
+					j2r.initialize(value, order);
+					writer.write(j2r, actual.getPath());
+					assertFalse(new File((String) j2r.getValueObject()).exists());
+					assertArrayEquals(Files.readAllBytes(expected.toPath()), Files.readAllBytes(actual.toPath()));
+					new File(path).delete();
+				}
+			}
+		} finally {
+			expected.delete();
+			actual.delete();
+		}
+	}
+
+	@Test
+	public void testWrite() throws IOException {
+		Map<String, Object> value = new LinkedHashMap<String, Object>();
+		value.put("a", new double[] {1.5, 2.5, 3.5});
+		value.put("b", new String[] {"x", null});
+		value.put("c", new int[][] {{1, 2}, {3, 4}, {5, 6}});
+		value.put("d", null);
+		JavaToR j2r = new JavaToR();
+		j2r.initialize(value);
+		File file = File.createTempFile("jdx", ".bin");
+		try {
+			MappedFileWriter writer = new MappedFileWriter();
+			long length = writer.write(j2r, file.getPath());
+			byte[] data = Files.readAllBytes(file.toPath());
+			assertEquals(length, data.length);
+			assertEquals(0, length % 8);
+			ByteBuffer b = ByteBuffer.wrap(data).order(ByteOrder.nativeOrder());
+			assertEquals("JDXMAP01", new String(data, 0, 8, StandardCharsets.US_ASCII));
+			b.position(8);
+			assertEquals(1, readInt(b));
+			assertEquals(1, readInt(b));
+			assertEquals(length, b.getLong());
+			// Named list.
+			assertEquals(0x500, readInt(b) & 0xFF00);
+			assertEquals(4, readInt(b));
+			assertArrayEquals(new String[] {"a", "b", "c", "d"}, readStrings(b, 4));
+			// a
+			assertEquals(0x101, readInt(b));
+			assertEquals(3, readInt(b));
+			assertEquals(0, b.position() % 8);
+			assertEquals(1.5, b.getDouble(), 0);
+			assertEquals(2.5, b.getDouble(), 0);
+			assertEquals(3.5, b.getDouble(), 0);
+			// b
+			assertEquals(0x103, readInt(b));
+			assertArrayEquals(new String[] {"x", null}, readStrings(b, readInt(b)));
+			// c: a 3 x 2 matrix in column-major order.
+			assertEquals(0x202, readInt(b));
+			assertEquals(2, readInt(b));
+			assertEquals(3, readInt(b));
+			assertEquals(2, readInt(b));
+			int[] values = new int[6];
+			for (int i = 0; i < 6; i++)
+				values[i] = readInt(b);
+			assertArrayEquals(new int[] {1, 3, 5, 2, 4, 6}, values);
+			skipPadding(b);
+			// d
+			assertEquals(0, readInt(b) & 0xFF);
+			assertEquals(0, readInt(b));
+			assertEquals(length, b.position());
+
+			j2r.initialize(Arrays.asList(true, null));
+			writer.write(j2r, file.getPath());
+			assertTrue(writer.hasMissingLogicalValues());
+		} finally {
+			file.delete();
+		}
+	}
+
+}
@@ -0,0 +1,286 @@
+package org.fgilbert.jdx.test;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.fgilbert.jdx.JavaToR;
+import org.fgilbert.jdx.OffHeapArena;
+import org.fgilbert.jdx.RdsReader;
+import org.fgilbert.jdx.RdsWriter;
+import org.fgilbert.jdx.Table;
+import org.fgilbert.jdx.Utility;
+import org.junit.Test;
+
+public class RdsTest {
+
+	/*
+	 * Writes serialization streams by hand, in the layout written by R's
+	 * serialize (version 3).
+	 */
+	private static final class Stream {
+		private final ByteOrder order;
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		Stream(boolean xdr) {
+			this.order = xdr ? ByteOrder.BIG_ENDIAN : ByteOrder.nativeOrder();
+			this.out.write(xdr ? 'X' : 'B');
+			this.out.write('\n');
+			writeInt(3);
+			writeInt(0x040201);
+			writeInt(0x030500);
+			writeInt(5);
+			this.out.write("UTF-8".getBytes(StandardCharsets.US_ASCII), 0, 5);
+		}
+
+		Stream charsxp(String s) {
+			if (s == null) {
+				writeInt(9);
+				return writeInt(-1);
+			}
+			byte[] a = s.getBytes(StandardCharsets.UTF_8);
+			writeInt(9 | (1 << 3) << 12);
+			writeInt(a.length);
+			this.out.write(a, 0, a.length);
+			return this;
+		}
+
+		Stream doubles(double... values) {
+			ByteBuffer b = ByteBuffer.allocate(values.length * 8).order(this.order);
+			for (double value : values)
+				b.putDouble(value);
+			this.out.write(b.array(), 0, b.capacity());
+			return this;
+		}
+
+		Stream ints(int... values) {
+			ByteBuffer b = ByteBuffer.allocate(values.length * 4).order(this.order);
+			for (int value : values)
+				b.putInt(value);
+			this.out.write(b.array(), 0, b.capacity());
+			return this;
+		}
+
+		Stream strings(String... values) {
+			writeInt(16);
+			writeInt(values.length);
+			for (String value : values)
+				charsxp(value);
+			return this;
+		}
+
+		Stream symbol(String name) {
+			writeInt(1);
+			return charsxp(name);
+		}
+
+		/*
+		 * Writes the header of a tagged attribute pairlist cell.
+		 */
+		Stream tag(String name) {
+			writeInt(2 | 1 << 10);
+			return symbol(name);
+		}
+
+		byte[] toByteArray() {
+			return this.out.toByteArray();
+		}
+
+		Stream writeInt(int value) {
+			return ints(value);
+		}
+	}
+
+	private static final int HAS_ATTRIBUTES = 1 << 9;
+	private static final int NILVALUE = 254;
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testReadDataFrame() {
+		// data.frame(x = factor(c("20", "10")), y = c("u", NA))
+		Stream s = new Stream(false);
+		s.writeInt(19 | HAS_ATTRIBUTES).writeInt(2);
+		s.writeInt(13 | HAS_ATTRIBUTES | 1 << 8).writeInt(2).ints(2, 1);
+		s.tag("levels").strings("10", "20");
+		s.tag("class").strings("factor");
+		s.writeInt(NILVALUE);
+		s.strings("u", null);
+		s.tag("names").strings("x", "y");
+		s.tag("class").strings("data.frame");
+		s.tag("row.names").writeInt(13).writeInt(2).ints(Integer.MIN_VALUE, -2);
+		s.writeInt(NILVALUE);
+		RdsReader reader = new RdsReader();
+		reader.setDataFrameRowMajor(false);
+		Map<String, Object> m = (Map<String, Object>) reader.read(s.toByteArray());
+		assertArrayEquals(new int[] {20, 10}, (int[]) m.get("x"));
+		assertArrayEquals(new String[] {"u", null}, (String[]) m.get("y"));
+		reader.setDataFrameRowMajor(true);
+		reader.setCoerceFactors(false);
+		List<Map<String, Object>> records = (List<Map<String, Object>>) reader.read(s.toByteArray());
+		assertEquals(2, records.size());
+		assertEquals("10", records.get(1).get("x"));
+		assertEquals("u", records.get(0).get("y"));
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testReadList() {
+		for (boolean xdr : new boolean[] {false, true}) {
+			// list(a = c(1.5, 2.5), b = 1:5, c = c(TRUE, NA), d = "z")
+			Stream s = new Stream(xdr);
+			s.writeInt(19 | HAS_ATTRIBUTES).writeInt(4);
+			s.writeInt(14).writeInt(2).doubles(1.5, 2.5);
+			// A compact integer sequence (ALTREP).
+			s.writeInt(238);
+			s.writeInt(2).symbol("compact_intseq").writeInt(2).symbol("base").writeInt(2).writeInt(13).writeInt(1).ints(13).writeInt(NILVALUE);
+			s.writeInt(14).writeInt(3).doubles(5, 1, 1);
+			s.writeInt(NILVALUE);
+			s.writeInt(10).writeInt(2).ints(1, Integer.MIN_VALUE);
+			s.strings("z");
+			s.tag("names").strings("a", "b", "c", "d");
+			s.writeInt(NILVALUE);
+			RdsReader reader = new RdsReader();
+			Map<String, Object> m = (Map<String, Object>) reader.read(s.toByteArray());
+			assertArrayEquals(new double[] {1.5, 2.5}, (double[]) m.get("a"), 0);
+			assertArrayEquals(new int[] {1, 2, 3, 4, 5}, (int[]) m.get("b"));
+			assertArrayEquals(new boolean[] {true, false}, (boolean[]) m.get("c"));
+			assertEquals("z", m.get("d"));
+			assertTrue(reader.hasMissingLogicalValues());
+			reader.setLengthOneVectorAsArray(true);
+			m = (Map<String, Object>) reader.read(s.toByteArray());
+			assertArrayEquals(new String[] {"z"}, (String[]) m.get("d"));
+		}
+	}
+
+	@Test
+	public void testReadMatrix() {
+		// matrix(1:6, 2)
+		Stream s = new Stream(false);
+		s.writeInt(13 | HAS_ATTRIBUTES).writeInt(6).ints(1, 2, 3, 4, 5, 6);
+		s.tag("dim").writeInt(13).writeInt(2).ints(2, 3);
+		s.writeInt(NILVALUE);
+		RdsReader reader = new RdsReader();
+		assertArrayEquals(new int[][] {{1, 3, 5}, {2, 4, 6}}, (int[][]) reader.read(s.toByteArray()));
+		try {
+			reader.read(new byte[] {'A', '\n'});
+			fail();
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage().contains("ASCII"));
+		}
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testWriteAndRead() {
+		Map<String, Object> value = new LinkedHashMap<String, Object>();
+		value.put("a", new double[] {1.5, Double.NaN});
+		value.put("b", new int[][] {{1, 2, 3}, {4, 5, 6}});
+		List<Map<String, Object>> records = new ArrayList<Map<String, Object>>();
+		for (int i = 0; i < 3; i++) {
+			Map<String, Object> record = new LinkedHashMap<String, Object>();
+			record.put("id", i);
+			record.put("name", (i == 1) ? "\u00e9t\u00e9" : "n" + i);
+			records.add(record);
+		}
+		value.put("c", records);
+		value.put("d", "x");
+		value.put("e", null);
+		value.put("f", Arrays.asList(Boolean.TRUE, (byte) 7));
+		JavaToR j2r = new JavaToR();
+		j2r.initialize(value);
+		RdsWriter writer = new RdsWriter();
+		byte[] data = writer.write(j2r);
+		assertFalse(writer.hasMissingLogicalValues());
+		RdsReader reader = new RdsReader();
+		reader.setDataFrameRowMajor(false);
+		Map<String, Object> m = (Map<String, Object>) reader.read(data);
+		assertArrayEquals(new double[] {1.5, Double.NaN}, (double[]) m.get("a"), 0);
+		assertArrayEquals(new int[][] {{1, 2, 3}, {4, 5, 6}}, (int[][]) m.get("b"));
+		Map<String, Object> columns = (Map<String, Object>) m.get("c");
+		assertArrayEquals(new int[] {0, 1, 2}, (int[]) columns.get("id"));
+		assertArrayEquals(new String[] {"n0", "\u00e9t\u00e9", "n2"}, (String[]) columns.get("name"));
+		assertEquals("x", m.get("d"));
+		assertNull(m.get("e"));
+		assertTrue(m.containsKey("e"));
+		assertEquals(Arrays.asList(true, (byte) 7), m.get("f"));
+
+		j2r.initialize(Arrays.asList(true, null, false));
+		writer.write(j2r);
+		assertTrue(writer.hasMissingLogicalValues());
+	}
+
+	@Test
+	public void testWriteTable() {
+		Object[] columns = new Object[] {new boolean[] {true, false, false}, new int[] {1, 2, 3}};
+		Table table = Utility.createTable(new String[] {"b", "i"}, columns, new Object[] {new int[] {1}, null});
+		JavaToR j2r = new JavaToR(table);
+		RdsWriter writer = new RdsWriter();
+		byte[] data = writer.write(j2r);
+		assertFalse(writer.hasMissingLogicalValues());
+		RdsReader reader = new RdsReader();
+		reader.setDataFrameTable(true);
+		Table t = (Table) reader.read(data);
+		assertArrayEquals(new boolean[] {true, false, false}, t.getBooleanColumn(0));
+		assertArrayEquals(new int[] {1}, t.getMissingRows(0));
+		assertArrayEquals(new int[] {1, 2, 3}, t.getIntColumn(1));
+	}
+
+	@Test
+	public void testWriteSpilled() {
+		Map<String, Object> record = new LinkedHashMap<String, Object>();
+		record.put("x", 1.5);
+		record.put("y", "\u00e9");
+		Object[] values = {
+			Arrays.asList(true, null, false)
+			, Arrays.asList("a", null)
+			, Arrays.asList(new int[] {1, 2, 3}, new int[] {4, 5, 6})
+			, Arrays.asList(record, record)
+			, Arrays.asList(Arrays.asList(new double[] {1, 2}, new double[] {3, 4}), "z")
+		};
+		RdsWriter writer = new RdsWriter();
+		OffHeapArena arena = new OffHeapArena(null, 0);
+		try {
+			for (Object value : values) {
+				JavaToR j2r = new JavaToR(value);
+				byte[] expected = writer.write(j2r);
+				boolean missing = writer.hasMissingLogicalValues();
+				j2r.setMemoryBudget(1);
+				j2r.initialize(value);
+				String path = spilledPath(j2r);
+				assertArrayEquals(expected, writer.write(j2r));
+				assertEquals(missing, writer.hasMissingLogicalValues());
+				assertFalse(new File(path).exists());
+
+				j2r.setMemoryBudget(0);
+				j2r.setArena(arena);
+				j2r.initialize(value);
+				assertArrayEquals(expected, writer.write(j2r));
+				assertEquals(0, arena.getSegmentCount());
+				j2r.setArena(null);
+			}
+		} finally {
+			arena.close();
+		}
+	}
+
+	/*
+	 * Returns the path of the spilled value or list element of `j2r`.
+	 */
+	private static String spilledPath(JavaToR j2r) {
+		if (j2r.getRdataStructureCode() == JavaToR.RdataStructureCode.MAPPED_FILE)
+			return j2r.getValueString();
+		Object[] list = (Object[]) j2r.getValueObject();
+		assertEquals(0x800, ((int[]) list[0])[0] & 0xFF00);
+		return (String) ((Object[]) list[1])[0];
+	}
+
+}
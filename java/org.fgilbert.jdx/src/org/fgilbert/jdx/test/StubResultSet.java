@@ -0,0 +1,82 @@
+package org.fgilbert.jdx.test;
+
+/*
+ * An in-memory, forward-only ResultSet for testing conversions without a
+ * database. Only the methods used by ResultSetReader are implemented. Values
+ * are stored in rows of boxed objects; null values are SQL NULL.
+ */
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+
+public class StubResultSet implements InvocationHandler {
+
+	private final String[] labels;
+	private final Object[][] rows;
+	private final int[] sqlTypes;
+	private int position = -1;
+	private boolean wasNull;
+
+	private StubResultSet(String[] labels, int[] sqlTypes, Object[][] rows) {
+		this.labels = labels;
+		this.sqlTypes = sqlTypes;
+		this.rows = rows;
+	}
+
+	public static ResultSet create(String[] labels, int[] sqlTypes, Object[][] rows) {
+		return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[] {ResultSet.class}, new StubResultSet(labels, sqlTypes, rows));
+	}
+
+	private Object get(Object index) {
+		Object o = this.rows[this.position][(Integer) index - 1];
+		this.wasNull = (o == null);
+		return o;
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args) {
+		switch (method.getName()) {
+		case "next":
+			return ++this.position < this.rows.length;
+		case "wasNull":
+			return this.wasNull;
+		case "getMetaData":
+			return Proxy.newProxyInstance(ResultSetMetaData.class.getClassLoader(), new Class<?>[] {ResultSetMetaData.class}, (p, m, a) -> {
+				switch (m.getName()) {
+				case "getColumnCount":
+					return this.labels.length;
+				case "getColumnLabel":
+				case "getColumnName":
+					return this.labels[(Integer) a[0] - 1];
+				case "getColumnType":
+					return this.sqlTypes[(Integer) a[0] - 1];
+				default:
+					throw new UnsupportedOperationException(m.getName());
+				}
+			});
+		case "getDouble":
+			Object d = get(args[0]);
+			return (d == null) ? 0.0 : ((Number) d).doubleValue();
+		case "getInt":
+			Object i = get(args[0]);
+			return (i == null) ? 0 : ((Number) i).intValue();
+		case "getLong":
+			Object l = get(args[0]);
+			return (l == null) ? 0L : ((Number) l).longValue();
+		case "getBoolean":
+			Object b = get(args[0]);
+			return (b == null) ? false : (Boolean) b;
+		case "getString":
+			Object s = get(args[0]);
+			return (s == null) ? null : s.toString();
+		case "close":
+			return null;
+		default:
+			throw new UnsupportedOperationException(method.getName());
+		}
+	}
+
+}
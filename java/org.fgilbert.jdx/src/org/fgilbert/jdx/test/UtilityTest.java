@@ -2,11 +2,280 @@ package org.fgilbert.jdx.test;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.fgilbert.jdx.Factor;
+import org.fgilbert.jdx.JavaToR;
+import org.fgilbert.jdx.NdArray;
+import org.fgilbert.jdx.RecordListView;
+import org.fgilbert.jdx.StringDeduplicator;
+import org.fgilbert.jdx.Table;
+import org.fgilbert.jdx.TableBuilder;
+import org.fgilbert.jdx.JavaToR.ArrayOrder;
+import org.fgilbert.jdx.JavaToR.RdataStructureCode;
 import org.fgilbert.jdx.Utility;
 import org.junit.Test;
 
 public class UtilityTest {
 
+	public enum Side {
+		BUY
+		, SELL
+	}
+
+	public static class Trade {
+
+		private int id;
+		private double price;
+		private Long quantity;
+		private Side side;
+		public String venue;
+
+		public int getId() { return id; }
+		public void setId(int id) { this.id = id; }
+		public double getPrice() { return price; }
+		public void setPrice(double price) { this.price = price; }
+		public Long getQuantity() { return quantity; }
+		public void setQuantity(Long quantity) { this.quantity = quantity; }
+		public Side getSide() { return side; }
+		public void setSide(Side side) { this.side = side; }
+	}
+
+	@Test
+	public void testCoerceStringArray() {
+		// The R tests for coerceCharacterToX cover the rules in detail.
+		assertArrayEquals(new int[] {1, Integer.MIN_VALUE, -2}, (int[]) Utility.coerceStringArray(new String[] {"1", null, " -2"}));
+		// strtoi uses base 10; as.numeric accepts hexadecimal numbers.
+		assertArrayEquals(new double[] {1, 26}, (double[]) Utility.coerceStringArray(new String[] {"0x01", "0x1A"}), 0);
+		double[] numbers = (double[]) Utility.coerceStringArray(new String[] {"1", "1.5", "-Inf", "NaN", "1e3 ", null});
+		assertArrayEquals(new double[] {1, 1.5, Double.NEGATIVE_INFINITY, Double.NaN, 1000}, Arrays.copyOf(numbers, 5), 0);
+		assertEquals(0x7ff00000000007a2L, Double.doubleToRawLongBits(numbers[5]));
+		assertArrayEquals(new boolean[] {true, false, false}, (boolean[]) Utility.coerceStringArray(new String[] {"T", "False", null}));
+		String[] values = new String[] {"1", ""};
+		assertSame(values, Utility.coerceStringArray(values));
+		values = new String[] {"1", "NA"};
+		assertSame(values, Utility.coerceStringArray(values));
+		values = new String[] {"1", "TRUE"};
+		assertSame(values, Utility.coerceStringArray(values));
+		values = new String[] {"1 ", "2147483648"};
+		assertArrayEquals(new double[] {1, 2147483648.0}, (double[]) Utility.coerceStringArray(values), 0);
+
+		// Parallel parsing of large arrays.
+		values = new String[200000];
+		for (int i = 0; i < values.length; i++)
+			values[i] = Integer.toString(i);
+		int[] integers = (int[]) Utility.coerceStringArray(values);
+		assertEquals(199999, integers[199999]);
+		values[150000] = "x";
+		assertSame(values, Utility.coerceStringArray(values));
+	}
+
+	@Test
+	public void testCreateFactor() {
+		String[] levels = new String[] {"BUY", "SELL"};
+		int[] codes = new int[] {2, Integer.MIN_VALUE, 1, 2};
+		Factor factor = Utility.createFactor(codes, levels, false);
+		assertEquals(4, factor.size());
+		assertSame(levels[1], factor.get(0));
+		assertNull(factor.get(1));
+		assertEquals(-1, factor.getLevelIndex(1));
+		assertEquals(0, factor.getLevelIndex(2));
+		Side[] lookup = factor.createEnumLookup(Side.class);
+		assertEquals(Side.SELL, factor.getEnum(3, lookup));
+		assertNull(factor.getEnum(1, lookup));
+
+		// Factor columns of records are expanded to references to the levels.
+		List<Map<String, Object>> records = Utility.createListOfRecords(new String[] {"side"}, new Object[] {factor});
+		assertSame(levels[0], records.get(2).get("side"));
+
+		// Tables and record views keep the codes and levels.
+		Table table = Utility.createTable(new String[] {"side"}, new Object[] {factor}, new Object[] {null});
+		assertTrue(table.isFactor(0));
+		assertSame(factor, table.getFactorColumn(0));
+		assertTrue(table.isNA(1, 0));
+		assertSame(levels[0], table.getString(2, 0));
+		assertArrayEquals(new String[] {"SELL", null, "BUY", "SELL"}, table.getStringColumn(0));
+		assertArrayEquals(new int[] {Integer.MIN_VALUE, 1}, table.slice(1, 3).getFactorColumn(0).getCodes());
+		records = Utility.createListOfRecordsView(new String[] {"side"}, new Object[] {factor});
+		assertSame(factor, ((RecordListView) records).getColumns()[0]);
+		assertSame(levels[0], records.get(2).get("side"));
+		for (Object value : new Object[] {table, records}) {
+			Object[] dataFrame = new JavaToR(value).getValueObjectArray1d();
+			assertArrayEquals(new String[] {"SELL", null, "BUY", "SELL"}, (String[]) ((Object[]) dataFrame[1])[0]);
+		}
+
+		JavaToR j2r = new JavaToR(factor);
+		assertEquals(RdataStructureCode.FACTOR, j2r.getRdataStructureCode());
+		Object[] value = j2r.getValueObjectArray1d();
+		assertSame(codes, value[0]);
+		assertSame(levels, value[1]);
+		assertEquals(false, value[2]);
+		try {
+			Utility.createFactor(new int[] {3}, levels, false);
+			fail();
+		} catch (RuntimeException e) {
+			// Code out of bounds.
+		}
+	}
+
+	@Test
+	public void testCreateListOfCompactRecords() {
+		String[] names = new String[] {"i", "s", "r"};
+		Object[] columns = new Object[] {new int[] {1, 2}, new String[] {"a", null}, new byte[] {3, 4}};
+		List<Map<String, Object>> expected = Utility.createListOfRecords(names, columns);
+		List<Map<String, Object>> records = Utility.createListOfCompactRecords(names, columns);
+		assertEquals(expected, records);
+		assertEquals(records, expected);
+		assertEquals(expected.get(1).hashCode(), records.get(1).hashCode());
+		assertEquals(expected.get(1).toString(), records.get(1).toString());
+		assertEquals((byte) 4, records.get(1).get("r"));
+		assertTrue(records.get(1).containsKey("s"));
+		assertFalse(records.get(1).containsKey("z"));
+		try {
+			records.get(0).remove("i");
+			fail();
+		} catch (UnsupportedOperationException e) {
+		}
+		JavaToR j2r = new JavaToR(records);
+		assertEquals(RdataStructureCode.DATA_FRAME, j2r.getRdataStructureCode());
+		assertArrayEquals(new int[] {1, 2}, (int[]) ((Object[]) j2r.getValueObjectArray1d()[1])[0]);
+	}
+
+	@Test
+	public void testCreateListOfObjects() {
+		String[] names = new String[] {"id", "Price", "quantity", "side", "venue"};
+		Object[] columns = new Object[] {new int[] {1, 2}, new double[] {9.5, 10.25}, new int[] {100, Integer.MIN_VALUE}, new String[] {"BUY", "SELL"}, new String[] {"X", null}};
+		List<Trade> trades = Utility.createListOfObjects(names, columns, Trade.class);
+		assertEquals(2, trades.size());
+		assertEquals(2, trades.get(1).getId());
+		assertEquals(10.25, trades.get(1).getPrice(), 0);
+		assertEquals(Long.valueOf(100), trades.get(0).getQuantity());
+		assertNull(trades.get(1).getQuantity());
+		assertEquals(Side.SELL, trades.get(1).getSide());
+		assertEquals("X", trades.get(0).venue);
+
+		// Missing values cannot be assigned to primitive properties.
+		columns[0] = new int[] {1, Integer.MIN_VALUE};
+		try {
+			Utility.createListOfObjects(names, columns, Trade.class);
+			fail();
+		} catch (RuntimeException e) {
+			assertEquals("The column 'id' contains missing values that cannot be assigned to a primitive property.", e.getMessage());
+		}
+		try {
+			Utility.createListOfObjects(new String[] {"id"}, new Object[] {new String[] {"a"}}, Trade.class);
+			fail();
+		} catch (RuntimeException e) {
+			assertEquals("The column 'id' of type 'java.lang.String' cannot be assigned to a property of type 'int'.", e.getMessage());
+		}
+	}
+
+	@Test
+	public void testCreateListOfRecordsView() {
+		String[] names = new String[] {"x", "s", "b"};
+		Object[] columns = new Object[] {new double[] {1.5, 2.5, 3.5}, new String[] {"a", null, "c"}, new boolean[] {true, false, true}};
+		List<Map<String, Object>> expected = Utility.createListOfRecords(names, columns);
+		List<Map<String, Object>> view = Utility.createListOfRecordsView(names, columns);
+		assertEquals(expected, view);
+		assertEquals(expected.hashCode(), view.hashCode());
+		assertEquals(new ArrayList<String>(expected.get(1).keySet()), new ArrayList<String>(view.get(1).keySet()));
+		assertEquals(2.5, view.get(1).get("x"));
+		assertTrue(view.get(1).containsKey("s"));
+		assertNull(view.get(1).get("s"));
+		assertNull(view.get(1).get("z"));
+		try {
+			view.get(0).put("x", 0.0);
+			fail();
+		} catch (UnsupportedOperationException e) {
+		}
+
+		// Views are converted to R directly from the columns.
+		JavaToR j2r = new JavaToR(view);
+		assertEquals(RdataStructureCode.DATA_FRAME, j2r.getRdataStructureCode());
+		Object[] value = j2r.getValueObjectArray1d();
+		assertArrayEquals(names, (String[]) value[2]);
+		assertSame(columns[0], ((Object[]) value[1])[0]);
+		j2r = new JavaToR(expected);
+		assertArrayEquals(new String[] {"a", null, "c"}, (String[]) ((Object[]) j2r.getValueObjectArray1d()[1])[1]);
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testCreateMapFromTape() {
+		// list(a = 1, b = list(2L, "x", NULL), c = c(TRUE, NA), d = as.raw(7), e = list(z = c(1.5, 2.5)))
+		int[] codes = {0x500, 0x001, 0x400, 0x104, 0x005, 0x500, 0x002, 0x003, 0x000, 0x101};
+		int[] lengths = {5, 1, 3, 2, 1, 1, 1, 1, 0, 2};
+		double[] doubles = {1, 1.5, 2.5};
+		int[] integers = {1, Integer.MIN_VALUE, 7, 2};
+		String[] strings = {"x"};
+		String[] names = {"a", "b", "c", "d", "e", "z"};
+		Map<String, Object> m = Utility.createMapFromTape(codes, lengths, doubles, integers, strings, names);
+		assertEquals(Arrays.asList("a", "b", "c", "d", "e"), new ArrayList<String>(m.keySet()));
+		assertEquals(1.0, m.get("a"));
+		assertEquals(Arrays.asList(2, "x", null), m.get("b"));
+		assertArrayEquals(new boolean[] {true, false}, (boolean[]) m.get("c"));
+		assertEquals((byte) 7, m.get("d"));
+		assertArrayEquals(new double[] {1.5, 2.5}, (double[]) ((Map<String, Object>) m.get("e")).get("z"), 0);
+		try {
+			Utility.createListFromTape(codes, lengths, doubles, integers, strings, names);
+			fail();
+		} catch (RuntimeException e) {
+			// The root is a named list.
+		}
+		try {
+			Utility.createMapFromTape(codes, lengths, new double[] {1}, integers, strings, names);
+			fail();
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage().contains("malformed"));
+		}
+		List<Object> lst = Utility.createListFromTape(new int[] {0x400}, new int[] {0}, new double[0], new int[0], new String[0], new String[0]);
+		assertTrue(lst.isEmpty());
+	}
+
+	@Test
+	public void testCreateNdArray() {
+		// R array with dimensions {2, 3, 3}. Compare views to jagged arrays.
+		int[] data = new int[] {1, 4, 2, 5, 3, 6, 7, 10, 8, 11, 9, 12, 13, 16, 14, 17, 15, 18};
+		int[] dimensions = new int[] {2, 3, 3};
+		int[][][] expected = (int[][][]) Utility.createNdimensionalArrayColumnMinor(data, new int[] {3, 2, 3});
+		NdArray view = Utility.createNdArray(data, dimensions, ArrayOrder.COLUMN_MINOR);
+		assertArrayEquals(new int[] {3, 2, 3}, view.getShape());
+		for (int i = 0; i < 3; i++)
+			for (int j = 0; j < 2; j++)
+				for (int k = 0; k < 3; k++)
+					assertEquals(expected[i][j][k], view.getInt(i, j, k));
+		expected = (int[][][]) Utility.createNdimensionalArrayRowMajor(data, dimensions);
+		view = Utility.createNdArray(data, dimensions, ArrayOrder.ROW_MAJOR);
+		for (int i = 0; i < 2; i++)
+			for (int j = 0; j < 3; j++)
+				for (int k = 0; k < 3; k++)
+					assertEquals(expected[i][j][k], view.getInt(i, j, k));
+		expected = (int[][][]) Utility.createNdimensionalArrayColumnMajor(data, new int[] {3, 3, 2});
+		view = Utility.createNdArray(data, dimensions, ArrayOrder.COLUMN_MAJOR);
+		for (int i = 0; i < 3; i++)
+			for (int j = 0; j < 3; j++)
+				for (int k = 0; k < 2; k++)
+					assertEquals(expected[i][j][k], view.getInt(i, j, k));
+		assertTrue(view.isRorderContiguous());
+		assertSame(data, view.toRorderArray());
+
+		// Slices and selections share the data.
+		view = Utility.createNdArray(data, dimensions, ArrayOrder.ROW_MAJOR);
+		NdArray slice = view.slice(2, 1, 3);
+		assertArrayEquals(new int[] {2, 3, 2}, slice.getRdimensions());
+		assertFalse(slice.isRorderContiguous());
+		assertArrayEquals(new int[] {7, 10, 8, 11, 9, 12, 13, 16, 14, 17, 15, 18}, (int[]) slice.toRorderArray());
+		NdArray matrix = view.select(0, 1);
+		assertArrayEquals(new int[] {3, 3}, matrix.getRdimensions());
+		assertArrayEquals(new int[] {4, 5, 6, 10, 11, 12, 16, 17, 18}, (int[]) matrix.toRorderArray());
+		matrix.setInt(0, 2, 2);
+		assertEquals(0, data[17]);
+		assertTrue(view.slice(0, 0, 2).isRorderContiguous());
+	}
+
 	@Test
 	public void testCreateNdimensionalArrayColumnMinor() {
 		int max; int[] dimensions; int[] data;
@@ -85,6 +354,136 @@ public class UtilityTest {
 
 	}
 	
+	@Test
+	public void testCreateTable() {
+		double na = Double.longBitsToDouble(0x7ff00000000007a2L);
+		String[] names = new String[] {"x", "i", "b", "s"};
+		Object[] columns = new Object[] {new double[] {1, na, Double.NaN, 4}, new int[] {1, 2, Integer.MIN_VALUE, 4}, new boolean[] {true, false, false, true}, new String[] {"a", "b", "c", null}};
+		Table table = Utility.createTable(names, columns, new Object[] {null, null, new int[] {1}, null});
+		assertEquals(4, table.getRowCount());
+		assertTrue(table.isNA(1, 0));
+		assertFalse(table.isNA(2, 0));
+		assertTrue(table.isNA(2, 1));
+		assertTrue(table.isNA(1, 2));
+		assertTrue(table.isNA(3, 3));
+		assertSame(columns[0], table.getDoubleColumn(0));
+
+		Table slice = table.slice(2, 4);
+		assertTrue(slice.isSlice());
+		assertArrayEquals(new int[] {Integer.MIN_VALUE, 4}, slice.getIntColumn(1));
+		assertArrayEquals(new int[] {0}, slice.getMissingRows(1));
+		assertNull(slice.getMissingRows(2));
+		Table.Cursor cursor = slice.cursor();
+		int count = 0;
+		while (cursor.next()) {
+			assertEquals(table.getString(cursor.getRow() + 2, 3), cursor.getString(3));
+			count++;
+		}
+		assertEquals(2, count);
+
+		// Slices without missing logical values do not raise warnings.
+		JavaToR j2r = new JavaToR(slice);
+		assertEquals(RdataStructureCode.DATA_FRAME, j2r.getRdataStructureCode());
+		assertEquals(JavaToR.RdataExceptionCode.NONE, j2r.getRdataExceptionCode());
+		assertArrayEquals(new String[] {"c", null}, (String[]) ((Object[]) j2r.getValueObjectArray1d()[1])[3]);
+		// Logical NA values are passed in R's integer encoding.
+		j2r = new JavaToR(table);
+		assertEquals(JavaToR.RdataExceptionCode.NONE, j2r.getRdataExceptionCode());
+		assertSame(columns[0], ((Object[]) j2r.getValueObjectArray1d()[1])[0]);
+		assertArrayEquals(new int[] {1, Integer.MIN_VALUE, 0, 1}, (int[]) ((Object[]) j2r.getValueObjectArray1d()[1])[2]);
+		j2r.initialize(table, JavaToR.ArrayOrder.ROW_MAJOR, new String[] {"b"}, "x > 2");
+		assertArrayEquals(new boolean[] {true}, (boolean[]) ((Object[]) j2r.getValueObjectArray1d()[1])[0]);
+		j2r.initialize(table, JavaToR.ArrayOrder.ROW_MAJOR, new String[] {"b"}, "i < 3");
+		assertArrayEquals(new int[] {1, Integer.MIN_VALUE}, (int[]) ((Object[]) j2r.getValueObjectArray1d()[1])[0]);
+		j2r.initialize(table, JavaToR.ArrayOrder.ROW_MAJOR, new String[] {"s"}, "i >= 2");
+		assertArrayEquals(new String[] {"b", null}, (String[]) ((Object[]) j2r.getValueObjectArray1d()[1])[0]);
+	}
+
+	@Test
+	public void testDeduplicateStrings() {
+		String[] a = new String[100000];
+		for (int i = 0; i < a.length; i++)
+			a[i] = (i % 3 == 0) ? null : new String("value" + (i % 30));
+		String[] b = new String[] {new String("value1"), "other"};
+		StringDeduplicator deduplicator = Utility.deduplicateStrings(new Object[] {a, new int[] {1}, b});
+		assertSame(a[1], a[31]);
+		assertSame(a[1], b[0]);
+		assertEquals(a.length - 33334 + 2, deduplicator.getCount());
+		assertEquals(21, deduplicator.getDistinctCount());
+		assertEquals(deduplicator.getCount() - 21, deduplicator.getDuplicateCount());
+
+		// The table is bounded.
+		deduplicator = new StringDeduplicator(1);
+		String x = deduplicator.deduplicate(new String("x"));
+		String y = new String("y");
+		assertSame(y, deduplicator.deduplicate(y));
+		assertSame(x, deduplicator.deduplicate(new String("x")));
+		assertEquals(1, deduplicator.getDistinctCount());
+		assertEquals(1.0 / 3, deduplicator.getRatio(), 1e-12);
+
+		// A high-cardinality array does not fill the table before the arrays
+		// that follow.
+		deduplicator = new StringDeduplicator(100);
+		String[] ids = new String[10000];
+		for (int i = 0; i < ids.length; i++)
+			ids[i] = "id" + i;
+		String[] c = new String[] {new String("c"), new String("c")};
+		deduplicator.deduplicate(ids);
+		deduplicator.deduplicate(c);
+		assertSame(c[0], c[1]);
+		assertEquals(1, deduplicator.getHighCardinalityCount());
+		assertTrue(deduplicator.getDistinctCount() < 100);
+	}
+
+	@Test
+	public void testTableBuilder() {
+		TableBuilder builder = new TableBuilder(new String[] {"x", "y", "z", "flag"}, 0, true);
+		builder.append(new Object[] {new int[] {1, 2}, new String[] {"a", "b"}, new boolean[] {false, false}, new boolean[] {true, false}}, new Object[] {null, null, new int[] {0, 1}, new int[] {1}});
+		for (int k = 0; k < 1000; k++)
+			builder.append(new Object[] {new double[] {3.5}, new String[] {new String("a")}, new double[] {k}, new boolean[] {true}});
+		builder.append(new Object[] {new int[] {Integer.MIN_VALUE}, new String[] {null}, new boolean[] {false}, new boolean[] {false}}, new Object[] {null, null, new int[] {0}, new int[] {0}});
+		assertEquals(1003, builder.getRowCount());
+		Table table = builder.build();
+		assertTrue(builder.isSealed());
+		assertEquals(1003, table.getRowCount());
+		// Integer columns are widened to numeric.
+		assertEquals(JavaToR.RdataTypeCode.NUMERIC, table.getColumnType(0));
+		assertEquals(2, table.getDouble(1, 0), 0);
+		assertTrue(table.isNA(1002, 0));
+		// The all-missing logical chunks adopt the numeric type.
+		assertEquals(JavaToR.RdataTypeCode.NUMERIC, table.getColumnType(2));
+		assertTrue(table.isNA(0, 2));
+		assertEquals(999, table.getDouble(1001, 2), 0);
+		assertTrue(table.isNA(1002, 2));
+		assertArrayEquals(new int[] {1, 1002}, table.getMissingRows(3));
+		assertTrue(builder.hasMissingLogicalValues());
+		assertFalse(builder.hasMissingRawValues());
+		assertSame(table.getString(0, 1), table.getString(500, 1));
+		assertEquals(1000, builder.getDeduplicator().getDuplicateCount());
+		try {
+			builder.append(new Object[] {new int[0], new String[0], new int[0], new boolean[0]});
+			fail();
+		} catch (RuntimeException e) {
+			// Sealed.
+		}
+		builder = new TableBuilder(new String[] {"x"});
+		builder.append(new Object[] {new int[] {1}});
+		assertFalse(builder.hasMissingLogicalValues());
+		try {
+			builder.append(new Object[] {new String[] {"a"}});
+			fail();
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage().contains("'x'"));
+		}
+
+		// Factors are stored as character columns.
+		builder = new TableBuilder(new String[] {"side"});
+		builder.append(new Object[] {Utility.createFactor(new int[] {2, 1}, new String[] {"BUY", "SELL"}, false)});
+		table = builder.build();
+		assertFalse(table.isFactor(0));
+		assertArrayEquals(new String[] {"SELL", "BUY"}, table.getStringColumn(0));
+	}
+
 	@Test
 	public void testGetRectangularArrayDimensions() {
 		assertEquals(null, Utility.getRectangularArrayDimensions(null));